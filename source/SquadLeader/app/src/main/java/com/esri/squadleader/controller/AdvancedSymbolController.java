@@ -22,6 +22,7 @@ import android.util.Log;
 
 import com.esri.android.map.GraphicsLayer;
 import com.esri.android.map.Layer;
+import com.esri.core.geometry.Envelope;
 import com.esri.core.geometry.Geometry;
 import com.esri.core.geometry.GeometryEngine;
 import com.esri.core.geometry.Point;
@@ -35,8 +36,13 @@ import com.esri.core.symbol.advanced.MessageHelper;
 import com.esri.core.symbol.advanced.SymbolDictionary;
 import com.esri.militaryapps.controller.ChemLightController;
 import com.esri.militaryapps.controller.MessageController;
+import com.esri.militaryapps.controller.PositionReportController;
 import com.esri.militaryapps.controller.SpotReportController;
 import com.esri.militaryapps.model.Geomessage;
+import com.esri.squadleader.model.DeadReckoningTracker;
+import com.esri.squadleader.model.HashedTimerWheel;
+import com.esri.squadleader.model.MessageBudget;
+import com.esri.squadleader.model.OffscreenUpdates;
 import com.esri.squadleader.util.Utilities;
 
 import org.json.JSONObject;
@@ -46,24 +52,199 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * A controller for ArcGIS Runtime advanced symbology. Use this class when you want to use
  * MessageGroupLayer, MessageProcessor, SymbolDictionary, and MIL-STD-2525C symbols.
  */
-public class AdvancedSymbolController extends com.esri.militaryapps.controller.AdvancedSymbolController {
+public class AdvancedSymbolController extends com.esri.militaryapps.controller.AdvancedSymbolController implements ExtentChangeListener {
+
+    /**
+     * A listener for changes to the locations of friendly position reports.
+     */
+    public interface FriendlyPositionListener {
+
+        /**
+         * Called when a friendly position report is added, moves, or is removed. This method is
+         * called on the thread that processes messages, which is usually not the UI thread.
+         *
+         * @param geomessageId the position report's message ID.
+         * @param location     the new location in the map's spatial reference, or null if the
+         *                     position report was removed.
+         */
+        void friendlyPositionChanged(String geomessageId, Point location);
+
+    }
 
     private static final String TAG = AdvancedSymbolController.class.getSimpleName();
 
     public static final String SPOT_REPORT_LAYER_NAME = "Spot Reports";
 
+    /**
+     * The name of the message and graphic attribute that holds the terrain elevation at a point
+     * message, when a TerrainController is available.
+     */
+    public static final String ELEVATION_FIELD_NAME = "elevation";
+
+    /**
+     * How often, in milliseconds, dead-reckoned positions are redrawn. This is a whole number of
+     * animation frames.
+     */
+    private static final long DEAD_RECKONING_PERIOD_MS = 4 * Utilities.ANIMATION_PERIOD_MS;
+    private static final long DEAD_RECKONING_MIN_REPORT_GAP_MS = 250;
+    private static final long DEAD_RECKONING_MAX_EXTRAPOLATION_MS = 30000;
+    private static final int DEAD_RECKONING_MAX_INTERVALS = 3;
+    private static final double DEAD_RECKONING_MIN_MOVE = 1;
+
+    /**
+     * How long, in milliseconds, a position report can go without an update before it fades,
+     * unless setStaleTrackAging says otherwise.
+     */
+    public static final long DEFAULT_POSITION_REPORT_FADE_MS = 2 * 60 * 1000;
+
+    /**
+     * How long, in milliseconds, a position report can go without an update before it is removed,
+     * unless setStaleTrackAging says otherwise.
+     */
+    public static final long DEFAULT_POSITION_REPORT_EXPIRE_MS = 10 * 60 * 1000;
+
+    private static final long STALE_TICK_MS = 1000;
+    private static final int STALE_WHEEL_SIZE = 512;
+
+    /**
+     * The index in a 2525C symbol ID code of the status character, and the status that makes a
+     * symbol draw with a dashed frame.
+     */
+    private static final int SIC_STATUS_INDEX = 3;
+    private static final char SIC_STATUS_FADED = 'A';
+
+    /**
+     * How far beyond each side of the visible extent, as a fraction of the extent's width or
+     * height, messages still count as visible when off-screen updates are deferred.
+     */
+    private static final double OFFSCREEN_BUFFER_FRACTION = 0.5;
+
+    private static class DeadReckonedMove {
+        final String id;
+        final Message message;
+        final Point point;
+        boolean drawn = false;
+
+        DeadReckonedMove(String id, Message message, Point point) {
+            this.id = id;
+            this.message = message;
+            this.point = point;
+        }
+    }
+
+    private static class DeferredUpdate {
+        final Geomessage geomessage;
+        final long arrivalMillis;
+
+        DeferredUpdate(Geomessage geomessage, long arrivalMillis) {
+            this.geomessage = geomessage;
+            this.arrivalMillis = arrivalMillis;
+        }
+    }
+
+    private static class AgingMessage {
+        final Message message;
+        final String messageType;
+        final long expireAfterFadeMillis;
+        boolean faded = false;
+        String unfadedSic = null;
+
+        AgingMessage(Message message, String messageType, long expireAfterFadeMillis) {
+            this.message = message;
+            this.messageType = messageType;
+            this.expireAfterFadeMillis = expireAfterFadeMillis;
+        }
+    }
+
     private final MapController mapController;
     private final MessageGroupLayer groupLayer;
     private final GraphicsLayer spotReportLayer;
     private final Symbol spotReportSymbol;
     private final MessageController messageController;
     private final File symDictDir;
+    private final HashMap<String, String> messageLayerNamesByType = new HashMap<String, String>();
+    private final HashMap<String, Point> friendlyPositions = new HashMap<String, Point>();
+    private FriendlyPositionListener friendlyPositionListener = null;
+    private volatile TerrainController terrainController = null;
+
+    /**
+     * Held while processing a message together with the dead reckoning and aging state that goes
+     * with it, so that timer ticks never act on a message that is being replaced. The dead
+     * reckoning tracker, timer wheel, message budget and off-screen updates below are not
+     * thread-safe, so every use of them must hold this lock.
+     */
+    private final Object messageLock = new Object();
+    private final DeadReckoningTracker<String> deadReckoningTracker = new DeadReckoningTracker<String>(
+            DEAD_RECKONING_MIN_REPORT_GAP_MS, DEAD_RECKONING_MAX_EXTRAPOLATION_MS, DEAD_RECKONING_MAX_INTERVALS, DEAD_RECKONING_MIN_MOVE);
+    private final HashMap<String, Message> deadReckoningMessages = new HashMap<String, Message>();
+    private Timer deadReckoningTimer = null;
+    private final ArrayList<DeadReckonedMove> deadReckonedMoves = new ArrayList<DeadReckonedMove>();
+    private final HashMap<String, long[]> staleThresholdsByType = new HashMap<String, long[]>();
+    private final HashedTimerWheel<String> staleWheel = new HashedTimerWheel<String>(STALE_TICK_MS, STALE_WHEEL_SIZE, System.currentTimeMillis());
+    private final HashMap<String, AgingMessage> agingMessages = new HashMap<String, AgingMessage>();
+    private final ArrayList<String> staleIds = new ArrayList<String>();
+    private Timer staleTimer = null;
+    private final MessageBudget messageBudget = new MessageBudget(0);
+    private final OffscreenUpdates<String, DeferredUpdate> offscreenUpdates = new OffscreenUpdates<String, DeferredUpdate>();
+    private boolean offscreenDeferralEnabled = false;
+    private final HashMap<String, DeadReckonedMove> offscreenMoves = new HashMap<String, DeadReckonedMove>();
+    private final ExecutorService deferredUpdateExecutor = Executors.newSingleThreadExecutor();
+    private boolean deferredUpdatesQueued = false;
+    private final Runnable drawDeferredUpdates = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<DeadReckonedMove> moves = new ArrayList<DeadReckonedMove>();
+            synchronized (messageLock) {
+                deferredUpdatesQueued = false;
+                ArrayList<DeferredUpdate> updates = new ArrayList<DeferredUpdate>();
+                if (offscreenDeferralEnabled) {
+                    offscreenUpdates.takeVisible(updates);
+                } else {
+                    offscreenUpdates.takeAll(updates);
+                }
+                // Hold messageLock throughout so that a newer update cannot be overwritten
+                for (DeferredUpdate update : updates) {
+                    processMessage(update.geomessage, update.arrivalMillis);
+                }
+                takeVisibleMoves(moves);
+                if (!updates.isEmpty() || !moves.isEmpty()) {
+                    Log.d(TAG, "Drew " + updates.size() + " deferred updates and " + moves.size() + " dead-reckoned moves");
+                }
+            }
+            for (DeadReckonedMove move : moves) {
+                updateClusterPoint(move.id, PositionReportController.REPORT_TYPE, move.point);
+            }
+        }
+    };
+    private final MessageBudget.EvictionListener evictionListener = new MessageBudget.EvictionListener() {
+        @Override
+        public void evicted(String id, String messageType) {
+            processRemoveGeomessage(id, messageType);
+        }
+    };
+    private final DeadReckoningTracker.PositionVisitor<String> deadReckoningVisitor = new DeadReckoningTracker.PositionVisitor<String>() {
+        @Override
+        public void visit(String id, double x, double y) {
+            Message message = deadReckoningMessages.get(id);
+            if (null != message) {
+                deadReckonedMoves.add(new DeadReckonedMove(id, message, new Point(x, y)));
+            }
+        }
+    };
 
     /**
      * Creates a new AdvancedSymbolController. IMPORTANT: this method requires WRITE_EXTERNAL_STORAGE permission.
@@ -99,6 +280,9 @@ public class AdvancedSymbolController extends com.esri.militaryapps.controller.A
         spotReportSymbol = new PictureMarkerSymbol(spotReportIcon);
 
         this.messageController = messageController;
+
+        staleThresholdsByType.put(PositionReportController.REPORT_TYPE,
+                new long[]{DEFAULT_POSITION_REPORT_FADE_MS, DEFAULT_POSITION_REPORT_EXPIRE_MS});
     }
 
     /**
@@ -164,11 +348,17 @@ public class AdvancedSymbolController extends com.esri.militaryapps.controller.A
             if (null != mapController.getSpatialReference() && wkid != mapController.getSpatialReference().getID()) {
                 pt = GeometryEngine.project(pt, SpatialReference.create(wkid), mapController.getSpatialReference());
             }
+            Map<String, Object> attributes = geomessage.getProperties();
+            double elevation = getElevation((Point) pt);
+            if (!Double.isNaN(elevation)) {
+                attributes = new HashMap<String, Object>(attributes);
+                attributes.put(ELEVATION_FIELD_NAME, elevation);
+            }
             if (null != graphicId) {
                 spotReportLayer.updateGraphic(graphicId, pt);
-                spotReportLayer.updateGraphic(graphicId, geomessage.getProperties());
+                spotReportLayer.updateGraphic(graphicId, attributes);
             } else {
-                Graphic graphic = new Graphic(pt, spotReportSymbol, geomessage.getProperties());
+                Graphic graphic = new Graphic(pt, spotReportSymbol, attributes);
                 graphicId = spotReportLayer.addGraphic(graphic);
 
             }
@@ -195,8 +385,17 @@ public class AdvancedSymbolController extends com.esri.militaryapps.controller.A
 
     @Override
     protected boolean processMessage(Geomessage geomessage) {
+        return processMessage(geomessage, System.currentTimeMillis());
+    }
+
+    /**
+     * Processes a message that arrived at the given time, which is earlier than now if the message
+     * was deferred off screen.
+     */
+    private boolean processMessage(Geomessage geomessage, long arrivalMillis) {
         String action = (String) geomessage.getProperty(Geomessage.ACTION_FIELD_NAME);
         Message message;
+        Point pt = null;
         if (MessageHelper.MESSAGE_ACTION_VALUE_HIGHLIGHT.equalsIgnoreCase(action)) {
             message = MessageHelper.create2525CHighlightMessage(
                     geomessage.getId(),
@@ -218,9 +417,733 @@ public class AdvancedSymbolController extends com.esri.militaryapps.controller.A
                     true);
             message.setProperties(geomessage.getProperties());
             message.setID(geomessage.getId());
+            pt = getMessagePoint(geomessage);
+            double elevation = getElevation(pt);
+            if (!Double.isNaN(elevation)) {
+                message.setProperty(ELEVATION_FIELD_NAME, elevation);
+            }
         }
 
-        return _processMessage(message);
+        boolean processed;
+        synchronized (messageLock) {
+            if (deferOffscreenUpdate(geomessage, action, pt, arrivalMillis)) {
+                // Position reports still count as friendly positions while they are off screen
+                updatePositionReport(geomessage, pt);
+                return true;
+            }
+            processed = _processMessage(message);
+            if (processed) {
+                updateDeadReckoning(geomessage, action, message, pt, arrivalMillis);
+                updateAging(geomessage, action, message);
+                updateBudget(geomessage, action);
+                updateDrawnPosition(geomessage, action, pt);
+            }
+        }
+        if (processed) {
+            if (MessageHelper.MESSAGE_ACTION_VALUE_REMOVE.equalsIgnoreCase(action)) {
+                removeClusterPoint(geomessage.getId(), (String) geomessage.getProperty(Geomessage.TYPE_FIELD_NAME));
+                updateFriendlyPosition(geomessage.getId(), null);
+            } else if (!MessageHelper.MESSAGE_ACTION_VALUE_HIGHLIGHT.equalsIgnoreCase(action)
+                    && !MessageHelper.MESSAGE_ACTION_VALUE_UNHIGHLIGHT.equalsIgnoreCase(action)) {
+                updateClusterPoint(geomessage.getId(), (String) geomessage.getProperty(Geomessage.TYPE_FIELD_NAME), pt);
+                updatePositionReport(geomessage, pt);
+            }
+        }
+        return processed;
+    }
+
+    private void updatePositionReport(Geomessage geomessage, Point pt) {
+        if (PositionReportController.REPORT_TYPE.equals(geomessage.getProperty(Geomessage.TYPE_FIELD_NAME))) {
+            updatePositionReport(geomessage.getId(), geomessage.getProperty(Geomessage.SIC_FIELD_NAME), pt);
+        }
+    }
+
+    private void updatePositionReport(String geomessageId, Object sic, Point pt) {
+        if (null != sic && 1 < sic.toString().length() && 'F' == Character.toUpperCase(sic.toString().charAt(1))) {
+            updateFriendlyPosition(geomessageId, pt);
+        } else {
+            updateFriendlyPosition(geomessageId, null);
+        }
+    }
+
+    /**
+     * Turns deferral of off-screen updates on or off. When deferral is on, an update to a point
+     * message is not drawn if the message is outside the visible extent plus a buffer both before
+     * and after the update. Only the latest such update of each message is kept, and the kept
+     * updates are drawn together when the user pans or zooms them into view. Dead-reckoned moves
+     * are held back the same way. Removals are never deferred. When deferral is turned off, all
+     * kept updates are drawn. Call this method on the UI thread.
+     *
+     * @param enabled true to defer off-screen updates.
+     */
+    public void setOffscreenDeferralEnabled(boolean enabled) {
+        synchronized (messageLock) {
+            if (enabled == offscreenDeferralEnabled) {
+                return;
+            }
+            offscreenDeferralEnabled = enabled;
+            offscreenUpdates.clearExtent();
+        }
+        if (enabled) {
+            mapController.addExtentChangeListener(this);
+            extentChanged();
+        } else {
+            mapController.removeExtentChangeListener(this);
+            applyDeferredUpdates();
+        }
+    }
+
+    /**
+     * @return true if off-screen updates are deferred.
+     */
+    public boolean isOffscreenDeferralEnabled() {
+        synchronized (messageLock) {
+            return offscreenDeferralEnabled;
+        }
+    }
+
+    /**
+     * @return the number of off-screen updates waiting to be drawn.
+     */
+    public int getDeferredUpdateCount() {
+        synchronized (messageLock) {
+            return offscreenUpdates.getPendingCount() + offscreenMoves.size();
+        }
+    }
+
+    @Override
+    public void extentChanged() {
+        Envelope extent = mapController.getVisibleExtent();
+        if (null == extent) {
+            return;
+        }
+        double xBuffer = extent.getWidth() * OFFSCREEN_BUFFER_FRACTION;
+        double yBuffer = extent.getHeight() * OFFSCREEN_BUFFER_FRACTION;
+        synchronized (messageLock) {
+            if (!offscreenDeferralEnabled) {
+                return;
+            }
+            offscreenUpdates.setExtent(extent.getXMin() - xBuffer, extent.getYMin() - yBuffer,
+                    extent.getXMax() + xBuffer, extent.getYMax() + yBuffer);
+            if (0 == offscreenUpdates.getPendingCount() && offscreenMoves.isEmpty()) {
+                return;
+            }
+        }
+        applyDeferredUpdates();
+    }
+
+    /**
+     * Draws the deferred updates and dead-reckoned moves that are now in view, or all of them if
+     * deferral is off, on a background thread so that the UI thread does not wait for them. Extent
+     * changes that arrive while a batch is waiting to run share that batch.
+     */
+    private void applyDeferredUpdates() {
+        synchronized (messageLock) {
+            // Dispose shuts the executor down while holding messageLock, so this cannot be rejected
+            if (deferredUpdatesQueued || deferredUpdateExecutor.isShutdown()) {
+                return;
+            }
+            deferredUpdatesQueued = true;
+            deferredUpdateExecutor.execute(drawDeferredUpdates);
+        }
+    }
+
+    /**
+     * Draws the dead-reckoned moves held back off screen that are now in view, or all of them if
+     * deferral is off, and adds them to a list. The caller must hold messageLock.
+     */
+    private void takeVisibleMoves(ArrayList<DeadReckonedMove> moves) {
+        if (offscreenMoves.isEmpty()) {
+            return;
+        }
+        SpatialReference mapSr = mapController.getSpatialReference();
+        if (null == mapSr) {
+            return;
+        }
+        String wkid = Integer.toString(mapSr.getID());
+        Iterator<DeadReckonedMove> it = offscreenMoves.values().iterator();
+        while (it.hasNext()) {
+            DeadReckonedMove move = it.next();
+            if (!offscreenDeferralEnabled || !offscreenUpdates.shouldDefer(move.id, move.point.getX(), move.point.getY())) {
+                it.remove();
+                drawDeadReckonedMove(move, wkid);
+                moves.add(move);
+            }
+        }
+    }
+
+    /**
+     * Keeps an update instead of drawing it if it is off screen and deferral is on. The caller
+     * must hold messageLock.
+     *
+     * @return true if the update was kept and should not be drawn now.
+     */
+    private boolean deferOffscreenUpdate(Geomessage geomessage, String action, Point pt, long arrivalMillis) {
+        if (MessageHelper.MESSAGE_ACTION_VALUE_REMOVE.equalsIgnoreCase(action)) {
+            // The message might only have a deferred update and nothing on the map to remove
+            offscreenUpdates.forget(geomessage.getId());
+            offscreenMoves.remove(geomessage.getId());
+            return false;
+        }
+        if (!offscreenDeferralEnabled || null == pt
+                || MessageHelper.MESSAGE_ACTION_VALUE_HIGHLIGHT.equalsIgnoreCase(action)
+                || MessageHelper.MESSAGE_ACTION_VALUE_UNHIGHLIGHT.equalsIgnoreCase(action)) {
+            return false;
+        }
+        String id = geomessage.getId();
+        if (!offscreenUpdates.shouldDefer(id, pt.getX(), pt.getY())) {
+            return false;
+        }
+        // Keep the arrival time so that dead reckoning does not take the report as newer than it is
+        offscreenUpdates.defer(id, new DeferredUpdate(geomessage, arrivalMillis), pt.getX(), pt.getY());
+        // The update is newer than any extrapolation of the report before it
+        offscreenMoves.remove(id);
+        if (offscreenUpdates.isDrawn(id)) {
+            // The message is still on the map, so it has been updated as far as aging is concerned
+            AgingMessage agingMessage = agingMessages.get(id);
+            if (null != agingMessage) {
+                unfade(agingMessage);
+                updateAging(geomessage, action, agingMessage.message);
+            }
+        }
+        // Count messages that have never been drawn too, so that off-screen traffic cannot pile up
+        // without limit. Evicting such a message drops its deferred update.
+        updateBudget(geomessage, action);
+        return true;
+    }
+
+    /**
+     * Records where a processed message is drawn, for deferral of off-screen updates. The caller
+     * must hold messageLock.
+     */
+    private void updateDrawnPosition(Geomessage geomessage, String action, Point pt) {
+        if (!MessageHelper.MESSAGE_ACTION_VALUE_REMOVE.equalsIgnoreCase(action)
+                && !MessageHelper.MESSAGE_ACTION_VALUE_HIGHLIGHT.equalsIgnoreCase(action)
+                && !MessageHelper.MESSAGE_ACTION_VALUE_UNHIGHLIGHT.equalsIgnoreCase(action)) {
+            if (null == pt) {
+                offscreenUpdates.forget(geomessage.getId());
+            } else {
+                offscreenUpdates.drawn(geomessage.getId(), pt.getX(), pt.getY());
+            }
+        }
+    }
+
+    /**
+     * Turns dead reckoning of position reports on or off. When dead reckoning is on, each position
+     * report's velocity is estimated from its last two reports, and between reports its symbol is
+     * moved along that velocity for a few report intervals, all symbols together once per tick of
+     * a timer aligned to animation frames. Each tick's moves are redrawn together, and the moved
+     * positions are also given to clustering and to the friendly position listener. When dead
+     * reckoning is turned off, symbols stay where they are until their next reports.
+     *
+     * @param enabled true to dead-reckon position reports.
+     */
+    public void setDeadReckoningEnabled(boolean enabled) {
+        synchronized (messageLock) {
+            if (enabled == isDeadReckoningEnabled()) {
+                return;
+            }
+            if (enabled) {
+                deadReckoningTimer = new Timer(TAG, true);
+                long delay = DEAD_RECKONING_PERIOD_MS - System.currentTimeMillis() % DEAD_RECKONING_PERIOD_MS;
+                deadReckoningTimer.scheduleAtFixedRate(new TimerTask() {
+                    @Override
+                    public void run() {
+                        applyDeadReckoning();
+                    }
+                }, delay, DEAD_RECKONING_PERIOD_MS);
+            } else {
+                deadReckoningTimer.cancel();
+                deadReckoningTimer = null;
+                deadReckoningTracker.clear();
+                deadReckoningMessages.clear();
+                offscreenMoves.clear();
+            }
+        }
+    }
+
+    /**
+     * @return true if position reports are dead-reckoned.
+     */
+    public boolean isDeadReckoningEnabled() {
+        synchronized (messageLock) {
+            return null != deadReckoningTimer;
+        }
+    }
+
+    /**
+     * Extrapolates the dead-reckoned position reports and redraws the ones that moved as a batch.
+     * When off-screen updates are deferred, a move that stays off screen is held back like a
+     * deferred update and drawn when the user pans or zooms it into view.
+     */
+    private void applyDeadReckoning() {
+        ArrayList<DeadReckonedMove> moves;
+        synchronized (messageLock) {
+            SpatialReference mapSr = mapController.getSpatialReference();
+            if (null == mapSr) {
+                return;
+            }
+            deadReckonedMoves.clear();
+            if (0 == deadReckoningTracker.extrapolate(System.currentTimeMillis(), deadReckoningVisitor)) {
+                return;
+            }
+            // Still under messageLock, so that a newer report cannot be overwritten
+            String wkid = Integer.toString(mapSr.getID());
+            Iterator<DeadReckonedMove> it = deadReckonedMoves.iterator();
+            while (it.hasNext()) {
+                DeadReckonedMove move = it.next();
+                if (offscreenUpdates.hasPending(move.id)) {
+                    // A newer report is waiting to be drawn, so this extrapolation is out of date
+                    it.remove();
+                } else if (offscreenDeferralEnabled && offscreenUpdates.shouldDefer(move.id, move.point.getX(), move.point.getY())) {
+                    offscreenMoves.put(move.id, move);
+                } else {
+                    offscreenMoves.remove(move.id);
+                    drawDeadReckonedMove(move, wkid);
+                }
+            }
+            moves = new ArrayList<DeadReckonedMove>(deadReckonedMoves);
+            deadReckonedMoves.clear();
+        }
+        for (DeadReckonedMove move : moves) {
+            if (move.drawn) {
+                updateClusterPoint(move.id, PositionReportController.REPORT_TYPE, move.point);
+            }
+            // Position reports still count as friendly positions while they are off screen
+            updatePositionReport(move.id, move.message.getProperty(Geomessage.SIC_FIELD_NAME), move.point);
+        }
+    }
+
+    /**
+     * Redraws a dead-reckoned position report at its extrapolated position and records where it
+     * is drawn. The caller must hold messageLock.
+     */
+    private void drawDeadReckonedMove(DeadReckonedMove move, String wkid) {
+        move.message.setProperty(Geomessage.CONTROL_POINTS_FIELD_NAME, move.point.getX() + "," + move.point.getY());
+        move.message.setProperty(Geomessage.WKID_FIELD_NAME, wkid);
+        if (_processMessage(move.message)) {
+            offscreenUpdates.drawn(move.id, move.point.getX(), move.point.getY());
+            move.drawn = true;
+        }
+    }
+
+    /**
+     * Feeds a processed message, which arrived at the given time, to dead reckoning. The caller
+     * must hold messageLock.
+     */
+    private void updateDeadReckoning(Geomessage geomessage, String action, Message message, Point pt, long arrivalMillis) {
+        if (null == deadReckoningTimer) {
+            return;
+        }
+        // The message is newer than any extrapolation held back off screen
+        offscreenMoves.remove(geomessage.getId());
+        if (MessageHelper.MESSAGE_ACTION_VALUE_REMOVE.equalsIgnoreCase(action)) {
+            deadReckoningTracker.remove(geomessage.getId());
+            deadReckoningMessages.remove(geomessage.getId());
+        } else if (null != pt && PositionReportController.REPORT_TYPE.equals(geomessage.getProperty(Geomessage.TYPE_FIELD_NAME))) {
+            deadReckoningTracker.update(geomessage.getId(), pt.getX(), pt.getY(), arrivalMillis);
+            deadReckoningMessages.put(geomessage.getId(), message);
+        }
+    }
+
+    /**
+     * Sets how long messages of a type can go without an update before they fade and before they
+     * are removed. A faded message is drawn with a dashed frame, as a planned rather than present
+     * unit. Position reports fade after DEFAULT_POSITION_REPORT_FADE_MS and are removed after
+     * DEFAULT_POSITION_REPORT_EXPIRE_MS unless this method says otherwise, and other types do not
+     * age unless this method is called for them. The new thresholds apply from each message's
+     * next update.
+     *
+     * @param messageType  the message type.
+     * @param fadeMillis   the age at which messages fade, or 0 for no fading.
+     * @param expireMillis the age at which messages are removed, or 0 to stop aging this type.
+     */
+    public void setStaleTrackAging(String messageType, long fadeMillis, long expireMillis) {
+        synchronized (messageLock) {
+            if (0 >= expireMillis) {
+                staleThresholdsByType.remove(messageType);
+            } else {
+                staleThresholdsByType.put(messageType, new long[]{fadeMillis, expireMillis});
+            }
+        }
+    }
+
+    /**
+     * Turns aging of stale messages on or off. When aging is on, a single timer wheel tracks the
+     * age of every message of a type that has thresholds, fades messages that go too long without
+     * an update, and removes them in a batch once per tick if they go longer still. Messages that
+     * were on the map before aging was turned on start aging at their next update.
+     *
+     * @param enabled true to age stale messages.
+     * @see #setStaleTrackAging(String, long, long)
+     */
+    public void setStaleTrackAgingEnabled(boolean enabled) {
+        synchronized (messageLock) {
+            if (enabled == (null != staleTimer)) {
+                return;
+            }
+            if (enabled) {
+                staleTimer = new Timer(TAG, true);
+                staleTimer.scheduleAtFixedRate(new TimerTask() {
+                    @Override
+                    public void run() {
+                        ageMessages();
+                    }
+                }, STALE_TICK_MS, STALE_TICK_MS);
+            } else {
+                staleTimer.cancel();
+                staleTimer = null;
+                staleWheel.clear();
+                agingMessages.clear();
+            }
+        }
+    }
+
+    /**
+     * @return true if stale messages are aged.
+     */
+    public boolean isStaleTrackAgingEnabled() {
+        synchronized (messageLock) {
+            return null != staleTimer;
+        }
+    }
+
+    /**
+     * Feeds a processed message to aging. The caller must hold messageLock.
+     */
+    private void updateAging(Geomessage geomessage, String action, Message message) {
+        if (null == staleTimer) {
+            return;
+        }
+        String id = geomessage.getId();
+        if (MessageHelper.MESSAGE_ACTION_VALUE_REMOVE.equalsIgnoreCase(action)) {
+            staleWheel.cancel(id);
+            agingMessages.remove(id);
+        } else if (!MessageHelper.MESSAGE_ACTION_VALUE_HIGHLIGHT.equalsIgnoreCase(action)
+                && !MessageHelper.MESSAGE_ACTION_VALUE_UNHIGHLIGHT.equalsIgnoreCase(action)) {
+            String messageType = (String) geomessage.getProperty(Geomessage.TYPE_FIELD_NAME);
+            long[] thresholds = staleThresholdsByType.get(messageType);
+            if (null == thresholds) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long fadeMillis = thresholds[0];
+            long expireMillis = thresholds[1];
+            if (0 < fadeMillis && fadeMillis < expireMillis) {
+                agingMessages.put(id, new AgingMessage(message, messageType, expireMillis - fadeMillis));
+                staleWheel.schedule(id, now + fadeMillis);
+            } else {
+                AgingMessage agingMessage = new AgingMessage(message, messageType, 0);
+                agingMessage.faded = true;
+                agingMessages.put(id, agingMessage);
+                staleWheel.schedule(id, now + expireMillis);
+            }
+        }
+    }
+
+    /**
+     * Advances the aging timer wheel, fading the messages that have just gone stale and removing
+     * the ones that have expired.
+     */
+    private void ageMessages() {
+        synchronized (messageLock) {
+            long now = System.currentTimeMillis();
+            staleIds.clear();
+            if (0 == staleWheel.advance(now, staleIds)) {
+                return;
+            }
+            int removeCount = 0;
+            for (String id : staleIds) {
+                AgingMessage agingMessage = agingMessages.get(id);
+                if (null == agingMessage) {
+                    continue;
+                }
+                if (agingMessage.faded) {
+                    // Keep the expired IDs at the front of the list for removal below
+                    staleIds.set(removeCount++, id);
+                } else {
+                    fade(agingMessage);
+                    agingMessage.faded = true;
+                    staleWheel.schedule(id, now + agingMessage.expireAfterFadeMillis);
+                }
+            }
+            for (int i = 0; i < removeCount; i++) {
+                String id = staleIds.get(i);
+                processRemoveGeomessage(id, agingMessages.get(id).messageType);
+            }
+            if (0 < removeCount) {
+                Log.d(TAG, "Removed " + removeCount + " stale messages");
+            }
+        }
+    }
+
+    /**
+     * Redraws a message with a dashed frame by changing the status in its symbol ID code. The
+     * caller must hold messageLock.
+     */
+    private void fade(AgingMessage agingMessage) {
+        Object sic = agingMessage.message.getProperty(Geomessage.SIC_FIELD_NAME);
+        if (null != sic && SIC_STATUS_INDEX < sic.toString().length()) {
+            StringBuilder fadedSic = new StringBuilder(sic.toString());
+            fadedSic.setCharAt(SIC_STATUS_INDEX, SIC_STATUS_FADED);
+            agingMessage.unfadedSic = sic.toString();
+            agingMessage.message.setProperty(Geomessage.SIC_FIELD_NAME, fadedSic.toString());
+            _processMessage(agingMessage.message);
+        }
+    }
+
+    /**
+     * Redraws a faded message with the status it had before it faded. The caller must hold
+     * messageLock.
+     */
+    private void unfade(AgingMessage agingMessage) {
+        if (null != agingMessage.unfadedSic) {
+            agingMessage.message.setProperty(Geomessage.SIC_FIELD_NAME, agingMessage.unfadedSic);
+            agingMessage.unfadedSic = null;
+            _processMessage(agingMessage.message);
+        }
+    }
+
+    /**
+     * Sets the most messages allowed on the map, not counting spot reports. Messages whose updates
+     * are deferred off screen count even if they have never been drawn. When a message would go
+     * over the budget, the least recently updated messages are removed from the map to make room
+     * for it. Lowering the budget removes the least recently updated messages right away until the
+     * map is within the new budget.
+     *
+     * @param budget the most messages allowed, or 0 for no limit.
+     */
+    public void setMessageBudget(int budget) {
+        synchronized (messageLock) {
+            messageBudget.setTotalBudget(budget);
+            trimToBudget();
+        }
+    }
+
+    /**
+     * @return the most messages allowed on the map, or 0 for no limit.
+     */
+    public int getMessageBudget() {
+        synchronized (messageLock) {
+            return messageBudget.getTotalBudget();
+        }
+    }
+
+    /**
+     * Sets the most messages of one type allowed on the map, in addition to the overall budget.
+     * When a message would go over its type's budget, the least recently updated messages of that
+     * type are removed from the map to make room for it. Lowering the budget removes messages
+     * right away, as setMessageBudget does.
+     *
+     * @param messageType the message type.
+     * @param budget      the most messages of the type allowed, or 0 for no limit other than the
+     *                    overall budget.
+     * @see #setMessageBudget(int)
+     */
+    public void setMessageTypeBudget(String messageType, int budget) {
+        synchronized (messageLock) {
+            messageBudget.setTypeBudget(messageType, budget);
+            trimToBudget();
+        }
+    }
+
+    /**
+     * Removes the least recently updated messages until the map is within the budgets. The caller
+     * must hold messageLock.
+     */
+    private void trimToBudget() {
+        int evicted = messageBudget.trim(evictionListener);
+        if (0 < evicted) {
+            Log.d(TAG, "Removed " + evicted + " messages to stay within the lowered message budget");
+        }
+    }
+
+    /**
+     * @return the number of messages on the map, not counting spot reports, but counting messages
+     * whose updates are deferred off screen.
+     */
+    public int getMessageCount() {
+        synchronized (messageLock) {
+            return messageBudget.getCount();
+        }
+    }
+
+    /**
+     * Returns the number of messages on the map in each message layer, not counting spot reports.
+     *
+     * @return the counts keyed by layer name. Layers with no messages are absent.
+     */
+    public HashMap<String, Integer> getMessageCountsByLayer() {
+        HashMap<String, Integer> countsByType;
+        synchronized (messageLock) {
+            countsByType = messageBudget.getCountsByType();
+        }
+        HashMap<String, Integer> countsByLayer = new HashMap<String, Integer>();
+        for (Map.Entry<String, Integer> entry : countsByType.entrySet()) {
+            String layerName = getCachedMessageLayerName(entry.getKey());
+            if (null != layerName) {
+                Integer count = countsByLayer.get(layerName);
+                countsByLayer.put(layerName, entry.getValue() + (null == count ? 0 : count));
+            }
+        }
+        return countsByLayer;
+    }
+
+    /**
+     * Feeds a processed message to the message budget, evicting the least recently updated
+     * messages if the budget is exceeded. The caller must hold messageLock.
+     */
+    private void updateBudget(Geomessage geomessage, String action) {
+        if (MessageHelper.MESSAGE_ACTION_VALUE_REMOVE.equalsIgnoreCase(action)) {
+            messageBudget.remove(geomessage.getId());
+        } else if (!MessageHelper.MESSAGE_ACTION_VALUE_HIGHLIGHT.equalsIgnoreCase(action)
+                && !MessageHelper.MESSAGE_ACTION_VALUE_UNHIGHLIGHT.equalsIgnoreCase(action)) {
+            int evicted = messageBudget.update(
+                    geomessage.getId(),
+                    (String) geomessage.getProperty(Geomessage.TYPE_FIELD_NAME),
+                    evictionListener);
+            if (0 < evicted) {
+                Log.d(TAG, "Removed " + evicted + " messages to stay within the message budget");
+            }
+        }
+    }
+
+    private void updateFriendlyPosition(String geomessageId, Point location) {
+        FriendlyPositionListener listener;
+        synchronized (friendlyPositions) {
+            if (null == location) {
+                if (null == friendlyPositions.remove(geomessageId)) {
+                    return;
+                }
+            } else {
+                friendlyPositions.put(geomessageId, location);
+            }
+            listener = friendlyPositionListener;
+        }
+        if (null != listener) {
+            listener.friendlyPositionChanged(geomessageId, location);
+        }
+    }
+
+    /**
+     * Returns the locations of the friendly position reports that are on the map.
+     *
+     * @return the locations in the map's spatial reference, keyed by message ID.
+     */
+    public HashMap<String, Point> getFriendlyPositions() {
+        synchronized (friendlyPositions) {
+            return new HashMap<String, Point>(friendlyPositions);
+        }
+    }
+
+    /**
+     * Sets the listener for changes to friendly position reports.
+     *
+     * @param listener the listener, or null for none.
+     */
+    public void setFriendlyPositionListener(FriendlyPositionListener listener) {
+        synchronized (friendlyPositions) {
+            friendlyPositionListener = listener;
+        }
+    }
+
+    /**
+     * Sets the TerrainController used to add an elevation attribute to point messages as they
+     * arrive. Messages already on the map are not changed.
+     *
+     * @param terrainController the TerrainController, or null to stop adding elevations.
+     */
+    public void setTerrainController(TerrainController terrainController) {
+        this.terrainController = terrainController;
+    }
+
+    private double getElevation(Point pt) {
+        TerrainController terrain = terrainController;
+        if (null == terrain || null == pt) {
+            return Double.NaN;
+        }
+        return terrain.getElevation(pt);
+    }
+
+    /**
+     * Returns the location of a point message in the map's spatial reference.
+     *
+     * @return the location, or null if the message does not have exactly one control point.
+     */
+    private Point getMessagePoint(Geomessage geomessage) {
+        Object controlPoints = geomessage.getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME);
+        if (null == controlPoints || controlPoints.toString().contains(";")) {
+            return null;
+        }
+        try {
+            String[] coords = controlPoints.toString().split(",");
+            Point pt = new Point(Double.parseDouble(coords[0].trim()), Double.parseDouble(coords[1].trim()));
+            Object wkidValue = geomessage.getProperty(Geomessage.WKID_FIELD_NAME);
+            SpatialReference mapSr = mapController.getSpatialReference();
+            if (null != wkidValue && null != mapSr) {
+                int wkid = Integer.parseInt(wkidValue.toString().trim());
+                if (wkid != mapSr.getID()) {
+                    pt = (Point) GeometryEngine.project(pt, SpatialReference.create(wkid), mapSr);
+                }
+            }
+            return pt;
+        } catch (RuntimeException e) {
+            Log.d(TAG, "Could not read control point of message " + geomessage.getId(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Gives the ClusterController the location of a point message, so that dense message layers
+     * can be drawn as clusters. Messages with more than one control point are not clustered.
+     */
+    private void updateClusterPoint(String geomessageId, String messageType, Point pt) {
+        if (null == pt) {
+            return;
+        }
+        Layer sublayer = getMessageSublayer(messageType);
+        if (null == sublayer) {
+            return;
+        }
+        ClusterController clusterController = mapController.getClusterController();
+        synchronized (clusterController) {
+            if (!clusterController.isRegistered(sublayer)) {
+                mapController.addClusterLayer(clusterController.registerLayer(sublayer));
+            }
+        }
+        clusterController.updatePoint(sublayer, geomessageId, pt.getX(), pt.getY());
+    }
+
+    private void removeClusterPoint(String geomessageId, String messageType) {
+        Layer sublayer = getMessageSublayer(messageType);
+        if (null != sublayer) {
+            mapController.getClusterController().removePoint(sublayer, geomessageId);
+        }
+    }
+
+    private Layer getMessageSublayer(String messageType) {
+        if (null == messageType || SpotReportController.REPORT_TYPE.equals(messageType)) {
+            return null;
+        }
+        String layerName = getCachedMessageLayerName(messageType);
+        if (null == layerName) {
+            return null;
+        }
+        Layer[] layers = groupLayer.getLayers(layerName);
+        return null == layers || 0 == layers.length ? null : layers[0];
+    }
+
+    private String getCachedMessageLayerName(String messageType) {
+        synchronized (messageLayerNamesByType) {
+            // getMessageLayerName reads the symbol dictionary from disk, so remember its answers
+            if (messageLayerNamesByType.containsKey(messageType)) {
+                return messageLayerNamesByType.get(messageType);
+            } else {
+                String layerName = getMessageLayerName(messageType);
+                messageLayerNamesByType.put(messageType, layerName);
+                return layerName;
+            }
+        }
     }
 
     private boolean _processMessage(Message message) {
@@ -257,7 +1180,18 @@ public class AdvancedSymbolController extends com.esri.militaryapps.controller.A
     @Override
     protected void processRemoveGeomessage(String geomessageId, String messageType) {
         Message message = MessageHelper.create2525CRemoveMessage(geomessageId, messageType);
-        _processMessage(message);
+        synchronized (messageLock) {
+            _processMessage(message);
+            deadReckoningTracker.remove(geomessageId);
+            deadReckoningMessages.remove(geomessageId);
+            staleWheel.cancel(geomessageId);
+            agingMessages.remove(geomessageId);
+            messageBudget.remove(geomessageId);
+            offscreenUpdates.forget(geomessageId);
+            offscreenMoves.remove(geomessageId);
+        }
+        removeClusterPoint(geomessageId, messageType);
+        updateFriendlyPosition(geomessageId, null);
     }
 
     @Override
@@ -355,6 +1289,33 @@ public class AdvancedSymbolController extends com.esri.militaryapps.controller.A
                 loopAndRemove(graphicIds, graphicsLayer, sendRemoveMessageForOwnMessages, false);
             }
         }
+        removeUndrawnMessages(layerName);
+    }
+
+    /**
+     * Removes the messages that have never been drawn because all of their updates were deferred
+     * off screen. Clearing a layer does not find them among the layer's graphics.
+     *
+     * @param layerName the name of the layer whose messages to remove, or null for all layers.
+     */
+    private void removeUndrawnMessages(String layerName) {
+        int removed = 0;
+        synchronized (messageLock) {
+            for (String messageType : messageBudget.getCountsByType().keySet()) {
+                if (null != layerName && !layerName.equals(getCachedMessageLayerName(messageType))) {
+                    continue;
+                }
+                for (String id : messageBudget.getIds(messageType)) {
+                    if (offscreenUpdates.hasPending(id) && !offscreenUpdates.isDrawn(id)) {
+                        processRemoveGeomessage(id, messageType);
+                        removed++;
+                    }
+                }
+            }
+        }
+        if (0 < removed) {
+            Log.d(TAG, "Removed " + removed + " messages that were only deferred off screen");
+        }
     }
 
     private void loopAndRemove(int[] graphicIds, GraphicsLayer graphicsLayer, boolean sendRemoveMessageForOwnMessages, boolean removeGraphics) {
@@ -392,6 +1353,28 @@ public class AdvancedSymbolController extends com.esri.militaryapps.controller.A
     public void clearAllMessages(boolean sendRemoveMessageForOwnMessages) {
         super.clearAllMessages(sendRemoveMessageForOwnMessages);
         clearLayer(spotReportLayer.getName(), sendRemoveMessageForOwnMessages);
+        removeUndrawnMessages(null);
+    }
+
+    /**
+     * Disposes this controller, stopping the dead reckoning and aging timers and the thread that
+     * draws deferred updates, so that they no longer redraw the map or keep it in memory. Call this
+     * method when the map is destroyed.
+     */
+    public void dispose() {
+        mapController.removeExtentChangeListener(this);
+        synchronized (messageLock) {
+            if (null != deadReckoningTimer) {
+                deadReckoningTimer.cancel();
+                deadReckoningTimer = null;
+            }
+            if (null != staleTimer) {
+                staleTimer.cancel();
+                staleTimer = null;
+            }
+            offscreenDeferralEnabled = false;
+            deferredUpdateExecutor.shutdownNow();
+        }
     }
 
     /**
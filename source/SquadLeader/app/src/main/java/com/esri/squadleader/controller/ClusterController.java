@@ -0,0 +1,437 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.controller;
+
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.esri.android.map.FeatureLayer;
+import com.esri.android.map.GraphicsLayer;
+import com.esri.android.map.Layer;
+import com.esri.android.map.MapView;
+import com.esri.core.geometry.Envelope;
+import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.GeometryEngine;
+import com.esri.core.geometry.Point;
+import com.esri.core.geometry.Polygon;
+import com.esri.core.geometry.SpatialReference;
+import com.esri.core.map.Feature;
+import com.esri.core.map.FeatureResult;
+import com.esri.core.map.Graphic;
+import com.esri.core.symbol.CompositeSymbol;
+import com.esri.core.symbol.SimpleMarkerSymbol;
+import com.esri.core.symbol.TextSymbol;
+import com.esri.core.table.FeatureTable;
+import com.esri.core.tasks.query.QueryParameters;
+import com.esri.squadleader.model.PointClusterIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Thins dense point layers by drawing clusters in place of individual symbols. Each registered
+ * source layer gets a companion GraphicsLayer of clusters. When more than a threshold number of the
+ * source layer's points are in the visible extent, the source layer is hidden and its points are
+ * aggregated into clusters on a screen-space grid; as the user zooms in, the grid cells shrink,
+ * the clusters break apart, and once few enough points are visible the source layer is shown
+ * again. Only the clusters in the visible extent are drawn, and moving or removing a point redraws
+ * only the clusters that changed.
+ * <p/>
+ * Because clustering hides and shows source layers, a source layer's own visibility is not the
+ * user's choice while it is clustered. Use setLayerVisible and isLayerVisible to change and read
+ * the user's choice for a registered layer.
+ */
+public class ClusterController implements ExtentChangeListener {
+
+    private static class ClusterSource {
+        final Layer sourceLayer;
+        final GraphicsLayer clusterLayer = new GraphicsLayer();
+        // Synchronize on the index to read or update it
+        final PointClusterIndex<Object> index;
+        final HashMap<Long, Integer> graphicIds = new HashMap<Long, Integer>();
+        boolean clustered = false;
+        boolean hiddenByClustering = false;
+        boolean userVisible;
+
+        ClusterSource(Layer sourceLayer, double cellSize) {
+            this.sourceLayer = sourceLayer;
+            this.index = new PointClusterIndex<Object>(cellSize);
+            this.userVisible = sourceLayer.isVisible();
+        }
+    }
+
+    private static final String TAG = ClusterController.class.getSimpleName();
+    private static final int CLUSTER_CELL_PIXELS = 64;
+    private static final int MAX_UNCLUSTERED_POINTS = 300;
+    private static final long REFRESH_DELAY_MS = 250;
+    private static final int FEATURE_PAGE_SIZE = 1000;
+    private static final int CLUSTER_COLOR = Color.argb(200, 255, 140, 0);
+
+    private final MapController mapController;
+    private final MapView mapView;
+    private final List<ClusterSource> sources = new ArrayList<ClusterSource>();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable refreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
+    ClusterController(MapController mapController, MapView mapView) {
+        this.mapController = mapController;
+        this.mapView = mapView;
+    }
+
+    /**
+     * Registers a layer whose points should be clustered. Add points with updatePoint.
+     *
+     * @param sourceLayer the layer that draws the individual points.
+     * @return the layer that draws the clusters. The caller must add it to the map above the
+     * source layer, normally with MapController.addClusterLayer.
+     */
+    public GraphicsLayer registerLayer(Layer sourceLayer) {
+        ClusterSource source = new ClusterSource(sourceLayer, getCellSize());
+        source.clusterLayer.setName(sourceLayer.getName() + " (clusters)");
+        synchronized (sources) {
+            sources.add(source);
+        }
+        return source.clusterLayer;
+    }
+
+    /**
+     * Registers a point feature layer and loads its points on a background thread.
+     *
+     * @param featureLayer the feature layer.
+     * @return the layer that draws the clusters, which the caller must add to the map above the
+     * feature layer, or null if the feature layer does not contain points.
+     */
+    public GraphicsLayer registerFeatureLayer(final FeatureLayer featureLayer) {
+        final FeatureTable table = featureLayer.getFeatureTable();
+        if (null == table || Geometry.Type.POINT != table.getGeometryType()) {
+            return null;
+        }
+        GraphicsLayer clusterLayer = registerLayer(featureLayer);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    loadFeaturePoints(featureLayer, table);
+                } catch (Throwable t) {
+                    Log.w(TAG, "Could not load points for clustering from " + featureLayer.getName(), t);
+                }
+            }
+        }.start();
+        return clusterLayer;
+    }
+
+    private void loadFeaturePoints(FeatureLayer featureLayer, FeatureTable table) throws Exception {
+        QueryParameters idQuery = new QueryParameters();
+        idQuery.setWhere("1=1");
+        long[] ids = table.queryIds(idQuery, null).get();
+        SpatialReference tableSr = table.getSpatialReference();
+        SpatialReference mapSr = mapController.getSpatialReference();
+        for (int pageStart = 0; pageStart < ids.length; pageStart += FEATURE_PAGE_SIZE) {
+            QueryParameters pageQuery = new QueryParameters();
+            pageQuery.setObjectIds(Arrays.copyOfRange(ids, pageStart, Math.min(pageStart + FEATURE_PAGE_SIZE, ids.length)));
+            pageQuery.setReturnGeometry(true);
+            FeatureResult result = table.queryFeatures(pageQuery, null).get();
+            for (Object element : result) {
+                if (element instanceof Feature) {
+                    Feature feature = (Feature) element;
+                    Geometry geometry = feature.getGeometry();
+                    if (geometry instanceof Point) {
+                        if (null != tableSr && null != mapSr && tableSr.getID() != mapSr.getID()) {
+                            geometry = GeometryEngine.project(geometry, tableSr, mapSr);
+                        }
+                        Point point = (Point) geometry;
+                        updatePoint(featureLayer, feature.getId(), point.getX(), point.getY());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds or moves a point in a registered layer. This method can be called from any thread.
+     *
+     * @param sourceLayer the registered source layer.
+     * @param id          the point's ID, which must be unique within the source layer.
+     * @param x           the X coordinate in the map's spatial reference.
+     * @param y           the Y coordinate in the map's spatial reference.
+     */
+    public void updatePoint(Layer sourceLayer, Object id, double x, double y) {
+        ClusterSource source = getSource(sourceLayer);
+        if (null != source) {
+            synchronized (source.index) {
+                source.index.update(id, x, y);
+            }
+            scheduleRefresh();
+        }
+    }
+
+    /**
+     * Removes a point from a registered layer. This method can be called from any thread.
+     *
+     * @param sourceLayer the registered source layer.
+     * @param id          the point's ID.
+     */
+    public void removePoint(Layer sourceLayer, Object id) {
+        ClusterSource source = getSource(sourceLayer);
+        if (null != source) {
+            boolean removed;
+            synchronized (source.index) {
+                removed = source.index.remove(id);
+            }
+            if (removed) {
+                scheduleRefresh();
+            }
+        }
+    }
+
+    /**
+     * Unregisters a layer, showing it if clustering had hidden it.
+     *
+     * @param sourceLayer the registered source layer.
+     * @return the layer that drew the layer's clusters, which the caller should remove from the
+     * map, or null if the layer was not registered.
+     */
+    public GraphicsLayer unregisterLayer(Layer sourceLayer) {
+        ClusterSource source = getSource(sourceLayer);
+        if (null == source) {
+            return null;
+        }
+        synchronized (sources) {
+            sources.remove(source);
+        }
+        synchronized (source.index) {
+            if (source.hiddenByClustering) {
+                source.sourceLayer.setVisible(source.userVisible);
+                source.hiddenByClustering = false;
+            }
+            source.clusterLayer.removeAll();
+        }
+        return source.clusterLayer;
+    }
+
+    /**
+     * Shows or hides a layer as the user chooses. If the layer is registered, its clusters are
+     * shown or hidden with it, and while it is clustered the layer itself stays hidden until it is
+     * no longer clustered. Call this method on the UI thread.
+     *
+     * @param layer   the layer, which need not be registered.
+     * @param visible true to show the layer.
+     */
+    public void setLayerVisible(Layer layer, boolean visible) {
+        ClusterSource source = getSource(layer);
+        if (null == source) {
+            layer.setVisible(visible);
+            return;
+        }
+        synchronized (source.index) {
+            source.userVisible = visible;
+            if (!visible) {
+                layer.setVisible(false);
+                source.hiddenByClustering = false;
+            } else if (!source.hiddenByClustering) {
+                layer.setVisible(true);
+            }
+        }
+        scheduleRefresh();
+    }
+
+    /**
+     * Returns whether the user has chosen to show a layer, regardless of whether clustering has
+     * hidden it.
+     *
+     * @param layer the layer, which need not be registered.
+     * @return true if the user has chosen to show the layer.
+     */
+    public boolean isLayerVisible(Layer layer) {
+        ClusterSource source = getSource(layer);
+        if (null == source) {
+            return layer.isVisible();
+        }
+        synchronized (source.index) {
+            return source.userVisible;
+        }
+    }
+
+    /**
+     * Returns true if a layer has been registered with this ClusterController.
+     *
+     * @param sourceLayer the layer.
+     * @return true if the layer is registered.
+     */
+    public boolean isRegistered(Layer sourceLayer) {
+        return null != getSource(sourceLayer);
+    }
+
+    /**
+     * Unregisters all layers, showing any source layers that clustering had hidden.
+     */
+    public void clear() {
+        handler.removeCallbacks(refreshRunnable);
+        synchronized (sources) {
+            for (ClusterSource source : sources) {
+                if (source.hiddenByClustering) {
+                    source.sourceLayer.setVisible(source.userVisible);
+                }
+                source.clusterLayer.removeAll();
+            }
+            sources.clear();
+        }
+    }
+
+    @Override
+    public void extentChanged() {
+        scheduleRefresh();
+    }
+
+    private ClusterSource getSource(Layer sourceLayer) {
+        synchronized (sources) {
+            for (ClusterSource source : sources) {
+                if (source.sourceLayer == sourceLayer) {
+                    return source;
+                }
+            }
+        }
+        return null;
+    }
+
+    private double getCellSize() {
+        double resolution = mapView.getResolution();
+        return CLUSTER_CELL_PIXELS * (0 < resolution && !Double.isNaN(resolution) ? resolution : 1);
+    }
+
+    /**
+     * Coalesces refresh requests, which can arrive once per point when many points move at once.
+     */
+    private void scheduleRefresh() {
+        handler.removeCallbacks(refreshRunnable);
+        handler.postDelayed(refreshRunnable, REFRESH_DELAY_MS);
+    }
+
+    private void refresh() {
+        Polygon extentPolygon = mapView.getExtent();
+        if (null == extentPolygon) {
+            return;
+        }
+        Envelope extent = new Envelope();
+        extentPolygon.queryEnvelope(extent);
+        double cellSize = getCellSize();
+        List<ClusterSource> sourcesCopy;
+        synchronized (sources) {
+            sourcesCopy = new ArrayList<ClusterSource>(sources);
+        }
+        for (ClusterSource source : sourcesCopy) {
+            refresh(source, extent, cellSize);
+        }
+    }
+
+    private void refresh(ClusterSource source, Envelope extent, double cellSize) {
+        synchronized (source.index) {
+            if (!source.hiddenByClustering) {
+                // Nothing but the user has changed the layer's visibility since it was last clustered
+                source.userVisible = source.sourceLayer.isVisible();
+            }
+            boolean rebuilt = source.index.setCellSize(cellSize);
+            boolean shouldCluster = false;
+            List<PointClusterIndex.Cluster<Object>> visibleClusters = null;
+            if (source.userVisible && mapController.isInScaleRange(source.sourceLayer)) {
+                visibleClusters = source.index.getClusters(
+                        extent.getXMin(), extent.getYMin(), extent.getXMax(), extent.getYMax());
+                int visiblePoints = 0;
+                for (PointClusterIndex.Cluster<Object> cluster : visibleClusters) {
+                    visiblePoints += cluster.getCount();
+                }
+                shouldCluster = MAX_UNCLUSTERED_POINTS < visiblePoints;
+            }
+
+            if (shouldCluster) {
+                if (source.sourceLayer.isVisible()) {
+                    source.sourceLayer.setVisible(false);
+                    source.hiddenByClustering = true;
+                }
+                Set<Long> dirtyCells = source.index.takeDirtyCells();
+                if (!source.clustered || rebuilt) {
+                    source.clusterLayer.removeAll();
+                    source.graphicIds.clear();
+                }
+                // Draw only the clusters in view, adding the ones that came into view and updating
+                // the ones that changed
+                HashSet<Long> visibleCells = new HashSet<Long>();
+                for (PointClusterIndex.Cluster<Object> cluster : visibleClusters) {
+                    long cellKey = cluster.getCellKey();
+                    visibleCells.add(cellKey);
+                    Integer graphicId = source.graphicIds.get(cellKey);
+                    if (null == graphicId) {
+                        source.graphicIds.put(cellKey, source.clusterLayer.addGraphic(createClusterGraphic(cluster)));
+                    } else if (dirtyCells.contains(cellKey)) {
+                        source.clusterLayer.updateGraphic(graphicId, createClusterGraphic(cluster));
+                    }
+                }
+                // Remove the clusters that went out of view or were emptied
+                Iterator<Map.Entry<Long, Integer>> it = source.graphicIds.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Long, Integer> entry = it.next();
+                    if (!visibleCells.contains(entry.getKey())) {
+                        source.clusterLayer.removeGraphic(entry.getValue());
+                        it.remove();
+                    }
+                }
+                source.clustered = true;
+            } else {
+                if (source.clustered) {
+                    source.clusterLayer.removeAll();
+                    source.graphicIds.clear();
+                    source.clustered = false;
+                }
+                source.index.takeDirtyCells();
+                if (source.hiddenByClustering) {
+                    source.sourceLayer.setVisible(source.userVisible);
+                    source.hiddenByClustering = false;
+                }
+            }
+        }
+    }
+
+    private static Graphic createClusterGraphic(PointClusterIndex.Cluster<Object> cluster) {
+        Point point = new Point(cluster.getX(), cluster.getY());
+        int count = cluster.getCount();
+        if (1 == count) {
+            return new Graphic(point, new SimpleMarkerSymbol(CLUSTER_COLOR, 8, SimpleMarkerSymbol.STYLE.CIRCLE));
+        }
+        // Grow the marker with the logarithm of the count so that big clusters stand out without covering the map
+        int size = 16 + (int) (6 * Math.log10(count));
+        CompositeSymbol symbol = new CompositeSymbol();
+        symbol.add(new SimpleMarkerSymbol(CLUSTER_COLOR, size, SimpleMarkerSymbol.STYLE.CIRCLE));
+        TextSymbol text = new TextSymbol(10, Integer.toString(count), Color.BLACK);
+        text.setHorizontalAlignment(TextSymbol.HorizontalAlignment.CENTER);
+        text.setVerticalAlignment(TextSymbol.VerticalAlignment.MIDDLE);
+        symbol.add(text);
+        return new Graphic(point, symbol);
+    }
+
+}
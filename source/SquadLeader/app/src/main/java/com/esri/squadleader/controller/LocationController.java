@@ -17,10 +17,13 @@ package com.esri.squadleader.controller;
 
 import android.Manifest;
 import android.app.Activity;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.location.LocationListener;
+import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.Looper;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
 
@@ -28,10 +31,20 @@ import com.esri.android.map.LocationDisplayManager;
 import com.esri.militaryapps.model.Location;
 import com.esri.militaryapps.model.LocationProvider;
 import com.esri.militaryapps.model.LocationSimulator;
+import com.esri.squadleader.model.AdaptiveSamplingPolicy;
+import com.esri.squadleader.model.AdaptiveSamplingPolicy.SamplingMode;
+import com.esri.squadleader.model.AdaptiveSamplingPolicy.SamplingModeListener;
+import com.esri.squadleader.model.KalmanLocationFilter;
+import com.esri.squadleader.model.SpeedHeadingEstimator;
+import com.esri.squadleader.model.StreamingGpxReader;
+import com.esri.squadleader.model.StreamingLocationSimulator;
+import com.esri.squadleader.model.TrackRecorder;
 
 import org.xml.sax.SAXException;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Calendar;
@@ -43,6 +56,18 @@ public class LocationController extends com.esri.militaryapps.controller.Locatio
     private static final String TAG = LocationController.class.getSimpleName();
     private static final String PREF_LOCATION_MODE = "pref_locationMode";
     private static final String PREF_GPX_FILE = "pref_gpxFile";
+    private static final double FILTER_ACCELERATION_NOISE = 1.0;
+    private static final double FILTER_MAX_SPEED = 15.0;
+    private static final double FILTER_MIN_MOVE_METERS = 3.0;
+    private static final long FILTER_MAX_SILENCE_MILLIS = 10000;
+    private static final long SAMPLING_MOVING_INTERVAL_MILLIS = 1000;
+    private static final long SAMPLING_STATIONARY_INTERVAL_MILLIS = 30000;
+    private static final double SAMPLING_STATIONARY_RADIUS_METERS = 10;
+    private static final long SAMPLING_STATIONARY_DELAY_MILLIS = 60000;
+    private static final double SAMPLING_MOVING_SPEED = 0.5;
+    private static final double SAMPLING_HEADING_CHANGE_DEGREES = 45;
+    private static final int ESTIMATOR_WINDOW_SIZE = 10;
+    private static final long ESTIMATOR_MAX_WINDOW_MILLIS = 10000;
 
     /**
      * The name of the preferences file used to store LocationController preferences. This file will
@@ -53,6 +78,21 @@ public class LocationController extends com.esri.militaryapps.controller.Locatio
     private SharedPreferences prefs = null;
     private LocationDisplayManager locationDisplayManager = null;
     private Activity targetActivity = null;
+    private final String builtInGpxPath;
+    private volatile StreamingLocationSimulator simulator = null;
+    private volatile double simulatorSpeedMultiplier = 1;
+    private volatile double simulatorOutputRate = 0;
+    private volatile KalmanLocationFilter locationFilter = null;
+    private final AdaptiveSamplingPolicy samplingPolicy = new AdaptiveSamplingPolicy(
+            SAMPLING_MOVING_INTERVAL_MILLIS, SAMPLING_STATIONARY_INTERVAL_MILLIS, SAMPLING_STATIONARY_RADIUS_METERS,
+            SAMPLING_STATIONARY_DELAY_MILLIS, SAMPLING_MOVING_SPEED, SAMPLING_HEADING_CHANGE_DEGREES);
+    private volatile boolean adaptiveSamplingEnabled = false;
+    private SamplingModeListener serviceProviderSamplingListener = null;
+    private volatile File trackLogFile = null;
+    private volatile TrackRecorder trackRecorder = null;
+    private volatile TrackRecorder playbackTrack = null;
+    private volatile boolean recordedTrackPlayback = false;
+    private final SpeedHeadingEstimator speedHeadingEstimator = new SpeedHeadingEstimator(ESTIMATOR_WINDOW_SIZE, ESTIMATOR_MAX_WINDOW_MILLIS);
 
     /**
      * Instantiates a LocationController. Note that if you want to use the device's location
@@ -70,6 +110,7 @@ public class LocationController extends com.esri.militaryapps.controller.Locatio
     public LocationController(String builtInGpxPath, LocationMode mode)
             throws ParserConfigurationException, SAXException, IOException {
         super(mode);
+        this.builtInGpxPath = builtInGpxPath;
         setBuiltInGpxPath(builtInGpxPath);
     }
 
@@ -129,7 +170,12 @@ public class LocationController extends com.esri.militaryapps.controller.Locatio
      */
     @Override
     public void setMode(LocationMode mode, boolean storePreference) throws IOException, SAXException, ParserConfigurationException {
+        if (LocationMode.SIMULATOR != mode) {
+            recordedTrackPlayback = false;
+            playbackTrack = null;
+        }
         super.setMode(mode, storePreference);
+        speedHeadingEstimator.reset();
         if (storePreference && null != prefs) {
             prefs.edit().putString(PREF_LOCATION_MODE, mode.name()).apply();
         }
@@ -137,6 +183,8 @@ public class LocationController extends com.esri.militaryapps.controller.Locatio
 
     @Override
     public void setGpxFile(File gpxFile, boolean storePreference) {
+        recordedTrackPlayback = false;
+        playbackTrack = null;
         super.setGpxFile(gpxFile, storePreference);
         if (storePreference && null != prefs) {
             SharedPreferences.Editor editor = prefs.edit();
@@ -149,6 +197,252 @@ public class LocationController extends com.esri.militaryapps.controller.Locatio
         }
     }
 
+    /**
+     * Sets how much faster than recorded the simulator plays GPX tracks. This applies to the
+     * current simulator, if any, and to simulators created later.
+     *
+     * @param speedMultiplier the speed multiplier, such as 1 for real time. It must be positive.
+     * @see StreamingLocationSimulator#setSpeedMultiplier(double)
+     */
+    public void setSimulatorSpeedMultiplier(double speedMultiplier) {
+        StreamingLocationSimulator currentSimulator = simulator;
+        if (null != currentSimulator) {
+            currentSimulator.setSpeedMultiplier(speedMultiplier);
+        } else if (!(0 < speedMultiplier) || Double.isInfinite(speedMultiplier)) {
+            throw new IllegalArgumentException("Speed multiplier must be positive but was " + speedMultiplier);
+        }
+        simulatorSpeedMultiplier = speedMultiplier;
+    }
+
+    /**
+     * Sets a fixed rate at which the simulator sends locations interpolated along GPX tracks. This
+     * applies to the current simulator, if any, and to simulators created later.
+     *
+     * @param outputRate the output rate in locations per second, from
+     *                   StreamingLocationSimulator.MIN_OUTPUT_RATE to MAX_OUTPUT_RATE, or 0 to send
+     *                   track points at their recorded cadence.
+     * @see StreamingLocationSimulator#setOutputRate(double)
+     */
+    public void setSimulatorOutputRate(double outputRate) {
+        StreamingLocationSimulator currentSimulator = simulator;
+        if (null != currentSimulator) {
+            currentSimulator.setOutputRate(outputRate);
+        } else if (0 != outputRate && !(StreamingLocationSimulator.MIN_OUTPUT_RATE <= outputRate
+                && outputRate <= StreamingLocationSimulator.MAX_OUTPUT_RATE)) {
+            throw new IllegalArgumentException("Output rate must be 0 or from " + StreamingLocationSimulator.MIN_OUTPUT_RATE
+                    + " to " + StreamingLocationSimulator.MAX_OUTPUT_RATE + " but was " + outputRate);
+        }
+        simulatorOutputRate = outputRate;
+    }
+
+    /**
+     * Turns filtering of the device's location fixes on or off. When filtering is on, each fix is
+     * smoothed with a KalmanLocationFilter before it is sent to listeners, and fixes that barely
+     * move are not sent at all. Simulated locations are not filtered.
+     *
+     * @param enabled true to filter location fixes.
+     */
+    public void setLocationFilterEnabled(boolean enabled) {
+        if (enabled != isLocationFilterEnabled()) {
+            locationFilter = enabled ? new KalmanLocationFilter(FILTER_ACCELERATION_NOISE, FILTER_MAX_SPEED, FILTER_MIN_MOVE_METERS, FILTER_MAX_SILENCE_MILLIS) : null;
+        }
+    }
+
+    /**
+     * @return true if the device's location fixes are filtered.
+     */
+    public boolean isLocationFilterEnabled() {
+        return null != locationFilter;
+    }
+
+    /**
+     * Sets the track log that getTrackLog, playRecordedTrack, and clearTrackLog use when the track
+     * is not being recorded.
+     *
+     * @param file the track log file.
+     */
+    public void setTrackLogFile(File file) {
+        trackLogFile = file;
+    }
+
+    /**
+     * Starts recording the device's location fixes to a track log. Simulated locations are not
+     * recorded. If the log already exists, fixes are appended to it.
+     *
+     * @param file the track log file.
+     * @throws IOException if the track log cannot be opened.
+     * @see TrackRecorder
+     */
+    public synchronized void startTrackRecording(File file) throws IOException {
+        trackLogFile = file;
+        if (null != trackRecorder) {
+            if (trackRecorder.getFile().equals(file)) {
+                return;
+            }
+            stopTrackRecording();
+        }
+        trackRecorder = new TrackRecorder(file);
+    }
+
+    /**
+     * Stops recording the device's location fixes. The track log stays on disk and can be
+     * recorded to again with startTrackRecording.
+     */
+    public synchronized void stopTrackRecording() {
+        if (null != trackRecorder) {
+            try {
+                trackRecorder.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't close track log", e);
+            }
+            trackRecorder = null;
+        }
+    }
+
+    /**
+     * Returns the track log for reading. While the track is being recorded, this is the recorder
+     * itself. Otherwise, the log is opened read-only, so that a track recorded earlier can still be
+     * exported or played. Do not append to or close the returned recorder.
+     *
+     * @return the track log, or null if no track has been recorded.
+     * @throws IOException if the track log exists but cannot be read.
+     */
+    public TrackRecorder getTrackLog() throws IOException {
+        TrackRecorder recorder = trackRecorder;
+        if (null != recorder) {
+            return recorder;
+        }
+        File file = trackLogFile;
+        if (null == file || !file.isFile()) {
+            return null;
+        }
+        return TrackRecorder.openReadOnly(file);
+    }
+
+    /**
+     * Empties the track log, whether or not the track is being recorded. A recorded track that is
+     * being exported or played keeps the fixes it started with.
+     *
+     * @throws IOException if the track log could not be emptied.
+     */
+    public synchronized void clearTrackLog() throws IOException {
+        if (null != trackRecorder) {
+            trackRecorder.clear();
+        } else {
+            File file = trackLogFile;
+            // A read-only recorder that is playing the log keeps its mapping of the deleted file
+            if (null != file && file.exists() && !file.delete()) {
+                throw new IOException("Couldn't delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Switches to simulator mode and plays the recorded track. The simulator reads the track log
+     * directly, without exporting it to a GPX file first. Recording continues if the location
+     * mode is switched back to the location service. If the track is not being recorded, the
+     * track log as it is now is played.
+     *
+     * @return false if there is no recorded track to play, in which case the mode does not change.
+     */
+    public boolean playRecordedTrack() throws IOException, SAXException, ParserConfigurationException {
+        TrackRecorder recorder = getTrackLog();
+        if (null == recorder || 0 == recorder.getCount()) {
+            return false;
+        }
+        playbackTrack = recorder;
+        recordedTrackPlayback = true;
+        setMode(LocationMode.SIMULATOR, false);
+        return true;
+    }
+
+    /**
+     * @return true if the simulator is playing the recorded track.
+     */
+    public boolean isPlayingRecordedTrack() {
+        return recordedTrackPlayback && LocationMode.SIMULATOR == getMode();
+    }
+
+    private void recordLocation(Location location) {
+        TrackRecorder recorder = trackRecorder;
+        if (null != recorder) {
+            try {
+                recorder.append(location.getLongitude(), location.getLatitude(), location.getTimestamp().getTimeInMillis());
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't record location", e);
+            }
+        }
+    }
+
+    /**
+     * Turns adaptive sampling of the device's location on or off. When adaptive sampling is on,
+     * an AdaptiveSamplingPolicy watches the location fixes. While the unit is stationary, the
+     * LocationDisplayManager is paused and the GPS is sampled at a low rate instead, and as soon
+     * as the unit moves again, the LocationDisplayManager resumes. Simulated locations feed the
+     * policy too, so that its transitions can be tested with the GPX simulator, but they do not
+     * change how the simulator samples them.
+     *
+     * @param enabled true to sample adaptively.
+     */
+    public void setAdaptiveSamplingEnabled(boolean enabled) {
+        adaptiveSamplingEnabled = enabled;
+        if (!enabled) {
+            samplingPolicy.reset();
+        }
+    }
+
+    /**
+     * @return true if the device's location is sampled adaptively.
+     */
+    public boolean isAdaptiveSamplingEnabled() {
+        return adaptiveSamplingEnabled;
+    }
+
+    /**
+     * @return the current sampling mode. This is always MOVING when adaptive sampling is off.
+     */
+    public SamplingMode getSamplingMode() {
+        return samplingPolicy.getMode();
+    }
+
+    /**
+     * Adds a listener for transitions between sampling modes.
+     *
+     * @param listener the listener.
+     */
+    public void addSamplingModeListener(SamplingModeListener listener) {
+        samplingPolicy.addListener(listener);
+    }
+
+    public void removeSamplingModeListener(SamplingModeListener listener) {
+        samplingPolicy.removeListener(listener);
+    }
+
+    /**
+     * Creates a location for listeners. A speed or heading that the source measured is kept, and
+     * one that it did not is the estimate from a moving window of recent locations, so that
+     * listeners get a speed in miles per hour and a course no matter where the location came from.
+     * A new Location is created for each fix because listeners keep the locations they receive.
+     *
+     * @param speedMph the measured speed in miles per hour, or NaN to use the estimate.
+     * @param heading  the measured heading in degrees clockwise from north, or NaN to use the
+     *                 estimate.
+     */
+    private Location estimateSpeedAndHeading(double longitude, double latitude, Calendar timestamp, double speedMph, double heading) {
+        synchronized (speedHeadingEstimator) {
+            speedHeadingEstimator.update(longitude, latitude, timestamp.getTimeInMillis());
+            return new Location(longitude, latitude, timestamp,
+                    Double.isNaN(speedMph) ? speedHeadingEstimator.getSpeedMph() : speedMph,
+                    Double.isNaN(heading) ? speedHeadingEstimator.getHeading() : heading);
+        }
+    }
+
+    private void updateSamplingPolicy(Location location) {
+        if (adaptiveSamplingEnabled) {
+            samplingPolicy.update(location);
+        }
+    }
+
     @Override
     protected LocationProvider createLocationServiceProvider() {
         return new LocationProvider() {
@@ -169,13 +463,44 @@ public class LocationController extends com.esri.militaryapps.controller.Locatio
 
                 @Override
                 public void onLocationChanged(android.location.Location location) {
+                    KalmanLocationFilter filter = locationFilter;
+                    if (null != filter) {
+                        Location filtered = filter.filter(location.getLongitude(), location.getLatitude(), location.getTime(),
+                                location.hasAccuracy() ? location.getAccuracy() : 0);
+                        if (null != filtered) {
+                            // The filter's velocity is a better estimate than the moving window's
+                            speedHeadingEstimator.update(filtered.getLongitude(), filtered.getLatitude(),
+                                    filtered.getTimestamp().getTimeInMillis());
+                            sendLocation(filtered);
+                            recordLocation(filtered);
+                            updateSamplingPolicy(filtered);
+                        }
+                        return;
+                    }
                     Calendar cal = Calendar.getInstance();
                     cal.setTimeInMillis(location.getTime());
-                    Location theLocation = new Location(location.getLongitude(), location.getLatitude(), cal, location.getSpeed(), location.getBearing());
+                    Location theLocation = estimateSpeedAndHeading(location.getLongitude(), location.getLatitude(), cal,
+                            location.hasSpeed() ? location.getSpeed() * 3600 / SpeedHeadingEstimator.METERS_PER_MILE : Double.NaN,
+                            location.hasBearing() ? location.getBearing() : Double.NaN);
                     sendLocation(theLocation);
+                    recordLocation(theLocation);
+                    updateSamplingPolicy(theLocation);
                 }
             };
 
+            private boolean lowRateUpdatesRequested = false;
+
+            private final SamplingModeListener samplingModeListener = new SamplingModeListener() {
+                @Override
+                public void samplingModeChanged(SamplingMode mode, long intervalMillis) {
+                    applySamplingMode(mode, intervalMillis);
+                }
+            };
+
+            {
+                setServiceProviderSamplingListener(samplingModeListener);
+            }
+
             private LocationProviderState state = LocationProviderState.STOPPED;
 
             @Override
@@ -206,22 +531,57 @@ public class LocationController extends com.esri.militaryapps.controller.Locatio
                 }
             }
 
+            /**
+             * Switches between the LocationDisplayManager and low-rate GPS updates.
+             */
+            private void applySamplingMode(SamplingMode mode, long intervalMillis) {
+                if (LocationProviderState.STARTED != state || null == locationDisplayManager) {
+                    return;
+                }
+                if (SamplingMode.STATIONARY == mode && null != targetActivity) {
+                    try {
+                        LocationManager locationManager = (LocationManager) targetActivity.getSystemService(Context.LOCATION_SERVICE);
+                        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, intervalMillis, 0, locationListener, Looper.getMainLooper());
+                        lowRateUpdatesRequested = true;
+                        locationDisplayManager.pause();
+                        Log.d(TAG, "Stationary; sampling location every " + intervalMillis + " ms");
+                    } catch (SecurityException | IllegalArgumentException e) {
+                        Log.w(TAG, "Couldn't request low-rate location updates", e);
+                    }
+                } else {
+                    removeLowRateUpdates();
+                    locationDisplayManager.resume();
+                    Log.d(TAG, "Moving; resumed full-rate location updates");
+                }
+            }
+
+            private void removeLowRateUpdates() {
+                if (lowRateUpdatesRequested && null != targetActivity) {
+                    ((LocationManager) targetActivity.getSystemService(Context.LOCATION_SERVICE)).removeUpdates(locationListener);
+                    lowRateUpdatesRequested = false;
+                }
+            }
+
             @Override
             public void pause() {
+                removeLowRateUpdates();
                 if (LocationProviderState.STARTED == state) {
                     if (null != locationDisplayManager) {
                         locationDisplayManager.pause();
                     }
                     state = LocationProviderState.PAUSED;
+                    samplingPolicy.reset();
                 }
             }
 
             @Override
             public void stop() {
+                removeLowRateUpdates();
                 if (null != locationDisplayManager) {
                     locationDisplayManager.stop();
                 }
                 state = LocationProviderState.STOPPED;
+                samplingPolicy.reset();
             }
 
             @Override
@@ -238,10 +598,70 @@ public class LocationController extends com.esri.militaryapps.controller.Locatio
         };
     }
 
+    /**
+     * Replaces the sampling mode listener of the previous location service provider, if any, with
+     * that of a new one.
+     */
+    private synchronized void setServiceProviderSamplingListener(SamplingModeListener listener) {
+        if (null != serviceProviderSamplingListener) {
+            samplingPolicy.removeListener(serviceProviderSamplingListener);
+        }
+        serviceProviderSamplingListener = listener;
+        samplingPolicy.addListener(listener);
+    }
+
+    /**
+     * Creates a simulator that plays the GPX while reading it, so that playback starts right away
+     * even for a long track. The simulator reads the given stream first and then reopens the GPX
+     * file, or the built-in GPX if there is no GPX file, each time it starts the track over. If
+     * playRecordedTrack was called, the simulator plays the recorded track instead.
+     */
     @Override
-    protected LocationSimulator createLocationSimulator(InputStream gpxInputStream)
+    protected LocationSimulator createLocationSimulator(final InputStream gpxInputStream)
             throws ParserConfigurationException, SAXException, IOException {
-        return new LocationSimulator(gpxInputStream);
+        final File gpxFile = getGpxFile();
+        final TrackRecorder recordedTrack = recordedTrackPlayback ? playbackTrack : null;
+        if (null != recordedTrack && null != gpxInputStream) {
+            gpxInputStream.close();
+        }
+        StreamingLocationSimulator newSimulator = new StreamingLocationSimulator(new StreamingLocationSimulator.GpxSource() {
+
+            private InputStream firstStream = null == recordedTrack ? gpxInputStream : null;
+
+            @Override
+            public InputStream open() throws IOException {
+                if (null != recordedTrack) {
+                    return recordedTrack.openGpx();
+                } else if (null != firstStream) {
+                    InputStream in = firstStream;
+                    firstStream = null;
+                    return in;
+                } else if (null != gpxFile) {
+                    return new FileInputStream(gpxFile);
+                } else {
+                    InputStream in = null == builtInGpxPath ? null : LocationController.class.getResourceAsStream(builtInGpxPath);
+                    if (null == in) {
+                        throw new FileNotFoundException("Built-in GPX " + builtInGpxPath + " not found");
+                    }
+                    return in;
+                }
+            }
+
+        }, StreamingGpxReader.DEFAULT_LOOK_AHEAD) {
+
+            @Override
+            protected void sendLocation(Location location) {
+                Location estimated = estimateSpeedAndHeading(location.getLongitude(), location.getLatitude(),
+                        location.getTimestamp(), Double.NaN, Double.NaN);
+                super.sendLocation(estimated);
+                updateSamplingPolicy(estimated);
+            }
+
+        };
+        newSimulator.setSpeedMultiplier(simulatorSpeedMultiplier);
+        newSimulator.setOutputRate(simulatorOutputRate);
+        simulator = newSimulator;
+        return newSimulator;
     }
 
 }
@@ -16,13 +16,17 @@
 package com.esri.squadleader.controller;
 
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.res.AssetManager;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -40,14 +44,20 @@ import com.esri.android.map.ags.ArcGISFeatureLayer.MODE;
 import com.esri.android.map.ags.ArcGISImageServiceLayer;
 import com.esri.android.map.ags.ArcGISLocalTiledLayer;
 import com.esri.android.map.ags.ArcGISTiledMapServiceLayer;
+import com.esri.android.map.event.OnPanListener;
 import com.esri.android.map.event.OnSingleTapListener;
 import com.esri.android.map.event.OnStatusChangedListener;
+import com.esri.android.map.event.OnZoomListener;
 import com.esri.android.map.popup.Popup;
+import com.esri.core.geodatabase.GeopackageFeatureTable;
 import com.esri.core.geodatabase.ShapefileFeatureTable;
 import com.esri.core.geometry.CoordinateConversion;
 import com.esri.core.geometry.CoordinateConversion.MGRSConversionMode;
+import com.esri.core.geometry.Envelope;
+import com.esri.core.geometry.Geometry;
 import com.esri.core.geometry.GeometryEngine;
 import com.esri.core.geometry.Point;
+import com.esri.core.geometry.Polygon;
 import com.esri.core.geometry.SpatialReference;
 import com.esri.core.map.Feature;
 import com.esri.core.map.Graphic;
@@ -67,7 +77,10 @@ import com.esri.militaryapps.model.MapConfig;
 import com.esri.squadleader.R;
 import com.esri.squadleader.model.BasemapLayer;
 import com.esri.squadleader.model.GeoPackageReader;
+import com.esri.squadleader.model.LayerScaleRanges;
 import com.esri.squadleader.model.Mil2525CMessageLayer;
+import com.esri.squadleader.model.ShapefileToGeoPackageConverter;
+import com.esri.squadleader.util.ProgressListener;
 import com.esri.squadleader.util.Utilities;
 
 import org.xml.sax.SAXException;
@@ -142,6 +155,13 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
     private static final SimpleRenderer FILL_RENDERER = new SimpleRenderer(new SimpleFillSymbol(Color.RED));
     private static final SimpleRenderer LINE_RENDERER = new SimpleRenderer(new SimpleLineSymbol(Color.rgb(128, 64, 0), 5f));
     private static final SimpleRenderer MARKER_RENDERER = new SimpleRenderer(new SimpleMarkerSymbol(Color.BLUE, 10, SimpleMarkerSymbol.STYLE.CIRCLE));
+    private static final int IDENTIFY_TOLERANCE_PIXELS = 5;
+    private static final long EXTENT_CHANGE_DELAY_MS = 300;
+    /**
+     * GeoPackage feature tables with at least this many rows and no spatial index are slow enough
+     * to identify and query that the user is offered the chance to build a spatial index.
+     */
+    private static final long SPATIAL_INDEX_ROW_THRESHOLD = 10000;
 
     private final MapView mapView;
     private final AssetManager assetManager;
@@ -153,10 +173,26 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
     private final LocationChangeHandler locationChangeHandler = new LocationChangeHandler(this);
     private final Object lastLocationLock = new Object();
     private final HashSet<ShapefileFeatureTable> shapefileFeatureTables = new HashSet<ShapefileFeatureTable>();
+    private final HashSet<GeopackageFeatureTable> spatialIndexOffered = new HashSet<GeopackageFeatureTable>();
+    private final HashSet<String> shapefilesConverting = new HashSet<String>();
+    private final List<ExtentChangeListener> extentChangeListeners = new ArrayList<ExtentChangeListener>();
+    private final Runnable fireExtentChanged = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (extentChangeListeners) {
+                for (ExtentChangeListener listener : extentChangeListeners) {
+                    listener.extentChanged();
+                }
+            }
+        }
+    };
+    private final ClusterController clusterController;
+    private OnPanListener onPanListener = null;
     private boolean autoPan = false;
     private int locationGraphicId = -1;
     private Point lastLocation = null;
     private MapConfig lastMapConfig = null;
+    private LayerScaleRanges layerScaleRanges = new LayerScaleRanges();
     private SpatialReference lastSpatialReference = null;
 
     /**
@@ -206,10 +242,61 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
                         lastSpatialReference = getSpatialReference();
                     }
                     fireMapReady();
+                    scheduleExtentChanged();
+                }
+            }
+
+        });
+        mapView.setOnPanListener(new OnPanListener() {
+
+            private static final long serialVersionUID = -1409520869380516302L;
+
+            @Override
+            public void prePointerMove(float fromx, float fromy, float tox, float toy) {
+                if (null != onPanListener) {
+                    onPanListener.prePointerMove(fromx, fromy, tox, toy);
+                }
+            }
+
+            @Override
+            public void postPointerMove(float fromx, float fromy, float tox, float toy) {
+                if (null != onPanListener) {
+                    onPanListener.postPointerMove(fromx, fromy, tox, toy);
+                }
+            }
+
+            @Override
+            public void prePointerUp(float fromx, float fromy, float tox, float toy) {
+                if (null != onPanListener) {
+                    onPanListener.prePointerUp(fromx, fromy, tox, toy);
+                }
+            }
+
+            @Override
+            public void postPointerUp(float fromx, float fromy, float tox, float toy) {
+                if (null != onPanListener) {
+                    onPanListener.postPointerUp(fromx, fromy, tox, toy);
                 }
+                scheduleExtentChanged();
             }
 
         });
+        mapView.setOnZoomListener(new OnZoomListener() {
+
+            private static final long serialVersionUID = 2853744519342066419L;
+
+            @Override
+            public void preAction(float pivotX, float pivotY, double factor) {
+            }
+
+            @Override
+            public void postAction(float pivotX, float pivotY, double factor) {
+                scheduleExtentChanged();
+            }
+
+        });
+        clusterController = new ClusterController(this, mapView);
+        addExtentChangeListener(clusterController);
 
         setAutoPan(autoPan);
 
@@ -231,6 +318,8 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
      * Releases certain resources. Be sure to call this method when you're done with a MapController.
      */
     public void dispose() {
+        mapView.removeCallbacks(fireExtentChanged);
+        clusterController.clear();
         for (Layer layer : mapView.getLayers()) {
             layer.recycle();
         }
@@ -239,6 +328,7 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
             table.dispose();
         }
         shapefileFeatureTables.clear();
+        spatialIndexOffered.clear();
         GeoPackageReader.getInstance().dispose();
     }
 
@@ -256,6 +346,7 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
     }
 
     private void reloadMapConfig(boolean useExistingPreferences) {
+        clusterController.clear();
         mapView.removeAll();
 
         /**
@@ -284,6 +375,16 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
             } catch (IOException e) {
                 Log.e(TAG, "Couldn't deserialize object", e);
             }
+            layerScaleRanges = new LayerScaleRanges();
+            try {
+                FileInputStream in = context.openFileInput(context.getString(R.string.layer_scale_ranges_prefname));
+                layerScaleRanges = (LayerScaleRanges) new ObjectInputStream(in).readObject();
+                in.close();
+            } catch (FileNotFoundException e) {
+                //Swallow; the saved map config has no scale ranges
+            } catch (Exception e) {
+                Log.e(TAG, "Couldn't deserialize layer scale ranges", e);
+            }
         }
         if (null == mapConfig) {
             try {
@@ -293,6 +394,11 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
                     FileOutputStream out = context.openFileOutput(context.getString(R.string.map_config_prefname), Context.MODE_PRIVATE);
                     new ObjectOutputStream(out).writeObject(mapConfig);
                     out.close();
+
+                    layerScaleRanges = Utilities.readLayerScaleRanges(context, assetManager);
+                    out = context.openFileOutput(context.getString(R.string.layer_scale_ranges_prefname), Context.MODE_PRIVATE);
+                    new ObjectOutputStream(out).writeObject(layerScaleRanges);
+                    out.close();
                 } else {
                     Log.e(TAG, "Read MapConfig from stream but it came back null");
                 }
@@ -337,6 +443,57 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
         return lastMapConfig;
     }
 
+    /**
+     * Sets a listener that fires when the map is panned. MapController listens for pans itself,
+     * so use this method instead of MapView.setOnPanListener. Set to null to remove the current
+     * listener.
+     *
+     * @param listener the listener.
+     */
+    public void setOnPanListener(OnPanListener listener) {
+        onPanListener = listener;
+    }
+
+    /**
+     * Adds a listener that fires after the map's visible extent changes.
+     *
+     * @param listener the listener.
+     */
+    public void addExtentChangeListener(ExtentChangeListener listener) {
+        synchronized (extentChangeListeners) {
+            extentChangeListeners.add(listener);
+        }
+    }
+
+    /**
+     * Removes an extent change listener.
+     *
+     * @param listener the listener.
+     */
+    public void removeExtentChangeListener(ExtentChangeListener listener) {
+        synchronized (extentChangeListeners) {
+            extentChangeListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Fires extentChanged after a short delay, coalescing the bursts of pan and zoom events that a
+     * single gesture or animation produces.
+     */
+    private void scheduleExtentChanged() {
+        mapView.removeCallbacks(fireExtentChanged);
+        mapView.postDelayed(fireExtentChanged, EXTENT_CHANGE_DELAY_MS);
+    }
+
+    /**
+     * Returns the ClusterController that thins dense point layers on this map.
+     *
+     * @return the ClusterController.
+     */
+    public ClusterController getClusterController() {
+        return clusterController;
+    }
+
     /**
      * Set a listener that fires when the map is single-tapped. Set to null to remove the current listener.
      *
@@ -365,6 +522,10 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
     public boolean removeLayer(Layer layer) {
         boolean removed = basemapLayers.remove(layer);
         removed |= nonBasemapLayers.remove(layer);
+        GraphicsLayer clusterLayer = clusterController.unregisterLayer(layer);
+        if (null != clusterLayer) {
+            mapView.removeLayer(clusterLayer);
+        }
         try {
             mapView.removeLayer(layer);
         } catch (Throwable t) {
@@ -374,6 +535,7 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
     }
 
     public void removeAllLayers() {
+        clusterController.clear();
         basemapLayers.clear();
         nonBasemapLayers.clear();
         mapView.removeAll();
@@ -454,6 +616,15 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
                             MARKER_RENDERER,
                             LINE_RENDERER,
                             FILL_RENDERER);
+                    for (Layer layer : layerList) {
+                        if (layer instanceof FeatureLayer) {
+                            GraphicsLayer clusterLayer = clusterController.registerFeatureLayer((FeatureLayer) layer);
+                            if (null != clusterLayer) {
+                                addClusterLayer(clusterLayer);
+                            }
+                        }
+                    }
+                    offerToBuildSpatialIndexes();
                 } catch (IOException e) {
                     Log.e(TAG, "Couldn't read GeoPackage file " + layerInfo.getDatasetPath(), e);
                     Toast.makeText(
@@ -465,6 +636,10 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
                 break;
             }
             case SHAPEFILE: {
+                singleLayer = createConvertedShapefileLayer(layerInfo.getDatasetPath());
+                if (null != singleLayer) {
+                    break;
+                }
                 try {
                     final ShapefileFeatureTable table = new ShapefileFeatureTable(layerInfo.getDatasetPath());
                     shapefileFeatureTables.add(table);
@@ -511,9 +686,92 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
             layerList = new ArrayList<Layer>();
         }
 
+        final double[] scaleRange = layerScaleRanges.getScaleRange(layerInfo);
+        if (null != scaleRange) {
+            for (Layer layer : layerList) {
+                layer.setMinScale(scaleRange[0]);
+                layer.setMaxScale(scaleRange[1]);
+            }
+        }
+
         return layerList;
     }
 
+    /**
+     * If the user has turned on shapefile import, returns a layer for the GeoPackage to which a
+     * shapefile was converted. If the shapefile has not been converted yet or has changed since it
+     * was converted, this method starts a background conversion so that the GeoPackage is ready
+     * next time the map loads.
+     *
+     * @param shapefilePath the path of the .shp file.
+     * @return a layer for the converted GeoPackage, or null if shapefile import is off or the
+     * converted GeoPackage is not available yet, in which case the caller should open the
+     * shapefile directly.
+     */
+    private Layer createConvertedShapefileLayer(final String shapefilePath) {
+        final Context context = getContext();
+        if (!PreferenceManager.getDefaultSharedPreferences(context).getBoolean(context.getString(R.string.pref_importShapefiles), false)) {
+            return null;
+        }
+        final ShapefileToGeoPackageConverter converter = new ShapefileToGeoPackageConverter(
+                new File(context.getFilesDir(), context.getString(R.string.converted_shapefiles_dirname)));
+        if (converter.isConverted(shapefilePath)) {
+            try {
+                List<Layer> layers = GeoPackageReader.getInstance().readGeoPackageToLayerList(
+                        converter.getGeoPackageFile(shapefilePath).getAbsolutePath(),
+                        mapView.getSpatialReference(),
+                        true,
+                        false,
+                        RGB_RENDERER,
+                        MARKER_RENDERER,
+                        LINE_RENDERER,
+                        FILL_RENDERER);
+                if (1 == layers.size()) {
+                    return layers.get(0);
+                }
+                Log.w(TAG, "Expected one layer in converted shapefile " + shapefilePath + " but got " + layers.size());
+            } catch (Throwable t) {
+                Log.w(TAG, "Couldn't open converted shapefile " + shapefilePath + "; opening the shapefile instead", t);
+            }
+            return null;
+        }
+
+        synchronized (shapefilesConverting) {
+            if (!shapefilesConverting.add(shapefilePath)) {
+                return null;
+            }
+        }
+        new Thread() {
+            @Override
+            public void run() {
+                FutureTask<File> task = converter.convert(shapefilePath, null);
+                task.run();
+                String message;
+                try {
+                    task.get();
+                    message = context.getString(R.string.shapefile_converted, new File(shapefilePath).getName());
+                } catch (Exception e) {
+                    Log.e(TAG, "Couldn't convert shapefile " + shapefilePath + " to GeoPackage", e);
+                    message = context.getString(R.string.shapefile_conversion_failed, new File(shapefilePath).getName());
+                } finally {
+                    synchronized (shapefilesConverting) {
+                        shapefilesConverting.remove(shapefilePath);
+                    }
+                }
+                if (null != targetActivity) {
+                    final String toastMessage = message;
+                    targetActivity.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(context, toastMessage, Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                }
+            }
+        }.start();
+        return null;
+    }
+
     /**
      * Adds a non-basemap layer to the map.
      *
@@ -541,6 +799,24 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
         fireLayersChanged(isOverlay);
     }
 
+    /**
+     * Adds a layer of clusters from the ClusterController to the top of the map, on the UI thread.
+     * Cluster layers are not added to the list of non-basemap layers, because their visibility
+     * follows their source layers and they cannot be identified or edited.
+     *
+     * @param clusterLayer the cluster layer.
+     */
+    void addClusterLayer(final GraphicsLayer clusterLayer) {
+        // Post even from the UI thread, so that layers being added along with the source layer go
+        // in first and the clusters end up above them
+        mapView.post(new Runnable() {
+            @Override
+            public void run() {
+                mapView.addLayer(clusterLayer);
+            }
+        });
+    }
+
     /**
      * Adds a basemap layer to the map.
      *
@@ -674,6 +950,22 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
         return mapView.getHeight();
     }
 
+    /**
+     * Returns the envelope of the map's visible extent. Call this method on the UI thread.
+     *
+     * @return the visible extent in the map's spatial reference, or null if the map does not have
+     * an extent yet.
+     */
+    public Envelope getVisibleExtent() {
+        Polygon extentPolygon = mapView.getExtent();
+        if (null == extentPolygon || extentPolygon.isEmpty()) {
+            return null;
+        }
+        Envelope extent = new Envelope();
+        extentPolygon.queryEnvelope(extent);
+        return extent;
+    }
+
     @Override
     public void panTo(double centerX, double centerY) {
         panTo(new Point(centerX, centerY));
@@ -681,6 +973,7 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
 
     public void panTo(Point newCenter) {
         mapView.centerAt(newCenter, true);
+        scheduleExtentChanged();
     }
 
     /**
@@ -980,12 +1273,41 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
         mapView.setShowMagnifierOnLongPress(showMagnifier);
     }
 
+    /**
+     * Creates a task that queries a feature layer. A query with a geometry finds nothing if the
+     * layer is not drawn at the current scale, like identifyFeatureLayers; a query by object IDs
+     * alone always runs, so that a feature can be looked up by ID at any scale. If the layer's table
+     * is in a GeoPackage with a spatial index and the query has a geometry, the spatial index
+     * narrows the query to the features near that geometry before the query runs. In that case,
+     * this method sets the object IDs of queryParameters.
+     *
+     * @param featureLayer    the layer to query.
+     * @param queryParameters the query parameters.
+     * @return a task whose result is a popup for each feature that matches the query.
+     */
     public FutureTask<List<Popup>> queryFeatureLayer(final FeatureLayer featureLayer, final QueryParameters queryParameters) {
         return new FutureTask<>(new Callable<List<Popup>>() {
             @Override
             public List<Popup> call() throws Exception {
                 ArrayList<Popup> popups = new ArrayList<>();
+                if (null != queryParameters.getGeometry() && !isLayerDrawn(featureLayer)) {
+                    return popups;
+                }
                 try {
+                    if (null != queryParameters.getGeometry() && null == queryParameters.getObjectIds()
+                            && featureLayer.getFeatureTable() instanceof GeopackageFeatureTable) {
+                        GeopackageFeatureTable table = (GeopackageFeatureTable) featureLayer.getFeatureTable();
+                        Envelope envelope = new Envelope();
+                        queryParameters.getGeometry().queryEnvelope(envelope);
+                        envelope = projectEnvelope(envelope, queryParameters.getInSpatialReference(), table.getSpatialReference());
+                        final long[] candidateIds = GeoPackageReader.getInstance().queryIdsInEnvelope(table, envelope);
+                        if (null != candidateIds) {
+                            if (0 == candidateIds.length) {
+                                return popups;
+                            }
+                            queryParameters.setObjectIds(candidateIds);
+                        }
+                    }
                     final long[] featureIds = featureLayer.getFeatureTable().queryIds(queryParameters, null).get();
                     for (long featureId : featureIds) {
                         popups.add(createPopup(featureLayer, featureLayer.getFeature(featureId)));
@@ -998,6 +1320,32 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
         });
     }
 
+    /**
+     * Returns true if the user has chosen to show a layer and the map's current scale is within the
+     * layer's scale range. A layer that clustering has hidden still counts as drawn, since its
+     * clusters stand in for it. Layers that are not drawn should not be identified or queried.
+     *
+     * @param layer the layer.
+     * @return true if the layer is drawn at the current scale.
+     */
+    public boolean isLayerDrawn(Layer layer) {
+        return clusterController.isLayerVisible(layer) && isInScaleRange(layer);
+    }
+
+    /**
+     * Returns true if the map's current scale is within a layer's scale range, regardless of
+     * whether the layer is visible.
+     *
+     * @param layer the layer.
+     * @return true if the current scale is within the layer's scale range.
+     */
+    public boolean isInScaleRange(Layer layer) {
+        final double scale = mapView.getScale();
+        // ArcGIS scale ranges: minScale is the most zoomed out and maxScale the most zoomed in; 0 means no limit
+        return (0 == layer.getMinScale() || scale <= layer.getMinScale())
+                && (0 == layer.getMaxScale() || scale >= layer.getMaxScale());
+    }
+
     public FutureTask<List<Popup>> identifyFeatureLayers(final float screenX, final float screenY) {
         return new FutureTask<>(new Callable<List<Popup>>() {
             @Override
@@ -1005,10 +1353,17 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
                 ArrayList<Popup> popups = new ArrayList<>();
                 final List<Layer> layers = getNonBasemapLayers();
                 for (Layer layer : layers) {
-                    if (layer instanceof FeatureLayer) {
+                    if (layer instanceof FeatureLayer && isLayerDrawn(layer)) {
                         FeatureLayer featureLayer = (FeatureLayer) layer;
                         try {
-                            final long[] featureIds = featureLayer.getFeatureIDs(screenX, screenY, 5);
+                            long[] featureIds = identifyWithSpatialIndex(featureLayer, screenX, screenY);
+                            if (null == featureIds && !featureLayer.isVisible()) {
+                                // Clustering has hidden the layer, so it has no drawn features to identify
+                                featureIds = identifyWithQuery(featureLayer, screenX, screenY);
+                            }
+                            if (null == featureIds) {
+                                featureIds = featureLayer.getFeatureIDs(screenX, screenY, IDENTIFY_TOLERANCE_PIXELS);
+                            }
                             for (long featureId : featureIds) {
                                 popups.add(createPopup(featureLayer, featureLayer.getFeature(featureId)));
                             }
@@ -1022,6 +1377,184 @@ public class MapController extends com.esri.militaryapps.controller.MapControlle
         });
     }
 
+    /**
+     * Identifies features in a GeoPackage feature layer using the GeoPackage's spatial index, which
+     * avoids scanning the whole table.
+     *
+     * @return the IDs of the features within the identify tolerance of the screen point, or null if
+     * the layer does not have a spatial index.
+     */
+    private long[] identifyWithSpatialIndex(FeatureLayer featureLayer, float screenX, float screenY) {
+        if (!(featureLayer.getFeatureTable() instanceof GeopackageFeatureTable)) {
+            return null;
+        }
+        GeopackageFeatureTable table = (GeopackageFeatureTable) featureLayer.getFeatureTable();
+        GeoPackageReader reader = GeoPackageReader.getInstance();
+        if (!reader.hasSpatialIndex(table)) {
+            return null;
+        }
+        Envelope mapEnvelope = getIdentifyEnvelope(screenX, screenY);
+        if (null == mapEnvelope) {
+            return null;
+        }
+        SpatialReference tableSr = table.getSpatialReference();
+        Envelope tableEnvelope = projectEnvelope(mapEnvelope, getSpatialReference(), tableSr);
+        long[] candidateIds = reader.queryIdsInEnvelope(table, tableEnvelope);
+        if (null == candidateIds) {
+            return null;
+        }
+
+        // The index holds bounding boxes, so check each candidate's actual geometry.
+        long[] featureIds = new long[candidateIds.length];
+        int count = 0;
+        for (long candidateId : candidateIds) {
+            try {
+                Feature feature = table.getFeature(candidateId);
+                if (null != feature && null != feature.getGeometry()
+                        && GeometryEngine.intersects(feature.getGeometry(), tableEnvelope, tableSr)) {
+                    featureIds[count++] = candidateId;
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Could not read feature " + candidateId + " from " + table.getTableName(), e);
+            }
+        }
+        return Arrays.copyOf(featureIds, count);
+    }
+
+    /**
+     * Identifies features by querying a feature layer's table, for a layer whose features are not
+     * drawn because clustering has hidden it.
+     *
+     * @return the IDs of the features within the identify tolerance of the screen point, or null if
+     * the screen point is not on the map.
+     */
+    private long[] identifyWithQuery(FeatureLayer featureLayer, float screenX, float screenY) throws Exception {
+        Envelope mapEnvelope = getIdentifyEnvelope(screenX, screenY);
+        if (null == mapEnvelope) {
+            return null;
+        }
+        QueryParameters queryParameters = new QueryParameters();
+        queryParameters.setGeometry(mapEnvelope);
+        queryParameters.setInSpatialReference(getSpatialReference());
+        return featureLayer.getFeatureTable().queryIds(queryParameters, null).get();
+    }
+
+    /**
+     * @return the envelope in map coordinates within the identify tolerance of a screen point, or
+     * null if the screen point is not on the map.
+     */
+    private Envelope getIdentifyEnvelope(float screenX, float screenY) {
+        Point mapPoint = mapView.toMapPoint(screenX, screenY);
+        if (null == mapPoint) {
+            return null;
+        }
+        double tolerance = IDENTIFY_TOLERANCE_PIXELS * mapView.getResolution();
+        return new Envelope(
+                mapPoint.getX() - tolerance, mapPoint.getY() - tolerance,
+                mapPoint.getX() + tolerance, mapPoint.getY() + tolerance);
+    }
+
+    private static Envelope projectEnvelope(Envelope envelope, SpatialReference fromSr, SpatialReference toSr) {
+        if (null == fromSr || null == toSr || fromSr.getID() == toSr.getID()) {
+            return envelope;
+        }
+        Geometry projected = GeometryEngine.project(envelope, fromSr, toSr);
+        Envelope projectedEnvelope = new Envelope();
+        projected.queryEnvelope(projectedEnvelope);
+        return projectedEnvelope;
+    }
+
+    /**
+     * If GeoPackages that this MapController opened have large feature tables without a spatial
+     * index, asks the user whether to build the indexes. Each table is offered only once.
+     */
+    private void offerToBuildSpatialIndexes() {
+        if (null == targetActivity) {
+            return;
+        }
+        final List<GeopackageFeatureTable> tables = GeoPackageReader.getInstance().getUnindexedTables(SPATIAL_INDEX_ROW_THRESHOLD);
+        tables.removeAll(spatialIndexOffered);
+        if (tables.isEmpty()) {
+            return;
+        }
+        spatialIndexOffered.addAll(tables);
+        targetActivity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                new AlertDialog.Builder(targetActivity)
+                        .setTitle(R.string.build_spatial_index)
+                        .setMessage(targetActivity.getString(R.string.build_spatial_index_message, tables.size()))
+                        .setPositiveButton(R.string.build, new DialogInterface.OnClickListener() {
+
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                buildSpatialIndexes(tables);
+                            }
+
+                        })
+                        .setNegativeButton(R.string.not_now, null)
+                        .show();
+            }
+        });
+    }
+
+    private void buildSpatialIndexes(final List<GeopackageFeatureTable> tables) {
+        final ProgressDialog progressDialog = new ProgressDialog(targetActivity);
+        progressDialog.setTitle(R.string.building_spatial_index);
+        progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        progressDialog.setCancelable(false);
+        progressDialog.show();
+        new Thread() {
+            @Override
+            public void run() {
+                int built = 0;
+                for (final GeopackageFeatureTable table : tables) {
+                    targetActivity.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            progressDialog.setMessage(table.getTableName());
+                            progressDialog.setProgress(0);
+                        }
+                    });
+                    FutureTask<Boolean> task = GeoPackageReader.getInstance().buildSpatialIndex(table, new ProgressListener() {
+                        @Override
+                        public void onProgress(final long completed, final long total) {
+                            targetActivity.runOnUiThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (0 < total) {
+                                        progressDialog.setMax(100);
+                                        progressDialog.setProgress((int) (100 * completed / total));
+                                    }
+                                }
+                            });
+                        }
+                    });
+                    task.run();
+                    try {
+                        if (task.get()) {
+                            built++;
+                        }
+                    } catch (Exception e) {
+                        Log.e(TAG, "Could not build spatial index for " + table.getTableName(), e);
+                    }
+                }
+                final int builtCount = built;
+                targetActivity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        progressDialog.dismiss();
+                        Toast.makeText(
+                                getContext(),
+                                getContext().getString(R.string.spatial_indexes_built, builtCount, tables.size()),
+                                Toast.LENGTH_SHORT
+                        ).show();
+                    }
+                });
+            }
+        }.start();
+    }
+
     private Popup createPopup(Layer layer, Feature feature) {
         final Popup popup = layer.createPopup(mapView, 0, feature);
 
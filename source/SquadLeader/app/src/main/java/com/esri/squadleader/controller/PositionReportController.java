@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.controller;
+
+import android.util.Log;
+
+import com.esri.militaryapps.controller.LocationController;
+import com.esri.militaryapps.controller.LocationListener;
+import com.esri.militaryapps.controller.MessageController;
+import com.esri.militaryapps.model.Location;
+import com.esri.militaryapps.model.LocationProvider.LocationProviderState;
+import com.esri.squadleader.model.IntervalStatistics;
+import com.esri.squadleader.model.PositionReportSchedule;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * A PositionReportController that decides for itself when to send reports, using a
+ * PositionReportSchedule. In fixed mode, reports go out every period, as in the superclass. In
+ * adaptive mode, the period is the shortest interval between reports: a report goes out as soon as
+ * the period allows when the unit moves or turns significantly, and the interval stretches up to
+ * a maximum while the unit is stationary. In both modes, the first report after enabling comes
+ * after a random part of the period and each interval is randomly jittered, so that devices on a
+ * shared network that were started together do not keep reporting at the same moment.
+ * <p/>
+ * The superclass has no method that sends a single report. It sends a report when it is enabled
+ * and each time its period is set while it is enabled, and then once per period; disabling it, or
+ * setting its period while it is disabled, sends nothing. Only sendReportNow and
+ * stopSuperclassReports rely on that behavior. They keep the superclass period at the longest
+ * possible value, so that the superclass never sends a report on its own, and sendReportNow sets
+ * it again whenever the schedule says a report is due. This is the behavior of the
+ * military-apps-library-java commit that the source/military-apps-library-java submodule points
+ * to; the library has no version number of its own, so check it again whenever the submodule is
+ * updated.
+ * <p/>
+ * The superclass might send a report on the calling thread, so after construction it is only
+ * called from the timer thread and never while timerLock is held. That way turning reporting off
+ * from the UI thread never waits for a report to go out.
+ */
+public class PositionReportController extends com.esri.militaryapps.controller.PositionReportController {
+
+    private static final String TAG = PositionReportController.class.getSimpleName();
+
+    /**
+     * The longest interval, in milliseconds, between reports in adaptive mode.
+     */
+    public static final int MAX_ADAPTIVE_PERIOD = 30000;
+
+    private static final double ADAPTIVE_DISTANCE_METERS = 10;
+    private static final double ADAPTIVE_HEADING_DEGREES = 30;
+
+    private final PositionReportSchedule schedule;
+    private final Timer timer = new Timer(TAG, true);
+    private final Object timerLock = new Object();
+    private TimerTask sendTask = null;
+    private volatile boolean enabled = false;
+    private boolean superclassEnabled = false; // Only used on the timer thread after construction
+    private volatile Location lastLocation = null;
+
+    public PositionReportController(LocationController locationController, MessageController messageController,
+                                    String username, String vehicleType, String uniqueId, String symbolIdCode) {
+        super(locationController, messageController, username, vehicleType, uniqueId, symbolIdCode);
+        stopSuperclassReports();
+        schedule = new PositionReportSchedule(DEFAULT_PERIOD, Math.max(DEFAULT_PERIOD, MAX_ADAPTIVE_PERIOD),
+                ADAPTIVE_DISTANCE_METERS, ADAPTIVE_HEADING_DEGREES);
+        locationController.addListener(new LocationListener() {
+
+            @Override
+            public void onLocationChanged(Location location) {
+                if (null != location) {
+                    lastLocation = location;
+                    if (schedule.update(location)) {
+                        scheduleNextReport();
+                    }
+                }
+            }
+
+            @Override
+            public void onStateChanged(LocationProviderState state) {
+
+            }
+        });
+    }
+
+    /**
+     * Sets the period between reports in fixed mode, which is the shortest period between reports
+     * in adaptive mode.
+     *
+     * @param period the period in milliseconds. If it is not positive, this method does nothing.
+     */
+    @Override
+    public void setPeriod(int period) {
+        if (null == schedule) {
+            // Called from the superclass constructor
+            super.setPeriod(period);
+        } else if (0 < period) {
+            schedule.setMinInterval(period);
+            scheduleNextReport();
+        }
+    }
+
+    @Override
+    public int getPeriod() {
+        if (null == schedule) {
+            return super.getPeriod();
+        }
+        return (int) schedule.getMinInterval();
+    }
+
+    /**
+     * Turns adaptive mode on or off.
+     *
+     * @param adaptive true to adapt the report period to the unit's movement.
+     */
+    public void setAdaptive(boolean adaptive) {
+        schedule.setAdaptive(adaptive);
+        scheduleNextReport();
+    }
+
+    /**
+     * @return true if the report period adapts to the unit's movement.
+     */
+    public boolean isAdaptive() {
+        return schedule.isAdaptive();
+    }
+
+    /**
+     * Returns statistics on the intervals between the reports sent since reporting was last
+     * enabled. With jitter, the mean interval stays close to the period in fixed mode while the
+     * standard deviation shows how much the reports are spread out.
+     *
+     * @return the interval statistics.
+     */
+    public IntervalStatistics getSendIntervalStatistics() {
+        return schedule.getIntervalStatistics();
+    }
+
+    /**
+     * Turns position reporting on or off. Turning it on sends the first report after a random part
+     * of the period; turning it off sends nothing. Calling this method with the current state does
+     * nothing.
+     *
+     * @param enabled true to send position reports.
+     */
+    @Override
+    public void setEnabled(boolean enabled) {
+        if (null == schedule) {
+            // Called from the superclass constructor
+            super.setEnabled(enabled);
+            return;
+        }
+        synchronized (timerLock) {
+            if (enabled == this.enabled) {
+                return;
+            }
+            this.enabled = enabled;
+            if (enabled) {
+                schedule.start(System.currentTimeMillis());
+            } else {
+                timer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        try {
+                            stopSuperclassReports();
+                        } catch (Throwable t) {
+                            Log.e(TAG, "Couldn't stop position reports", t);
+                        }
+                    }
+                }, 0);
+                if (0 < schedule.getIntervalStatistics().getCount()) {
+                    Log.i(TAG, "Position report intervals: " + schedule.getIntervalStatistics());
+                }
+                schedule.reset();
+            }
+        }
+        scheduleNextReport();
+    }
+
+    /**
+     * Sends a position report now, through the superclass side effects described in the class
+     * documentation.
+     */
+    private void sendReportNow() {
+        if (superclassEnabled) {
+            super.setPeriod(Integer.MAX_VALUE);
+        } else {
+            superclassEnabled = true;
+            super.setEnabled(true);
+        }
+    }
+
+    /**
+     * Stops the superclass from sending reports, without sending one.
+     */
+    private void stopSuperclassReports() {
+        superclassEnabled = false;
+        super.setEnabled(false);
+        super.setPeriod(Integer.MAX_VALUE);
+    }
+
+    private void scheduleNextReport() {
+        synchronized (timerLock) {
+            if (null != sendTask) {
+                sendTask.cancel();
+                sendTask = null;
+            }
+            if (!enabled) {
+                return;
+            }
+            long delay = Math.max(0, schedule.getNextSendTime() - System.currentTimeMillis());
+            sendTask = new TimerTask() {
+                @Override
+                public void run() {
+                    sendReport();
+                }
+            };
+            timer.schedule(sendTask, delay);
+        }
+    }
+
+    private void sendReport() {
+        synchronized (timerLock) {
+            if (!enabled) {
+                return;
+            }
+        }
+        // Send without timerLock so that setEnabled(false) does not wait for the report to go out
+        try {
+            sendReportNow();
+        } catch (Throwable t) {
+            Log.e(TAG, "Couldn't send position report", t);
+        }
+        synchronized (timerLock) {
+            if (!enabled) {
+                return;
+            }
+            schedule.sent(lastLocation, System.currentTimeMillis());
+        }
+        scheduleNextReport();
+    }
+
+}
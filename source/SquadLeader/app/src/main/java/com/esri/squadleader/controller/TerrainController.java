@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.controller;
+
+import android.util.Log;
+
+import com.esri.core.geometry.Point;
+import com.esri.squadleader.model.ElevationSampler;
+import com.esri.squadleader.model.GeoTiffElevationRaster;
+import com.esri.squadleader.model.LineOfSight;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A controller for terrain questions that do not need a full viewshed, such as the elevation at a
+ * point or whether one point can see another. It reads the elevation dataset through a memory-mapped GeoTiffElevationRaster,
+ * so a check reads only the part of the dataset under the sight line.
+ * <p/>
+ * Call dispose() when you are done with this class.
+ */
+public class TerrainController {
+
+    private static final String TAG = TerrainController.class.getSimpleName();
+
+    private final GeoTiffElevationRaster raster;
+    private final LineOfSight lineOfSight;
+    private final ElevationSampler elevationSampler;
+
+    /**
+     * Creates a TerrainController.
+     *
+     * @param elevationFilename the full path to the elevation dataset, such as the path from
+     *                          MapConfig.getViewshedElevationPath. It must be an uncompressed
+     *                          GeoTIFF in the same spatial reference as the MapView.
+     * @throws IOException if the elevation dataset cannot be read.
+     */
+    public TerrainController(String elevationFilename) throws IOException {
+        raster = new GeoTiffElevationRaster(new File(elevationFilename));
+        lineOfSight = new LineOfSight(raster);
+        elevationSampler = new ElevationSampler(raster);
+    }
+
+    /**
+     * @return the elevation sampler, for profiles and other repeated lookups.
+     */
+    public ElevationSampler getElevationSampler() {
+        return elevationSampler;
+    }
+
+    /**
+     * Returns the terrain elevation at a point.
+     *
+     * @param point the point, in the map's spatial reference.
+     * @return the elevation, or NaN if the point is outside the elevation dataset.
+     */
+    public double getElevation(Point point) {
+        return elevationSampler.getElevation(point.getX(), point.getY());
+    }
+
+    /**
+     * Returns the terrain elevation at a batch of points. This is faster than calling
+     * getElevation for each point when there are many points.
+     *
+     * @param points the points as {x, y, x, y, ...} in the map's spatial reference.
+     * @return one elevation per point, or NaN for a point outside the elevation dataset.
+     */
+    public double[] getElevations(double[] points) {
+        return elevationSampler.getElevations(points);
+    }
+
+    /**
+     * @return the line-of-sight engine, for batches of checks.
+     */
+    public LineOfSight getLineOfSight() {
+        return lineOfSight;
+    }
+
+    /**
+     * Checks whether an observer can see a target.
+     *
+     * @param observer       the observer, in the map's spatial reference.
+     * @param observerHeight the observer's height above the ground.
+     * @param target         the target, in the map's spatial reference.
+     * @param targetHeight   the target's height above the ground.
+     * @return the result, or null if the observer or target is outside the elevation dataset.
+     */
+    public LineOfSight.Result checkLineOfSight(Point observer, double observerHeight, Point target, double targetHeight) {
+        try {
+            return lineOfSight.check(observer.getX(), observer.getY(), observerHeight,
+                    target.getX(), target.getY(), targetHeight);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Releases the elevation dataset.
+     */
+    public void dispose() {
+        try {
+            raster.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't close elevation raster", e);
+        }
+    }
+
+}
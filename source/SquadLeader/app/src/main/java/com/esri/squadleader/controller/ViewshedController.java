@@ -15,41 +15,190 @@
  ******************************************************************************/
 package com.esri.squadleader.controller;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 import android.graphics.Color;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 
 import com.esri.android.map.RasterLayer;
 import com.esri.core.analysis.Viewshed;
 import com.esri.core.geometry.Point;
+import com.esri.core.raster.FileRasterSource;
 import com.esri.core.renderer.Colormap;
 import com.esri.core.renderer.Colormap.UniqueValue;
 import com.esri.core.renderer.ColormapRenderer;
+import com.esri.squadleader.model.CumulativeViewshed;
+import com.esri.squadleader.model.ElevationPyramid;
+import com.esri.squadleader.model.ElevationRaster;
+import com.esri.squadleader.model.GeoTiffElevationRaster;
+import com.esri.squadleader.model.GeoTiffWriter;
+import com.esri.squadleader.model.ViewshedCache;
+import com.esri.squadleader.model.ViewshedCalculator;
+import com.esri.squadleader.model.ViewshedGrid;
+import com.esri.squadleader.util.ProgressListener;
 
 /**
- * A controller that calculates viewsheds based on an elevation raster. The Android OS must support an API level
- * greater than or equal to MIN_API_LEVEL to use this class.<br/>
+ * A controller that calculates viewsheds based on an elevation raster.<br/>
+ * <br/>
+ * If the elevation raster is an uncompressed GeoTIFF, calculateViewshedAsync computes each viewshed
+ * on a background thread and publishes it as a finished raster layer. When a full-resolution viewshed
+ * would be slow, a coarse preview from an ElevationPyramid is published first. Results are cached by
+ * observer cell, observer height, analysis radius, and elevation dataset, so repeating a viewshed from
+ * the same spot skips the calculation, and repeating the viewshed that is already displayed reuses its
+ * layer.<br/>
+ * <br/>
+ * If the elevation raster is not an uncompressed GeoTIFF, the controller falls back to a Viewshed
+ * function raster, which is evaluated whenever the map draws. In that case the Android OS must
+ * support an API level greater than or equal to MIN_API_LEVEL.<br/>
  * <br/>
  * To make wise use of resources, call dispose() when you are done with this class. A good place to call dispose()
  * is the onDestroy() method of the Activity that uses this class.
  */
 public class ViewshedController {
-    
+
+    /**
+     * A listener for an asynchronous viewshed calculation. viewshedPreview and viewshedCompleted
+     * are called on the UI thread; except where noted, the other methods are called on a background
+     * thread.
+     */
+    public interface ViewshedListener {
+
+        /**
+         * Called as the calculation makes progress.
+         *
+         * @param percent the percentage complete, from 0 to 100.
+         */
+        void viewshedProgress(int percent);
+
+        /**
+         * Called with a quick, coarse result while the full-resolution result is still being
+         * calculated. The caller should show it the same way as a completed result, before this
+         * method returns. This method is not called if the full-resolution result is expected to be
+         * fast enough on its own.
+         *
+         * @param layer the layer that displays the coarse result.
+         */
+        void viewshedPreview(RasterLayer layer);
+
+        /**
+         * Called when the calculation has finished. Before this method returns, the caller should
+         * remove the previous result layer from the map, if any, and add this one. The previous
+         * result's files are deleted after this method returns.
+         *
+         * @param layer the layer that displays the result.
+         */
+        void viewshedCompleted(RasterLayer layer);
+
+        /**
+         * Called when the calculation fails.
+         *
+         * @param t the cause of the failure.
+         */
+        void viewshedFailed(Throwable t);
+
+        /**
+         * Called when the calculation has been cancelled. This method might be called on the thread
+         * that called cancelViewshed.
+         */
+        void viewshedCancelled();
+
+    }
+
+    private static class ViewshedResult {
+        final File file;
+        final ColormapRenderer renderer;
+        final String key;
+
+        /**
+         * @param file     the result's GeoTIFF, or null if the result is the one the current layer
+         *                 already displays.
+         * @param renderer the renderer for the result's layer.
+         * @param key      the result's cache key, or null if it is not cached.
+         */
+        ViewshedResult(File file, ColormapRenderer renderer, String key) {
+            this.file = file;
+            this.renderer = renderer;
+            this.key = key;
+        }
+    }
+
     private static final String TAG = ViewshedController.class.getSimpleName();
     
     /**
-     * The minimum API level supported by this class. The constructor will check and throw an exception for lower
-     * API levels.
+     * The minimum API level supported by the Viewshed function raster fallback. The constructor will check and
+     * throw an exception for lower API levels if the elevation raster cannot be calculated asynchronously.
      */
     public static final int MIN_API_LEVEL = 16;
+
+    private static final long MEMORY_CACHE_BYTES = 32 * 1024 * 1024;
+    private static final long DISK_CACHE_BYTES = 128 * 1024 * 1024;
+    private static final long CUMULATIVE_VIEWSHED_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * The time within which a coarse preview should be ready when the full-resolution viewshed
+     * will take longer. The budget covers calculating and writing the preview and creating its
+     * layer, but not waiting for the UI thread. A preview calculation that would overrun it is
+     * abandoned.
+     */
+    private static final long PREVIEW_LATENCY_BUDGET_MS = 200;
+
+    /**
+     * Thrown by a progress listener to abandon a preview that has run out of time.
+     */
+    private static class PreviewDeadlineException extends RuntimeException {
+        private static final long serialVersionUID = -2877236349651412508L;
+    }
     
     private final String elevationFilename;
-    
+    private final File outputDirectory;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Object taskLock = new Object();
+
+    private File elevationFile;
+    private ElevationRaster elevationRaster;
+    private ViewshedCalculator calculator;
+    private ViewshedCache cache;
+    private volatile ElevationPyramid pyramid = null;
+    private CumulativeViewshed cumulativeViewshed = null;
+    private ExecutorService parallelExecutor = null;
     private Viewshed viewshed;
     private RasterLayer layer;    
-    private double observerHeight = 2.0;
-    private boolean started = false;
+    private File resultFile = null;
+    private String resultKey = null;
+    private String layerKey = null;
+    private final List<File> staleFiles = new ArrayList<File>();
+    private FutureTask<ViewshedResult> currentTask = null;
+    private volatile double observerHeight = 2.0;
+    private volatile double maxRadius = 0;
+    private volatile double nanosPerCell = 1000;
+    private volatile double writeNanosPerCell = 50;
+    private volatile double layerCreationNanos = 0;
+    private volatile boolean started = false;
+
+    /**
+     * Instantiates a ViewshedController with an immutable elevation raster dataset and writes
+     * asynchronous results to the temporary directory. The caller does not need to call start() in
+     * this case.
+     * @see #ViewshedController(String, File)
+     */
+    public ViewshedController(String elevationFilename) throws IllegalArgumentException, FileNotFoundException, RuntimeException {
+        this(elevationFilename, new File(System.getProperty("java.io.tmpdir")));
+    }
 
     /**
      * Instantiates a ViewshedController with an immutable elevation raster dataset. The caller does not need to call
@@ -57,47 +206,143 @@ public class ViewshedController {
      * @param elevationFilename the full path to the elevation dataset to be used for viewshed analysis.
      *        This could be a TIF file, for example. The dataset should be in the same spatial reference
      *        as the MapView.
+     * @param outputDirectory the directory in which to write the rasters that asynchronous
+     *        calculations produce. The app's cache directory is a good choice.
      * @throws RuntimeException if the elevation raster could not be opened and used for viewshed analysis, or if the
      *         Android version is too old for viewshed analysis.
      * @throws FileNotFoundException if elevationFilename represents a file that does not exist.
      * @throws IllegalArgumentException if elevationFilename is null or an empty string.
      */
-    public ViewshedController(String elevationFilename) throws IllegalArgumentException, FileNotFoundException, RuntimeException {
-        if (MIN_API_LEVEL > Build.VERSION.SDK_INT) {
-            throw new RuntimeException(getClass().getSimpleName() + " not supported below Android API level " + MIN_API_LEVEL);
+    public ViewshedController(String elevationFilename, File outputDirectory) throws IllegalArgumentException, FileNotFoundException, RuntimeException {
+        if (null == elevationFilename || 0 == elevationFilename.length()) {
+            throw new IllegalArgumentException("An elevation dataset is required");
         }
         this.elevationFilename = elevationFilename;
+        this.outputDirectory = outputDirectory;
         start();
     }
     
     /**
-     * Gets the viewshed analysis and layer ready but does not add the layer to the map. The caller should add the
-     * layer to the map after this method returns.
+     * Gets the viewshed analysis ready. If the fallback Viewshed function raster is used, this method also creates
+     * its layer but does not add the layer to the map. The caller should add the layer to the map after this method
+     * returns.
      * @throws IllegalArgumentException
      * @throws FileNotFoundException
      * @throws RuntimeException
      */
     private void start() throws IllegalArgumentException, FileNotFoundException, RuntimeException {
         if (!started) {
-            viewshed = new Viewshed(elevationFilename);
-            layer = new RasterLayer(viewshed.getOutputFunctionRasterSource());
-            layer.setVisible(false);
-            Colormap colormap = new Colormap();
-            colormap.addUniqueValue(new UniqueValue(1, Color.rgb(76, 230, 0), "Visible"));
-            ColormapRenderer renderer = new ColormapRenderer(colormap);
-            layer.setRenderer(renderer);
+            elevationFile = new File(elevationFilename);
+            if (!elevationFile.exists()) {
+                throw new FileNotFoundException(elevationFilename);
+            }
+            try {
+                elevationRaster = new GeoTiffElevationRaster(elevationFile);
+                calculator = new ViewshedCalculator(elevationRaster);
+                cache = new ViewshedCache(new File(outputDirectory, "viewshed-cache"), MEMORY_CACHE_BYTES, DISK_CACHE_BYTES);
+                startPyramid();
+            } catch (IOException e) {
+                Log.i(TAG, "Using Viewshed function raster because " + elevationFilename
+                        + " can't be read asynchronously: " + e.getMessage());
+                if (MIN_API_LEVEL > Build.VERSION.SDK_INT) {
+                    throw new RuntimeException(getClass().getSimpleName() + " not supported below Android API level " + MIN_API_LEVEL);
+                }
+                viewshed = new Viewshed(elevationFilename);
+                layer = new RasterLayer(viewshed.getOutputFunctionRasterSource());
+                layer.setVisible(false);
+                layer.setRenderer(createRenderer());
+                viewshed.setObserverZOffset(observerHeight);
+            }
             started = true;
         }
     }
+
+    /**
+     * Reads the elevation pyramid from the output directory, or builds and saves it if it is not
+     * there, on a background thread. Until the pyramid is ready, viewsheds have no coarse preview.
+     */
+    private void startPyramid() {
+        final ElevationRaster raster = elevationRaster;
+        final String key = elevationFile.getAbsolutePath() + "|" + elevationFile.lastModified();
+        final File pyramidFile = new File(outputDirectory, "pyramid-" + Integer.toHexString(key.hashCode()) + ".bin");
+        new Thread() {
+            @Override
+            public void run() {
+                ElevationPyramid newPyramid = null;
+                if (pyramidFile.isFile()) {
+                    try {
+                        newPyramid = ElevationPyramid.read(pyramidFile, raster, key);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Couldn't read elevation pyramid", e);
+                    }
+                }
+                if (null == newPyramid) {
+                    try {
+                        newPyramid = ElevationPyramid.build(raster, null);
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "Couldn't build elevation pyramid", e);
+                        return;
+                    }
+                    try {
+                        newPyramid.write(pyramidFile, key);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Couldn't save elevation pyramid", e);
+                        pyramidFile.delete();
+                    }
+                }
+                if (started) {
+                    pyramid = newPyramid;
+                }
+            }
+        }.start();
+    }
+
+    private static ColormapRenderer createRenderer() {
+        Colormap colormap = new Colormap();
+        colormap.addUniqueValue(new UniqueValue(1, Color.rgb(76, 230, 0), "Visible"));
+        return new ColormapRenderer(colormap);
+    }
+
+    private static ColormapRenderer createCumulativeRenderer() {
+        Colormap colormap = new Colormap();
+        colormap.addUniqueValue(new UniqueValue(CumulativeViewshed.GAP, Color.rgb(230, 0, 0), "Not visible"));
+        colormap.addUniqueValue(new UniqueValue(1, Color.rgb(163, 255, 115), "Visible to 1 observer"));
+        for (int count = 2; count <= CumulativeViewshed.MAX_COUNT; count++) {
+            colormap.addUniqueValue(new UniqueValue(count, Color.rgb(56, 168, 0), "Visible to 2 or more observers"));
+        }
+        return new ColormapRenderer(colormap);
+    }
     
     /**
-     * Finalizes the controller by disposing the private Viewshed object and removing the viewshed layer from the map.
+     * Finalizes the controller by cancelling any running calculation and disposing the private
+     * Viewshed and elevation raster objects.
      */
     private void stop() {
         started = false;
+        cancelViewshed();
+        executor.shutdownNow();
+        resetCumulativeViewshed();
         if (null != viewshed) {
             viewshed.dispose();
         }
+        if (null != elevationRaster) {
+            try {
+                elevationRaster.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't close elevation raster", e);
+            }
+        }
+        synchronized (taskLock) {
+            deleteResultFile(resultFile);
+            resultFile = null;
+            resultKey = null;
+            for (File staleFile : staleFiles) {
+                deleteResultFile(staleFile);
+            }
+            staleFiles.clear();
+        }
     }
     
     /**
@@ -108,11 +353,24 @@ public class ViewshedController {
     }
     
     /**
-     * Returns the layer that displays viewshed results.
+     * Returns the layer that displays viewshed results. When viewsheds are calculated
+     * asynchronously, this is the most recently completed result, or null if no calculation has
+     * completed yet.
      * @return the layer that displays viewshed results.
      */
     public RasterLayer getLayer() {
-        return layer;
+        synchronized (taskLock) {
+            return layer;
+        }
+    }
+
+    /**
+     * Returns true if calculateViewshedAsync computes viewsheds on a background thread, or false if
+     * it falls back to the Viewshed function raster.
+     * @return true if viewsheds are calculated on a background thread.
+     */
+    public boolean isAsynchronous() {
+        return null != calculator;
     }
     
     /**
@@ -133,16 +391,435 @@ public class ViewshedController {
             viewshed.setObserverZOffset(observerHeight);
         }
     }
+
+    /**
+     * Returns the maximum distance from the observer that viewshed analysis covers.
+     * @return the maximum analysis radius, or 0 if there is no maximum.
+     */
+    public double getMaxRadius() {
+        return maxRadius;
+    }
+
+    /**
+     * Sets the maximum distance from the observer that asynchronous viewshed analysis covers.
+     * Terrain farther away is not read at all. The Viewshed function raster fallback ignores this
+     * setting.
+     * @param maxRadius the maximum analysis radius in the units of the elevation dataset's spatial
+     *        reference, or 0 for no maximum.
+     */
+    public void setMaxRadius(double maxRadius) {
+        this.maxRadius = Math.max(0, maxRadius);
+    }
     
     /**
-     * Calculates the viewshed based on an observer point.
+     * Calculates the viewshed based on an observer point. If the controller uses the Viewshed
+     * function raster, the result is evaluated as the map draws; otherwise, this method blocks
+     * until the result is ready and getLayer returns it once the UI thread has created its layer.
+     * Because the controller cannot tell when the caller takes the previous layer off the map, the
+     * previous result's files are kept until the controller is disposed. Prefer
+     * calculateViewshedAsync.
      * @param observer the observer from which the viewshed will be calculated. This point must be
      *        in the spatial reference of the underlying elevation dataset, which should be in the
      *        same spatial reference as the MapView.
      */
     public void calculateViewshed(Point observer) {
-        viewshed.setObserver(observer);
-        layer.setVisible(true);
+        if (null != viewshed) {
+            viewshed.setObserver(observer);
+            layer.setVisible(true);
+        } else {
+            try {
+                publishResult(computeResult(observer, null), null, false);
+            } catch (Exception e) {
+                Log.e(TAG, "Couldn't calculate viewshed", e);
+            }
+        }
+    }
+
+    /**
+     * Starts calculating the viewshed based on an observer point and returns immediately. If a
+     * calculation is already running, it is cancelled. The listener receives progress updates and
+     * then exactly one of viewshedCompleted, viewshedFailed, or viewshedCancelled.<br/>
+     * <br/>
+     * If the controller uses the Viewshed function raster, this method sets the observer and calls
+     * viewshedCompleted before returning, on the calling thread.
+     * @param observer the observer from which the viewshed will be calculated. This point must be
+     *        in the spatial reference of the underlying elevation dataset, which should be in the
+     *        same spatial reference as the MapView.
+     * @param listener the listener for progress and the result.
+     */
+    public void calculateViewshedAsync(final Point observer, final ViewshedListener listener) {
+        if (null != viewshed) {
+            calculateViewshed(observer);
+            listener.viewshedCompleted(layer);
+            return;
+        }
+        submit(new Callable<ViewshedResult>() {
+            @Override
+            public ViewshedResult call() throws Exception {
+                return computeResult(observer, listener);
+            }
+        }, listener);
+    }
+
+    /**
+     * Starts calculating a cumulative viewshed for a set of observers and returns immediately. If a
+     * calculation is already running, it is cancelled. In the resulting layer, cells that no
+     * observer can see are red, and cells that at least one observer can see are green, with
+     * cells seen by more than one observer darker.<br/>
+     * <br/>
+     * The controller remembers each observer's viewshed, so calling this method again with the
+     * same observer IDs recalculates only the observers that moved, were added, or were removed.
+     * Call resetCumulativeViewshed to release that memory. To bound that memory, observers are left
+     * out when there are too many for the analysis radius; setting a maximum radius lets more
+     * observers in.<br/>
+     * <br/>
+     * Cumulative viewsheds are not available with the Viewshed function raster fallback; in that
+     * case, the listener's viewshedFailed method is called before this method returns.
+     * @param observers the observers, keyed by an ID such as a position report's message ID. The
+     *        points must be in the spatial reference of the underlying elevation dataset.
+     * @param listener the listener for progress and the result.
+     */
+    public void calculateCumulativeViewshedAsync(Map<String, Point> observers, final ViewshedListener listener) {
+        if (null == calculator) {
+            listener.viewshedFailed(new UnsupportedOperationException(
+                    "Cumulative viewsheds require an uncompressed GeoTIFF elevation dataset"));
+            return;
+        }
+        final HashMap<String, double[]> observerCoordinates = new HashMap<String, double[]>();
+        for (Map.Entry<String, Point> entry : observers.entrySet()) {
+            observerCoordinates.put(entry.getKey(), new double[]{entry.getValue().getX(), entry.getValue().getY()});
+        }
+        submit(new Callable<ViewshedResult>() {
+            @Override
+            public ViewshedResult call() throws Exception {
+                CumulativeViewshed cumulative;
+                synchronized (taskLock) {
+                    if (null == cumulativeViewshed) {
+                        parallelExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+                        cumulativeViewshed = new CumulativeViewshed(calculator, parallelExecutor, CUMULATIVE_VIEWSHED_BYTES);
+                    }
+                    cumulative = cumulativeViewshed;
+                }
+                ViewshedGrid grid = cumulative.update(observerCoordinates, observerHeight, maxRadius, createProgressListener(listener));
+                if (0 < cumulative.getIgnoredObserverCount()) {
+                    Log.w(TAG, "Left " + cumulative.getIgnoredObserverCount() + " observers out of the cumulative viewshed to limit memory use");
+                }
+                if (null == grid) {
+                    throw new IllegalArgumentException("None of the observers is on the elevation dataset");
+                }
+                return writeResult(grid, createCumulativeRenderer(), null);
+            }
+        }, listener);
+    }
+
+    /**
+     * Discards the per-observer viewsheds that calculateCumulativeViewshedAsync remembers.
+     */
+    public void resetCumulativeViewshed() {
+        synchronized (taskLock) {
+            cumulativeViewshed = null;
+            if (null != parallelExecutor) {
+                parallelExecutor.shutdownNow();
+                parallelExecutor = null;
+            }
+        }
+    }
+
+    private void submit(Callable<ViewshedResult> callable, final ViewshedListener listener) {
+        final FutureTask<ViewshedResult> task = new FutureTask<ViewshedResult>(callable) {
+            @Override
+            protected void done() {
+                synchronized (taskLock) {
+                    if (currentTask == this) {
+                        currentTask = null;
+                    }
+                }
+                if (isCancelled()) {
+                    listener.viewshedCancelled();
+                    return;
+                }
+                try {
+                    publishResult(get(), listener, false);
+                } catch (InterruptedException e) {
+                    listener.viewshedCancelled();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof InterruptedException) {
+                        listener.viewshedCancelled();
+                    } else {
+                        listener.viewshedFailed(e.getCause());
+                    }
+                }
+            }
+        };
+        synchronized (taskLock) {
+            if (null != currentTask) {
+                currentTask.cancel(true);
+            }
+            currentTask = task;
+        }
+        executor.execute(task);
+    }
+
+    /**
+     * Returns true if an asynchronous viewshed calculation is running.
+     * @return true if an asynchronous viewshed calculation is running.
+     */
+    public boolean isCalculating() {
+        synchronized (taskLock) {
+            return null != currentTask;
+        }
+    }
+
+    /**
+     * Cancels the running asynchronous viewshed calculation, if any.
+     * @return true if a calculation was cancelled.
+     */
+    public boolean cancelViewshed() {
+        synchronized (taskLock) {
+            if (null == currentTask) {
+                return false;
+            }
+            boolean cancelled = currentTask.cancel(true);
+            currentTask = null;
+            return cancelled;
+        }
+    }
+
+    private ViewshedResult computeResult(Point observer, final ViewshedListener listener) throws Exception {
+        final long startNanos = System.nanoTime();
+        final double height = observerHeight;
+        final double radius = maxRadius;
+        final String key = ViewshedCache.createKey(elevationRaster, elevationFile, observer.getX(), observer.getY(), height, radius);
+        boolean displayed;
+        synchronized (taskLock) {
+            displayed = key.equals(resultKey);
+        }
+        if (displayed) {
+            if (null != listener) {
+                listener.viewshedProgress(100);
+            }
+            return new ViewshedResult(null, null, key);
+        }
+        ViewshedGrid grid = cache.get(key);
+        if (null == grid) {
+            if (null != listener) {
+                calculatePreview(startNanos, observer, height, radius, listener);
+            }
+            grid = calculateGrid(calculator, observer, height, radius, createProgressListener(listener));
+            cache.put(key, grid);
+        } else if (null != listener) {
+            listener.viewshedProgress(100);
+        }
+        return writeResult(grid, createRenderer(), key);
+    }
+
+    /**
+     * If the full-resolution viewshed is expected to take longer than PREVIEW_LATENCY_BUDGET_MS,
+     * calculates a viewshed on the finest pyramid level expected to fit in that budget and
+     * publishes it as a preview. If the preview calculation runs past the time left for it, the
+     * preview is skipped.
+     *
+     * @param startNanos the System.nanoTime at which the request started.
+     */
+    private void calculatePreview(long startNanos, Point observer, double height, double radius, ViewshedListener listener) throws Exception {
+        final ElevationPyramid currentPyramid = pyramid;
+        final long budgetNanos = PREVIEW_LATENCY_BUDGET_MS * 1000000L;
+        if (null == currentPyramid || estimateResultNanos(elevationRaster, radius) <= budgetNanos) {
+            return;
+        }
+        for (int i = 0; i < currentPyramid.getLevelCount(); i++) {
+            ElevationRaster level = currentPyramid.getLevel(i);
+            if (estimateResultNanos(level, radius) <= budgetNanos) {
+                // Leave time to write the preview and create its layer
+                final long deadline = startNanos + budgetNanos - (long) layerCreationNanos
+                        - (long) (getWindowCellCount(level, radius) * writeNanosPerCell);
+                ViewshedGrid previewGrid;
+                try {
+                    previewGrid = calculateGrid(new ViewshedCalculator(level), observer, height, radius, new ProgressListener() {
+                        @Override
+                        public void onProgress(long completed, long total) {
+                            if (System.nanoTime() > deadline) {
+                                throw new PreviewDeadlineException();
+                            }
+                        }
+                    });
+                } catch (IllegalArgumentException e) {
+                    // The coarse cell under the observer has no data; skip the preview
+                    return;
+                } catch (PreviewDeadlineException e) {
+                    Log.d(TAG, "Skipped a viewshed preview that would have taken longer than " + PREVIEW_LATENCY_BUDGET_MS + " ms");
+                    return;
+                }
+                publishResult(writeResult(previewGrid, createRenderer(), null), listener, true);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Estimates how long calculating and writing a viewshed on a raster and creating its layer
+     * will take.
+     */
+    private double estimateResultNanos(ElevationRaster raster, double radius) {
+        return getWindowCellCount(raster, radius) * (nanosPerCell + writeNanosPerCell) + layerCreationNanos;
+    }
+
+    private static long getWindowCellCount(ElevationRaster raster, double radius) {
+        long columns = raster.getColumnCount();
+        long rows = raster.getRowCount();
+        if (0 < radius) {
+            columns = Math.min(columns, 2 * (long) Math.ceil(radius / raster.getCellWidth()) + 1);
+            rows = Math.min(rows, 2 * (long) Math.ceil(radius / raster.getCellHeight()) + 1);
+        }
+        return columns * rows;
+    }
+
+    private ViewshedResult writeResult(ViewshedGrid grid, ColormapRenderer renderer, String key) throws Exception {
+        File file = new File(outputDirectory, "viewshed-" + System.currentTimeMillis() + ".tif");
+        long startTime = System.nanoTime();
+        GeoTiffWriter.write(grid, file, ViewshedCalculator.NO_DATA & 0xff);
+        long cellCount = (long) grid.getColumnCount() * grid.getRowCount();
+        if (0 < cellCount) {
+            double measured = (double) (System.nanoTime() - startTime) / cellCount;
+            writeNanosPerCell = 0.5 * writeNanosPerCell + 0.5 * measured;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            deleteResultFile(file);
+            throw new InterruptedException("Viewshed calculation cancelled");
+        }
+        return new ViewshedResult(file, renderer, key);
+    }
+
+    /**
+     * Calculates a viewshed and updates the estimate of how long a calculation takes per cell.
+     */
+    private ViewshedGrid calculateGrid(ViewshedCalculator gridCalculator, Point observer, double height, double radius,
+                                       ProgressListener listener) throws InterruptedException {
+        long startTime = System.nanoTime();
+        ViewshedGrid grid = gridCalculator.calculate(observer.getX(), observer.getY(), height, radius, listener);
+        long cellCount = (long) grid.getColumnCount() * grid.getRowCount();
+        if (0 < cellCount) {
+            double measured = (double) (System.nanoTime() - startTime) / cellCount;
+            nanosPerCell = 0.5 * nanosPerCell + 0.5 * measured;
+        }
+        return grid;
+    }
+
+    private static ProgressListener createProgressListener(final ViewshedListener listener) {
+        if (null == listener) {
+            return null;
+        }
+        return new ProgressListener() {
+
+            private int lastPercent = -1;
+
+            @Override
+            public void onProgress(long completed, long total) {
+                int percent = (int) (100 * completed / Math.max(1, total));
+                if (percent != lastPercent) {
+                    lastPercent = percent;
+                    listener.viewshedProgress(percent);
+                }
+            }
+        };
+    }
+
+    /**
+     * Makes a result the current one and, on the UI thread, creates its layer and passes it to the
+     * listener. The previous result's files are deleted only after the listener has had the chance
+     * to take the previous layer off the map, because a RasterLayer reads its file as the map draws.
+     */
+    private void publishResult(final ViewshedResult result, final ViewshedListener listener, final boolean preview) {
+        if (null == result.file) {
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    RasterLayer currentLayer;
+                    synchronized (taskLock) {
+                        currentLayer = null != result.key && result.key.equals(layerKey) ? layer : null;
+                    }
+                    if (null == listener) {
+                        return;
+                    }
+                    if (null == currentLayer) {
+                        // The layer for this result could not be created
+                        listener.viewshedFailed(new IllegalStateException("No layer for the viewshed"));
+                    } else {
+                        listener.viewshedCompleted(currentLayer);
+                    }
+                }
+            });
+            return;
+        }
+        final File previousFile;
+        synchronized (taskLock) {
+            previousFile = resultFile;
+            resultFile = result.file;
+            resultKey = result.key;
+        }
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (taskLock) {
+                    if (!started) {
+                        deleteResultFile(previousFile);
+                        deleteResultFile(result.file);
+                        return;
+                    }
+                }
+                RasterLayer resultLayer;
+                try {
+                    long startTime = System.nanoTime();
+                    resultLayer = new RasterLayer(new FileRasterSource(result.file.getAbsolutePath()));
+                    resultLayer.setRenderer(result.renderer);
+                    layerCreationNanos = 0.5 * layerCreationNanos + 0.5 * (System.nanoTime() - startTime);
+                } catch (Exception e) {
+                    Log.e(TAG, "Couldn't create viewshed layer", e);
+                    synchronized (taskLock) {
+                        staleFiles.add(previousFile);
+                        if (result.file.equals(resultFile)) {
+                            resultKey = null;
+                        }
+                    }
+                    if (null != listener && !preview) {
+                        listener.viewshedFailed(e);
+                    }
+                    return;
+                }
+                synchronized (taskLock) {
+                    layer = resultLayer;
+                    layerKey = result.key;
+                    if (null == listener) {
+                        staleFiles.add(previousFile);
+                        return;
+                    }
+                }
+                if (preview) {
+                    listener.viewshedPreview(resultLayer);
+                } else {
+                    listener.viewshedCompleted(resultLayer);
+                }
+                // The listener has replaced the previous layer on the map
+                deleteResultFile(previousFile);
+            }
+        });
+    }
+
+    private void runOnMainThread(Runnable runnable) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            runnable.run();
+        } else {
+            mainHandler.post(runnable);
+        }
+    }
+
+    private static void deleteResultFile(File file) {
+        if (null != file) {
+            if (!file.delete() && file.exists()) {
+                Log.w(TAG, "Couldn't delete " + file);
+            }
+            GeoTiffWriter.getWorldFile(file).delete();
+        }
     }
 
 }
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import com.esri.militaryapps.model.Location;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Decides how often to sample the location from how the unit is moving. The policy starts in
+ * MOVING mode. It switches to STATIONARY mode when the unit has stayed within a small radius for a
+ * while, and back to MOVING mode as soon as a fix shows the unit leaving that radius, moving
+ * faster than a threshold speed, or turning. Speed and course come from consecutive fixes, and
+ * only moves longer than the radius count, so that GPS jitter does not look like movement. Each
+ * mode has its own sampling interval.
+ * <p/>
+ * The policy works only from the positions and times of the fixes it is given, so it behaves the
+ * same for device fixes and simulated GPX tracks. Listeners are notified of each transition.
+ * <p/>
+ * AdaptiveSamplingPolicy is thread-safe.
+ */
+public class AdaptiveSamplingPolicy {
+
+    /**
+     * A sampling mode.
+     */
+    public enum SamplingMode {
+        MOVING, STATIONARY
+    }
+
+    /**
+     * A listener for sampling mode transitions.
+     */
+    public interface SamplingModeListener {
+
+        /**
+         * Called when the sampling mode changes, on the thread that passed in the fix that caused
+         * the change.
+         *
+         * @param mode           the new mode.
+         * @param intervalMillis the sampling interval for the new mode.
+         */
+        void samplingModeChanged(SamplingMode mode, long intervalMillis);
+
+    }
+
+    private final long movingIntervalMillis;
+    private final long stationaryIntervalMillis;
+    private final double stationaryRadiusMeters;
+    private final long stationaryDelayMillis;
+    private final double movingSpeed;
+    private final double headingChangeDegrees;
+    private final CopyOnWriteArrayList<SamplingModeListener> listeners = new CopyOnWriteArrayList<SamplingModeListener>();
+
+    private SamplingMode mode = SamplingMode.MOVING;
+    private Location anchor = null;
+    private Location previous = null;
+    private double previousHeading = Double.NaN;
+
+    /**
+     * Creates a policy.
+     *
+     * @param movingIntervalMillis     the sampling interval while moving.
+     * @param stationaryIntervalMillis the sampling interval while stationary.
+     * @param stationaryRadiusMeters   how far the unit can wander and still be stationary.
+     * @param stationaryDelayMillis    how long the unit must stay within the stationary radius to
+     *                                 be stationary.
+     * @param movingSpeed              the speed, in meters per second, between two fixes that
+     *                                 means the unit is moving.
+     * @param headingChangeDegrees     the change in course between fixes that means the unit is
+     *                                 moving, or 0 or less to ignore course.
+     */
+    public AdaptiveSamplingPolicy(long movingIntervalMillis, long stationaryIntervalMillis,
+                                  double stationaryRadiusMeters, long stationaryDelayMillis,
+                                  double movingSpeed, double headingChangeDegrees) {
+        this.movingIntervalMillis = movingIntervalMillis;
+        this.stationaryIntervalMillis = stationaryIntervalMillis;
+        this.stationaryRadiusMeters = stationaryRadiusMeters;
+        this.stationaryDelayMillis = stationaryDelayMillis;
+        this.movingSpeed = movingSpeed;
+        this.headingChangeDegrees = headingChangeDegrees;
+    }
+
+    public void addListener(SamplingModeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(SamplingModeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return the current sampling mode.
+     */
+    public synchronized SamplingMode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the sampling interval for the current mode, in milliseconds.
+     */
+    public synchronized long getIntervalMillis() {
+        return SamplingMode.STATIONARY == mode ? stationaryIntervalMillis : movingIntervalMillis;
+    }
+
+    /**
+     * Gives the policy a new fix, which might change the sampling mode.
+     *
+     * @param location the fix, which must have a timestamp.
+     * @return the sampling mode after the fix.
+     */
+    public SamplingMode update(Location location) {
+        SamplingMode newMode;
+        long intervalMillis;
+        synchronized (this) {
+            newMode = evaluate(location);
+            if (newMode == mode) {
+                return mode;
+            }
+            mode = newMode;
+            intervalMillis = getIntervalMillis();
+        }
+        for (SamplingModeListener listener : listeners) {
+            listener.samplingModeChanged(newMode, intervalMillis);
+        }
+        return newMode;
+    }
+
+    /**
+     * Forgets all fixes and returns to MOVING mode, notifying listeners if the mode changes.
+     */
+    public void reset() {
+        long intervalMillis;
+        synchronized (this) {
+            anchor = null;
+            previous = null;
+            previousHeading = Double.NaN;
+            if (SamplingMode.MOVING == mode) {
+                return;
+            }
+            mode = SamplingMode.MOVING;
+            intervalMillis = movingIntervalMillis;
+        }
+        for (SamplingModeListener listener : listeners) {
+            listener.samplingModeChanged(SamplingMode.MOVING, intervalMillis);
+        }
+    }
+
+    private SamplingMode evaluate(Location location) {
+        long time = location.getTimestamp().getTimeInMillis();
+        boolean moving = false;
+        if (null != previous) {
+            double distance = calculateDistance(previous, location);
+            long dt = time - previous.getTimestamp().getTimeInMillis();
+            // Moves within the stationary radius could be GPS jitter, so they say nothing about speed or course
+            if (distance > stationaryRadiusMeters) {
+                if (0 < dt && distance / (dt / 1000.0) > movingSpeed) {
+                    moving = true;
+                }
+                double heading = calculateBearing(previous, location);
+                if (0 < headingChangeDegrees && !Double.isNaN(previousHeading)) {
+                    double turn = Math.abs(heading - previousHeading) % 360;
+                    if (Math.min(turn, 360 - turn) > headingChangeDegrees) {
+                        moving = true;
+                    }
+                }
+                previousHeading = heading;
+            }
+        }
+        previous = location;
+
+        if (null == anchor || moving || calculateDistance(anchor, location) > stationaryRadiusMeters) {
+            anchor = location;
+            return SamplingMode.MOVING;
+        }
+        if (SamplingMode.STATIONARY == mode || time - anchor.getTimestamp().getTimeInMillis() >= stationaryDelayMillis) {
+            return SamplingMode.STATIONARY;
+        }
+        return SamplingMode.MOVING;
+    }
+
+    private static double calculateDistance(Location from, Location to) {
+        return SpeedHeadingEstimator.calculateDistance(from.getLongitude(), from.getLatitude(), to.getLongitude(), to.getLatitude());
+    }
+
+    private static double calculateBearing(Location from, Location to) {
+        return StreamingGpxReader.calculateBearing(from.getLongitude(), from.getLatitude(), to.getLongitude(), to.getLatitude());
+    }
+
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+/**
+ * An ElevationRaster whose values are held in a float array. Use it for small or synthetic
+ * elevation models, such as in tests.
+ */
+public class ArrayElevationRaster implements ElevationRaster {
+
+    private final int columnCount;
+    private final int rowCount;
+    private final double minX;
+    private final double maxY;
+    private final double cellWidth;
+    private final double cellHeight;
+    private final int wkid;
+    private final float[] values;
+
+    /**
+     * Creates a raster.
+     *
+     * @param columnCount the number of columns.
+     * @param rowCount    the number of rows.
+     * @param minX        the X coordinate of the western edge.
+     * @param maxY        the Y coordinate of the northern edge.
+     * @param cellWidth   the width of a cell.
+     * @param cellHeight  the height of a cell.
+     * @param wkid        the WKID of the raster's spatial reference, or 0 if not known.
+     * @param values      the elevations in row-major order, with NaN for no data. The array is
+     *                    used, not copied.
+     */
+    public ArrayElevationRaster(int columnCount, int rowCount, double minX, double maxY,
+                                double cellWidth, double cellHeight, int wkid, float[] values) {
+        if (values.length != columnCount * rowCount) {
+            throw new IllegalArgumentException("Expected " + (columnCount * rowCount) + " values but got " + values.length);
+        }
+        this.columnCount = columnCount;
+        this.rowCount = rowCount;
+        this.minX = minX;
+        this.maxY = maxY;
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        this.wkid = wkid;
+        this.values = values;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public double getMinX() {
+        return minX;
+    }
+
+    @Override
+    public double getMaxY() {
+        return maxY;
+    }
+
+    @Override
+    public double getCellWidth() {
+        return cellWidth;
+    }
+
+    @Override
+    public double getCellHeight() {
+        return cellHeight;
+    }
+
+    @Override
+    public int getWkid() {
+        return wkid;
+    }
+
+    @Override
+    public double getValue(int column, int row) {
+        if (0 > column || columnCount <= column || 0 > row || rowCount <= row) {
+            return Double.NaN;
+        }
+        return values[row * columnCount + column];
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release
+    }
+
+}
@@ -0,0 +1,353 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import com.esri.squadleader.util.ProgressListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A cumulative viewshed: for each cell, the number of observers that can see it. This shows the
+ * coverage of a team and, more importantly, the gaps in it.
+ * <p/>
+ * The individual viewsheds are calculated in parallel on an ExecutorService. The per-observer
+ * results are kept, so that when update is called again, only observers that are new, that moved to
+ * a different cell, or that were removed are recalculated, and their old and new viewsheds are
+ * subtracted from and added to the running counts. Each kept viewshed covers only its observer's
+ * analysis radius, and the number of observers is limited so that the kept viewsheds, the running
+ * counts and the output stay within a byte limit; without an analysis radius, each viewshed and
+ * the counts cover the whole raster, so few observers fit.
+ * <p/>
+ * CumulativeViewshed is thread-safe, but update calls are serialized.
+ */
+public class CumulativeViewshed {
+
+    /**
+     * The output value of a cell that no observer can see.
+     */
+    public static final byte GAP = 0;
+
+    /**
+     * The output value of a cell that is outside every observer's analysis area or has no
+     * elevation.
+     */
+    public static final byte NO_DATA = (byte) 255;
+
+    /**
+     * The largest observer count that the output can represent. Cells seen by more observers than
+     * this have this value.
+     */
+    public static final int MAX_COUNT = 254;
+
+    /**
+     * The bytes used for each cell of the frame: a short for each of the two running counts and a
+     * byte of output.
+     */
+    private static final int BYTES_PER_FRAME_CELL = 5;
+
+    private static class ObserverViewshed {
+        final int column;
+        final int row;
+        final ViewshedGrid grid;
+        final int columnOffset;
+        final int rowOffset;
+
+        ObserverViewshed(int column, int row, ViewshedGrid grid, ElevationRaster raster) {
+            this.column = column;
+            this.row = row;
+            this.grid = grid;
+            columnOffset = (int) Math.round((grid.getMinX() - raster.getMinX()) / raster.getCellWidth());
+            rowOffset = (int) Math.round((raster.getMaxY() - grid.getMaxY()) / raster.getCellHeight());
+        }
+    }
+
+    private final ViewshedCalculator calculator;
+    private final ElevationRaster raster;
+    private final ExecutorService executor;
+    private final long maxBytes;
+    private final HashMap<String, ObserverViewshed> observerViewsheds = new HashMap<String, ObserverViewshed>();
+    private double observerHeight = Double.NaN;
+    private double maxRadius = Double.NaN;
+    private int frameColumnMin = 0;
+    private int frameRowMin = 0;
+    private int frameWidth = 0;
+    private int frameHeight = 0;
+    private short[] visibleCounts = null;
+    private short[] analyzedCounts = null;
+    private int ignoredObserverCount = 0;
+
+    /**
+     * Creates an empty cumulative viewshed.
+     *
+     * @param calculator the calculator for the individual viewsheds.
+     * @param executor   the executor on which to calculate individual viewsheds in parallel. A
+     *                   fixed thread pool with one thread per core is a good choice.
+     * @param maxBytes   the approximate maximum number of bytes of per-observer viewsheds, running
+     *                   counts and output. At least one observer is always included.
+     */
+    public CumulativeViewshed(ViewshedCalculator calculator, ExecutorService executor, long maxBytes) {
+        this.calculator = calculator;
+        this.raster = calculator.getRaster();
+        this.executor = executor;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the number of observers currently included.
+     */
+    public synchronized int getObserverCount() {
+        return observerViewsheds.size();
+    }
+
+    /**
+     * @return the number of observers that the last update left out because their viewsheds would
+     * not fit in the byte limit.
+     */
+    public synchronized int getIgnoredObserverCount() {
+        return ignoredObserverCount;
+    }
+
+    /**
+     * Returns the number of observers whose viewsheds fit in the byte limit, together with the
+     * running counts and output for a frame as large as the union of their viewsheds can be.
+     *
+     * @param maxRadius the analysis radius, or 0 or less for the whole raster.
+     * @return the number of observers, at least 1.
+     */
+    public int getMaxObserverCount(double maxRadius) {
+        long rasterCells = (long) raster.getColumnCount() * raster.getRowCount();
+        long columns = raster.getColumnCount();
+        long rows = raster.getRowCount();
+        if (0 < maxRadius) {
+            columns = Math.min(columns, 2 * (long) Math.ceil(maxRadius / raster.getCellWidth()) + 1);
+            rows = Math.min(rows, 2 * (long) Math.ceil(maxRadius / raster.getCellHeight()) + 1);
+        }
+        long viewshedCells = Math.max(1, columns * rows);
+        // While the viewsheds together cover less than the raster, the frame can be as large as
+        // all of them; after that, it is at most the whole raster
+        long count = Math.min(maxBytes / ((1 + BYTES_PER_FRAME_CELL) * viewshedCells), rasterCells / viewshedCells);
+        long wholeFrameCount = (maxBytes - BYTES_PER_FRAME_CELL * rasterCells) / viewshedCells;
+        if (wholeFrameCount * viewshedCells > rasterCells) {
+            count = Math.max(count, wholeFrameCount);
+        }
+        // The running counts are shorts
+        return (int) Math.max(1, Math.min(Short.MAX_VALUE, count));
+    }
+
+    /**
+     * Updates the cumulative viewshed for a new set of observers and returns the result. Only
+     * observers that are new or have moved to a different cell are recalculated, unless the
+     * observer height or analysis radius changed, in which case every observer is recalculated.
+     * Observers outside the elevation raster are ignored, as are the observers beyond
+     * getMaxObserverCount, which are chosen by ID so that the same observers are left out from one
+     * update to the next.
+     * <p/>
+     * If the calling thread is interrupted, the running calculations are cancelled and the
+     * cumulative viewshed is left as it was.
+     *
+     * @param observers      observer locations, keyed by an ID such as a position report's
+     *                       message ID, as {x, y} in the raster's spatial reference.
+     * @param observerHeight the observers' height above the ground.
+     * @param maxRadius      the analysis radius for each observer, or 0 or less for the whole
+     *                       raster.
+     * @param listener       a listener for progress, in observers calculated, or null.
+     * @return a grid in which each cell is the number of observers that can see it (GAP if none,
+     * at most MAX_COUNT), or NO_DATA. Returns null if there are no observers.
+     * @throws InterruptedException if the calling thread is interrupted.
+     * @throws ExecutionException   if an individual viewshed calculation fails.
+     */
+    public synchronized ViewshedGrid update(Map<String, double[]> observers, double observerHeight,
+                                            double maxRadius, ProgressListener listener) throws InterruptedException, ExecutionException {
+        final boolean recalculateAll = observerHeight != this.observerHeight || maxRadius != this.maxRadius;
+
+        // Leave out the observers that do not fit in the byte limit
+        final int maxObserverCount = getMaxObserverCount(maxRadius);
+        final int ignoredCount = Math.max(0, observers.size() - maxObserverCount);
+        if (0 < ignoredCount) {
+            List<String> ids = new ArrayList<String>(observers.keySet());
+            Collections.sort(ids);
+            HashMap<String, double[]> included = new HashMap<String, double[]>();
+            for (String id : ids.subList(0, maxObserverCount)) {
+                included.put(id, observers.get(id));
+            }
+            observers = included;
+        }
+
+        // Find the observers to add, move, and remove
+        final HashMap<String, int[]> toCalculate = new HashMap<String, int[]>();
+        for (Map.Entry<String, double[]> entry : observers.entrySet()) {
+            int column = (int) Math.floor((entry.getValue()[0] - raster.getMinX()) / raster.getCellWidth());
+            int row = (int) Math.floor((raster.getMaxY() - entry.getValue()[1]) / raster.getCellHeight());
+            ObserverViewshed existing = observerViewsheds.get(entry.getKey());
+            if (recalculateAll || null == existing || existing.column != column || existing.row != row) {
+                toCalculate.put(entry.getKey(), new int[]{column, row});
+            }
+        }
+
+        // Calculate new viewsheds in parallel
+        final HashMap<String, ObserverViewshed> calculated = calculateAll(toCalculate, observerHeight, maxRadius, listener);
+
+        // Apply the changes. Nothing is modified before this point, so an interruption above
+        // leaves the cumulative viewshed unchanged.
+        final HashMap<String, ObserverViewshed> removed = new HashMap<String, ObserverViewshed>();
+        Iterator<Map.Entry<String, ObserverViewshed>> iterator = observerViewsheds.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, ObserverViewshed> entry = iterator.next();
+            if (!observers.containsKey(entry.getKey()) || toCalculate.containsKey(entry.getKey())) {
+                removed.put(entry.getKey(), entry.getValue());
+                iterator.remove();
+            }
+        }
+        observerViewsheds.putAll(calculated);
+        this.observerHeight = observerHeight;
+        this.maxRadius = maxRadius;
+        ignoredObserverCount = ignoredCount;
+
+        if (observerViewsheds.isEmpty()) {
+            visibleCounts = null;
+            analyzedCounts = null;
+            return null;
+        }
+
+        if (setFrame() || null == visibleCounts) {
+            visibleCounts = new short[frameWidth * frameHeight];
+            analyzedCounts = new short[frameWidth * frameHeight];
+            for (ObserverViewshed viewshed : observerViewsheds.values()) {
+                accumulate(viewshed, 1);
+            }
+        } else {
+            for (ObserverViewshed viewshed : removed.values()) {
+                accumulate(viewshed, -1);
+            }
+            for (ObserverViewshed viewshed : calculated.values()) {
+                accumulate(viewshed, 1);
+            }
+        }
+
+        byte[] values = new byte[frameWidth * frameHeight];
+        for (int i = 0; i < values.length; i++) {
+            if (0 == analyzedCounts[i]) {
+                values[i] = NO_DATA;
+            } else {
+                values[i] = (byte) Math.min(MAX_COUNT, visibleCounts[i]);
+            }
+        }
+        return new ViewshedGrid(frameWidth, frameHeight,
+                raster.getMinX() + frameColumnMin * raster.getCellWidth(),
+                raster.getMaxY() - frameRowMin * raster.getCellHeight(),
+                raster.getCellWidth(), raster.getCellHeight(), raster.getWkid(), values);
+    }
+
+    private HashMap<String, ObserverViewshed> calculateAll(Map<String, int[]> toCalculate, final double observerHeight,
+                                                           final double maxRadius, ProgressListener listener) throws InterruptedException, ExecutionException {
+        final HashMap<String, ObserverViewshed> calculated = new HashMap<String, ObserverViewshed>();
+        final CompletionService<Object[]> completionService = new ExecutorCompletionService<Object[]>(executor);
+        final List<Future<Object[]>> futures = new ArrayList<Future<Object[]>>();
+        for (final Map.Entry<String, int[]> entry : toCalculate.entrySet()) {
+            futures.add(completionService.submit(new Callable<Object[]>() {
+                @Override
+                public Object[] call() throws Exception {
+                    int column = entry.getValue()[0];
+                    int row = entry.getValue()[1];
+                    double x = raster.getMinX() + (column + 0.5) * raster.getCellWidth();
+                    double y = raster.getMaxY() - (row + 0.5) * raster.getCellHeight();
+                    try {
+                        ViewshedGrid grid = calculator.calculate(x, y, observerHeight, maxRadius, null);
+                        return new Object[]{entry.getKey(), new ObserverViewshed(column, row, grid, raster)};
+                    } catch (IllegalArgumentException e) {
+                        // The observer is outside the raster
+                        return new Object[]{entry.getKey(), null};
+                    }
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                Object[] result = completionService.take().get();
+                if (null != result[1]) {
+                    calculated.put((String) result[0], (ObserverViewshed) result[1]);
+                }
+                if (null != listener) {
+                    listener.onProgress(i + 1, futures.size());
+                }
+            }
+        } finally {
+            for (Future<Object[]> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return calculated;
+    }
+
+    /**
+     * Sets the frame to the union of the observers' viewsheds.
+     *
+     * @return true if the frame changed.
+     */
+    private boolean setFrame() {
+        int columnMin = Integer.MAX_VALUE;
+        int rowMin = Integer.MAX_VALUE;
+        int columnMax = Integer.MIN_VALUE;
+        int rowMax = Integer.MIN_VALUE;
+        for (ObserverViewshed viewshed : observerViewsheds.values()) {
+            columnMin = Math.min(columnMin, viewshed.columnOffset);
+            rowMin = Math.min(rowMin, viewshed.rowOffset);
+            columnMax = Math.max(columnMax, viewshed.columnOffset + viewshed.grid.getColumnCount() - 1);
+            rowMax = Math.max(rowMax, viewshed.rowOffset + viewshed.grid.getRowCount() - 1);
+        }
+        int width = columnMax - columnMin + 1;
+        int height = rowMax - rowMin + 1;
+        if (columnMin == frameColumnMin && rowMin == frameRowMin && width == frameWidth && height == frameHeight) {
+            return false;
+        }
+        frameColumnMin = columnMin;
+        frameRowMin = rowMin;
+        frameWidth = width;
+        frameHeight = height;
+        return true;
+    }
+
+    private void accumulate(ObserverViewshed viewshed, int sign) {
+        ViewshedGrid grid = viewshed.grid;
+        byte[] values = grid.getValues();
+        int columnCount = grid.getColumnCount();
+        for (int row = 0; row < grid.getRowCount(); row++) {
+            int frameIndex = (viewshed.rowOffset - frameRowMin + row) * frameWidth + viewshed.columnOffset - frameColumnMin;
+            int gridIndex = row * columnCount;
+            for (int column = 0; column < columnCount; column++, frameIndex++, gridIndex++) {
+                byte value = values[gridIndex];
+                if (ViewshedCalculator.NO_DATA != value) {
+                    analyzedCounts[frameIndex] += sign;
+                    if (ViewshedCalculator.VISIBLE == value) {
+                        visibleCounts[frameIndex] += sign;
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Extrapolates the positions of moving units between their reports. Each report gives a unit's
+ * position at the time it arrived, and the unit's velocity is estimated from its last two reports.
+ * Between reports, the unit is placed where that velocity would have taken it, for at most a few
+ * report intervals, after which it is held where the extrapolation stopped until the next report.
+ * <p/>
+ * Velocities are smoothed from report to report, and reports that arrive too close together to
+ * give a trustworthy velocity keep the previous velocity. Positions are in any planar units, such
+ * as the map's units.
+ *
+ * @param <K> the type of the unit IDs.
+ */
+public class DeadReckoningTracker<K> {
+
+    /**
+     * Receives extrapolated positions.
+     */
+    public interface PositionVisitor<K> {
+
+        /**
+         * Called for a unit whose extrapolated position has moved.
+         *
+         * @param id the unit ID.
+         * @param x  the extrapolated X coordinate.
+         * @param y  the extrapolated Y coordinate.
+         */
+        void visit(K id, double x, double y);
+
+    }
+
+    private static class Track {
+        double x;
+        double y;
+        long time;
+        long interval = 0;
+        double vx = 0;
+        double vy = 0;
+        boolean hasVelocity = false;
+        double drawnX;
+        double drawnY;
+    }
+
+    /**
+     * How much of each new velocity estimate is blended into the smoothed velocity.
+     */
+    private static final double SMOOTHING = 0.5;
+
+    private final HashMap<K, Track> tracks = new HashMap<K, Track>();
+    private final long minReportGapMillis;
+    private final long maxExtrapolationMillis;
+    private final int maxIntervalsExtrapolated;
+    private final double minMove;
+
+    /**
+     * Creates a tracker.
+     *
+     * @param minReportGapMillis       reports closer together than this give no new velocity.
+     * @param maxExtrapolationMillis   the longest time past a report to extrapolate.
+     * @param maxIntervalsExtrapolated the most report intervals past a report to extrapolate.
+     * @param minMove                  how far an extrapolated position must move from where it was
+     *                                 last visited before it is visited again.
+     */
+    public DeadReckoningTracker(long minReportGapMillis, long maxExtrapolationMillis, int maxIntervalsExtrapolated, double minMove) {
+        this.minReportGapMillis = minReportGapMillis;
+        this.maxExtrapolationMillis = maxExtrapolationMillis;
+        this.maxIntervalsExtrapolated = maxIntervalsExtrapolated;
+        this.minMove = minMove;
+    }
+
+    /**
+     * Records a report of a unit's position.
+     *
+     * @param id         the unit ID.
+     * @param x          the reported X coordinate.
+     * @param y          the reported Y coordinate.
+     * @param timeMillis the time of the report.
+     */
+    public void update(K id, double x, double y, long timeMillis) {
+        Track track = tracks.get(id);
+        if (null == track) {
+            track = new Track();
+            tracks.put(id, track);
+        } else {
+            long dt = timeMillis - track.time;
+            if (dt < minReportGapMillis) {
+                // Too close to the last report for a trustworthy velocity, so keep the old one
+                setPosition(track, x, y, timeMillis);
+                return;
+            }
+            double vx = (x - track.x) / dt;
+            double vy = (y - track.y) / dt;
+            if (track.hasVelocity) {
+                track.vx += SMOOTHING * (vx - track.vx);
+                track.vy += SMOOTHING * (vy - track.vy);
+            } else {
+                track.vx = vx;
+                track.vy = vy;
+                track.hasVelocity = true;
+            }
+            track.interval = dt;
+        }
+        setPosition(track, x, y, timeMillis);
+    }
+
+    private static void setPosition(Track track, double x, double y, long timeMillis) {
+        track.x = x;
+        track.y = y;
+        track.time = timeMillis;
+        track.drawnX = x;
+        track.drawnY = y;
+    }
+
+    /**
+     * Stops tracking a unit.
+     *
+     * @param id the unit ID.
+     * @return true if the unit was tracked.
+     */
+    public boolean remove(K id) {
+        return null != tracks.remove(id);
+    }
+
+    /**
+     * Stops tracking all units.
+     */
+    public void clear() {
+        tracks.clear();
+    }
+
+    /**
+     * @return the number of units tracked.
+     */
+    public int size() {
+        return tracks.size();
+    }
+
+    /**
+     * Extrapolates every unit to a time and visits the units that have moved far enough since
+     * they were last visited or reported.
+     *
+     * @param timeMillis the time to extrapolate to.
+     * @param visitor    the visitor.
+     * @return the number of units visited.
+     */
+    public int extrapolate(long timeMillis, PositionVisitor<K> visitor) {
+        int visited = 0;
+        double minMoveSquared = minMove * minMove;
+        for (Map.Entry<K, Track> entry : tracks.entrySet()) {
+            Track track = entry.getValue();
+            if (!track.hasVelocity) {
+                continue;
+            }
+            long dt = Math.min(timeMillis - track.time,
+                    Math.min(maxExtrapolationMillis, track.interval * maxIntervalsExtrapolated));
+            if (0 >= dt) {
+                continue;
+            }
+            double x = track.x + track.vx * dt;
+            double y = track.y + track.vy * dt;
+            double dx = x - track.drawnX;
+            double dy = y - track.drawnY;
+            if (dx * dx + dy * dy >= minMoveSquared && (0 != dx || 0 != dy)) {
+                track.drawnX = x;
+                track.drawnY = y;
+                visitor.visit(entry.getKey(), x, y);
+                visited++;
+            }
+        }
+        return visited;
+    }
+
+}
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The terrain profile along a path of vertices. Each segment of the path is densified to samples
+ * no farther apart than a sample spacing, and the elevations of the samples come from an
+ * ElevationSampler.
+ * <p/>
+ * Sampled segments are cached by their endpoints, so that when the path changes, only the segments
+ * that changed are sampled again. Moving one vertex, for example, samples at most the two segments
+ * that meet at that vertex.
+ * <p/>
+ * ElevationProfile is not thread-safe.
+ */
+public class ElevationProfile {
+
+    /**
+     * The most samples taken along one segment, no matter how long the segment is.
+     */
+    public static final int MAX_SAMPLES_PER_SEGMENT = 2000;
+
+    private static class Segment {
+        final double x1;
+        final double y1;
+        final double x2;
+        final double y2;
+
+        Segment(double x1, double y1, double x2, double y2) {
+            this.x1 = x1;
+            this.y1 = y1;
+            this.x2 = x2;
+            this.y2 = y2;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Segment)) {
+                return false;
+            }
+            Segment other = (Segment) o;
+            return x1 == other.x1 && y1 == other.y1 && x2 == other.x2 && y2 == other.y2;
+        }
+
+        @Override
+        public int hashCode() {
+            long bits = Double.doubleToLongBits(x1);
+            bits = 31 * bits + Double.doubleToLongBits(y1);
+            bits = 31 * bits + Double.doubleToLongBits(x2);
+            bits = 31 * bits + Double.doubleToLongBits(y2);
+            return (int) (bits ^ (bits >>> 32));
+        }
+    }
+
+    private final ElevationSampler sampler;
+    private final double sampleSpacing;
+    private HashMap<Segment, double[]> segmentElevations = new HashMap<Segment, double[]>();
+    private double[] distances = new double[0];
+    private double[] elevations = new double[0];
+    private int segmentsSampled = 0;
+
+    /**
+     * Creates an empty profile.
+     *
+     * @param sampler       the elevation sampler.
+     * @param sampleSpacing the greatest distance between samples, in the sampler's spatial
+     *                      reference, or 0 or less to use the smaller dimension of a raster cell.
+     */
+    public ElevationProfile(ElevationSampler sampler, double sampleSpacing) {
+        this.sampler = sampler;
+        if (0 >= sampleSpacing) {
+            ElevationRaster raster = sampler.getRaster();
+            sampleSpacing = Math.min(raster.getCellWidth(), raster.getCellHeight());
+        }
+        this.sampleSpacing = sampleSpacing;
+    }
+
+    /**
+     * Sets the path and updates the profile, sampling only the segments that are not already
+     * cached. Segments that are no longer in the path are dropped from the cache.
+     *
+     * @param vertices the path's vertices as {x, y} pairs in the sampler's spatial reference.
+     */
+    public void setPath(List<double[]> vertices) {
+        HashMap<Segment, double[]> newSegmentElevations = new HashMap<Segment, double[]>();
+        ArrayList<double[]> segments = new ArrayList<double[]>();
+        segmentsSampled = 0;
+        int sampleCount = 0;
+        for (int i = 1; i < vertices.size(); i++) {
+            double[] from = vertices.get(i - 1);
+            double[] to = vertices.get(i);
+            Segment segment = new Segment(from[0], from[1], to[0], to[1]);
+            double[] segmentSamples = newSegmentElevations.get(segment);
+            if (null == segmentSamples) {
+                segmentSamples = segmentElevations.get(segment);
+                if (null == segmentSamples) {
+                    segmentSamples = sample(segment);
+                    segmentsSampled++;
+                }
+                newSegmentElevations.put(segment, segmentSamples);
+            }
+            segments.add(segmentSamples);
+            sampleCount += segmentSamples.length - (0 == sampleCount ? 0 : 1);
+        }
+        segmentElevations = newSegmentElevations;
+
+        // Join the segments, sharing each segment's first sample with the previous segment's last
+        distances = new double[sampleCount];
+        elevations = new double[sampleCount];
+        int index = 0;
+        double distance = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            double[] from = vertices.get(i);
+            double[] to = vertices.get(i + 1);
+            double length = Math.hypot(to[0] - from[0], to[1] - from[1]);
+            double[] segmentSamples = segments.get(i);
+            for (int j = 0 == index ? 0 : 1; j < segmentSamples.length; j++) {
+                distances[index] = distance + length * j / (segmentSamples.length - 1);
+                elevations[index] = segmentSamples[j];
+                index++;
+            }
+            distance += length;
+        }
+    }
+
+    private double[] sample(Segment segment) {
+        double length = Math.hypot(segment.x2 - segment.x1, segment.y2 - segment.y1);
+        int intervals = (int) Math.min(MAX_SAMPLES_PER_SEGMENT - 1, Math.max(1, Math.ceil(length / sampleSpacing)));
+        double[] points = new double[2 * (intervals + 1)];
+        for (int i = 0; i <= intervals; i++) {
+            double t = (double) i / intervals;
+            points[2 * i] = segment.x1 + t * (segment.x2 - segment.x1);
+            points[2 * i + 1] = segment.y1 + t * (segment.y2 - segment.y1);
+        }
+        return sampler.getElevations(points);
+    }
+
+    /**
+     * @return the distance of each sample along the path, starting at 0.
+     */
+    public double[] getDistances() {
+        return distances;
+    }
+
+    /**
+     * @return the elevation of each sample, or NaN for a sample outside the elevation dataset.
+     */
+    public double[] getElevations() {
+        return elevations;
+    }
+
+    /**
+     * @return the number of segments sampled by the last call to setPath, as opposed to read from
+     * the cache.
+     */
+    public int getSegmentsSampled() {
+        return segmentsSampled;
+    }
+
+}
@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import com.esri.squadleader.util.ProgressListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Downsampled copies of an ElevationRaster, for quick, approximate analysis. Each level halves the
+ * resolution of the level before it, down to a coarsest level no larger than COARSEST_SIZE cells on
+ * a side. Each coarse cell takes the maximum elevation of the cells it covers, so that ridges are
+ * not lost and a coarse viewshed errs toward showing terrain as hidden.
+ * <p/>
+ * Only levels small enough to hold in memory are kept. A pyramid can be written to a file and read
+ * back, so that it is built only once per elevation dataset.
+ */
+public class ElevationPyramid {
+
+    /**
+     * The maximum number of columns and rows in the coarsest level.
+     */
+    public static final int COARSEST_SIZE = 256;
+
+    /**
+     * The maximum number of cells in the finest level kept in memory.
+     */
+    public static final int MAX_LEVEL_CELLS = 4 * 1024 * 1024;
+
+    private static final int FILE_FORMAT_VERSION = 1;
+
+    private final ElevationRaster base;
+    private final List<ElevationRaster> levels;
+    private final List<Integer> factors;
+
+    private ElevationPyramid(ElevationRaster base, List<ElevationRaster> levels, List<Integer> factors) {
+        this.base = base;
+        this.levels = levels;
+        this.factors = factors;
+    }
+
+    /**
+     * Builds a pyramid by reading every cell of a raster once. This can take a long time on a
+     * large raster, so call it on a background thread.
+     *
+     * @param base     the full-resolution raster.
+     * @param listener a listener for progress, in rows of the base raster, or null.
+     * @return the pyramid.
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    public static ElevationPyramid build(ElevationRaster base, ProgressListener listener) throws InterruptedException {
+        final int baseColumns = base.getColumnCount();
+        final int baseRows = base.getRowCount();
+        ArrayList<ElevationRaster> levels = new ArrayList<ElevationRaster>();
+        ArrayList<Integer> factors = new ArrayList<Integer>();
+        if (baseColumns <= COARSEST_SIZE && baseRows <= COARSEST_SIZE) {
+            return new ElevationPyramid(base, levels, factors);
+        }
+
+        // Reduce the base directly to the finest level that fits in memory
+        int factor = 2;
+        while ((long) divideRoundingUp(baseColumns, factor) * divideRoundingUp(baseRows, factor) > MAX_LEVEL_CELLS) {
+            factor *= 2;
+        }
+        int columns = divideRoundingUp(baseColumns, factor);
+        int rows = divideRoundingUp(baseRows, factor);
+        float[] values = new float[columns * rows];
+        Arrays.fill(values, Float.NaN);
+        for (int baseRow = 0; baseRow < baseRows; baseRow++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException("Pyramid build cancelled");
+            }
+            int rowOffset = (baseRow / factor) * columns;
+            for (int baseColumn = 0; baseColumn < baseColumns; baseColumn++) {
+                double value = base.getValue(baseColumn, baseRow);
+                int index = rowOffset + baseColumn / factor;
+                if (!Double.isNaN(value) && !(value <= values[index])) {
+                    values[index] = (float) value;
+                }
+            }
+            if (null != listener && 0 == baseRow % 256) {
+                listener.onProgress(baseRow, baseRows);
+            }
+        }
+        ArrayElevationRaster level = createLevel(base, factor, columns, rows, values);
+        levels.add(level);
+        factors.add(factor);
+
+        // Halve each level until the coarsest is small enough
+        while (columns > COARSEST_SIZE || rows > COARSEST_SIZE) {
+            int coarseColumns = divideRoundingUp(columns, 2);
+            int coarseRows = divideRoundingUp(rows, 2);
+            float[] coarseValues = new float[coarseColumns * coarseRows];
+            Arrays.fill(coarseValues, Float.NaN);
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < columns; column++) {
+                    float value = values[row * columns + column];
+                    int index = (row / 2) * coarseColumns + column / 2;
+                    if (!Float.isNaN(value) && !(value <= coarseValues[index])) {
+                        coarseValues[index] = value;
+                    }
+                }
+            }
+            factor *= 2;
+            columns = coarseColumns;
+            rows = coarseRows;
+            values = coarseValues;
+            levels.add(createLevel(base, factor, columns, rows, values));
+            factors.add(factor);
+        }
+        if (null != listener) {
+            listener.onProgress(baseRows, baseRows);
+        }
+        return new ElevationPyramid(base, levels, factors);
+    }
+
+    private static int divideRoundingUp(int dividend, int divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+
+    private static ArrayElevationRaster createLevel(ElevationRaster base, int factor, int columns, int rows, float[] values) {
+        return new ArrayElevationRaster(columns, rows, base.getMinX(), base.getMaxY(),
+                base.getCellWidth() * factor, base.getCellHeight() * factor, base.getWkid(), values);
+    }
+
+    /**
+     * Reads a pyramid that write(...) wrote.
+     *
+     * @param file the pyramid file.
+     * @param base the full-resolution raster from which the pyramid was built.
+     * @param key  the key that was passed to write(...). If the file has a different key, this
+     *             method returns null.
+     * @return the pyramid, or null if the file is for a different key.
+     * @throws IOException if the file cannot be read.
+     */
+    public static ElevationPyramid read(File file, ElevationRaster base, String key) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            if (FILE_FORMAT_VERSION != buffer.getInt() || !key.equals(readString(buffer))) {
+                return null;
+            }
+            int levelCount = buffer.getInt();
+            ArrayList<ElevationRaster> levels = new ArrayList<ElevationRaster>();
+            ArrayList<Integer> factors = new ArrayList<Integer>();
+            for (int i = 0; i < levelCount; i++) {
+                int factor = buffer.getInt();
+                int columns = buffer.getInt();
+                int rows = buffer.getInt();
+                float[] values = new float[columns * rows];
+                buffer.asFloatBuffer().get(values);
+                buffer.position(buffer.position() + 4 * values.length);
+                levels.add(createLevel(base, factor, columns, rows, values));
+                factors.add(factor);
+            }
+            return new ElevationPyramid(base, levels, factors);
+        } catch (RuntimeException e) {
+            throw new IOException(file + " is not a valid pyramid file", e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes this pyramid's levels to a file.
+     *
+     * @param file the pyramid file.
+     * @param key  a key that identifies the base raster, such as its path and modification time.
+     * @throws IOException if the file cannot be written.
+     */
+    public void write(File file, String key) throws IOException {
+        byte[] keyBytes = key.getBytes("UTF-8");
+        long size = 4 + 4 + keyBytes.length + 4;
+        for (ElevationRaster level : levels) {
+            size += 12 + 4L * level.getColumnCount() * level.getRowCount();
+        }
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(size);
+            ByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size).order(ByteOrder.BIG_ENDIAN);
+            buffer.putInt(FILE_FORMAT_VERSION);
+            buffer.putInt(keyBytes.length);
+            buffer.put(keyBytes);
+            buffer.putInt(levels.size());
+            for (int i = 0; i < levels.size(); i++) {
+                ElevationRaster level = levels.get(i);
+                buffer.putInt(factors.get(i));
+                buffer.putInt(level.getColumnCount());
+                buffer.putInt(level.getRowCount());
+                for (int row = 0; row < level.getRowCount(); row++) {
+                    for (int column = 0; column < level.getColumnCount(); column++) {
+                        buffer.putFloat((float) level.getValue(column, row));
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * @return the full-resolution raster.
+     */
+    public ElevationRaster getBase() {
+        return base;
+    }
+
+    /**
+     * @return the number of downsampled levels, not counting the base. This is 0 if the base is
+     * already small.
+     */
+    public int getLevelCount() {
+        return levels.size();
+    }
+
+    /**
+     * Returns a downsampled level.
+     *
+     * @param index the level index, from 0 (the finest) to getLevelCount() - 1 (the coarsest).
+     * @return the level.
+     */
+    public ElevationRaster getLevel(int index) {
+        return levels.get(index);
+    }
+
+    /**
+     * Returns the number of base cells that one cell of a level spans in each direction.
+     *
+     * @param index the level index.
+     * @return the factor, a power of two.
+     */
+    public int getFactor(int index) {
+        return factors.get(index);
+    }
+
+}
@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import java.io.Closeable;
+
+/**
+ * A single-band grid of elevation values. Rows run from north to south and columns from west to
+ * east, and every cell has the same width and height in the raster's spatial reference.
+ * <p/>
+ * Implementations must allow getValue to be called from more than one thread at a time.
+ */
+public interface ElevationRaster extends Closeable {
+
+    /**
+     * @return the number of columns in the raster.
+     */
+    int getColumnCount();
+
+    /**
+     * @return the number of rows in the raster.
+     */
+    int getRowCount();
+
+    /**
+     * @return the X coordinate of the raster's western edge.
+     */
+    double getMinX();
+
+    /**
+     * @return the Y coordinate of the raster's northern edge.
+     */
+    double getMaxY();
+
+    /**
+     * @return the width of a cell in the raster's spatial reference.
+     */
+    double getCellWidth();
+
+    /**
+     * @return the height of a cell in the raster's spatial reference.
+     */
+    double getCellHeight();
+
+    /**
+     * @return the WKID of the raster's spatial reference, or 0 if it is not known.
+     */
+    int getWkid();
+
+    /**
+     * Returns the elevation of a cell.
+     *
+     * @param column the column index, starting at 0 on the western edge.
+     * @param row    the row index, starting at 0 on the northern edge.
+     * @return the elevation, or NaN if the cell has no data or lies outside the raster.
+     */
+    double getValue(int column, int row);
+
+}
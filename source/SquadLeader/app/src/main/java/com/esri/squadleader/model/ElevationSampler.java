@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import java.util.Arrays;
+
+/**
+ * Looks up terrain elevation at arbitrary points on an ElevationRaster by bilinear interpolation
+ * between the four nearest cell centers. Points within half a cell of the raster's edge use the
+ * nearest edge cells, and a neighbor with no data is left out of the interpolation.
+ * <p/>
+ * A lookup reads at most four cells, so with a memory-mapped raster such as GeoTiffElevationRaster
+ * it touches only the pages under the point. The batch method visits points in row order so that
+ * points near each other in the dataset share pages.
+ * <p/>
+ * ElevationSampler is thread-safe if its raster is.
+ */
+public class ElevationSampler {
+
+    private final ElevationRaster raster;
+
+    /**
+     * Creates an elevation sampler.
+     *
+     * @param raster the elevation raster.
+     */
+    public ElevationSampler(ElevationRaster raster) {
+        this.raster = raster;
+    }
+
+    /**
+     * @return the elevation raster that this sampler uses.
+     */
+    public ElevationRaster getRaster() {
+        return raster;
+    }
+
+    /**
+     * Returns the terrain elevation at a point.
+     *
+     * @param x the X coordinate in the raster's spatial reference.
+     * @param y the Y coordinate in the raster's spatial reference.
+     * @return the elevation, or NaN if the point is outside the raster or has no data around it.
+     */
+    public double getElevation(double x, double y) {
+        double column = (x - raster.getMinX()) / raster.getCellWidth();
+        double row = (raster.getMaxY() - y) / raster.getCellHeight();
+        if (!(0 <= column && column <= raster.getColumnCount() && 0 <= row && row <= raster.getRowCount())) {
+            return Double.NaN;
+        }
+        return interpolate(column - 0.5, row - 0.5);
+    }
+
+    /**
+     * Returns the terrain elevation at a batch of points.
+     *
+     * @param points the points as {x, y, x, y, ...} in the raster's spatial reference.
+     * @return one elevation per point. A point that is outside the raster or has no data around it
+     * gets NaN.
+     */
+    public double[] getElevations(double[] points) {
+        if (0 != points.length % 2) {
+            throw new IllegalArgumentException("Expected two coordinates per point but got " + points.length + " coordinates");
+        }
+        double[] elevations = new double[points.length / 2];
+        Arrays.fill(elevations, Double.NaN);
+
+        // Sort the points by row, keeping each point's index in the low 32 bits of its key
+        long[] order = new long[elevations.length];
+        int count = 0;
+        for (int i = 0; i < elevations.length; i++) {
+            double row = (raster.getMaxY() - points[2 * i + 1]) / raster.getCellHeight();
+            double column = (points[2 * i] - raster.getMinX()) / raster.getCellWidth();
+            if (0 <= column && column <= raster.getColumnCount() && 0 <= row && row <= raster.getRowCount()) {
+                order[count++] = ((long) row << 32) | i;
+            }
+        }
+        Arrays.sort(order, 0, count);
+
+        for (int j = 0; j < count; j++) {
+            int i = (int) order[j];
+            elevations[i] = getElevation(points[2 * i], points[2 * i + 1]);
+        }
+        return elevations;
+    }
+
+    /**
+     * Interpolates at a position measured in cells from the center of the northwest cell.
+     */
+    private double interpolate(double column, double row) {
+        int maxColumn = raster.getColumnCount() - 1;
+        int maxRow = raster.getRowCount() - 1;
+        int c0 = (int) Math.floor(column);
+        int r0 = (int) Math.floor(row);
+        double tx = column - c0;
+        double ty = row - r0;
+        int c1 = Math.min(c0 + 1, maxColumn);
+        int r1 = Math.min(r0 + 1, maxRow);
+        c0 = Math.max(c0, 0);
+        r0 = Math.max(r0, 0);
+        if (0 > column || c0 == c1) {
+            tx = 0;
+        }
+        if (0 > row || r0 == r1) {
+            ty = 0;
+        }
+
+        double sum = 0;
+        double weightSum = 0;
+        double weight = (1 - tx) * (1 - ty);
+        double value = raster.getValue(c0, r0);
+        if (0 < weight && !Double.isNaN(value)) {
+            sum += weight * value;
+            weightSum += weight;
+        }
+        weight = tx * (1 - ty);
+        value = raster.getValue(c1, r0);
+        if (0 < weight && !Double.isNaN(value)) {
+            sum += weight * value;
+            weightSum += weight;
+        }
+        weight = (1 - tx) * ty;
+        value = raster.getValue(c0, r1);
+        if (0 < weight && !Double.isNaN(value)) {
+            sum += weight * value;
+            weightSum += weight;
+        }
+        weight = tx * ty;
+        value = raster.getValue(c1, r1);
+        if (0 < weight && !Double.isNaN(value)) {
+            sum += weight * value;
+            weightSum += weight;
+        }
+        return 0 < weightSum ? sum / weightSum : Double.NaN;
+    }
+
+}
@@ -0,0 +1,707 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import android.os.SystemClock;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.esri.core.geodatabase.GeopackageFeatureTable;
+import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.GeometryEngine;
+import com.esri.core.geometry.MultiPath;
+import com.esri.core.geometry.MultiPoint;
+import com.esri.core.geometry.Point;
+import com.esri.core.geometry.Polygon;
+import com.esri.core.geometry.Polyline;
+import com.esri.core.geometry.SpatialReference;
+import com.esri.core.map.Feature;
+import com.esri.core.map.Field;
+import com.esri.squadleader.util.ProgressListener;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Imports features from GPX, CSV, or GeoJSON into a GeoPackage feature table. The input is read
+ * as a stream, and features are written in batches, each of which the GeoPackage writes in a
+ * single transaction, so that importing many thousands of features does not take thousands of
+ * separate commits.
+ * <p/>
+ * Input coordinates are assumed to be WGS 1984 longitude and latitude, which is what GPX and
+ * GeoJSON require, and are projected to the table's spatial reference. Input attributes are
+ * copied to table fields with the same name, ignoring case; other attributes are dropped.
+ */
+public class GeoPackageFeatureImporter {
+
+    /**
+     * An input format that GeoPackageFeatureImporter can read.
+     */
+    public enum Format {
+        GPX, CSV, GEOJSON;
+
+        /**
+         * Guesses the format of a file from its extension.
+         *
+         * @param filename the filename.
+         * @return the format, or null if the extension is not recognized.
+         */
+        public static Format fromFilename(String filename) {
+            String lower = filename.toLowerCase(Locale.US);
+            if (lower.endsWith(".gpx")) {
+                return GPX;
+            } else if (lower.endsWith(".csv") || lower.endsWith(".txt")) {
+                return CSV;
+            } else if (lower.endsWith(".geojson") || lower.endsWith(".json")) {
+                return GEOJSON;
+            } else {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The outcome of an import.
+     */
+    public static class ImportResult {
+        private final long importedCount;
+        private final long skippedCount;
+        private final long elapsedMillis;
+
+        ImportResult(long importedCount, long skippedCount, long elapsedMillis) {
+            this.importedCount = importedCount;
+            this.skippedCount = skippedCount;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * @return the number of features written to the table.
+         */
+        public long getImportedCount() {
+            return importedCount;
+        }
+
+        /**
+         * @return the number of input rows that could not be imported, for example because they
+         * had no usable geometry or did not match the table's geometry type.
+         */
+        public long getSkippedCount() {
+            return skippedCount;
+        }
+
+        /**
+         * @return how long the import took, in milliseconds.
+         */
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * @return the import throughput in features per second.
+         */
+        public double getRowsPerSecond() {
+            return 0 == elapsedMillis ? importedCount : importedCount * 1000.0 / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d features imported, %d skipped, %.0f rows/s",
+                    importedCount, skippedCount, getRowsPerSecond());
+        }
+    }
+
+    /**
+     * A listener that also receives the current throughput as an import runs.
+     */
+    public interface ImportProgressListener extends ProgressListener {
+
+        /**
+         * Called after each batch is written.
+         *
+         * @param rowsPerSecond the import throughput so far, in features per second.
+         */
+        void onThroughput(double rowsPerSecond);
+
+    }
+
+    private static final String TAG = GeoPackageFeatureImporter.class.getSimpleName();
+    private static final SpatialReference WGS84 = SpatialReference.create(SpatialReference.WKID_WGS84);
+    private static final int DEFAULT_BATCH_SIZE = 5000;
+    private static final String[] CSV_LONGITUDE_NAMES = {"lon", "long", "longitude", "lng", "x"};
+    private static final String[] CSV_LATITUDE_NAMES = {"lat", "latitude", "y"};
+
+    private final GeopackageFeatureTable table;
+    private final Map<String, Field> fieldsByLowerCaseName = new HashMap<String, Field>();
+    private final Geometry.Type geometryType;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private final List<Feature> batch = new ArrayList<Feature>();
+    private ProgressListener progressListener;
+    private long importedCount;
+    private long skippedCount;
+    private long startTime;
+
+    /**
+     * Creates an importer for a GeoPackage feature table.
+     *
+     * @param table the table that will receive the imported features. It must be editable.
+     */
+    public GeoPackageFeatureImporter(GeopackageFeatureTable table) {
+        this.table = table;
+        for (Field field : table.getFields()) {
+            fieldsByLowerCaseName.put(field.getName().toLowerCase(Locale.US), field);
+        }
+        this.geometryType = table.getGeometryType();
+    }
+
+    /**
+     * Sets the number of features to write in each transaction. The default is 5000.
+     *
+     * @param batchSize the batch size, which must be positive.
+     */
+    public void setBatchSize(int batchSize) {
+        if (0 >= batchSize) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Creates a task that imports features. Run the task on a background thread. The task closes
+     * the input stream when it finishes.
+     *
+     * @param inputStream      the input.
+     * @param format           the input format.
+     * @param progressListener a listener for progress updates, in features imported. The total is
+     *                         always -1 because the input is streamed. If the listener is an
+     *                         ImportProgressListener, it also receives throughput updates. May be
+     *                         null.
+     * @return a task whose result describes the import.
+     */
+    public FutureTask<ImportResult> importFeatures(final InputStream inputStream, final Format format, final ProgressListener progressListener) {
+        return new FutureTask<>(new Callable<ImportResult>() {
+            @Override
+            public ImportResult call() throws Exception {
+                synchronized (GeoPackageFeatureImporter.this) {
+                    GeoPackageFeatureImporter.this.progressListener = progressListener;
+                    importedCount = 0;
+                    skippedCount = 0;
+                    batch.clear();
+                    startTime = SystemClock.elapsedRealtime();
+                    try {
+                        switch (format) {
+                            case GPX:
+                                readGpx(inputStream);
+                                break;
+                            case CSV:
+                                readCsv(inputStream);
+                                break;
+                            case GEOJSON:
+                                readGeoJson(inputStream);
+                                break;
+                        }
+                        flush();
+                    } finally {
+                        batch.clear();
+                        GeoPackageFeatureImporter.this.progressListener = null;
+                        try {
+                            inputStream.close();
+                        } catch (IOException e) {
+                            Log.w(TAG, "Could not close input stream", e);
+                        }
+                    }
+                    ImportResult result = new ImportResult(importedCount, skippedCount, SystemClock.elapsedRealtime() - startTime);
+                    Log.i(TAG, "Import into " + table.getTableName() + ": " + result);
+                    return result;
+                }
+            }
+        });
+    }
+
+    private void addRow(Map<String, String> attributes, Geometry geometry) throws Exception {
+        if (Thread.interrupted()) {
+            throw new InterruptedException("Import into " + table.getTableName() + " was cancelled");
+        }
+        if (null == geometry || geometry.isEmpty() || !matchesGeometryType(geometry)) {
+            skippedCount++;
+            return;
+        }
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            Field field = fieldsByLowerCaseName.get(entry.getKey().toLowerCase(Locale.US));
+            if (null != field && null != entry.getValue() && field.isEditable()) {
+                Object value = convertValue(field, entry.getValue());
+                if (null != value) {
+                    values.put(field.getName(), value);
+                }
+            }
+        }
+        Geometry projected = GeometryEngine.project(geometry, WGS84, table.getSpatialReference());
+        batch.add(table.createNewFeature(values, projected));
+        if (batchSize <= batch.size()) {
+            flush();
+        }
+    }
+
+    private void flush() throws Exception {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long[] ids = table.addFeatures(batch);
+        GeoPackageReader.getInstance().updateSpatialIndex(table, ids, batch);
+        importedCount += batch.size();
+        batch.clear();
+        if (null != progressListener) {
+            progressListener.onProgress(importedCount, -1);
+            if (progressListener instanceof ImportProgressListener) {
+                long elapsed = SystemClock.elapsedRealtime() - startTime;
+                ((ImportProgressListener) progressListener).onThroughput(
+                        0 == elapsed ? importedCount : importedCount * 1000.0 / elapsed);
+            }
+        }
+    }
+
+    private boolean matchesGeometryType(Geometry geometry) {
+        if (null == geometryType) {
+            return true;
+        }
+        Geometry.Type type = geometry.getType();
+        switch (geometryType) {
+            case POINT:
+                return Geometry.Type.POINT == type;
+            case MULTIPOINT:
+                return Geometry.Type.POINT == type || Geometry.Type.MULTIPOINT == type;
+            case LINE:
+            case POLYLINE:
+                return Geometry.Type.POLYLINE == type;
+            case ENVELOPE:
+            case POLYGON:
+                return Geometry.Type.POLYGON == type;
+            default:
+                return true;
+        }
+    }
+
+    private static Object convertValue(Field field, String value) {
+        try {
+            switch (field.getFieldType()) {
+                case Field.esriFieldTypeSmallInteger:
+                case Field.esriFieldTypeInteger:
+                    return Integer.parseInt(value.trim());
+                case Field.esriFieldTypeSingle:
+                case Field.esriFieldTypeDouble:
+                    return Double.parseDouble(value.trim());
+                case Field.esriFieldTypeString:
+                    return value;
+                default:
+                    return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /*
+     * GPX
+     */
+
+    private void readGpx(InputStream inputStream) throws Exception {
+        final boolean pointTable = null == geometryType
+                || Geometry.Type.POINT == geometryType || Geometry.Type.MULTIPOINT == geometryType;
+        DefaultHandler handler = new DefaultHandler() {
+
+            private final Map<String, String> attributes = new HashMap<String, String>();
+            private final StringBuilder text = new StringBuilder();
+            private Point point = null;
+            private Polyline segment = null;
+            private final ArrayList<String> path = new ArrayList<String>();
+            private String trackName = null;
+            private boolean inPoint = false;
+
+            @Override
+            public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+                String name = getLocalName(localName, qName);
+                path.add(name);
+                text.setLength(0);
+                if ("wpt".equals(name) || "trkpt".equals(name) || "rtept".equals(name)) {
+                    inPoint = true;
+                    attributes.clear();
+                    try {
+                        point = new Point(Double.parseDouble(atts.getValue("lon")), Double.parseDouble(atts.getValue("lat")));
+                    } catch (RuntimeException e) {
+                        point = null;
+                    }
+                } else if (!pointTable && ("trkseg".equals(name) || "rte".equals(name))) {
+                    // A point table gets each point as a row, so it does not need the whole line
+                    segment = new Polyline();
+                }
+            }
+
+            @Override
+            public void characters(char[] ch, int start, int length) {
+                text.append(ch, start, length);
+            }
+
+            @Override
+            public void endElement(String uri, String localName, String qName) throws SAXException {
+                String name = getLocalName(localName, qName);
+                path.remove(path.size() - 1);
+                String parent = path.isEmpty() ? null : path.get(path.size() - 1);
+                try {
+                    if ("wpt".equals(name) || "trkpt".equals(name) || "rtept".equals(name)) {
+                        inPoint = false;
+                        if (null != point) {
+                            if (null != segment && !"wpt".equals(name)) {
+                                if (segment.isEmpty()) {
+                                    segment.startPath(point);
+                                } else {
+                                    segment.lineTo(point);
+                                }
+                            }
+                            if (pointTable) {
+                                if (null != trackName && !attributes.containsKey("name")) {
+                                    attributes.put("name", trackName);
+                                }
+                                addRow(attributes, point);
+                            }
+                        } else {
+                            skippedCount++;
+                        }
+                        point = null;
+                    } else if ("trkseg".equals(name) || "rte".equals(name)) {
+                        if (null != segment) {
+                            HashMap<String, String> segmentAttributes = new HashMap<String, String>();
+                            if (null != trackName) {
+                                segmentAttributes.put("name", trackName);
+                            }
+                            addRow(segmentAttributes, segment);
+                        }
+                        segment = null;
+                        if ("rte".equals(name)) {
+                            trackName = null;
+                        }
+                    } else if ("trk".equals(name)) {
+                        trackName = null;
+                    } else if (inPoint) {
+                        attributes.put(name, text.toString().trim());
+                    } else if ("name".equals(name) && ("trk".equals(parent) || "rte".equals(parent))) {
+                        // Only a track's or route's own name, not the file's metadata name
+                        trackName = text.toString().trim();
+                    }
+                } catch (SAXException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new SAXException(e);
+                }
+            }
+
+        };
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.newSAXParser().parse(inputStream, handler);
+        } catch (SAXException e) {
+            if (null != e.getException()) {
+                throw e.getException();
+            }
+            throw e;
+        }
+    }
+
+    private static String getLocalName(String localName, String qName) {
+        return null == localName || localName.isEmpty() ? qName : localName;
+    }
+
+    /*
+     * CSV
+     */
+
+    private void readCsv(InputStream inputStream) throws Exception {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+        String line = reader.readLine();
+        if (null == line) {
+            return;
+        }
+        List<String> header = parseCsvLine(line);
+        int lonIndex = findColumn(header, CSV_LONGITUDE_NAMES);
+        int latIndex = findColumn(header, CSV_LATITUDE_NAMES);
+        if (0 > lonIndex || 0 > latIndex) {
+            throw new IOException("CSV header must have longitude and latitude columns");
+        }
+        Map<String, String> attributes = new HashMap<String, String>();
+        while (null != (line = reader.readLine())) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            List<String> values = parseCsvLine(line);
+            attributes.clear();
+            for (int i = 0; i < header.size() && i < values.size(); i++) {
+                attributes.put(header.get(i), values.get(i));
+            }
+            Point point = null;
+            try {
+                point = new Point(Double.parseDouble(values.get(lonIndex).trim()), Double.parseDouble(values.get(latIndex).trim()));
+            } catch (RuntimeException e) {
+                // Bad or missing coordinates; addRow will skip this row.
+            }
+            addRow(attributes, point);
+        }
+    }
+
+    private static int findColumn(List<String> header, String[] candidateNames) {
+        for (String candidate : candidateNames) {
+            for (int i = 0; i < header.size(); i++) {
+                if (candidate.equalsIgnoreCase(header.get(i).trim())) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Splits a CSV line into values, handling double-quoted values that contain commas or
+     * escaped double quotes. Quoted values that span lines are not supported.
+     */
+    private static List<String> parseCsvLine(String line) {
+        ArrayList<String> values = new ArrayList<String>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if ('"' == c) {
+                    if (i + 1 < line.length() && '"' == line.charAt(i + 1)) {
+                        value.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    value.append(c);
+                }
+            } else if ('"' == c) {
+                quoted = true;
+            } else if (',' == c) {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+    /*
+     * GeoJSON
+     */
+
+    private void readGeoJson(InputStream inputStream) throws Exception {
+        JsonReader reader = new JsonReader(new InputStreamReader(inputStream, "UTF-8"));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("features".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    readGeoJsonFeature(reader);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readGeoJsonFeature(JsonReader reader) throws Exception {
+        Map<String, String> attributes = new HashMap<String, String>();
+        Geometry geometry = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("properties".equals(name) && JsonToken.BEGIN_OBJECT == reader.peek()) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String key = reader.nextName();
+                    JsonToken token = reader.peek();
+                    if (JsonToken.STRING == token || JsonToken.NUMBER == token) {
+                        attributes.put(key, reader.nextString());
+                    } else if (JsonToken.BOOLEAN == token) {
+                        attributes.put(key, Boolean.toString(reader.nextBoolean()));
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if ("geometry".equals(name) && JsonToken.BEGIN_OBJECT == reader.peek()) {
+                geometry = readGeoJsonGeometry(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        addRow(attributes, geometry);
+    }
+
+    /**
+     * Reads a GeoJSON geometry object. Because the type and coordinates members can appear in
+     * either order, the coordinates are read into nested lists first.
+     */
+    private static Geometry readGeoJsonGeometry(JsonReader reader) throws IOException {
+        String type = null;
+        Object coordinates = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("type".equals(name)) {
+                type = reader.nextString();
+            } else if ("coordinates".equals(name)) {
+                coordinates = readJsonCoordinates(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (null == type || !(coordinates instanceof List)) {
+            return null;
+        }
+        List<?> coords = (List<?>) coordinates;
+        try {
+            switch (type) {
+                case "Point":
+                    return toPoint(coords);
+                case "MultiPoint": {
+                    MultiPoint multiPoint = new MultiPoint();
+                    for (Object coord : coords) {
+                        multiPoint.add(toPoint((List<?>) coord));
+                    }
+                    return multiPoint;
+                }
+                case "LineString": {
+                    Polyline polyline = new Polyline();
+                    addPath(polyline, coords);
+                    return polyline;
+                }
+                case "MultiLineString": {
+                    Polyline polyline = new Polyline();
+                    for (Object path : coords) {
+                        addPath(polyline, (List<?>) path);
+                    }
+                    return polyline;
+                }
+                case "Polygon": {
+                    Polygon polygon = new Polygon();
+                    addRings(polygon, coords);
+                    return polygon;
+                }
+                case "MultiPolygon": {
+                    Polygon polygon = new Polygon();
+                    for (Object part : coords) {
+                        addRings(polygon, (List<?>) part);
+                    }
+                    return polygon;
+                }
+                default:
+                    return null;
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not read GeoJSON " + type, e);
+            return null;
+        }
+    }
+
+    private static Object readJsonCoordinates(JsonReader reader) throws IOException {
+        if (JsonToken.BEGIN_ARRAY == reader.peek()) {
+            ArrayList<Object> list = new ArrayList<Object>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                list.add(readJsonCoordinates(reader));
+            }
+            reader.endArray();
+            return list;
+        } else if (JsonToken.NUMBER == reader.peek()) {
+            return reader.nextDouble();
+        } else {
+            reader.skipValue();
+            return null;
+        }
+    }
+
+    private static Point toPoint(List<?> coord) {
+        return new Point((Double) coord.get(0), (Double) coord.get(1));
+    }
+
+    /**
+     * Adds the rings of one GeoJSON polygon. GeoJSON exterior rings are counterclockwise and holes
+     * clockwise (and files older than RFC 7946 may use either), but Esri polygons need clockwise
+     * exterior rings and counterclockwise holes, so each ring is reversed if needed.
+     */
+    private static void addRings(Polygon polygon, List<?> rings) {
+        for (int i = 0; i < rings.size(); i++) {
+            List<?> ring = (List<?>) rings.get(i);
+            boolean clockwise = 0 > getSignedArea(ring);
+            if ((0 == i) != clockwise) {
+                ring = new ArrayList<Object>(ring);
+                Collections.reverse(ring);
+            }
+            addPath(polygon, ring);
+        }
+    }
+
+    /**
+     * Returns twice the signed area of a ring, which is positive if the ring is counterclockwise.
+     */
+    private static double getSignedArea(List<?> ring) {
+        double area = 0;
+        for (int i = 0; i < ring.size(); i++) {
+            List<?> from = (List<?>) ring.get(i);
+            List<?> to = (List<?>) ring.get((i + 1) % ring.size());
+            area += (Double) from.get(0) * (Double) to.get(1) - (Double) to.get(0) * (Double) from.get(1);
+        }
+        return area;
+    }
+
+    private static void addPath(MultiPath multiPath, List<?> coords) {
+        for (int i = 0; i < coords.size(); i++) {
+            Point point = toPoint((List<?>) coords.get(i));
+            if (0 == i) {
+                multiPath.startPath(point);
+            } else {
+                multiPath.lineTo(point);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,348 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import com.esri.core.geometry.Envelope;
+import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.MultiPath;
+import com.esri.core.geometry.MultiPoint;
+import com.esri.core.geometry.Point;
+import com.esri.core.geometry.Polygon;
+import com.esri.core.geometry.Polyline;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes the binary geometry format that OGC GeoPackages use to store geometries (a small header
+ * followed by well-known binary). The GeoPackage spec is at http://www.geopackage.org/spec/.
+ */
+public class GeoPackageGeometryBlob {
+
+    private static final int FLAG_EMPTY = 0x10;
+    private static final int FLAG_LITTLE_ENDIAN = 0x01;
+    private static final int FLAG_ENVELOPE_XY = 0x02;
+    private static final int HEADER_LENGTH = 8 + 4 * 8;
+    private static final int WKB_POINT = 1;
+    private static final int WKB_LINESTRING = 2;
+    private static final int WKB_POLYGON = 3;
+    private static final int WKB_MULTIPOINT = 4;
+    private static final int WKB_MULTILINESTRING = 5;
+    private static final int WKB_MULTIPOLYGON = 6;
+
+    private GeoPackageGeometryBlob() {
+
+    }
+
+    /**
+     * Reads the bounding box of a GeoPackage geometry blob. If the blob header contains an
+     * envelope, that envelope is returned without reading the geometry; otherwise the envelope
+     * is calculated from the well-known binary that follows the header.
+     *
+     * @param blob the contents of a GeoPackage geometry column.
+     * @return the envelope as {minx, maxx, miny, maxy}, which is the same order used by the
+     * gpkg_rtree_index extension, or null if the blob is null, empty, or cannot be read.
+     */
+    public static double[] readEnvelope(byte[] blob) {
+        if (null == blob || 8 > blob.length || 'G' != blob[0] || 'P' != blob[1]) {
+            return null;
+        }
+        int flags = blob[3];
+        if (0 != (flags & FLAG_EMPTY)) {
+            return null;
+        }
+        int envelopeIndicator = (flags >> 1) & 0x07;
+        int envelopeDoubles;
+        switch (envelopeIndicator) {
+            case 0:
+                envelopeDoubles = 0;
+                break;
+            case 1:
+                envelopeDoubles = 4;
+                break;
+            case 2:
+            case 3:
+                envelopeDoubles = 6;
+                break;
+            case 4:
+                envelopeDoubles = 8;
+                break;
+            default:
+                return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(blob);
+        buffer.order(0 != (flags & FLAG_LITTLE_ENDIAN) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        try {
+            if (0 < envelopeDoubles) {
+                buffer.position(8);
+                double[] envelope = new double[]{buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble()};
+                if (!Double.isNaN(envelope[0])) {
+                    return envelope;
+                }
+            }
+            buffer.position(8 + 8 * envelopeDoubles);
+            double[] envelope = new double[]{
+                    Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                    Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+            if (!readWkbEnvelope(buffer, envelope) || Double.isInfinite(envelope[0])) {
+                return null;
+            }
+            return envelope;
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Expands an envelope to include a well-known binary geometry, starting at the buffer's current
+     * position and leaving the position after the end of the geometry.
+     *
+     * @return false if the geometry type is not supported.
+     */
+    private static boolean readWkbEnvelope(ByteBuffer buffer, double[] envelope) {
+        buffer.order(0 == buffer.get() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        int type = buffer.getInt();
+        int dimensions = 2;
+        // Extended WKB flags
+        if (0 != (type & 0x80000000)) {
+            dimensions++;
+        }
+        if (0 != (type & 0x40000000)) {
+            dimensions++;
+        }
+        type &= 0x0fffffff;
+        // ISO WKB: 1000s are Z, 2000s are M, 3000s are ZM
+        switch (type / 1000) {
+            case 1:
+            case 2:
+                dimensions = 3;
+                break;
+            case 3:
+                dimensions = 4;
+        }
+        switch (type % 1000) {
+            case 1:
+                readCoordinates(buffer, 1, dimensions, envelope);
+                return true;
+            case 2:
+            case 8:
+                readCoordinates(buffer, buffer.getInt(), dimensions, envelope);
+                return true;
+            case 3: {
+                int ringCount = buffer.getInt();
+                for (int i = 0; i < ringCount; i++) {
+                    readCoordinates(buffer, buffer.getInt(), dimensions, envelope);
+                }
+                return true;
+            }
+            case 4:
+            case 5:
+            case 6:
+            case 7:
+            case 9:
+            case 10:
+            case 11:
+            case 12: {
+                int geometryCount = buffer.getInt();
+                for (int i = 0; i < geometryCount; i++) {
+                    if (!readWkbEnvelope(buffer, envelope)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    private static void readCoordinates(ByteBuffer buffer, int count, int dimensions, double[] envelope) {
+        for (int i = 0; i < count; i++) {
+            double x = buffer.getDouble();
+            double y = buffer.getDouble();
+            for (int d = 2; d < dimensions; d++) {
+                buffer.getDouble();
+            }
+            // An empty point is encoded as NaN coordinates
+            if (!Double.isNaN(x) && !Double.isNaN(y)) {
+                envelope[0] = Math.min(envelope[0], x);
+                envelope[1] = Math.max(envelope[1], x);
+                envelope[2] = Math.min(envelope[2], y);
+                envelope[3] = Math.max(envelope[3], y);
+            }
+        }
+    }
+
+    /**
+     * Encodes a geometry as a GeoPackage geometry blob with an XY envelope in the header, which
+     * lets readers such as a spatial index builder get the envelope without parsing the
+     * geometry. Polygon rings are written counterclockwise for exterior rings and clockwise for
+     * interior rings, as OGC simple features expect, which is the reverse of the Esri convention.
+     *
+     * @param geometry the geometry. Points, multipoints, polylines, and polygons are supported.
+     * @param srsId    the srs_id of the geometry's spatial reference in gpkg_spatial_ref_sys.
+     * @param multi    true if polylines and polygons should always be written as
+     *                 MultiLineString and MultiPolygon, as a column declared with one of those
+     *                 types requires, and false if single-part geometries should be written as
+     *                 LineString and Polygon.
+     * @return the encoded geometry, or null if the geometry is null, empty, or of an unsupported
+     * type.
+     */
+    public static byte[] write(Geometry geometry, int srsId, boolean multi) {
+        if (null == geometry || geometry.isEmpty()) {
+            return null;
+        }
+        int wkbLength = getWkbLength(geometry, multi);
+        if (0 > wkbLength) {
+            return null;
+        }
+        Envelope envelope = new Envelope();
+        geometry.queryEnvelope(envelope);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + wkbLength).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 'G').put((byte) 'P').put((byte) 0).put((byte) (FLAG_ENVELOPE_XY | FLAG_LITTLE_ENDIAN));
+        buffer.putInt(srsId);
+        buffer.putDouble(envelope.getXMin()).putDouble(envelope.getXMax())
+                .putDouble(envelope.getYMin()).putDouble(envelope.getYMax());
+        writeWkb(buffer, geometry, multi);
+        return buffer.array();
+    }
+
+    private static int getWkbLength(Geometry geometry, boolean multi) {
+        switch (geometry.getType()) {
+            case POINT:
+                return 5 + 16;
+            case MULTIPOINT:
+                return 9 + ((MultiPoint) geometry).getPointCount() * (5 + 16);
+            case POLYLINE: {
+                Polyline polyline = (Polyline) geometry;
+                int length = multi || 1 < polyline.getPathCount() ? 9 : 0;
+                for (int i = 0; i < polyline.getPathCount(); i++) {
+                    length += 9 + 16 * polyline.getPathSize(i);
+                }
+                return length;
+            }
+            case POLYGON: {
+                Polygon polygon = (Polygon) geometry;
+                List<List<Integer>> parts = groupRings(polygon);
+                int length = multi || 1 < parts.size() ? 9 : 0;
+                for (List<Integer> part : parts) {
+                    length += 9;
+                    for (int ring : part) {
+                        // Each ring repeats its first point at the end
+                        length += 4 + 16 * (polygon.getPathSize(ring) + 1);
+                    }
+                }
+                return length;
+            }
+            default:
+                return -1;
+        }
+    }
+
+    private static void writeWkb(ByteBuffer buffer, Geometry geometry, boolean multi) {
+        switch (geometry.getType()) {
+            case POINT: {
+                Point point = (Point) geometry;
+                writeWkbHeader(buffer, WKB_POINT);
+                buffer.putDouble(point.getX()).putDouble(point.getY());
+                break;
+            }
+            case MULTIPOINT: {
+                MultiPoint multiPoint = (MultiPoint) geometry;
+                writeWkbHeader(buffer, WKB_MULTIPOINT);
+                buffer.putInt(multiPoint.getPointCount());
+                for (int i = 0; i < multiPoint.getPointCount(); i++) {
+                    Point point = multiPoint.getPoint(i);
+                    writeWkbHeader(buffer, WKB_POINT);
+                    buffer.putDouble(point.getX()).putDouble(point.getY());
+                }
+                break;
+            }
+            case POLYLINE: {
+                Polyline polyline = (Polyline) geometry;
+                if (multi || 1 < polyline.getPathCount()) {
+                    writeWkbHeader(buffer, WKB_MULTILINESTRING);
+                    buffer.putInt(polyline.getPathCount());
+                }
+                for (int i = 0; i < polyline.getPathCount(); i++) {
+                    writeWkbHeader(buffer, WKB_LINESTRING);
+                    buffer.putInt(polyline.getPathSize(i));
+                    for (int j = polyline.getPathStart(i); j < polyline.getPathEnd(i); j++) {
+                        Point point = polyline.getPoint(j);
+                        buffer.putDouble(point.getX()).putDouble(point.getY());
+                    }
+                }
+                break;
+            }
+            case POLYGON: {
+                Polygon polygon = (Polygon) geometry;
+                List<List<Integer>> parts = groupRings(polygon);
+                if (multi || 1 < parts.size()) {
+                    writeWkbHeader(buffer, WKB_MULTIPOLYGON);
+                    buffer.putInt(parts.size());
+                }
+                for (List<Integer> part : parts) {
+                    writeWkbHeader(buffer, WKB_POLYGON);
+                    buffer.putInt(part.size());
+                    for (int ring : part) {
+                        writeReversedRing(buffer, polygon, ring);
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    private static void writeWkbHeader(ByteBuffer buffer, int type) {
+        buffer.put((byte) 1);
+        buffer.putInt(type);
+    }
+
+    private static void writeReversedRing(ByteBuffer buffer, MultiPath multiPath, int ring) {
+        int start = multiPath.getPathStart(ring);
+        int end = multiPath.getPathEnd(ring);
+        buffer.putInt(end - start + 1);
+        for (int j = end - 1; j >= start; j--) {
+            Point point = multiPath.getPoint(j);
+            buffer.putDouble(point.getX()).putDouble(point.getY());
+        }
+        Point first = multiPath.getPoint(end - 1);
+        buffer.putDouble(first.getX()).putDouble(first.getY());
+    }
+
+    /**
+     * Groups a polygon's rings into parts, each of which is an exterior ring followed by the
+     * interior rings that come after it. Esri polygons store exterior rings clockwise, which gives
+     * them a positive area.
+     */
+    private static List<List<Integer>> groupRings(Polygon polygon) {
+        List<List<Integer>> parts = new ArrayList<List<Integer>>();
+        List<Integer> part = null;
+        for (int i = 0; i < polygon.getPathCount(); i++) {
+            if (null == part || 0 < polygon.calculateRingArea2D(i)) {
+                part = new ArrayList<Integer>();
+                parts.add(part);
+            }
+            part.add(i);
+        }
+        return parts;
+    }
+
+}
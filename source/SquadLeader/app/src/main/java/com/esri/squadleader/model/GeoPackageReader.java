@@ -17,6 +17,8 @@ package com.esri.squadleader.model;
 
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import com.esri.android.map.FeatureLayer;
@@ -25,13 +27,16 @@ import com.esri.android.map.RasterLayer;
 import com.esri.core.ags.LayerServiceInfo;
 import com.esri.core.geodatabase.Geopackage;
 import com.esri.core.geodatabase.GeopackageFeatureTable;
+import com.esri.core.geometry.Envelope;
 import com.esri.core.geometry.Geometry;
 import com.esri.core.geometry.SpatialReference;
+import com.esri.core.map.Feature;
 import com.esri.core.map.Field;
 import com.esri.core.raster.FileRasterSource;
 import com.esri.core.raster.RasterSource;
 import com.esri.core.renderer.RasterRenderer;
 import com.esri.core.renderer.Renderer;
+import com.esri.squadleader.util.ProgressListener;
 
 import org.codehaus.jackson.JsonFactory;
 import org.json.JSONArray;
@@ -39,16 +44,47 @@ import org.json.JSONObject;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
 
 /**
- * Opens OGC GeoPackages and gets their data and layers.
+ * Opens OGC GeoPackages and gets their data and layers. For feature tables, GeoPackageReader also
+ * uses the GeoPackage's spatial index (the gpkg_rtree_index extension) when one is present, and it
+ * can build that index for tables that lack one.
+ * <p/>
+ * The gpkg_rtree_index extension normally keeps the index current with triggers that call ST_*
+ * SQL functions, but Android's SQLite does not have those functions, and a trigger that calls a
+ * missing function makes every insert into the table fail. GeoPackageReader therefore does not
+ * create the triggers. Code that edits an indexed table must call updateSpatialIndex or
+ * removeFromSpatialIndex after the edit.
  */
 public class GeoPackageReader {
 
+    /**
+     * Where a feature table lives in its GeoPackage file and whether it has a spatial index.
+     */
+    private static class SpatialIndexInfo {
+        final String gpkgPath;
+        final String tableName;
+        final String geometryColumn;
+        final String idColumn;
+        volatile String rtreeName;
+
+        SpatialIndexInfo(String gpkgPath, String tableName, String geometryColumn, String idColumn) {
+            this.gpkgPath = gpkgPath;
+            this.tableName = tableName;
+            this.geometryColumn = geometryColumn;
+            this.idColumn = idColumn;
+        }
+    }
+
     private static final String TAG = GeoPackageReader.class.getSimpleName();
+    private static final String RTREE_EXTENSION_NAME = "gpkg_rtree_index";
+    private static final int SPATIAL_INDEX_BATCH_SIZE = 10000;
 
     private static GeoPackageReader instance = new GeoPackageReader();
 
@@ -64,6 +100,8 @@ public class GeoPackageReader {
 
     private final HashSet<Geopackage> geopackages = new HashSet<Geopackage>();
     private final HashSet<RasterSource> rasterSources = new HashSet<RasterSource>();
+    private final HashMap<GeopackageFeatureTable, SpatialIndexInfo> spatialIndexInfos = new HashMap<GeopackageFeatureTable, SpatialIndexInfo>();
+    private final HashMap<String, SQLiteDatabase> indexDatabases = new HashMap<String, SQLiteDatabase>();
 
     private GeoPackageReader() {
 
@@ -88,6 +126,15 @@ public class GeoPackageReader {
             src.dispose();
         }
         rasterSources.clear();
+        synchronized (indexDatabases) {
+            for (SQLiteDatabase db : indexDatabases.values()) {
+                db.close();
+            }
+            indexDatabases.clear();
+        }
+        synchronized (spatialIndexInfos) {
+            spatialIndexInfos.clear();
+        }
     }
 
     /**
@@ -166,6 +213,7 @@ public class GeoPackageReader {
             }
             geopackages.add(gpkg);
             List<GeopackageFeatureTable> tables = gpkg.getGeopackageFeatureTables();
+            readSpatialIndexInfo(gpkgPath, tables);
             if (0 < tables.size()) {
                 //First pass: polygons and unknowns
                 HashSet<Geometry.Type> types = new HashSet<Geometry.Type>();
@@ -216,4 +264,404 @@ public class GeoPackageReader {
         return layers;
     }
 
+    private void readSpatialIndexInfo(String gpkgPath, List<GeopackageFeatureTable> tables) {
+        SQLiteDatabase db = getIndexDatabase(gpkgPath);
+        if (null == db) {
+            return;
+        }
+        for (GeopackageFeatureTable table : tables) {
+            Cursor cursor = null;
+            try {
+                String tableName = table.getTableName();
+                cursor = db.rawQuery("SELECT column_name FROM gpkg_geometry_columns WHERE table_name = ?", new String[]{tableName});
+                if (!cursor.moveToNext()) {
+                    continue;
+                }
+                String geometryColumn = cursor.getString(0);
+                cursor.close();
+                String idColumn = null;
+                cursor = db.rawQuery("PRAGMA table_info(" + quoteIdentifier(tableName) + ")", null);
+                int nameIndex = cursor.getColumnIndex("name");
+                int pkIndex = cursor.getColumnIndex("pk");
+                while (cursor.moveToNext()) {
+                    if (1 == cursor.getInt(pkIndex)) {
+                        idColumn = cursor.getString(nameIndex);
+                        break;
+                    }
+                }
+                cursor.close();
+                cursor = null;
+                SpatialIndexInfo info = new SpatialIndexInfo(gpkgPath, tableName, geometryColumn, null == idColumn ? "rowid" : idColumn);
+                String rtreeName = getRtreeName(tableName, geometryColumn);
+                if (isRtreeRegistered(db, tableName, geometryColumn) && tableExists(db, rtreeName)) {
+                    info.rtreeName = rtreeName;
+                }
+                synchronized (spatialIndexInfos) {
+                    spatialIndexInfos.put(table, info);
+                }
+            } catch (Throwable t) {
+                Log.w(TAG, "Could not read spatial index information for table " + table.getTableName(), t);
+            } finally {
+                if (null != cursor) {
+                    cursor.close();
+                }
+            }
+        }
+    }
+
+    private static boolean isRtreeRegistered(SQLiteDatabase db, String tableName, String geometryColumn) {
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(
+                    "SELECT COUNT(*) FROM gpkg_extensions WHERE table_name = ? AND column_name = ? AND extension_name = ?",
+                    new String[]{tableName, geometryColumn, RTREE_EXTENSION_NAME});
+            return cursor.moveToNext() && 0 < cursor.getInt(0);
+        } catch (SQLiteException e) {
+            // The gpkg_extensions table is optional, so the GeoPackage has no extensions.
+            return false;
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+    private static boolean tableExists(SQLiteDatabase db, String tableName) {
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("SELECT COUNT(*) FROM sqlite_master WHERE name = ?", new String[]{tableName});
+            return cursor.moveToNext() && 0 < cursor.getInt(0);
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+    static String getRtreeName(String tableName, String geometryColumn) {
+        return "rtree_" + tableName + "_" + geometryColumn;
+    }
+
+    static String quoteIdentifier(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    private SQLiteDatabase getIndexDatabase(String gpkgPath) {
+        synchronized (indexDatabases) {
+            SQLiteDatabase db = indexDatabases.get(gpkgPath);
+            if (null == db) {
+                try {
+                    db = SQLiteDatabase.openDatabase(gpkgPath, null, SQLiteDatabase.OPEN_READONLY);
+                    indexDatabases.put(gpkgPath, db);
+                } catch (Throwable t) {
+                    Log.w(TAG, "Could not open GeoPackage " + gpkgPath + " for spatial index queries", t);
+                }
+            }
+            return db;
+        }
+    }
+
+    private SpatialIndexInfo getSpatialIndexInfo(GeopackageFeatureTable table) {
+        synchronized (spatialIndexInfos) {
+            return spatialIndexInfos.get(table);
+        }
+    }
+
+    /**
+     * Returns true if the table is in a GeoPackage opened by this GeoPackageReader and the table
+     * has a spatial index.
+     *
+     * @param table the feature table.
+     * @return true if the table has a spatial index that this GeoPackageReader can use.
+     */
+    public boolean hasSpatialIndex(GeopackageFeatureTable table) {
+        SpatialIndexInfo info = getSpatialIndexInfo(table);
+        return null != info && null != info.rtreeName;
+    }
+
+    /**
+     * Returns the feature tables opened by this GeoPackageReader that do not have a spatial index
+     * and have at least the specified number of rows.
+     *
+     * @param minRows the minimum number of rows. The row count is estimated from the largest
+     *                feature ID, which is cheap to get even for very large tables.
+     * @return the feature tables without a spatial index.
+     */
+    public List<GeopackageFeatureTable> getUnindexedTables(long minRows) {
+        List<GeopackageFeatureTable> unindexed = new ArrayList<GeopackageFeatureTable>();
+        synchronized (spatialIndexInfos) {
+            for (GeopackageFeatureTable table : spatialIndexInfos.keySet()) {
+                SpatialIndexInfo info = spatialIndexInfos.get(table);
+                if (null == info.rtreeName && minRows <= estimateRowCount(info)) {
+                    unindexed.add(table);
+                }
+            }
+        }
+        return unindexed;
+    }
+
+    private long estimateRowCount(SpatialIndexInfo info) {
+        SQLiteDatabase db = getIndexDatabase(info.gpkgPath);
+        if (null == db) {
+            return 0;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("SELECT MAX(" + quoteIdentifier(info.idColumn) + ") FROM " + quoteIdentifier(info.tableName), null);
+            return cursor.moveToNext() ? cursor.getLong(0) : 0;
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Could not count rows in " + info.tableName, e);
+            return 0;
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Uses a table's spatial index to find the IDs of features whose bounding boxes intersect an
+     * envelope. The caller should test the actual geometries of the returned features if it needs
+     * an exact answer.
+     *
+     * @param table    the feature table.
+     * @param envelope the envelope, in the table's spatial reference.
+     * @return the IDs of the candidate features, or null if the table has no usable spatial index,
+     * in which case the caller should fall back to a regular query.
+     */
+    public long[] queryIdsInEnvelope(GeopackageFeatureTable table, Envelope envelope) {
+        SpatialIndexInfo info = getSpatialIndexInfo(table);
+        if (null == info || null == info.rtreeName) {
+            return null;
+        }
+        SQLiteDatabase db = getIndexDatabase(info.gpkgPath);
+        if (null == db) {
+            return null;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(
+                    "SELECT id FROM " + quoteIdentifier(info.rtreeName) + " WHERE minx <= ? AND maxx >= ? AND miny <= ? AND maxy >= ?",
+                    new String[]{
+                            Double.toString(envelope.getXMax()),
+                            Double.toString(envelope.getXMin()),
+                            Double.toString(envelope.getYMax()),
+                            Double.toString(envelope.getYMin())});
+            long[] ids = new long[cursor.getCount()];
+            int i = 0;
+            while (cursor.moveToNext()) {
+                ids[i++] = cursor.getLong(0);
+            }
+            return ids;
+        } catch (SQLiteException e) {
+            // Most likely this device's SQLite was built without the R*Tree module.
+            Log.w(TAG, "Could not query spatial index " + info.rtreeName + "; falling back to unindexed queries", e);
+            info.rtreeName = null;
+            return null;
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Creates a task that builds a spatial index (the gpkg_rtree_index extension, without its
+     * triggers) for a feature table. The task reads the table's geometries in batches, so it can run
+     * on tables with millions of rows without loading them all into memory, and builds the whole
+     * index in one transaction, so a failed or cancelled build leaves the GeoPackage unchanged. Run
+     * the task on a background thread.
+     *
+     * @param table            the feature table, which must be in a GeoPackage opened by this
+     *                         GeoPackageReader.
+     * @param progressListener a listener for progress updates, in rows. May be null.
+     * @return a task whose result is true if the index was built and false otherwise.
+     */
+    public FutureTask<Boolean> buildSpatialIndex(final GeopackageFeatureTable table, final ProgressListener progressListener) {
+        return new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                SpatialIndexInfo info = getSpatialIndexInfo(table);
+                if (null == info) {
+                    Log.w(TAG, "Table " + table.getTableName() + " was not opened by " + GeoPackageReader.class.getSimpleName());
+                    return false;
+                }
+                if (null != info.rtreeName) {
+                    return true;
+                }
+                String rtreeName = getRtreeName(info.tableName, info.geometryColumn);
+                SQLiteDatabase db = null;
+                Cursor cursor = null;
+                try {
+                    db = SQLiteDatabase.openDatabase(info.gpkgPath, null, SQLiteDatabase.OPEN_READWRITE);
+                    // One transaction for the whole build, so that a failed or cancelled build
+                    // leaves nothing behind
+                    db.beginTransaction();
+                    db.execSQL("CREATE VIRTUAL TABLE " + quoteIdentifier(rtreeName) + " USING rtree(id, minx, maxx, miny, maxy)");
+
+                    long total = -1;
+                    cursor = db.rawQuery("SELECT COUNT(*) FROM " + quoteIdentifier(info.tableName), null);
+                    if (cursor.moveToNext()) {
+                        total = cursor.getLong(0);
+                    }
+                    cursor.close();
+
+                    String id = quoteIdentifier(info.idColumn);
+                    String geom = quoteIdentifier(info.geometryColumn);
+                    SQLiteStatement insert = db.compileStatement(
+                            "INSERT INTO " + quoteIdentifier(rtreeName) + " (id, minx, maxx, miny, maxy) VALUES (?, ?, ?, ?, ?)");
+                    long lastId = Long.MIN_VALUE;
+                    long completed = 0;
+                    boolean done = false;
+                    while (!done) {
+                        if (Thread.interrupted()) {
+                            throw new InterruptedException("Spatial index build for " + info.tableName + " was cancelled");
+                        }
+                        // Page by ID so that each batch is a small, bounded query
+                        cursor = db.rawQuery(
+                                "SELECT " + id + ", " + geom + " FROM " + quoteIdentifier(info.tableName)
+                                        + " WHERE " + id + " > ? ORDER BY " + id + " LIMIT " + SPATIAL_INDEX_BATCH_SIZE,
+                                new String[]{Long.toString(lastId)});
+                        done = SPATIAL_INDEX_BATCH_SIZE > cursor.getCount();
+                        while (cursor.moveToNext()) {
+                            lastId = cursor.getLong(0);
+                            double[] envelope = GeoPackageGeometryBlob.readEnvelope(cursor.getBlob(1));
+                            if (null != envelope) {
+                                insert.bindLong(1, lastId);
+                                insert.bindDouble(2, envelope[0]);
+                                insert.bindDouble(3, envelope[1]);
+                                insert.bindDouble(4, envelope[2]);
+                                insert.bindDouble(5, envelope[3]);
+                                insert.executeInsert();
+                            }
+                            completed++;
+                        }
+                        cursor.close();
+                        cursor = null;
+                        if (null != progressListener) {
+                            progressListener.onProgress(completed, total);
+                        }
+                    }
+                    insert.close();
+
+                    registerRtreeExtension(db, info.tableName, info.geometryColumn);
+                    db.setTransactionSuccessful();
+                    db.endTransaction();
+                    info.rtreeName = rtreeName;
+                    return true;
+                } catch (Throwable t) {
+                    Log.e(TAG, "Could not build spatial index for " + info.tableName, t);
+                    if (t instanceof InterruptedException) {
+                        throw (InterruptedException) t;
+                    }
+                    return false;
+                } finally {
+                    if (null != cursor) {
+                        cursor.close();
+                    }
+                    if (null != db) {
+                        if (db.inTransaction()) {
+                            db.endTransaction();
+                        }
+                        db.close();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds or replaces the spatial index entries of features that were just added to a table, or
+     * whose geometries just changed, in one transaction. If the index cannot be updated, the
+     * table's index is no longer used, so that queries fall back to scanning the table instead of
+     * missing features.
+     *
+     * @param table    the feature table. If it has no spatial index, this method does nothing.
+     * @param ids      the feature IDs.
+     * @param features the features, in the same order as ids.
+     */
+    public void updateSpatialIndex(GeopackageFeatureTable table, long[] ids, List<Feature> features) {
+        SpatialIndexInfo info = getSpatialIndexInfo(table);
+        if (null == info || null == info.rtreeName) {
+            return;
+        }
+        SQLiteDatabase db = null;
+        try {
+            db = SQLiteDatabase.openDatabase(info.gpkgPath, null, SQLiteDatabase.OPEN_READWRITE);
+            SQLiteStatement insert = db.compileStatement(
+                    "INSERT OR REPLACE INTO " + quoteIdentifier(info.rtreeName) + " (id, minx, maxx, miny, maxy) VALUES (?, ?, ?, ?, ?)");
+            SQLiteStatement delete = db.compileStatement("DELETE FROM " + quoteIdentifier(info.rtreeName) + " WHERE id = ?");
+            Envelope envelope = new Envelope();
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < ids.length; i++) {
+                    Geometry geometry = features.get(i).getGeometry();
+                    if (null == geometry || geometry.isEmpty()) {
+                        delete.bindLong(1, ids[i]);
+                        delete.executeUpdateDelete();
+                    } else {
+                        geometry.queryEnvelope(envelope);
+                        insert.bindLong(1, ids[i]);
+                        insert.bindDouble(2, envelope.getXMin());
+                        insert.bindDouble(3, envelope.getXMax());
+                        insert.bindDouble(4, envelope.getYMin());
+                        insert.bindDouble(5, envelope.getYMax());
+                        insert.executeInsert();
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insert.close();
+                delete.close();
+            }
+        } catch (Throwable t) {
+            Log.w(TAG, "Could not update spatial index " + info.rtreeName + "; no longer using it", t);
+            info.rtreeName = null;
+        } finally {
+            if (null != db) {
+                db.close();
+            }
+        }
+    }
+
+    /**
+     * Removes the spatial index entry of a feature that was just deleted from a table.
+     *
+     * @param table the feature table. If it has no spatial index, this method does nothing.
+     * @param id    the feature ID.
+     */
+    public void removeFromSpatialIndex(GeopackageFeatureTable table, long id) {
+        SpatialIndexInfo info = getSpatialIndexInfo(table);
+        if (null == info || null == info.rtreeName) {
+            return;
+        }
+        SQLiteDatabase db = null;
+        try {
+            db = SQLiteDatabase.openDatabase(info.gpkgPath, null, SQLiteDatabase.OPEN_READWRITE);
+            db.execSQL("DELETE FROM " + quoteIdentifier(info.rtreeName) + " WHERE id = ?", new Object[]{id});
+        } catch (Throwable t) {
+            // A leftover entry only makes the index return a candidate ID that no longer exists
+            Log.w(TAG, "Could not remove feature " + id + " from spatial index " + info.rtreeName, t);
+        } finally {
+            if (null != db) {
+                db.close();
+            }
+        }
+    }
+
+    /**
+     * Records in gpkg_extensions that a table's geometry column has a gpkg_rtree_index spatial
+     * index, creating gpkg_extensions if needed.
+     */
+    static void registerRtreeExtension(SQLiteDatabase db, String tableName, String geometryColumn) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS gpkg_extensions ("
+                + "table_name TEXT, column_name TEXT, extension_name TEXT NOT NULL, "
+                + "definition TEXT NOT NULL, scope TEXT NOT NULL, "
+                + "CONSTRAINT ge_tce UNIQUE (table_name, column_name, extension_name))");
+        db.execSQL("INSERT OR REPLACE INTO gpkg_extensions (table_name, column_name, extension_name, definition, scope) VALUES (?, ?, ?, ?, ?)",
+                new Object[]{tableName, geometryColumn, RTREE_EXTENSION_NAME,
+                        "http://www.geopackage.org/spec120/#extension_rtree", "write-only"});
+    }
+
 }
@@ -0,0 +1,406 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * An ElevationRaster backed by a memory-mapped, uncompressed GeoTIFF. Stripped and tiled layouts
+ * are supported, as are 8-, 16-, and 32-bit integer and 32- and 64-bit floating-point samples. If
+ * the file has more than one band, only the first band is read.
+ * <p/>
+ * The georeference comes from a world file (.tfw) beside the TIFF if there is one, and otherwise
+ * from the GeoTIFF ModelPixelScale and ModelTiepoint tags or the ModelTransformation tag. Rotated
+ * rasters are not supported. The nodata value comes from the GDAL_NODATA tag if present.
+ * <p/>
+ * Because the file is memory-mapped, reading a cell does not copy the raster into the Java heap,
+ * and getValue can be called from any number of threads.
+ */
+public class GeoTiffElevationRaster implements ElevationRaster {
+
+    private static final int TAG_IMAGE_WIDTH = 256;
+    private static final int TAG_IMAGE_LENGTH = 257;
+    private static final int TAG_BITS_PER_SAMPLE = 258;
+    private static final int TAG_COMPRESSION = 259;
+    private static final int TAG_STRIP_OFFSETS = 273;
+    private static final int TAG_SAMPLES_PER_PIXEL = 277;
+    private static final int TAG_ROWS_PER_STRIP = 278;
+    private static final int TAG_PLANAR_CONFIGURATION = 284;
+    private static final int TAG_TILE_WIDTH = 322;
+    private static final int TAG_TILE_LENGTH = 323;
+    private static final int TAG_TILE_OFFSETS = 324;
+    private static final int TAG_SAMPLE_FORMAT = 339;
+    private static final int TAG_MODEL_PIXEL_SCALE = 33550;
+    private static final int TAG_MODEL_TIEPOINT = 33922;
+    private static final int TAG_MODEL_TRANSFORMATION = 34264;
+    private static final int TAG_GEO_KEY_DIRECTORY = 34735;
+    private static final int TAG_GDAL_NODATA = 42113;
+
+    private static final int GEO_KEY_RASTER_TYPE = 1025;
+    private static final int GEO_KEY_GEOGRAPHIC_TYPE = 2048;
+    private static final int GEO_KEY_PROJECTED_CS_TYPE = 3072;
+    private static final int RASTER_PIXEL_IS_POINT = 2;
+    private static final int USER_DEFINED = 32767;
+
+    private static final int SAMPLE_FORMAT_UINT = 1;
+    private static final int SAMPLE_FORMAT_INT = 2;
+    private static final int SAMPLE_FORMAT_FLOAT = 3;
+
+    private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int columnCount;
+    private final int rowCount;
+    private final int chunkWidth;
+    private final int chunkHeight;
+    private final int chunksAcross;
+    private final int[] chunkOffsets;
+    private final int bytesPerSample;
+    private final int pixelStride;
+    private final int sampleFormat;
+    private final double noData;
+    private final int wkid;
+    private double minX;
+    private double maxY;
+    private double cellWidth;
+    private double cellHeight;
+
+    /**
+     * Opens a GeoTIFF. Call close() when done with the raster.
+     *
+     * @param tiffFile the GeoTIFF file.
+     * @throws IOException if the file cannot be read or uses a layout or georeference that this
+     *                     class does not support.
+     */
+    public GeoTiffElevationRaster(File tiffFile) throws IOException {
+        file = new RandomAccessFile(tiffFile, "r");
+        try {
+            long length = file.length();
+            if (Integer.MAX_VALUE < length) {
+                throw new IOException(tiffFile + " is too large to map");
+            }
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if ('I' == buffer.get(0) && 'I' == buffer.get(1)) {
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+            } else if ('M' == buffer.get(0) && 'M' == buffer.get(1)) {
+                buffer.order(ByteOrder.BIG_ENDIAN);
+            } else {
+                throw new IOException(tiffFile + " is not a TIFF");
+            }
+            if (42 != (buffer.getShort(2) & 0xffff)) {
+                throw new IOException(tiffFile + " is a BigTIFF or not a TIFF");
+            }
+
+            HashMap<Integer, double[]> numbers = new HashMap<Integer, double[]>();
+            String noDataString = readIfd(buffer.getInt(4), numbers);
+
+            columnCount = (int) getNumber(numbers, TAG_IMAGE_WIDTH, -1);
+            rowCount = (int) getNumber(numbers, TAG_IMAGE_LENGTH, -1);
+            if (0 >= columnCount || 0 >= rowCount) {
+                throw new IOException(tiffFile + " has no image dimensions");
+            }
+            if (1 != getNumber(numbers, TAG_COMPRESSION, 1)) {
+                throw new IOException(tiffFile + " is compressed");
+            }
+            int samplesPerPixel = (int) getNumber(numbers, TAG_SAMPLES_PER_PIXEL, 1);
+            if (1 < samplesPerPixel && 2 == getNumber(numbers, TAG_PLANAR_CONFIGURATION, 1)) {
+                throw new IOException(tiffFile + " uses planar band storage");
+            }
+            int bitsPerSample = (int) getNumber(numbers, TAG_BITS_PER_SAMPLE, 1);
+            sampleFormat = (int) getNumber(numbers, TAG_SAMPLE_FORMAT, SAMPLE_FORMAT_UINT);
+            if (!(8 == bitsPerSample || 16 == bitsPerSample || 32 == bitsPerSample
+                    || (64 == bitsPerSample && SAMPLE_FORMAT_FLOAT == sampleFormat))
+                    || (SAMPLE_FORMAT_FLOAT == sampleFormat && 32 > bitsPerSample)
+                    || 1 > sampleFormat || SAMPLE_FORMAT_FLOAT < sampleFormat) {
+                throw new IOException(tiffFile + " has an unsupported sample type");
+            }
+            bytesPerSample = bitsPerSample / 8;
+            pixelStride = bytesPerSample * samplesPerPixel;
+
+            double[] offsets;
+            if (numbers.containsKey(TAG_TILE_OFFSETS)) {
+                chunkWidth = (int) getNumber(numbers, TAG_TILE_WIDTH, -1);
+                chunkHeight = (int) getNumber(numbers, TAG_TILE_LENGTH, -1);
+                offsets = numbers.get(TAG_TILE_OFFSETS);
+            } else {
+                chunkWidth = columnCount;
+                chunkHeight = (int) Math.min(rowCount, getNumber(numbers, TAG_ROWS_PER_STRIP, rowCount));
+                offsets = numbers.get(TAG_STRIP_OFFSETS);
+            }
+            if (0 >= chunkWidth || 0 >= chunkHeight || null == offsets) {
+                throw new IOException(tiffFile + " has no strip or tile layout");
+            }
+            chunksAcross = (columnCount + chunkWidth - 1) / chunkWidth;
+            int chunksDown = (rowCount + chunkHeight - 1) / chunkHeight;
+            if (offsets.length < chunksAcross * chunksDown) {
+                throw new IOException(tiffFile + " is missing strips or tiles");
+            }
+            chunkOffsets = new int[offsets.length];
+            for (int i = 0; i < offsets.length; i++) {
+                if (offsets[i] >= length) {
+                    throw new IOException(tiffFile + " is truncated");
+                }
+                chunkOffsets[i] = (int) offsets[i];
+            }
+
+            double parsedNoData = Double.NaN;
+            if (null != noDataString) {
+                try {
+                    parsedNoData = Double.parseDouble(noDataString.trim());
+                } catch (NumberFormatException e) {
+                    // Treat an unparseable nodata value as no nodata value
+                }
+            }
+            noData = parsedNoData;
+
+            int rasterType = 0;
+            int code = 0;
+            double[] geoKeys = numbers.get(TAG_GEO_KEY_DIRECTORY);
+            if (null != geoKeys && 4 <= geoKeys.length) {
+                int keyCount = (int) geoKeys[3];
+                for (int i = 0; i < keyCount && 4 * i + 7 < geoKeys.length; i++) {
+                    int keyId = (int) geoKeys[4 * i + 4];
+                    boolean inline = 0 == geoKeys[4 * i + 5];
+                    int value = (int) geoKeys[4 * i + 7];
+                    if (!inline) {
+                        continue;
+                    }
+                    if (GEO_KEY_RASTER_TYPE == keyId) {
+                        rasterType = value;
+                    } else if (GEO_KEY_PROJECTED_CS_TYPE == keyId && USER_DEFINED != value) {
+                        code = value;
+                    } else if (GEO_KEY_GEOGRAPHIC_TYPE == keyId && USER_DEFINED != value && 0 == code) {
+                        code = value;
+                    }
+                }
+            }
+            wkid = code;
+
+            if (!readWorldFile(tiffFile) && !readGeoTiffTransform(numbers, rasterType)) {
+                throw new IOException(tiffFile + " is not georeferenced");
+            }
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private String readIfd(int ifdOffset, HashMap<Integer, double[]> numbers) {
+        String noDataString = null;
+        int entryCount = buffer.getShort(ifdOffset) & 0xffff;
+        for (int i = 0; i < entryCount; i++) {
+            int entryOffset = ifdOffset + 2 + 12 * i;
+            int tag = buffer.getShort(entryOffset) & 0xffff;
+            int type = buffer.getShort(entryOffset + 2) & 0xffff;
+            int count = buffer.getInt(entryOffset + 4);
+            if (1 > type || TYPE_SIZES.length <= type || 0 > count) {
+                continue;
+            }
+            int valueOffset = (TYPE_SIZES[type] * (long) count <= 4) ? entryOffset + 8 : buffer.getInt(entryOffset + 8);
+            if (2 == type) {
+                if (TAG_GDAL_NODATA == tag) {
+                    StringBuilder sb = new StringBuilder();
+                    for (int j = 0; j < count && 0 != buffer.get(valueOffset + j); j++) {
+                        sb.append((char) buffer.get(valueOffset + j));
+                    }
+                    noDataString = sb.toString();
+                }
+                continue;
+            }
+            double[] values = new double[count];
+            for (int j = 0; j < count; j++) {
+                values[j] = readNumber(type, valueOffset + j * TYPE_SIZES[type]);
+            }
+            numbers.put(tag, values);
+        }
+        return noDataString;
+    }
+
+    private double readNumber(int type, int offset) {
+        switch (type) {
+            case 1:
+            case 7:
+                return buffer.get(offset) & 0xff;
+            case 3:
+                return buffer.getShort(offset) & 0xffff;
+            case 4:
+                return buffer.getInt(offset) & 0xffffffffL;
+            case 5:
+                return (buffer.getInt(offset) & 0xffffffffL) / (double) (buffer.getInt(offset + 4) & 0xffffffffL);
+            case 6:
+                return buffer.get(offset);
+            case 8:
+                return buffer.getShort(offset);
+            case 9:
+                return buffer.getInt(offset);
+            case 10:
+                return buffer.getInt(offset) / (double) buffer.getInt(offset + 4);
+            case 11:
+                return buffer.getFloat(offset);
+            case 12:
+                return buffer.getDouble(offset);
+            default:
+                return Double.NaN;
+        }
+    }
+
+    private static double getNumber(HashMap<Integer, double[]> numbers, int tag, double defaultValue) {
+        double[] values = numbers.get(tag);
+        return (null == values || 0 == values.length) ? defaultValue : values[0];
+    }
+
+    private boolean readWorldFile(File tiffFile) throws IOException {
+        String name = tiffFile.getName();
+        int dot = name.lastIndexOf('.');
+        String baseName = 0 <= dot ? name.substring(0, dot) : name;
+        File worldFile = null;
+        for (String extension : new String[]{".tfw", ".TFW", ".tifw", ".wld"}) {
+            File candidate = new File(tiffFile.getParentFile(), baseName + extension);
+            if (candidate.isFile()) {
+                worldFile = candidate;
+                break;
+            }
+        }
+        if (null == worldFile) {
+            return false;
+        }
+        double[] terms = new double[6];
+        BufferedReader reader = new BufferedReader(new FileReader(worldFile));
+        try {
+            for (int i = 0; i < terms.length; i++) {
+                String line = reader.readLine();
+                if (null == line) {
+                    throw new IOException(worldFile + " has fewer than six lines");
+                }
+                terms[i] = Double.parseDouble(line.trim());
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException(worldFile + " is not a valid world file", e);
+        } finally {
+            reader.close();
+        }
+        if (0 != terms[1] || 0 != terms[2]) {
+            throw new IOException(worldFile + " describes a rotated raster");
+        }
+        // World file coordinates are the center of the upper-left cell
+        cellWidth = terms[0];
+        cellHeight = -terms[3];
+        minX = terms[4] - cellWidth / 2;
+        maxY = terms[5] + cellHeight / 2;
+        return 0 < cellWidth && 0 < cellHeight;
+    }
+
+    private boolean readGeoTiffTransform(HashMap<Integer, double[]> numbers, int rasterType) throws IOException {
+        double[] scale = numbers.get(TAG_MODEL_PIXEL_SCALE);
+        double[] tiepoint = numbers.get(TAG_MODEL_TIEPOINT);
+        double[] transformation = numbers.get(TAG_MODEL_TRANSFORMATION);
+        if (null != scale && 2 <= scale.length && null != tiepoint && 6 <= tiepoint.length) {
+            cellWidth = scale[0];
+            cellHeight = scale[1];
+            minX = tiepoint[3] - tiepoint[0] * cellWidth;
+            maxY = tiepoint[4] + tiepoint[1] * cellHeight;
+        } else if (null != transformation && 16 <= transformation.length) {
+            if (0 != transformation[1] || 0 != transformation[4]) {
+                throw new IOException("Rotated rasters are not supported");
+            }
+            cellWidth = transformation[0];
+            cellHeight = -transformation[5];
+            minX = transformation[3];
+            maxY = transformation[7];
+        } else {
+            return false;
+        }
+        if (RASTER_PIXEL_IS_POINT == rasterType) {
+            minX -= cellWidth / 2;
+            maxY += cellHeight / 2;
+        }
+        return 0 < cellWidth && 0 < cellHeight;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public double getMinX() {
+        return minX;
+    }
+
+    @Override
+    public double getMaxY() {
+        return maxY;
+    }
+
+    @Override
+    public double getCellWidth() {
+        return cellWidth;
+    }
+
+    @Override
+    public double getCellHeight() {
+        return cellHeight;
+    }
+
+    @Override
+    public int getWkid() {
+        return wkid;
+    }
+
+    @Override
+    public double getValue(int column, int row) {
+        if (0 > column || columnCount <= column || 0 > row || rowCount <= row) {
+            return Double.NaN;
+        }
+        int chunk = (row / chunkHeight) * chunksAcross + column / chunkWidth;
+        int offset = chunkOffsets[chunk]
+                + ((row % chunkHeight) * chunkWidth + column % chunkWidth) * pixelStride;
+        double value;
+        switch (sampleFormat) {
+            case SAMPLE_FORMAT_FLOAT:
+                value = 4 == bytesPerSample ? buffer.getFloat(offset) : buffer.getDouble(offset);
+                break;
+            case SAMPLE_FORMAT_INT:
+                value = 1 == bytesPerSample ? buffer.get(offset)
+                        : 2 == bytesPerSample ? buffer.getShort(offset) : buffer.getInt(offset);
+                break;
+            default:
+                value = 1 == bytesPerSample ? buffer.get(offset) & 0xff
+                        : 2 == bytesPerSample ? buffer.getShort(offset) & 0xffff : buffer.getInt(offset) & 0xffffffffL;
+        }
+        return value == noData ? Double.NaN : value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+}
@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes a ViewshedGrid as a single-band, 8-bit, uncompressed GeoTIFF with a world file beside it,
+ * so that it can be displayed with a FileRasterSource.
+ */
+public class GeoTiffWriter {
+
+    private static final short TYPE_ASCII = 2;
+    private static final short TYPE_SHORT = 3;
+    private static final short TYPE_LONG = 4;
+    private static final short TYPE_DOUBLE = 12;
+
+    private GeoTiffWriter() {
+        // Static methods only
+    }
+
+    /**
+     * Writes a grid to a GeoTIFF and a world file. The world file has the same name as the GeoTIFF
+     * but with a .tfw extension.
+     *
+     * @param grid     the grid.
+     * @param tiffFile the GeoTIFF file to write.
+     * @param noData   the value to record as the nodata value, from 0 to 255, or -1 for none.
+     * @throws IOException if the files cannot be written.
+     */
+    public static void write(ViewshedGrid grid, File tiffFile, int noData) throws IOException {
+        final int wkid = grid.getWkid();
+        // Codes in the 4000s are geographic coordinate systems in EPSG and Esri
+        final boolean geographic = 4000 <= wkid && 5000 > wkid;
+        final boolean writeGeoKeys = 0 < wkid && 0xffff >= wkid;
+        // Pad to more than four bytes so that the value is stored at an offset, not inline
+        final String noDataString = 0 <= noData ? Integer.toString(noData) + "\0\0\0\0" : null;
+
+        final int entryCount = 14 + (null == noDataString ? 0 : 1);
+        final int ifdOffset = 8;
+        final int ifdSize = 2 + 12 * entryCount + 4;
+        final int pixelScaleOffset = ifdOffset + ifdSize;
+        final int tiepointOffset = pixelScaleOffset + 3 * 8;
+        final int geoKeysOffset = tiepointOffset + 6 * 8;
+        final short[] geoKeys = writeGeoKeys
+                ? new short[]{1, 1, 0, 3,
+                1024, 0, 1, (short) (geographic ? 2 : 1),
+                1025, 0, 1, 1,
+                (short) (geographic ? 2048 : 3072), 0, 1, (short) wkid}
+                : new short[]{1, 1, 0, 1,
+                1025, 0, 1, 1};
+        final int noDataOffset = geoKeysOffset + 2 * geoKeys.length;
+        final int pixelsOffset = noDataOffset + (null == noDataString ? 0 : noDataString.length());
+        final int pixelCount = grid.getColumnCount() * grid.getRowCount();
+
+        ByteBuffer header = ByteBuffer.allocate(pixelsOffset).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(ifdOffset);
+        header.putShort((short) entryCount);
+        putEntry(header, 256, TYPE_LONG, 1, grid.getColumnCount());
+        putEntry(header, 257, TYPE_LONG, 1, grid.getRowCount());
+        putEntry(header, 258, TYPE_SHORT, 1, 8);
+        putEntry(header, 259, TYPE_SHORT, 1, 1);
+        putEntry(header, 262, TYPE_SHORT, 1, 1);
+        putEntry(header, 273, TYPE_LONG, 1, pixelsOffset);
+        putEntry(header, 277, TYPE_SHORT, 1, 1);
+        putEntry(header, 278, TYPE_LONG, 1, grid.getRowCount());
+        putEntry(header, 279, TYPE_LONG, 1, pixelCount);
+        putEntry(header, 284, TYPE_SHORT, 1, 1);
+        putEntry(header, 339, TYPE_SHORT, 1, 1);
+        putEntry(header, 33550, TYPE_DOUBLE, 3, pixelScaleOffset);
+        putEntry(header, 33922, TYPE_DOUBLE, 6, tiepointOffset);
+        putEntry(header, 34735, TYPE_SHORT, geoKeys.length, geoKeysOffset);
+        if (null != noDataString) {
+            putEntry(header, 42113, TYPE_ASCII, noDataString.length(), noDataOffset);
+        }
+        header.putInt(0);
+        header.putDouble(grid.getCellWidth()).putDouble(grid.getCellHeight()).putDouble(0);
+        header.putDouble(0).putDouble(0).putDouble(0)
+                .putDouble(grid.getMinX()).putDouble(grid.getMaxY()).putDouble(0);
+        for (short geoKey : geoKeys) {
+            header.putShort(geoKey);
+        }
+        if (null != noDataString) {
+            for (int i = 0; i < noDataString.length(); i++) {
+                header.put((byte) noDataString.charAt(i));
+            }
+        }
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(tiffFile));
+        try {
+            out.write(header.array());
+            out.write(grid.getValues());
+        } finally {
+            out.close();
+        }
+
+        FileWriter worldWriter = new FileWriter(getWorldFile(tiffFile));
+        try {
+            worldWriter.write(grid.getCellWidth() + "\n0.0\n0.0\n" + (-grid.getCellHeight()) + "\n"
+                    + (grid.getMinX() + grid.getCellWidth() / 2) + "\n"
+                    + (grid.getMaxY() - grid.getCellHeight() / 2) + "\n");
+        } finally {
+            worldWriter.close();
+        }
+    }
+
+    /**
+     * Returns the world file that write(...) writes beside a GeoTIFF.
+     *
+     * @param tiffFile the GeoTIFF file.
+     * @return the world file.
+     */
+    public static File getWorldFile(File tiffFile) {
+        String name = tiffFile.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(tiffFile.getParentFile(), (0 <= dot ? name.substring(0, dot) : name) + ".tfw");
+    }
+
+    private static void putEntry(ByteBuffer buffer, int tag, short type, int count, int value) {
+        buffer.putShort((short) tag).putShort(type).putInt(count);
+        if (TYPE_SHORT == type && 1 == count) {
+            buffer.putShort((short) value).putShort((short) 0);
+        } else {
+            buffer.putInt(value);
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A hashed timer wheel: one timer for many keyed deadlines. The wheel is a ring of slots, each
+ * covering one tick of time, and a deadline goes in the slot of its tick, however many turns of the
+ * wheel away that is. Scheduling, rescheduling and cancelling take constant time, and advancing the
+ * wheel looks only at the slots for the ticks that have passed, so thousands of deadlines cost no
+ * more than one periodic timer and a little memory.
+ * <p/>
+ * Each key has at most one deadline; scheduling a key again replaces its deadline. Deadlines are
+ * rounded up to whole ticks, so a key expires up to one tick late but never early.
+ *
+ * @param <K> the type of the keys.
+ */
+public class HashedTimerWheel<K> {
+
+    private static class Entry<K> {
+        final K key;
+        long deadlineTick;
+        int slot;
+        Entry<K> previous;
+        Entry<K> next;
+
+        Entry(K key) {
+            this.key = key;
+        }
+    }
+
+    private final long tickMillis;
+    private final Entry<K>[] slots;
+    private final int mask;
+    private final HashMap<K, Entry<K>> entries = new HashMap<K, Entry<K>>();
+    private long currentTick;
+
+    /**
+     * Creates a wheel.
+     *
+     * @param tickMillis  the length of a tick in milliseconds.
+     * @param wheelSize   the number of slots, which is rounded up to a power of two.
+     * @param startMillis the current time in milliseconds.
+     */
+    @SuppressWarnings("unchecked")
+    public HashedTimerWheel(long tickMillis, int wheelSize, long startMillis) {
+        if (0 >= tickMillis || 0 >= wheelSize) {
+            throw new IllegalArgumentException("Tick length and wheel size must be positive");
+        }
+        this.tickMillis = tickMillis;
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+        slots = (Entry<K>[]) new Entry<?>[size];
+        mask = size - 1;
+        currentTick = startMillis / tickMillis;
+    }
+
+    /**
+     * Schedules a key, replacing any deadline it already has.
+     *
+     * @param key            the key.
+     * @param deadlineMillis the time in milliseconds at which the key expires.
+     */
+    public void schedule(K key, long deadlineMillis) {
+        Entry<K> entry = entries.get(key);
+        if (null == entry) {
+            entry = new Entry<K>(key);
+            entries.put(key, entry);
+        } else {
+            unlink(entry);
+        }
+        // Round up, and never into a tick that has already been processed
+        entry.deadlineTick = Math.max(currentTick + 1, (deadlineMillis + tickMillis - 1) / tickMillis);
+        entry.slot = (int) (entry.deadlineTick & mask);
+        entry.previous = null;
+        entry.next = slots[entry.slot];
+        if (null != entry.next) {
+            entry.next.previous = entry;
+        }
+        slots[entry.slot] = entry;
+    }
+
+    /**
+     * Cancels a key's deadline.
+     *
+     * @param key the key.
+     * @return true if the key had a deadline.
+     */
+    public boolean cancel(K key) {
+        Entry<K> entry = entries.remove(key);
+        if (null == entry) {
+            return false;
+        }
+        unlink(entry);
+        return true;
+    }
+
+    /**
+     * @return the number of keys with deadlines.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Cancels all deadlines.
+     */
+    public void clear() {
+        entries.clear();
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = null;
+        }
+    }
+
+    /**
+     * Advances the wheel to a time and removes the keys whose deadlines have passed.
+     *
+     * @param nowMillis the current time in milliseconds.
+     * @param expired   a list to which the expired keys are added.
+     * @return the number of keys that expired.
+     */
+    public int advance(long nowMillis, List<K> expired) {
+        long nowTick = nowMillis / tickMillis;
+        int count = 0;
+        if (nowTick - currentTick >= slots.length) {
+            // The wheel has turned all the way round at least once, so check every slot once
+            for (int slot = 0; slot < slots.length; slot++) {
+                count += expireSlot(slot, nowTick, expired);
+            }
+            currentTick = nowTick;
+        }
+        while (currentTick < nowTick) {
+            currentTick++;
+            count += expireSlot((int) (currentTick & mask), currentTick, expired);
+        }
+        return count;
+    }
+
+    private int expireSlot(int slot, long tick, List<K> expired) {
+        int count = 0;
+        Entry<K> entry = slots[slot];
+        while (null != entry) {
+            Entry<K> next = entry.next;
+            if (entry.deadlineTick <= tick) {
+                unlink(entry);
+                entries.remove(entry.key);
+                expired.add(entry.key);
+                count++;
+            }
+            entry = next;
+        }
+        return count;
+    }
+
+    private void unlink(Entry<K> entry) {
+        if (null == entry.previous) {
+            if (slots[entry.slot] == entry) {
+                slots[entry.slot] = entry.next;
+            }
+        } else {
+            entry.previous.next = entry.next;
+        }
+        if (null != entry.next) {
+            entry.next.previous = entry.previous;
+        }
+        entry.previous = null;
+        entry.next = null;
+    }
+
+}
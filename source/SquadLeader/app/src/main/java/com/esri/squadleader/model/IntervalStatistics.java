@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+/**
+ * Running statistics over a series of time intervals: count, mean, standard deviation, minimum and
+ * maximum. Adding an interval takes constant time and memory, using Welford's method for the mean
+ * and variance.
+ * <p/>
+ * IntervalStatistics is thread-safe.
+ */
+public class IntervalStatistics {
+
+    private long count = 0;
+    private double mean = 0;
+    private double sumOfSquares = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+
+    /**
+     * Adds an interval.
+     *
+     * @param intervalMillis the interval in milliseconds.
+     */
+    public synchronized void add(long intervalMillis) {
+        count++;
+        double delta = intervalMillis - mean;
+        mean += delta / count;
+        sumOfSquares += delta * (intervalMillis - mean);
+        min = Math.min(min, intervalMillis);
+        max = Math.max(max, intervalMillis);
+    }
+
+    /**
+     * @return the number of intervals.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the mean interval in milliseconds, or NaN if there are no intervals.
+     */
+    public synchronized double getMean() {
+        return 0 == count ? Double.NaN : mean;
+    }
+
+    /**
+     * @return the standard deviation of the intervals in milliseconds, or NaN if there are fewer
+     * than two intervals.
+     */
+    public synchronized double getStandardDeviation() {
+        return 2 > count ? Double.NaN : Math.sqrt(sumOfSquares / (count - 1));
+    }
+
+    /**
+     * @return the shortest interval in milliseconds, or 0 if there are no intervals.
+     */
+    public synchronized long getMin() {
+        return 0 == count ? 0 : min;
+    }
+
+    /**
+     * @return the longest interval in milliseconds, or 0 if there are no intervals.
+     */
+    public synchronized long getMax() {
+        return 0 == count ? 0 : max;
+    }
+
+    /**
+     * Forgets all intervals.
+     */
+    public synchronized void reset() {
+        count = 0;
+        mean = 0;
+        sumOfSquares = 0;
+        min = Long.MAX_VALUE;
+        max = Long.MIN_VALUE;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d intervals, mean %.0f ms, standard deviation %.0f ms, min %d ms, max %d ms",
+                count, getMean(), getStandardDeviation(), getMin(), getMax());
+    }
+
+}
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import com.esri.militaryapps.model.Location;
+
+import java.util.Calendar;
+
+/**
+ * Smooths a stream of location fixes with a constant-velocity Kalman filter and suppresses fixes
+ * that barely move. Position and velocity are filtered in a local east-north plane in meters, with
+ * one independent two-state filter per axis. Each fix's accuracy is its measurement noise, so
+ * poor fixes move the estimate less than good ones.
+ * <p/>
+ * A filtered fix that lies within the minimum move of the last fix that was passed on is
+ * suppressed, unless the maximum silence has passed since then, so that a stationary unit still
+ * reports its location now and then.
+ * <p/>
+ * KalmanLocationFilter is thread-safe.
+ */
+public class KalmanLocationFilter {
+
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+    private static final double REANCHOR_DISTANCE_METERS = 10000;
+    private static final long MAX_GAP_MILLIS = 60000;
+
+    /**
+     * The accuracy, in meters, assumed for a fix that does not report one.
+     */
+    public static final double DEFAULT_ACCURACY_METERS = 10;
+
+    private final double accelerationNoise;
+    private final double initialVelocityVariance;
+    private final double minMoveMeters;
+    private final long maxSilenceMillis;
+
+    private boolean initialized = false;
+    private double originLongitude;
+    private double originLatitude;
+    private double metersPerDegreeLongitude;
+    private long lastTime;
+    // State and covariance for east (x) and north (y): position, velocity, and P = [[a, b], [b, c]]
+    private final double[] x = new double[2];
+    private final double[] y = new double[2];
+    private final double[] px = new double[3];
+    private final double[] py = new double[3];
+    private boolean hasEmitted = false;
+    private double emittedX;
+    private double emittedY;
+    private long emittedTime;
+
+    /**
+     * Creates a filter.
+     *
+     * @param accelerationNoise the expected acceleration of the unit in meters per second squared,
+     *                          which is how quickly the filter lets velocity change.
+     * @param maxSpeed          the expected maximum speed of the unit in meters per second. A new
+     *                          track starts with an unknown velocity of about this size, so the
+     *                          filter picks up the unit's speed within a few fixes.
+     * @param minMoveMeters     the distance that a filtered fix must move from the last fix passed
+     *                          on in order to be passed on, or 0 to pass on every fix.
+     * @param maxSilenceMillis  the longest time to go without passing on a fix.
+     */
+    public KalmanLocationFilter(double accelerationNoise, double maxSpeed, double minMoveMeters, long maxSilenceMillis) {
+        this.accelerationNoise = accelerationNoise;
+        this.initialVelocityVariance = maxSpeed * maxSpeed;
+        this.minMoveMeters = minMoveMeters;
+        this.maxSilenceMillis = maxSilenceMillis;
+    }
+
+    /**
+     * Filters a fix.
+     *
+     * @param longitude      the fix's longitude in degrees.
+     * @param latitude       the fix's latitude in degrees.
+     * @param timeMillis     the fix's time in milliseconds since the epoch.
+     * @param accuracyMeters the fix's horizontal accuracy in meters, or 0 or less if not known.
+     * @return the filtered location, with speed in miles per hour and heading in degrees clockwise
+     * from north, or null if the fix is suppressed.
+     */
+    public synchronized Location filter(double longitude, double latitude, long timeMillis, double accuracyMeters) {
+        double variance = 0 < accuracyMeters ? accuracyMeters * accuracyMeters : DEFAULT_ACCURACY_METERS * DEFAULT_ACCURACY_METERS;
+        long dtMillis = timeMillis - lastTime;
+        if (!initialized || MAX_GAP_MILLIS < dtMillis) {
+            anchor(longitude, latitude);
+            x[0] = 0;
+            x[1] = 0;
+            y[0] = 0;
+            y[1] = 0;
+            px[0] = variance;
+            px[1] = 0;
+            px[2] = initialVelocityVariance;
+            py[0] = variance;
+            py[1] = 0;
+            py[2] = initialVelocityVariance;
+            hasEmitted = false;
+            initialized = true;
+            lastTime = timeMillis;
+        } else {
+            double zx = (longitude - originLongitude) * metersPerDegreeLongitude;
+            double zy = (latitude - originLatitude) * Math.toRadians(EARTH_RADIUS_METERS);
+            if (0 < dtMillis) {
+                double dt = dtMillis / 1000.0;
+                predict(x, px, dt);
+                predict(y, py, dt);
+                lastTime = timeMillis;
+            }
+            update(x, px, zx, variance);
+            update(y, py, zy, variance);
+            if (REANCHOR_DISTANCE_METERS < Math.abs(x[0]) || REANCHOR_DISTANCE_METERS < Math.abs(y[0])) {
+                reanchor();
+            }
+        }
+        if (hasEmitted && timeMillis - emittedTime < maxSilenceMillis
+                && Math.hypot(x[0] - emittedX, y[0] - emittedY) < minMoveMeters) {
+            return null;
+        }
+        hasEmitted = true;
+        emittedX = x[0];
+        emittedY = y[0];
+        emittedTime = timeMillis;
+
+        Calendar timestamp = Calendar.getInstance();
+        timestamp.setTimeInMillis(timeMillis);
+        double speedMph = Math.hypot(x[1], y[1]) * 3600 / SpeedHeadingEstimator.METERS_PER_MILE;
+        double heading = (Math.toDegrees(Math.atan2(x[1], y[1])) + 360) % 360;
+        return new Location(
+                originLongitude + x[0] / metersPerDegreeLongitude,
+                originLatitude + y[0] / Math.toRadians(EARTH_RADIUS_METERS),
+                timestamp, speedMph, heading);
+    }
+
+    /**
+     * Forgets all fixes, so that the next fix starts a new track.
+     */
+    public synchronized void reset() {
+        initialized = false;
+        hasEmitted = false;
+    }
+
+    private void predict(double[] state, double[] p, double dt) {
+        state[0] += state[1] * dt;
+        double q = accelerationNoise * accelerationNoise;
+        double dt2 = dt * dt;
+        double a = p[0] + 2 * dt * p[1] + dt2 * p[2] + q * dt2 * dt2 / 4;
+        double b = p[1] + dt * p[2] + q * dt2 * dt / 2;
+        double c = p[2] + q * dt2;
+        p[0] = a;
+        p[1] = b;
+        p[2] = c;
+    }
+
+    private static void update(double[] state, double[] p, double measurement, double variance) {
+        double s = p[0] + variance;
+        double k0 = p[0] / s;
+        double k1 = p[1] / s;
+        double residual = measurement - state[0];
+        state[0] += k0 * residual;
+        state[1] += k1 * residual;
+        double a = (1 - k0) * p[0];
+        double b = (1 - k0) * p[1];
+        double c = p[2] - k1 * p[1];
+        p[0] = a;
+        p[1] = b;
+        p[2] = c;
+    }
+
+    private void anchor(double longitude, double latitude) {
+        originLongitude = longitude;
+        originLatitude = latitude;
+        metersPerDegreeLongitude = Math.toRadians(EARTH_RADIUS_METERS) * Math.max(0.01, Math.cos(Math.toRadians(latitude)));
+    }
+
+    /**
+     * Moves the local plane's origin to the current estimate, to keep the plane accurate.
+     */
+    private void reanchor() {
+        double longitude = originLongitude + x[0] / metersPerDegreeLongitude;
+        double latitude = originLatitude + y[0] / Math.toRadians(EARTH_RADIUS_METERS);
+        emittedX -= x[0];
+        emittedY -= y[0];
+        anchor(longitude, latitude);
+        x[0] = 0;
+        y[0] = 0;
+    }
+
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import com.esri.militaryapps.model.LayerInfo;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * The minscale and maxscale attributes of the layer elements in a mapconfig.xml file. Scales follow
+ * the ArcGIS convention: minscale is the largest scale denominator (the most zoomed out) at which a
+ * layer draws, maxscale is the smallest (the most zoomed in), and 0 means no limit.
+ * <p/>
+ * MapConfigReader does not read these attributes into LayerInfo, so LayerScaleRanges reads them in
+ * a separate pass over the same mapconfig.xml. A layer is matched to its LayerInfo by name and
+ * dataset path.
+ */
+public class LayerScaleRanges implements Serializable {
+
+    private static final long serialVersionUID = -3405853186530287423L;
+
+    private final HashMap<String, double[]> scaleRanges = new HashMap<String, double[]>();
+
+    /**
+     * Reads the scale ranges of the layers in a mapconfig.xml stream. The caller is responsible
+     * for closing the stream.
+     *
+     * @param mapConfigInputStream the mapconfig.xml stream.
+     * @return the scale ranges.
+     */
+    public static LayerScaleRanges read(InputStream mapConfigInputStream) throws ParserConfigurationException, SAXException, IOException {
+        final LayerScaleRanges ranges = new LayerScaleRanges();
+        SAXParserFactory.newInstance().newSAXParser().parse(mapConfigInputStream, new DefaultHandler() {
+
+            private final StringBuilder text = new StringBuilder();
+            private String layerName = null;
+            private String datasetPath = null;
+            private double minScale = 0;
+            private double maxScale = 0;
+
+            @Override
+            public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                text.setLength(0);
+                if ("layer".equals(qName)) {
+                    layerName = attributes.getValue("name");
+                    datasetPath = null;
+                    minScale = parseScale(attributes.getValue("minscale"));
+                    maxScale = parseScale(attributes.getValue("maxscale"));
+                }
+            }
+
+            @Override
+            public void characters(char[] ch, int start, int length) {
+                text.append(ch, start, length);
+            }
+
+            @Override
+            public void endElement(String uri, String localName, String qName) {
+                if ("datasetpath".equals(qName) || "url".equals(qName)) {
+                    datasetPath = text.toString().trim();
+                } else if ("layer".equals(qName)) {
+                    if (0 != minScale || 0 != maxScale) {
+                        ranges.scaleRanges.put(getKey(layerName, datasetPath), new double[]{minScale, maxScale});
+                    }
+                    layerName = null;
+                }
+            }
+
+        });
+        return ranges;
+    }
+
+    private static double parseScale(String value) {
+        if (null == value) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Double.parseDouble(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String getKey(String layerName, String datasetPath) {
+        if (null != datasetPath && datasetPath.startsWith("file://")) {
+            datasetPath = datasetPath.substring("file://".length());
+        }
+        return layerName + "\n" + datasetPath;
+    }
+
+    /**
+     * Returns the scale range of a layer.
+     *
+     * @param layerInfo the layer.
+     * @return the layer's scale range as {minScale, maxScale}, or null if the layer has no scale
+     * range.
+     */
+    public double[] getScaleRange(LayerInfo layerInfo) {
+        return scaleRanges.get(getKey(layerInfo.getName(), layerInfo.getDatasetPath()));
+    }
+
+}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+/**
+ * Answers point-to-point line-of-sight questions on an ElevationRaster without building a
+ * viewshed. The sight line is sampled once per cell that it crosses, so a check costs time in
+ * proportion to the distance in cells, and no memory beyond the result. With a memory-mapped
+ * raster such as GeoTiffElevationRaster, only the pages under the sight line are read.
+ * <p/>
+ * LineOfSight is thread-safe if its raster is.
+ */
+public class LineOfSight {
+
+    /**
+     * The result of a line-of-sight check.
+     */
+    public static class Result {
+        private final boolean visible;
+        private final double obstructionX;
+        private final double obstructionY;
+        private final double obstructionZ;
+
+        Result(boolean visible, double obstructionX, double obstructionY, double obstructionZ) {
+            this.visible = visible;
+            this.obstructionX = obstructionX;
+            this.obstructionY = obstructionY;
+            this.obstructionZ = obstructionZ;
+        }
+
+        /**
+         * @return true if the observer can see the target.
+         */
+        public boolean isVisible() {
+            return visible;
+        }
+
+        /**
+         * @return the X coordinate of the first point where the terrain blocks the sight line, or
+         * NaN if the target is visible.
+         */
+        public double getObstructionX() {
+            return obstructionX;
+        }
+
+        /**
+         * @return the Y coordinate of the first point where the terrain blocks the sight line, or
+         * NaN if the target is visible.
+         */
+        public double getObstructionY() {
+            return obstructionY;
+        }
+
+        /**
+         * @return the terrain elevation at the obstruction, or NaN if the target is visible.
+         */
+        public double getObstructionZ() {
+            return obstructionZ;
+        }
+    }
+
+    private static final Result VISIBLE = new Result(true, Double.NaN, Double.NaN, Double.NaN);
+
+    private final ElevationRaster raster;
+
+    /**
+     * Creates a line-of-sight engine.
+     *
+     * @param raster the elevation raster.
+     */
+    public LineOfSight(ElevationRaster raster) {
+        this.raster = raster;
+    }
+
+    /**
+     * @return the elevation raster that this engine uses.
+     */
+    public ElevationRaster getRaster() {
+        return raster;
+    }
+
+    /**
+     * Checks whether an observer can see a target.
+     *
+     * @param observerX      the observer's X coordinate in the raster's spatial reference.
+     * @param observerY      the observer's Y coordinate in the raster's spatial reference.
+     * @param observerHeight the observer's height above the ground.
+     * @param targetX        the target's X coordinate in the raster's spatial reference.
+     * @param targetY        the target's Y coordinate in the raster's spatial reference.
+     * @param targetHeight   the target's height above the ground.
+     * @return the result.
+     * @throws IllegalArgumentException if the observer or target is outside the raster or on a
+     *                                  cell that has no elevation.
+     */
+    public Result check(double observerX, double observerY, double observerHeight,
+                        double targetX, double targetY, double targetHeight) throws IllegalArgumentException {
+        final double cellWidth = raster.getCellWidth();
+        final double cellHeight = raster.getCellHeight();
+        final double observerColumn = (observerX - raster.getMinX()) / cellWidth;
+        final double observerRow = (raster.getMaxY() - observerY) / cellHeight;
+        final double targetColumn = (targetX - raster.getMinX()) / cellWidth;
+        final double targetRow = (raster.getMaxY() - targetY) / cellHeight;
+        final double observerGround = raster.getValue((int) Math.floor(observerColumn), (int) Math.floor(observerRow));
+        final double targetGround = raster.getValue((int) Math.floor(targetColumn), (int) Math.floor(targetRow));
+        if (Double.isNaN(observerGround) || Double.isNaN(targetGround)) {
+            throw new IllegalArgumentException("The observer or target is outside the elevation raster or on a cell with no elevation");
+        }
+        final double observerZ = observerGround + observerHeight;
+        final double targetZ = targetGround + targetHeight;
+
+        final int steps = (int) Math.ceil(Math.max(Math.abs(targetColumn - observerColumn), Math.abs(targetRow - observerRow)));
+        for (int step = 1; step < steps; step++) {
+            double fraction = (double) step / steps;
+            double column = observerColumn + fraction * (targetColumn - observerColumn);
+            double row = observerRow + fraction * (targetRow - observerRow);
+            double terrainZ = raster.getValue((int) Math.floor(column), (int) Math.floor(row));
+            if (terrainZ > observerZ + fraction * (targetZ - observerZ)) {
+                return new Result(false,
+                        raster.getMinX() + column * cellWidth,
+                        raster.getMaxY() - row * cellHeight,
+                        terrainZ);
+            }
+        }
+        return VISIBLE;
+    }
+
+    /**
+     * Checks a batch of observer-target pairs.
+     *
+     * @param pairs          the pairs as {observerX, observerY, targetX, targetY, observerX, ...}
+     *                       in the raster's spatial reference.
+     * @param observerHeight the observers' height above the ground.
+     * @param targetHeight   the targets' height above the ground.
+     * @return one result per pair. A pair whose observer or target has no elevation gets a null
+     * result.
+     */
+    public Result[] check(double[] pairs, double observerHeight, double targetHeight) {
+        if (0 != pairs.length % 4) {
+            throw new IllegalArgumentException("Expected four coordinates per pair but got " + pairs.length + " coordinates");
+        }
+        Result[] results = new Result[pairs.length / 4];
+        for (int i = 0; i < results.length; i++) {
+            try {
+                results[i] = check(pairs[4 * i], pairs[4 * i + 1], observerHeight,
+                        pairs[4 * i + 2], pairs[4 * i + 3], targetHeight);
+            } catch (IllegalArgumentException e) {
+                results[i] = null;
+            }
+        }
+        return results;
+    }
+
+}
@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Keeps the number of messages on the map within a budget by evicting the least recently updated
+ * messages. There is an overall budget and an optional budget for each message type. Each message
+ * is kept in update order, overall and within its type, so finding the message to evict takes
+ * constant time.
+ * <p/>
+ * The budget counts messages whether or not a limit is set, so it can also report how many
+ * messages of each type are on the map.
+ */
+public class MessageBudget {
+
+    /**
+     * A listener for evictions.
+     */
+    public interface EvictionListener {
+
+        /**
+         * Called when a message is evicted. The message has already been forgotten by the budget
+         * when this method is called.
+         *
+         * @param id          the message ID.
+         * @param messageType the message type.
+         */
+        void evicted(String id, String messageType);
+
+    }
+
+    private final LinkedHashMap<String, String> typesById = new LinkedHashMap<String, String>();
+    private final HashMap<String, LinkedHashSet<String>> idsByType = new HashMap<String, LinkedHashSet<String>>();
+    private final HashMap<String, Integer> typeBudgets = new HashMap<String, Integer>();
+    private int totalBudget;
+
+    /**
+     * Creates a budget.
+     *
+     * @param totalBudget the most messages allowed, or 0 for no limit.
+     */
+    public MessageBudget(int totalBudget) {
+        setTotalBudget(totalBudget);
+    }
+
+    /**
+     * Sets the most messages allowed. Lowering the budget does not evict anything until the next
+     * update or call to trim.
+     *
+     * @param totalBudget the most messages allowed, or 0 for no limit.
+     */
+    public void setTotalBudget(int totalBudget) {
+        if (0 > totalBudget) {
+            throw new IllegalArgumentException("Budget must not be negative but was " + totalBudget);
+        }
+        this.totalBudget = totalBudget;
+    }
+
+    /**
+     * @return the most messages allowed, or 0 for no limit.
+     */
+    public int getTotalBudget() {
+        return totalBudget;
+    }
+
+    /**
+     * Sets the most messages of a type allowed. Lowering the budget does not evict anything until
+     * the next update or call to trim.
+     *
+     * @param messageType the message type.
+     * @param budget      the most messages of the type allowed, or 0 for no limit other than the
+     *                    total budget.
+     */
+    public void setTypeBudget(String messageType, int budget) {
+        if (0 > budget) {
+            throw new IllegalArgumentException("Budget must not be negative but was " + budget);
+        }
+        if (0 == budget) {
+            typeBudgets.remove(messageType);
+        } else {
+            typeBudgets.put(messageType, budget);
+        }
+    }
+
+    /**
+     * @return the most messages of a type allowed, or 0 if the type has no budget of its own.
+     */
+    public int getTypeBudget(String messageType) {
+        Integer budget = typeBudgets.get(messageType);
+        return null == budget ? 0 : budget;
+    }
+
+    /**
+     * Records that a message was added or updated, making it the most recently updated message,
+     * and evicts the least recently updated messages of its type and then overall until the
+     * budgets are met. The message just updated is never evicted.
+     *
+     * @param id          the message ID.
+     * @param messageType the message type.
+     * @param listener    the listener to tell about evictions.
+     * @return the number of messages evicted.
+     */
+    public int update(String id, String messageType, EvictionListener listener) {
+        remove(id);
+        typesById.put(id, messageType);
+        LinkedHashSet<String> ids = idsByType.get(messageType);
+        if (null == ids) {
+            ids = new LinkedHashSet<String>();
+            idsByType.put(messageType, ids);
+        }
+        ids.add(id);
+
+        return trimType(messageType, listener) + trimTotal(listener);
+    }
+
+    /**
+     * Evicts the least recently updated messages of each type and then overall until the budgets
+     * are met, as after lowering a budget.
+     *
+     * @param listener the listener to tell about evictions.
+     * @return the number of messages evicted.
+     */
+    public int trim(EvictionListener listener) {
+        int evicted = 0;
+        for (String messageType : new ArrayList<String>(typeBudgets.keySet())) {
+            evicted += trimType(messageType, listener);
+        }
+        return evicted + trimTotal(listener);
+    }
+
+    private int trimType(String messageType, EvictionListener listener) {
+        int evicted = 0;
+        int typeBudget = getTypeBudget(messageType);
+        LinkedHashSet<String> ids = idsByType.get(messageType);
+        while (0 < typeBudget && null != ids && ids.size() > typeBudget) {
+            evict(ids.iterator().next(), listener);
+            evicted++;
+        }
+        return evicted;
+    }
+
+    private int trimTotal(EvictionListener listener) {
+        int evicted = 0;
+        while (0 < totalBudget && typesById.size() > totalBudget) {
+            evict(typesById.keySet().iterator().next(), listener);
+            evicted++;
+        }
+        return evicted;
+    }
+
+    private void evict(String id, EvictionListener listener) {
+        String messageType = typesById.get(id);
+        remove(id);
+        listener.evicted(id, messageType);
+    }
+
+    /**
+     * Forgets a message.
+     *
+     * @param id the message ID.
+     * @return true if the budget knew the message.
+     */
+    public boolean remove(String id) {
+        String messageType = typesById.remove(id);
+        if (null == messageType) {
+            return false;
+        }
+        LinkedHashSet<String> ids = idsByType.get(messageType);
+        ids.remove(id);
+        if (ids.isEmpty()) {
+            idsByType.remove(messageType);
+        }
+        return true;
+    }
+
+    /**
+     * Forgets all messages.
+     */
+    public void clear() {
+        typesById.clear();
+        idsByType.clear();
+    }
+
+    /**
+     * @return the number of messages.
+     */
+    public int getCount() {
+        return typesById.size();
+    }
+
+    /**
+     * @return the number of messages of a type.
+     */
+    public int getCount(String messageType) {
+        LinkedHashSet<String> ids = idsByType.get(messageType);
+        return null == ids ? 0 : ids.size();
+    }
+
+    /**
+     * @return the IDs of the messages of a type, from least to most recently updated.
+     */
+    public ArrayList<String> getIds(String messageType) {
+        LinkedHashSet<String> ids = idsByType.get(messageType);
+        return null == ids ? new ArrayList<String>() : new ArrayList<String>(ids);
+    }
+
+    /**
+     * @return the number of messages of each type that has any.
+     */
+    public HashMap<String, Integer> getCountsByType() {
+        HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        for (Map.Entry<String, LinkedHashSet<String>> entry : idsByType.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().size());
+        }
+        return counts;
+    }
+
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+/**
+ * Decides when a moving observer has moved or turned enough to be worth a new analysis. The
+ * threshold remembers the position and heading of the last accepted analysis and reports whether a
+ * new position and heading differ from them by more than a distance or an angle.
+ */
+public class MovementThreshold {
+
+    private final double distance;
+    private final double headingDegrees;
+    private boolean hasLast = false;
+    private double lastX;
+    private double lastY;
+    private double lastHeading;
+
+    /**
+     * Creates a threshold.
+     *
+     * @param distance       the distance, in map units, that the observer must move.
+     * @param headingDegrees the angle, in degrees, that the observer must turn, or 0 or less to
+     *                       ignore heading.
+     */
+    public MovementThreshold(double distance, double headingDegrees) {
+        this.distance = distance;
+        this.headingDegrees = headingDegrees;
+    }
+
+    /**
+     * Returns true if the observer has moved or turned past the threshold since the last call to
+     * accept, or if accept has not been called since construction or the last call to clear.
+     *
+     * @param x       the observer's X coordinate.
+     * @param y       the observer's Y coordinate.
+     * @param heading the observer's heading in degrees, or NaN if not known.
+     * @return true if the threshold is exceeded.
+     */
+    public synchronized boolean isExceeded(double x, double y, double heading) {
+        if (!hasLast) {
+            return true;
+        }
+        double dx = x - lastX;
+        double dy = y - lastY;
+        if (dx * dx + dy * dy > distance * distance) {
+            return true;
+        }
+        if (0 < headingDegrees && !Double.isNaN(heading) && !Double.isNaN(lastHeading)) {
+            double turn = Math.abs(heading - lastHeading) % 360;
+            if (Math.min(turn, 360 - turn) > headingDegrees) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records the position and heading of a new analysis.
+     *
+     * @param x       the observer's X coordinate.
+     * @param y       the observer's Y coordinate.
+     * @param heading the observer's heading in degrees, or NaN if not known.
+     */
+    public synchronized void accept(double x, double y, double heading) {
+        hasLast = true;
+        lastX = x;
+        lastY = y;
+        lastHeading = heading;
+    }
+
+    /**
+     * Forgets the last analysis, so that the next call to isExceeded returns true.
+     */
+    public synchronized void clear() {
+        hasLast = false;
+    }
+
+}
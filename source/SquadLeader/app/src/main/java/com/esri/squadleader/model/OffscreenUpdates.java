@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds back updates to point messages that are outside the visible extent, keeping only the
+ * latest update for each message, and hands them back once the extent moves over them.
+ * <p/>
+ * An update is held back only if both its new position and the position at which the message is
+ * currently drawn are outside the extent. That way a symbol that is on screen always gets its
+ * updates, even if they move it off screen, and a symbol is never left on screen at a stale
+ * position.
+ *
+ * @param <K> the type of the message IDs.
+ * @param <V> the type of the updates.
+ */
+public class OffscreenUpdates<K, V> {
+
+    private static class PendingUpdate<V> {
+        final V update;
+        final double x;
+        final double y;
+
+        PendingUpdate(V update, double x, double y) {
+            this.update = update;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private final HashMap<K, double[]> drawnPositions = new HashMap<K, double[]>();
+    private final LinkedHashMap<K, PendingUpdate<V>> pendingUpdates = new LinkedHashMap<K, PendingUpdate<V>>();
+    private boolean hasExtent = false;
+    private double xmin;
+    private double ymin;
+    private double xmax;
+    private double ymax;
+
+    /**
+     * Sets the extent outside which updates are held back. This is normally the visible extent
+     * plus a buffer.
+     */
+    public void setExtent(double xmin, double ymin, double xmax, double ymax) {
+        this.xmin = xmin;
+        this.ymin = ymin;
+        this.xmax = xmax;
+        this.ymax = ymax;
+        hasExtent = true;
+    }
+
+    /**
+     * Forgets the extent, so that no updates are held back until setExtent is called again.
+     */
+    public void clearExtent() {
+        hasExtent = false;
+    }
+
+    private boolean isInExtent(double x, double y) {
+        return xmin <= x && x <= xmax && ymin <= y && y <= ymax;
+    }
+
+    private boolean isVisible(K id, double x, double y) {
+        if (isInExtent(x, y)) {
+            return true;
+        }
+        double[] drawn = drawnPositions.get(id);
+        return null != drawn && isInExtent(drawn[0], drawn[1]);
+    }
+
+    /**
+     * Returns true if an update that moves a message to a position should be held back.
+     *
+     * @param id the message ID.
+     * @param x  the new X coordinate.
+     * @param y  the new Y coordinate.
+     * @return true if the extent is set and neither the new position nor the drawn position of
+     * the message is in it.
+     */
+    public boolean shouldDefer(K id, double x, double y) {
+        return hasExtent && !isVisible(id, x, y);
+    }
+
+    /**
+     * Holds back an update, replacing any update already held back for the message.
+     *
+     * @param id     the message ID.
+     * @param update the update.
+     * @param x      the X coordinate to which the update moves the message.
+     * @param y      the Y coordinate to which the update moves the message.
+     */
+    public void defer(K id, V update, double x, double y) {
+        // Remove first so that the order of pending updates is the order of their latest arrival
+        pendingUpdates.remove(id);
+        pendingUpdates.put(id, new PendingUpdate<V>(update, x, y));
+    }
+
+    /**
+     * Records that a message has been drawn at a position, and drops any update held back for it,
+     * since the drawn state is newer.
+     *
+     * @param id the message ID.
+     * @param x  the X coordinate.
+     * @param y  the Y coordinate.
+     */
+    public void drawn(K id, double x, double y) {
+        pendingUpdates.remove(id);
+        double[] position = drawnPositions.get(id);
+        if (null == position) {
+            drawnPositions.put(id, new double[]{x, y});
+        } else {
+            position[0] = x;
+            position[1] = y;
+        }
+    }
+
+    /**
+     * @return true if an update is held back for the message.
+     */
+    public boolean hasPending(K id) {
+        return pendingUpdates.containsKey(id);
+    }
+
+    /**
+     * @return true if the message has been drawn and not forgotten since.
+     */
+    public boolean isDrawn(K id) {
+        return drawnPositions.containsKey(id);
+    }
+
+    /**
+     * Forgets a message's drawn position and any update held back for it.
+     *
+     * @param id the message ID.
+     */
+    public void forget(K id) {
+        drawnPositions.remove(id);
+        pendingUpdates.remove(id);
+    }
+
+    /**
+     * Removes the held-back updates that are no longer off screen, because the new position or the
+     * drawn position of the message is now in the extent, and adds them to a list in the order in
+     * which they arrived.
+     *
+     * @param updates the list to which to add the updates.
+     * @return the number of updates added.
+     */
+    public int takeVisible(List<V> updates) {
+        if (!hasExtent) {
+            return takeAll(updates);
+        }
+        int count = 0;
+        Iterator<Map.Entry<K, PendingUpdate<V>>> it = pendingUpdates.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<K, PendingUpdate<V>> entry = it.next();
+            PendingUpdate<V> pending = entry.getValue();
+            if (isVisible(entry.getKey(), pending.x, pending.y)) {
+                updates.add(pending.update);
+                it.remove();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Removes all held-back updates and adds them to a list in the order in which they arrived.
+     *
+     * @param updates the list to which to add the updates.
+     * @return the number of updates added.
+     */
+    public int takeAll(List<V> updates) {
+        int count = pendingUpdates.size();
+        for (PendingUpdate<V> pending : pendingUpdates.values()) {
+            updates.add(pending.update);
+        }
+        pendingUpdates.clear();
+        return count;
+    }
+
+    /**
+     * @return the number of updates held back.
+     */
+    public int getPendingCount() {
+        return pendingUpdates.size();
+    }
+
+    /**
+     * Forgets all drawn positions and held-back updates.
+     */
+    public void clear() {
+        drawnPositions.clear();
+        pendingUpdates.clear();
+    }
+
+}
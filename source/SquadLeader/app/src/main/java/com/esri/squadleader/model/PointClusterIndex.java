@@ -0,0 +1,312 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A grid index that groups points into clusters. Each cluster is one square cell of the grid,
+ * and the cell size is normally chosen to be a fixed number of screen pixels at the current map
+ * resolution, so that clusters break apart as the user zooms in.
+ * <p/>
+ * The index is incremental: adding, moving, or removing a point updates only the cells involved
+ * and marks them dirty, so that a renderer can redraw only the clusters that changed. Changing the
+ * cell size rebuilds the grid and marks every cell dirty.
+ *
+ * @param <K> the type of the point IDs.
+ */
+public class PointClusterIndex<K> {
+
+    /**
+     * A cluster of one or more points in a grid cell.
+     */
+    public static class Cluster<K> {
+        private final long cellKey;
+        private final ArrayList<K> members = new ArrayList<K>();
+        private double sumX = 0;
+        private double sumY = 0;
+
+        Cluster(long cellKey) {
+            this.cellKey = cellKey;
+        }
+
+        /**
+         * @return the key of the grid cell that this cluster occupies.
+         */
+        public long getCellKey() {
+            return cellKey;
+        }
+
+        /**
+         * @return the number of points in this cluster.
+         */
+        public int getCount() {
+            return members.size();
+        }
+
+        /**
+         * @return the X coordinate of the centroid of this cluster's points.
+         */
+        public double getX() {
+            return sumX / members.size();
+        }
+
+        /**
+         * @return the Y coordinate of the centroid of this cluster's points.
+         */
+        public double getY() {
+            return sumY / members.size();
+        }
+
+        /**
+         * @return the ID of one of the points in this cluster.
+         */
+        public K getRepresentativeId() {
+            return members.isEmpty() ? null : members.get(0);
+        }
+    }
+
+    private static class IndexedPoint {
+        double x;
+        double y;
+        long cellKey;
+        int memberIndex;
+    }
+
+    private final HashMap<K, IndexedPoint> points = new HashMap<K, IndexedPoint>();
+    private final HashMap<Long, Cluster<K>> cells = new HashMap<Long, Cluster<K>>();
+    private final HashSet<Long> dirtyCells = new HashSet<Long>();
+    private double cellSize;
+
+    /**
+     * Creates an empty index.
+     *
+     * @param cellSize the initial cell size in map units.
+     */
+    public PointClusterIndex(double cellSize) {
+        if (0 >= cellSize) {
+            throw new IllegalArgumentException("Cell size must be positive");
+        }
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * @return the current cell size in map units.
+     */
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Sets the cell size and rebuilds the grid if the size changed.
+     *
+     * @param cellSize the cell size in map units.
+     * @return true if the grid was rebuilt, in which case every cell that existed before or exists
+     * now is dirty.
+     */
+    public boolean setCellSize(double cellSize) {
+        if (0 >= cellSize) {
+            throw new IllegalArgumentException("Cell size must be positive");
+        }
+        if (cellSize == this.cellSize) {
+            return false;
+        }
+        this.cellSize = cellSize;
+        dirtyCells.addAll(cells.keySet());
+        cells.clear();
+        for (K id : points.keySet()) {
+            IndexedPoint point = points.get(id);
+            point.cellKey = getCellKey(point.x, point.y);
+            addToCell(id, point);
+        }
+        return true;
+    }
+
+    /**
+     * Adds a point or moves an existing point.
+     *
+     * @param id the point ID.
+     * @param x  the X coordinate in map units.
+     * @param y  the Y coordinate in map units.
+     */
+    public void update(K id, double x, double y) {
+        IndexedPoint point = points.get(id);
+        if (null != point) {
+            if (point.x == x && point.y == y) {
+                return;
+            }
+            removeFromCell(id, point);
+        } else {
+            point = new IndexedPoint();
+            points.put(id, point);
+        }
+        point.x = x;
+        point.y = y;
+        point.cellKey = getCellKey(x, y);
+        addToCell(id, point);
+    }
+
+    /**
+     * Removes a point.
+     *
+     * @param id the point ID.
+     * @return true if the point was in the index.
+     */
+    public boolean remove(K id) {
+        IndexedPoint point = points.remove(id);
+        if (null == point) {
+            return false;
+        }
+        removeFromCell(id, point);
+        return true;
+    }
+
+    /**
+     * Removes all points. Every cell that existed becomes dirty.
+     */
+    public void clear() {
+        dirtyCells.addAll(cells.keySet());
+        cells.clear();
+        points.clear();
+    }
+
+    /**
+     * @return the number of points in the index.
+     */
+    public int size() {
+        return points.size();
+    }
+
+    /**
+     * Returns the cluster in a cell.
+     *
+     * @param cellKey the cell key.
+     * @return the cluster, or null if the cell is empty.
+     */
+    public Cluster<K> getCluster(long cellKey) {
+        return cells.get(cellKey);
+    }
+
+    /**
+     * @return all of the clusters.
+     */
+    public List<Cluster<K>> getClusters() {
+        return new ArrayList<Cluster<K>>(cells.values());
+    }
+
+    /**
+     * Returns the clusters whose cells intersect an extent.
+     *
+     * @return the clusters.
+     */
+    public List<Cluster<K>> getClusters(double xmin, double ymin, double xmax, double ymax) {
+        ArrayList<Cluster<K>> clusters = new ArrayList<Cluster<K>>();
+        double colMinD = Math.floor(xmin / cellSize);
+        double colMaxD = Math.floor(xmax / cellSize);
+        double rowMinD = Math.floor(ymin / cellSize);
+        double rowMaxD = Math.floor(ymax / cellSize);
+        long colMin = (long) colMinD;
+        long colMax = (long) colMaxD;
+        long rowMin = (long) rowMinD;
+        long rowMax = (long) rowMaxD;
+        if ((colMaxD - colMinD + 1) * (rowMaxD - rowMinD + 1) > cells.size()) {
+            // The extent covers more cells than are occupied, so scan the occupied cells instead
+            for (Cluster<K> cluster : cells.values()) {
+                long col = getColumn(cluster.cellKey);
+                long row = getRow(cluster.cellKey);
+                if (colMin <= col && col <= colMax && rowMin <= row && row <= rowMax) {
+                    clusters.add(cluster);
+                }
+            }
+        } else {
+            for (long col = colMin; col <= colMax; col++) {
+                for (long row = rowMin; row <= rowMax; row++) {
+                    Cluster<K> cluster = cells.get(toCellKey(col, row));
+                    if (null != cluster) {
+                        clusters.add(cluster);
+                    }
+                }
+            }
+        }
+        return clusters;
+    }
+
+    /**
+     * Returns the cells that have changed since the last call to this method and then forgets
+     * them. A dirty cell might now be empty, in which case getCluster returns null for it.
+     *
+     * @return the dirty cell keys.
+     */
+    public Set<Long> takeDirtyCells() {
+        HashSet<Long> dirty = new HashSet<Long>(dirtyCells);
+        dirtyCells.clear();
+        return dirty;
+    }
+
+    private void addToCell(K id, IndexedPoint point) {
+        Cluster<K> cluster = cells.get(point.cellKey);
+        if (null == cluster) {
+            cluster = new Cluster<K>(point.cellKey);
+            cells.put(point.cellKey, cluster);
+        }
+        point.memberIndex = cluster.members.size();
+        cluster.members.add(id);
+        cluster.sumX += point.x;
+        cluster.sumY += point.y;
+        dirtyCells.add(point.cellKey);
+    }
+
+    private void removeFromCell(K id, IndexedPoint point) {
+        Cluster<K> cluster = cells.get(point.cellKey);
+        if (null == cluster) {
+            return;
+        }
+        // Move the cell's last member into the removed point's slot, so that removal takes constant time
+        K last = cluster.members.remove(cluster.members.size() - 1);
+        if (!id.equals(last)) {
+            cluster.members.set(point.memberIndex, last);
+            points.get(last).memberIndex = point.memberIndex;
+        }
+        if (cluster.members.isEmpty()) {
+            cells.remove(point.cellKey);
+        } else {
+            cluster.sumX -= point.x;
+            cluster.sumY -= point.y;
+        }
+        dirtyCells.add(point.cellKey);
+    }
+
+    private long getCellKey(double x, double y) {
+        return toCellKey((long) Math.floor(x / cellSize), (long) Math.floor(y / cellSize));
+    }
+
+    private static long toCellKey(long col, long row) {
+        return (col << 32) ^ (row & 0xffffffffL);
+    }
+
+    private static long getColumn(long cellKey) {
+        return cellKey >> 32;
+    }
+
+    private static long getRow(long cellKey) {
+        return (int) cellKey;
+    }
+
+}
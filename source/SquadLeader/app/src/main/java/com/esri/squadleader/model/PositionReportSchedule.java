@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import com.esri.militaryapps.model.Location;
+
+import java.util.Random;
+
+/**
+ * Decides when to send position reports. In fixed mode, reports go out at a constant interval.
+ * In adaptive mode, the interval is bounded by a minimum and a maximum: a report goes out as soon
+ * as the minimum allows once the unit has moved or turned significantly since the last report, and
+ * while the unit does not move, the interval doubles after each report up to the maximum.
+ * <p/>
+ * So that devices that start together do not report together, the first report after start is
+ * delayed by a random part of the interval, and each later interval is stretched or shrunk by a
+ * random fraction no bigger than the jitter fraction. In adaptive mode, the jitter is applied after
+ * the interval is bounded by the minimum and maximum, so that it is spread evenly around the
+ * bounded interval.
+ * <p/>
+ * The schedule only decides; the caller sends the reports and tells the schedule when it has. The
+ * schedule keeps statistics on the intervals between the reports that were sent.
+ * <p/>
+ * PositionReportSchedule is thread-safe.
+ */
+public class PositionReportSchedule {
+
+    /**
+     * The jitter fraction of a schedule created without one.
+     */
+    public static final double DEFAULT_JITTER_FRACTION = 0.1;
+
+    private final long maxIntervalMillis;
+    private final double distanceMeters;
+    private final double headingDegrees;
+    private final double jitterFraction;
+    private final Random random;
+    private final IntervalStatistics intervalStatistics = new IntervalStatistics();
+
+    private long minIntervalMillis;
+    private boolean adaptive = false;
+    private long intervalMillis;
+    private long startTime = Long.MIN_VALUE;
+    private long lastSendTime = Long.MIN_VALUE;
+    private Location lastReported = null;
+    private boolean significantChange = false;
+    private double jitter = 0;
+    private long phaseDelayMillis = -1;
+
+    /**
+     * Creates a schedule in fixed mode with a jitter fraction of DEFAULT_JITTER_FRACTION.
+     *
+     * @see #PositionReportSchedule(long, long, double, double, double, Random)
+     */
+    public PositionReportSchedule(long minIntervalMillis, long maxIntervalMillis, double distanceMeters, double headingDegrees) {
+        this(minIntervalMillis, maxIntervalMillis, distanceMeters, headingDegrees, DEFAULT_JITTER_FRACTION, new Random());
+    }
+
+    /**
+     * Creates a schedule in fixed mode.
+     *
+     * @param minIntervalMillis the interval in fixed mode and the minimum interval in adaptive
+     *                          mode.
+     * @param maxIntervalMillis the maximum interval in adaptive mode.
+     * @param distanceMeters    how far the unit must move from the last reported position to be
+     *                          reported early in adaptive mode.
+     * @param headingDegrees    how far the unit must turn from the last reported heading to be
+     *                          reported early in adaptive mode.
+     * @param jitterFraction    the largest fraction, from 0 to 0.5, by which an interval is randomly
+     *                          stretched or shrunk.
+     * @param random            the source of random phase offsets and jitter.
+     */
+    public PositionReportSchedule(long minIntervalMillis, long maxIntervalMillis, double distanceMeters, double headingDegrees,
+                                  double jitterFraction, Random random) {
+        if (0 >= minIntervalMillis || minIntervalMillis > maxIntervalMillis) {
+            throw new IllegalArgumentException("Intervals must be positive and min must not exceed max");
+        }
+        if (!(0 <= jitterFraction && jitterFraction <= 0.5)) {
+            throw new IllegalArgumentException("Jitter fraction must be from 0 to 0.5 but was " + jitterFraction);
+        }
+        this.jitterFraction = jitterFraction;
+        this.random = random;
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+        this.distanceMeters = distanceMeters;
+        this.headingDegrees = headingDegrees;
+        intervalMillis = minIntervalMillis;
+    }
+
+    /**
+     * Sets the interval in fixed mode, which is also the minimum interval in adaptive mode. It is
+     * capped at the maximum interval.
+     *
+     * @param minIntervalMillis the interval in milliseconds. It must be positive.
+     */
+    public synchronized void setMinInterval(long minIntervalMillis) {
+        if (0 >= minIntervalMillis) {
+            throw new IllegalArgumentException("Interval must be positive but was " + minIntervalMillis);
+        }
+        this.minIntervalMillis = Math.min(minIntervalMillis, maxIntervalMillis);
+        intervalMillis = this.minIntervalMillis;
+    }
+
+    /**
+     * @return the interval in fixed mode and the minimum interval in adaptive mode.
+     */
+    public synchronized long getMinInterval() {
+        return minIntervalMillis;
+    }
+
+    /**
+     * Turns adaptive mode on or off.
+     *
+     * @param adaptive true for adaptive mode.
+     */
+    public synchronized void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+        intervalMillis = minIntervalMillis;
+        significantChange = false;
+    }
+
+    /**
+     * @return true if the schedule is in adaptive mode.
+     */
+    public synchronized boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * @return the interval that follows the last report, before any early report.
+     */
+    public synchronized long getInterval() {
+        return intervalMillis;
+    }
+
+    /**
+     * Notes a new location. In adaptive mode, a location far enough from the last reported one
+     * makes the next report due as soon as the minimum interval allows.
+     *
+     * @param location the location.
+     * @return true if this location moved the next report earlier.
+     */
+    public synchronized boolean update(Location location) {
+        if (!adaptive || significantChange || intervalMillis == minIntervalMillis || null == location) {
+            return false;
+        }
+        significantChange = isSignificantChange(location);
+        return significantChange;
+    }
+
+    /**
+     * Returns when the next report is due.
+     *
+     * @return the time in milliseconds, or Long.MIN_VALUE if the next report is due right away
+     * because reporting has not been started.
+     */
+    public synchronized long getNextSendTime() {
+        if (Long.MIN_VALUE == lastSendTime) {
+            return 0 <= phaseDelayMillis ? startTime + phaseDelayMillis : Long.MIN_VALUE;
+        }
+        long interval = significantChange ? minIntervalMillis : intervalMillis;
+        if (adaptive) {
+            interval = Math.max(minIntervalMillis, Math.min(interval, maxIntervalMillis));
+        }
+        return lastSendTime + Math.round(interval * (1 + jitter));
+    }
+
+    /**
+     * Notes that reporting has started, and makes the first report due after a random part of the
+     * interval, so that devices started together report at different moments.
+     *
+     * @param timeMillis the time reporting started.
+     */
+    public synchronized void start(long timeMillis) {
+        reset();
+        intervalStatistics.reset();
+        startTime = timeMillis;
+        phaseDelayMillis = (long) (random.nextDouble() * intervalMillis);
+    }
+
+    /**
+     * Notes that a report was sent and works out the interval to the next one.
+     *
+     * @param location   the location that was reported, or null if not known.
+     * @param timeMillis the time the report was sent.
+     */
+    public synchronized void sent(Location location, long timeMillis) {
+        if (adaptive && null != lastReported && null != location && !significantChange && !isSignificantChange(location)) {
+            intervalMillis = Math.min(intervalMillis * 2, maxIntervalMillis);
+        } else {
+            intervalMillis = minIntervalMillis;
+        }
+        significantChange = false;
+        if (Long.MIN_VALUE != lastSendTime) {
+            intervalStatistics.add(timeMillis - lastSendTime);
+        }
+        lastSendTime = timeMillis;
+        jitter = (2 * random.nextDouble() - 1) * jitterFraction;
+        phaseDelayMillis = -1;
+        if (null != location) {
+            lastReported = location;
+        }
+    }
+
+    /**
+     * Forgets the reports sent so far, so that the next report is due right away. The interval
+     * statistics are kept.
+     */
+    public synchronized void reset() {
+        intervalMillis = minIntervalMillis;
+        significantChange = false;
+        startTime = Long.MIN_VALUE;
+        lastSendTime = Long.MIN_VALUE;
+        lastReported = null;
+        jitter = 0;
+        phaseDelayMillis = -1;
+    }
+
+    /**
+     * @return the statistics on the intervals between the reports that were sent since start was
+     * last called.
+     */
+    public IntervalStatistics getIntervalStatistics() {
+        return intervalStatistics;
+    }
+
+    private boolean isSignificantChange(Location location) {
+        if (null == lastReported) {
+            return true;
+        }
+        if (SpeedHeadingEstimator.calculateDistance(lastReported.getLongitude(), lastReported.getLatitude(),
+                location.getLongitude(), location.getLatitude()) > distanceMeters) {
+            return true;
+        }
+        double turn = Math.abs(location.getHeading() - lastReported.getHeading()) % 360;
+        return Math.min(turn, 360 - turn) > headingDegrees;
+    }
+
+}
@@ -0,0 +1,437 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.esri.core.geodatabase.ShapefileFeatureTable;
+import com.esri.core.geometry.Envelope;
+import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.SpatialReference;
+import com.esri.core.map.Feature;
+import com.esri.core.map.FeatureResult;
+import com.esri.core.map.Field;
+import com.esri.core.tasks.query.QueryParameters;
+import com.esri.squadleader.util.ProgressListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Converts shapefiles to GeoPackages with a spatial index, so that a shapefile can be converted
+ * once and then opened through the faster GeoPackage path with R-tree lookups. Features are read
+ * from the shapefile in pages of object IDs and written in large transactions, so the whole
+ * shapefile is never in memory at once.
+ * <p/>
+ * The path of the source shapefile is recorded in the description column of the GeoPackage's
+ * gpkg_contents table.
+ */
+public class ShapefileToGeoPackageConverter {
+
+    private static final String TAG = ShapefileToGeoPackageConverter.class.getSimpleName();
+    private static final String ID_COLUMN = "fid";
+    private static final String GEOMETRY_COLUMN = "geom";
+    private static final int PAGE_SIZE = 1000;
+    private static final int TRANSACTION_SIZE = 10000;
+    private static final int GPKG_APPLICATION_ID = 0x47504B47;
+    private static final int GPKG_USER_VERSION = 10200;
+    private static final int CUSTOM_SRS_ID = 100000;
+    private static final String[] SHAPEFILE_EXTENSIONS = {".shp", ".shx", ".dbf", ".prj"};
+
+    private final File outputDirectory;
+
+    /**
+     * Creates a converter.
+     *
+     * @param outputDirectory the directory where converted GeoPackages are stored. It is created
+     *                        if it does not exist.
+     */
+    public ShapefileToGeoPackageConverter(File outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Returns the GeoPackage file to which a shapefile is or will be converted. The file might not
+     * exist yet.
+     *
+     * @param shapefilePath the path of the .shp file.
+     * @return the GeoPackage file.
+     */
+    public File getGeoPackageFile(String shapefilePath) {
+        File shapefile = new File(shapefilePath);
+        String name = getBaseName(shapefile);
+        // Include a hash of the full path so that shapefiles with the same name don't collide
+        return new File(outputDirectory, name + "_" + Integer.toHexString(shapefile.getAbsolutePath().hashCode()) + ".gpkg");
+    }
+
+    /**
+     * Returns true if a shapefile has already been converted and none of its files have changed
+     * since then.
+     *
+     * @param shapefilePath the path of the .shp file.
+     * @return true if the converted GeoPackage exists and is up to date.
+     */
+    public boolean isConverted(String shapefilePath) {
+        File gpkgFile = getGeoPackageFile(shapefilePath);
+        return gpkgFile.exists() && gpkgFile.lastModified() >= getLastModified(shapefilePath);
+    }
+
+    private static long getLastModified(String shapefilePath) {
+        File shapefile = new File(shapefilePath);
+        String base = getBaseName(shapefile);
+        long lastModified = shapefile.lastModified();
+        for (String extension : SHAPEFILE_EXTENSIONS) {
+            File file = new File(shapefile.getParentFile(), base + extension);
+            lastModified = Math.max(lastModified, file.lastModified());
+        }
+        return lastModified;
+    }
+
+    private static String getBaseName(File file) {
+        String name = file.getName();
+        int dotIndex = name.lastIndexOf('.');
+        return 0 < dotIndex ? name.substring(0, dotIndex) : name;
+    }
+
+    /**
+     * Creates a task that converts a shapefile to a GeoPackage with a spatial index. Run the task
+     * on a background thread. The GeoPackage is written to a temporary file that replaces any
+     * previous conversion only when the conversion succeeds.
+     *
+     * @param shapefilePath    the path of the .shp file.
+     * @param progressListener a listener for progress updates, in features. May be null.
+     * @return a task whose result is the GeoPackage file.
+     */
+    public FutureTask<File> convert(final String shapefilePath, final ProgressListener progressListener) {
+        return new FutureTask<>(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                final File gpkgFile = getGeoPackageFile(shapefilePath);
+                final File tempFile = new File(outputDirectory, gpkgFile.getName() + ".tmp");
+                if (!outputDirectory.exists() && !outputDirectory.mkdirs()) {
+                    throw new IOException("Could not create directory " + outputDirectory.getAbsolutePath());
+                }
+                deleteDatabase(tempFile);
+
+                ShapefileFeatureTable shapefileTable = new ShapefileFeatureTable(shapefilePath);
+                SQLiteDatabase db = null;
+                try {
+                    db = SQLiteDatabase.openOrCreateDatabase(tempFile, null);
+                    writeFeatures(shapefileTable, shapefilePath, db, progressListener);
+                    db.close();
+                    db = null;
+                    deleteDatabase(gpkgFile);
+                    if (!tempFile.renameTo(gpkgFile)) {
+                        throw new IOException("Could not rename " + tempFile.getAbsolutePath() + " to " + gpkgFile.getAbsolutePath());
+                    }
+                    return gpkgFile;
+                } catch (Exception e) {
+                    if (null != db) {
+                        db.close();
+                    }
+                    deleteDatabase(tempFile);
+                    throw e;
+                } finally {
+                    shapefileTable.dispose();
+                }
+            }
+        });
+    }
+
+    private static void deleteDatabase(File file) {
+        // SQLiteDatabase.deleteDatabase requires API level 16
+        for (File f : new File[]{file, new File(file.getPath() + "-journal")}) {
+            if (f.exists() && !f.delete()) {
+                Log.w(TAG, "Could not delete " + f.getAbsolutePath());
+            }
+        }
+    }
+
+    private static void writeFeatures(ShapefileFeatureTable shapefileTable, String shapefilePath, SQLiteDatabase db,
+                                      ProgressListener progressListener) throws Exception {
+        String tableName = sanitizeName(getBaseName(new File(shapefilePath)));
+        SpatialReference sr = shapefileTable.getSpatialReference();
+        int srsId = createCoreTables(db, sr);
+        String geometryTypeName = getGeometryTypeName(shapefileTable.getGeometryType());
+        boolean multi = geometryTypeName.startsWith("MULTI");
+
+        // Create the feature table with a column for each shapefile field
+        List<Field> fields = new ArrayList<Field>();
+        List<String> columnNames = new ArrayList<String>();
+        StringBuilder createTable = new StringBuilder("CREATE TABLE ").append(GeoPackageReader.quoteIdentifier(tableName))
+                .append(" (").append(ID_COLUMN).append(" INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, ")
+                .append(GEOMETRY_COLUMN).append(' ').append(geometryTypeName);
+        for (Field field : shapefileTable.getFields()) {
+            String sqlType = getSqlType(field);
+            if (null == sqlType) {
+                continue;
+            }
+            String columnName = field.getName();
+            while (ID_COLUMN.equalsIgnoreCase(columnName) || GEOMETRY_COLUMN.equalsIgnoreCase(columnName)
+                    || containsIgnoreCase(columnNames, columnName)) {
+                columnName += "_";
+            }
+            fields.add(field);
+            columnNames.add(columnName);
+            createTable.append(", ").append(GeoPackageReader.quoteIdentifier(columnName)).append(' ').append(sqlType);
+        }
+        createTable.append(')');
+        db.execSQL(createTable.toString());
+        db.execSQL("INSERT INTO gpkg_geometry_columns (table_name, column_name, geometry_type_name, srs_id, z, m) VALUES (?, ?, ?, ?, 0, 0)",
+                new Object[]{tableName, GEOMETRY_COLUMN, geometryTypeName, srsId});
+
+        String rtreeName = GeoPackageReader.getRtreeName(tableName, GEOMETRY_COLUMN);
+        SQLiteStatement rtreeInsert = null;
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE " + GeoPackageReader.quoteIdentifier(rtreeName) + " USING rtree(id, minx, maxx, miny, maxy)");
+            rtreeInsert = db.compileStatement("INSERT INTO " + GeoPackageReader.quoteIdentifier(rtreeName) + " VALUES (?, ?, ?, ?, ?)");
+        } catch (SQLiteException e) {
+            Log.w(TAG, "This device's SQLite does not support R*Tree; converting " + shapefilePath + " without a spatial index", e);
+        }
+
+        StringBuilder insertSql = new StringBuilder("INSERT INTO ").append(GeoPackageReader.quoteIdentifier(tableName))
+                .append(" (").append(GEOMETRY_COLUMN);
+        for (String columnName : columnNames) {
+            insertSql.append(", ").append(GeoPackageReader.quoteIdentifier(columnName));
+        }
+        insertSql.append(") VALUES (?");
+        for (int i = 0; i < columnNames.size(); i++) {
+            insertSql.append(", ?");
+        }
+        insertSql.append(')');
+        SQLiteStatement insert = db.compileStatement(insertSql.toString());
+
+        QueryParameters idQuery = new QueryParameters();
+        idQuery.setWhere("1=1");
+        long[] ids = shapefileTable.queryIds(idQuery, null).get();
+        Envelope extent = new Envelope();
+        Envelope featureEnvelope = new Envelope();
+        long completed = 0;
+        int inTransaction = 0;
+        db.beginTransaction();
+        try {
+            for (int pageStart = 0; pageStart < ids.length; pageStart += PAGE_SIZE) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("Conversion of " + shapefilePath + " was cancelled");
+                }
+                QueryParameters pageQuery = new QueryParameters();
+                pageQuery.setObjectIds(Arrays.copyOfRange(ids, pageStart, Math.min(pageStart + PAGE_SIZE, ids.length)));
+                pageQuery.setOutFields(new String[]{"*"});
+                pageQuery.setReturnGeometry(true);
+                FeatureResult result = shapefileTable.queryFeatures(pageQuery, null).get();
+                for (Object element : result) {
+                    if (!(element instanceof Feature)) {
+                        continue;
+                    }
+                    Feature feature = (Feature) element;
+                    Geometry geometry = feature.getGeometry();
+                    byte[] blob = GeoPackageGeometryBlob.write(geometry, srsId, multi);
+                    insert.clearBindings();
+                    if (null == blob) {
+                        insert.bindNull(1);
+                    } else {
+                        insert.bindBlob(1, blob);
+                    }
+                    for (int i = 0; i < fields.size(); i++) {
+                        bindValue(insert, i + 2, feature.getAttributeValue(fields.get(i).getName()));
+                    }
+                    long fid = insert.executeInsert();
+                    if (null != blob) {
+                        geometry.queryEnvelope(featureEnvelope);
+                        extent.merge(featureEnvelope);
+                        if (null != rtreeInsert) {
+                            rtreeInsert.bindLong(1, fid);
+                            rtreeInsert.bindDouble(2, featureEnvelope.getXMin());
+                            rtreeInsert.bindDouble(3, featureEnvelope.getXMax());
+                            rtreeInsert.bindDouble(4, featureEnvelope.getYMin());
+                            rtreeInsert.bindDouble(5, featureEnvelope.getYMax());
+                            rtreeInsert.executeInsert();
+                        }
+                    }
+                    completed++;
+                    if (TRANSACTION_SIZE <= ++inTransaction) {
+                        db.setTransactionSuccessful();
+                        db.endTransaction();
+                        db.beginTransaction();
+                        inTransaction = 0;
+                    }
+                }
+                if (null != progressListener) {
+                    progressListener.onProgress(completed, ids.length);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        insert.close();
+
+        if (null != rtreeInsert) {
+            rtreeInsert.close();
+            GeoPackageReader.registerRtreeExtension(db, tableName, GEOMETRY_COLUMN);
+        }
+
+        db.execSQL("INSERT INTO gpkg_contents (table_name, data_type, identifier, description, last_change, min_x, min_y, max_x, max_y, srs_id) "
+                        + "VALUES (?, 'features', ?, ?, ?, ?, ?, ?, ?, ?)",
+                new Object[]{
+                        tableName,
+                        tableName,
+                        "Converted from " + new File(shapefilePath).getAbsolutePath(),
+                        formatTimestamp(Calendar.getInstance(TimeZone.getTimeZone("UTC")).getTime()),
+                        extent.isEmpty() ? null : extent.getXMin(),
+                        extent.isEmpty() ? null : extent.getYMin(),
+                        extent.isEmpty() ? null : extent.getXMax(),
+                        extent.isEmpty() ? null : extent.getYMax(),
+                        srsId});
+    }
+
+    /**
+     * Creates the tables that every GeoPackage must have and adds the spatial reference.
+     *
+     * @return the srs_id of the spatial reference.
+     */
+    private static int createCoreTables(SQLiteDatabase db, SpatialReference sr) {
+        db.execSQL("PRAGMA application_id = " + GPKG_APPLICATION_ID);
+        db.execSQL("PRAGMA user_version = " + GPKG_USER_VERSION);
+        db.execSQL("CREATE TABLE gpkg_spatial_ref_sys ("
+                + "srs_name TEXT NOT NULL, srs_id INTEGER NOT NULL PRIMARY KEY, organization TEXT NOT NULL, "
+                + "organization_coordsys_id INTEGER NOT NULL, definition TEXT NOT NULL, description TEXT)");
+        db.execSQL("CREATE TABLE gpkg_contents ("
+                + "table_name TEXT NOT NULL PRIMARY KEY, data_type TEXT NOT NULL, identifier TEXT UNIQUE, "
+                + "description TEXT DEFAULT '', last_change DATETIME NOT NULL DEFAULT (strftime('%Y-%m-%dT%H:%M:%fZ','now')), "
+                + "min_x DOUBLE, min_y DOUBLE, max_x DOUBLE, max_y DOUBLE, srs_id INTEGER, "
+                + "CONSTRAINT fk_gc_r_srs_id FOREIGN KEY (srs_id) REFERENCES gpkg_spatial_ref_sys(srs_id))");
+        db.execSQL("CREATE TABLE gpkg_geometry_columns ("
+                + "table_name TEXT NOT NULL, column_name TEXT NOT NULL, geometry_type_name TEXT NOT NULL, "
+                + "srs_id INTEGER NOT NULL, z TINYINT NOT NULL, m TINYINT NOT NULL, "
+                + "CONSTRAINT pk_geom_cols PRIMARY KEY (table_name, column_name), "
+                + "CONSTRAINT fk_gc_tn FOREIGN KEY (table_name) REFERENCES gpkg_contents(table_name), "
+                + "CONSTRAINT fk_gc_srs FOREIGN KEY (srs_id) REFERENCES gpkg_spatial_ref_sys (srs_id))");
+
+        String insertSrs = "INSERT OR REPLACE INTO gpkg_spatial_ref_sys (srs_name, srs_id, organization, organization_coordsys_id, definition, description) VALUES (?, ?, ?, ?, ?, ?)";
+        db.execSQL(insertSrs, new Object[]{"Undefined cartesian SRS", -1, "NONE", -1, "undefined", "undefined cartesian coordinate reference system"});
+        db.execSQL(insertSrs, new Object[]{"Undefined geographic SRS", 0, "NONE", 0, "undefined", "undefined geographic coordinate reference system"});
+        db.execSQL(insertSrs, new Object[]{"WGS 84 geodetic", SpatialReference.WKID_WGS84, "EPSG", SpatialReference.WKID_WGS84,
+                SpatialReference.create(SpatialReference.WKID_WGS84).getText(), "longitude/latitude coordinates in decimal degrees on the WGS 84 spheroid"});
+        if (null == sr) {
+            return -1;
+        }
+        int wkid = sr.getID();
+        if (0 < wkid) {
+            if (SpatialReference.WKID_WGS84 != wkid) {
+                db.execSQL(insertSrs, new Object[]{"EPSG " + wkid, wkid, "EPSG", wkid, sr.getText(), null});
+            }
+            return wkid;
+        } else {
+            db.execSQL(insertSrs, new Object[]{"Custom", CUSTOM_SRS_ID, "NONE", CUSTOM_SRS_ID, sr.getText(), null});
+            return CUSTOM_SRS_ID;
+        }
+    }
+
+    private static String getGeometryTypeName(Geometry.Type type) {
+        if (null == type) {
+            return "GEOMETRY";
+        }
+        switch (type) {
+            case POINT:
+                return "POINT";
+            case MULTIPOINT:
+                return "MULTIPOINT";
+            case LINE:
+            case POLYLINE:
+                return "MULTILINESTRING";
+            case ENVELOPE:
+            case POLYGON:
+                return "MULTIPOLYGON";
+            default:
+                return "GEOMETRY";
+        }
+    }
+
+    private static String getSqlType(Field field) {
+        switch (field.getFieldType()) {
+            case Field.esriFieldTypeSmallInteger:
+                return "SMALLINT";
+            case Field.esriFieldTypeInteger:
+                return "INTEGER";
+            case Field.esriFieldTypeSingle:
+                return "FLOAT";
+            case Field.esriFieldTypeDouble:
+                return "DOUBLE";
+            case Field.esriFieldTypeString:
+                return "TEXT";
+            case Field.esriFieldTypeDate:
+                return "DATETIME";
+            default:
+                // Object IDs are replaced by the GeoPackage's own ID column, and other types
+                // don't occur in shapefiles.
+                return null;
+        }
+    }
+
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (null == value) {
+            statement.bindNull(index);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Calendar) {
+            statement.bindString(index, formatTimestamp(((Calendar) value).getTime()));
+        } else if (value instanceof Date) {
+            statement.bindString(index, formatTimestamp((Date) value));
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    private static String formatTimestamp(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    private static String sanitizeName(String name) {
+        String sanitized = name.replaceAll("[^A-Za-z0-9_]", "_");
+        if (sanitized.isEmpty() || Character.isDigit(sanitized.charAt(0)) || sanitized.toLowerCase(Locale.US).startsWith("gpkg_")) {
+            sanitized = "t_" + sanitized;
+        }
+        return sanitized;
+    }
+
+    private static boolean containsIgnoreCase(List<String> strings, String string) {
+        for (String s : strings) {
+            if (s.equalsIgnoreCase(string)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+/**
+ * Estimates speed and course from the most recent location fixes. The estimator keeps a moving
+ * window of fixes in a ring buffer of primitive arrays, along with the running length of the path
+ * through them, so each new fix updates the estimate in constant time without allocating. Speed is
+ * the path length over the time the window spans, and course is the great-circle bearing from the
+ * oldest fix in the window to the newest, which smooths out GPS jitter better than the bearing
+ * between consecutive fixes. Distances and bearings are computed on a sphere.
+ * <p/>
+ * SpeedHeadingEstimator is thread-safe.
+ */
+public class SpeedHeadingEstimator {
+
+    /**
+     * The number of meters in a mile.
+     */
+    public static final double METERS_PER_MILE = 1609.344;
+
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+
+    /**
+     * How far, in meters, the window must span before its course is trusted. Over a shorter span,
+     * the previous course is kept.
+     */
+    private static final double MIN_COURSE_DISTANCE_METERS = 1.0;
+
+    private final long maxWindowMillis;
+    private final double[] longitudes;
+    private final double[] latitudes;
+    private final long[] times;
+    private final double[] segmentLengths;
+    private int oldest = 0;
+    private int count = 0;
+    private double pathLength = 0;
+    private double speed = 0;
+    private double heading = 0;
+
+    /**
+     * Creates an estimator.
+     *
+     * @param windowSize      the most fixes to keep in the window. It must be at least 2.
+     * @param maxWindowMillis the longest time, in milliseconds, that the window can span. Older
+     *                        fixes are dropped from the window even if it is not full.
+     */
+    public SpeedHeadingEstimator(int windowSize, long maxWindowMillis) {
+        if (2 > windowSize) {
+            throw new IllegalArgumentException("Window size must be at least 2 but was " + windowSize);
+        }
+        this.maxWindowMillis = maxWindowMillis;
+        longitudes = new double[windowSize];
+        latitudes = new double[windowSize];
+        times = new long[windowSize];
+        segmentLengths = new double[windowSize];
+    }
+
+    /**
+     * Adds a fix to the window and updates the estimate. A fix that is not newer than the last fix
+     * replaces nothing and is ignored.
+     *
+     * @param longitude  the longitude in degrees.
+     * @param latitude   the latitude in degrees.
+     * @param timeMillis the time of the fix in milliseconds.
+     */
+    public synchronized void update(double longitude, double latitude, long timeMillis) {
+        int capacity = times.length;
+        if (0 < count) {
+            int newest = (oldest + count - 1) % capacity;
+            if (timeMillis <= times[newest]) {
+                return;
+            }
+            if (count == capacity) {
+                dropOldest();
+            }
+            int index = (oldest + count) % capacity;
+            segmentLengths[index] = calculateDistance(longitudes[newest], latitudes[newest], longitude, latitude);
+            pathLength += segmentLengths[index];
+        } else {
+            segmentLengths[oldest] = 0;
+        }
+        int index = (oldest + count) % capacity;
+        longitudes[index] = longitude;
+        latitudes[index] = latitude;
+        times[index] = timeMillis;
+        count++;
+        while (2 < count && timeMillis - times[oldest] > maxWindowMillis) {
+            dropOldest();
+        }
+
+        if (1 < count) {
+            speed = pathLength / ((timeMillis - times[oldest]) / 1000.0);
+            if (calculateDistance(longitudes[oldest], latitudes[oldest], longitude, latitude) >= MIN_COURSE_DISTANCE_METERS) {
+                heading = StreamingGpxReader.calculateBearing(longitudes[oldest], latitudes[oldest], longitude, latitude);
+            }
+        } else {
+            speed = 0;
+        }
+    }
+
+    private void dropOldest() {
+        oldest = (oldest + 1) % times.length;
+        count--;
+        // The new oldest fix no longer has a segment leading into the window
+        pathLength -= segmentLengths[oldest];
+        segmentLengths[oldest] = 0;
+        if (1 == count) {
+            pathLength = 0;
+        }
+    }
+
+    /**
+     * @return the estimated speed in meters per second, or 0 if fewer than two fixes are in the
+     * window.
+     */
+    public synchronized double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @return the estimated speed in miles per hour.
+     */
+    public synchronized double getSpeedMph() {
+        return speed * 3600 / METERS_PER_MILE;
+    }
+
+    /**
+     * @return the estimated course in degrees clockwise from north, or 0 if the window has not yet
+     * spanned enough distance to tell.
+     */
+    public synchronized double getHeading() {
+        return heading;
+    }
+
+    /**
+     * Empties the window and forgets the estimate.
+     */
+    public synchronized void reset() {
+        oldest = 0;
+        count = 0;
+        pathLength = 0;
+        speed = 0;
+        heading = 0;
+    }
+
+    /**
+     * Calculates the great-circle distance between two points with the haversine formula.
+     *
+     * @return the distance in meters.
+     */
+    static double calculateDistance(double fromLongitude, double fromLatitude, double toLongitude, double toLatitude) {
+        double lat1 = Math.toRadians(fromLatitude);
+        double lat2 = Math.toRadians(toLatitude);
+        double dLat = lat2 - lat1;
+        double dLon = Math.toRadians(toLongitude - fromLongitude);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(lat1) * Math.cos(lat2) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+}
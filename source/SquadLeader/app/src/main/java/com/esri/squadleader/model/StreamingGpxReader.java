@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import android.util.Log;
+
+import com.esri.militaryapps.model.Location;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Reads the track points and route points of a GPX stream as Locations while the stream is still
+ * being parsed. A producer thread parses the stream with SAX and puts each point in a bounded
+ * queue, so the first point is available as soon as it is parsed, and no more than the look-ahead
+ * number of points is held in memory no matter how long the track is.
+ * <p/>
+ * Each Location's heading is the bearing from the previous point, and its speed is 0. A point with
+ * no time is given the previous point's time plus one second.
+ * <p/>
+ * Call close() when done with the reader, even if all points have been read.
+ */
+public class StreamingGpxReader implements Closeable {
+
+    private static final String TAG = StreamingGpxReader.class.getSimpleName();
+
+    /**
+     * The default number of points parsed ahead of the reader.
+     */
+    public static final int DEFAULT_LOOK_AHEAD = 64;
+
+    private static final Object END = new Object();
+    private static final Pattern TIME_PATTERN = Pattern.compile(
+            "(\\d{4})-(\\d{2})-(\\d{2})T(\\d{2}):(\\d{2}):(\\d{2})(\\.\\d+)?(Z|[+-]\\d{2}:?\\d{2})?");
+
+    private final ArrayBlockingQueue<Object> queue;
+    private final Thread producer;
+    private volatile Exception error = null;
+    private boolean ended = false;
+
+    /**
+     * Starts reading a GPX stream. The reader closes the stream when parsing ends or when the
+     * reader is closed.
+     *
+     * @param gpxInputStream the GPX stream.
+     * @param lookAhead      the most points to parse ahead of the reader.
+     */
+    public StreamingGpxReader(final InputStream gpxInputStream, int lookAhead) {
+        queue = new ArrayBlockingQueue<Object>(Math.max(1, lookAhead) + 1);
+        producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    SAXParserFactory.newInstance().newSAXParser().parse(gpxInputStream, new GpxHandler());
+                } catch (SAXException | IOException | ParserConfigurationException e) {
+                    if (!isInterrupted()) {
+                        error = e;
+                    }
+                } finally {
+                    try {
+                        gpxInputStream.close();
+                    } catch (IOException e) {
+                        Log.d(TAG, "Couldn't close GPX stream", e);
+                    }
+                    // Make room for END if the reader stopped taking points
+                    while (!queue.offer(END)) {
+                        queue.poll();
+                    }
+                }
+            }
+        };
+        producer.setName(TAG);
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /**
+     * Returns the next point, waiting for it to be parsed if necessary.
+     *
+     * @return the next point, or null if there are no more points.
+     * @throws IOException          if the GPX stream could not be read or parsed.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public Location next() throws IOException, InterruptedException {
+        if (ended) {
+            return null;
+        }
+        Object item = queue.take();
+        if (END == item) {
+            ended = true;
+            Exception e = error;
+            if (null != e) {
+                throw e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+            return null;
+        }
+        return (Location) item;
+    }
+
+    /**
+     * Stops parsing and closes the GPX stream.
+     */
+    @Override
+    public void close() {
+        producer.interrupt();
+        queue.clear();
+    }
+
+    /**
+     * Parses a GPX time, such as 2017-05-12T18:04:31Z or 2017-05-12T11:04:31.250-07:00.
+     *
+     * @param time the time string.
+     * @return the time, or null if it cannot be parsed.
+     */
+    static Calendar parseTime(String time) {
+        Matcher matcher = TIME_PATTERN.matcher(time.trim());
+        if (!matcher.matches()) {
+            return null;
+        }
+        String zone = matcher.group(8);
+        TimeZone timeZone = TimeZone.getTimeZone(null == zone || "Z".equals(zone) ? "GMT" : "GMT" + zone);
+        GregorianCalendar cal = new GregorianCalendar(timeZone);
+        cal.clear();
+        cal.set(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)) - 1, Integer.parseInt(matcher.group(3)),
+                Integer.parseInt(matcher.group(4)), Integer.parseInt(matcher.group(5)), Integer.parseInt(matcher.group(6)));
+        if (null != matcher.group(7)) {
+            cal.set(Calendar.MILLISECOND, (int) Math.round(Double.parseDouble(matcher.group(7)) * 1000));
+        }
+        return cal;
+    }
+
+    /**
+     * Returns the initial great-circle bearing from one point to another.
+     *
+     * @return the bearing in degrees clockwise from north, from 0 to 360.
+     */
+    static double calculateBearing(double fromLongitude, double fromLatitude, double toLongitude, double toLatitude) {
+        double lat1 = Math.toRadians(fromLatitude);
+        double lat2 = Math.toRadians(toLatitude);
+        double dLon = Math.toRadians(toLongitude - fromLongitude);
+        double y = Math.sin(dLon) * Math.cos(lat2);
+        double x = Math.cos(lat1) * Math.sin(lat2) - Math.sin(lat1) * Math.cos(lat2) * Math.cos(dLon);
+        return (Math.toDegrees(Math.atan2(y, x)) + 360) % 360;
+    }
+
+    private class GpxHandler extends DefaultHandler {
+
+        private final StringBuilder text = new StringBuilder();
+        private boolean inPoint = false;
+        private double longitude;
+        private double latitude;
+        private Calendar time;
+        private Location previous = null;
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+            text.setLength(0);
+            String name = getLocalName(localName, qName);
+            if ("trkpt".equals(name) || "rtept".equals(name)) {
+                try {
+                    longitude = Double.parseDouble(attributes.getValue("lon"));
+                    latitude = Double.parseDouble(attributes.getValue("lat"));
+                    time = null;
+                    inPoint = true;
+                } catch (RuntimeException e) {
+                    Log.d(TAG, "Skipping GPX point with bad coordinates", e);
+                    inPoint = false;
+                }
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (inPoint) {
+                text.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (!inPoint) {
+                return;
+            }
+            String name = getLocalName(localName, qName);
+            if ("time".equals(name)) {
+                time = parseTime(text.toString());
+            } else if ("trkpt".equals(name) || "rtept".equals(name)) {
+                inPoint = false;
+                if (null == time) {
+                    time = Calendar.getInstance();
+                    if (null != previous && null != previous.getTimestamp()) {
+                        time.setTimeInMillis(previous.getTimestamp().getTimeInMillis() + 1000);
+                    }
+                }
+                double heading = null == previous ? 0 : calculateBearing(
+                        previous.getLongitude(), previous.getLatitude(), longitude, latitude);
+                Location location = new Location(longitude, latitude, time, 0, heading);
+                try {
+                    queue.put(location);
+                } catch (InterruptedException e) {
+                    throw new SAXException("GPX reading stopped", e);
+                }
+                previous = location;
+            }
+        }
+
+        private String getLocalName(String localName, String qName) {
+            String name = null == localName || localName.isEmpty() ? qName : localName;
+            int colon = name.indexOf(':');
+            return -1 == colon ? name : name.substring(colon + 1);
+        }
+    }
+
+}
@@ -0,0 +1,298 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import android.util.Log;
+
+import com.esri.militaryapps.model.Location;
+import com.esri.militaryapps.model.LocationSimulator;
+
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Calendar;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * A LocationSimulator that plays a GPX track while reading it with a StreamingGpxReader, instead
+ * of reading the whole track before playing it. The first location is sent as soon as the first
+ * track point is parsed, and only a bounded window of track points is held in memory.
+ * <p/>
+ * By default, locations are sent at the cadence at which they were recorded. A speed multiplier
+ * plays the track faster or slower, and a fixed output rate sends locations interpolated between
+ * track points at a steady rate, which is useful for driving the app at a controlled load. Sent
+ * locations have the current time as their timestamps. When the track ends, the simulator opens
+ * the GPX source again and starts over.
+ */
+public class StreamingLocationSimulator extends LocationSimulator {
+
+    /**
+     * A source of GPX streams. The simulator opens a new stream each time it plays the track.
+     */
+    public interface GpxSource {
+
+        /**
+         * @return a new stream of the GPX. The simulator closes the stream.
+         * @throws IOException if the GPX cannot be opened.
+         */
+        InputStream open() throws IOException;
+
+    }
+
+    private static final String TAG = StreamingLocationSimulator.class.getSimpleName();
+
+    /**
+     * The slowest fixed output rate, in locations per second.
+     */
+    public static final double MIN_OUTPUT_RATE = 1;
+
+    /**
+     * The fastest fixed output rate, in locations per second.
+     */
+    public static final double MAX_OUTPUT_RATE = 50;
+
+    /**
+     * LocationSimulator insists on parsing a GPX stream when it is constructed. This subclass gives
+     * it an empty one and does its own reading.
+     */
+    private static final String EMPTY_GPX = "<?xml version=\"1.0\"?><gpx version=\"1.1\"></gpx>";
+
+    private final GpxSource gpxSource;
+    private final int lookAhead;
+    private final Object lock = new Object();
+    private LocationProviderState state = LocationProviderState.STOPPED;
+    private Thread playbackThread = null;
+    private volatile double speedMultiplier = 1;
+    private volatile double outputRate = 0;
+
+    /**
+     * Creates a simulator.
+     *
+     * @param gpxSource the source of the GPX track.
+     * @param lookAhead the most track points to read ahead of playback.
+     */
+    public StreamingLocationSimulator(GpxSource gpxSource, int lookAhead)
+            throws ParserConfigurationException, SAXException, IOException {
+        super(new ByteArrayInputStream(EMPTY_GPX.getBytes("UTF-8")));
+        this.gpxSource = gpxSource;
+        this.lookAhead = lookAhead;
+    }
+
+    /**
+     * @return the playback speed multiplier.
+     */
+    public double getSpeedMultiplier() {
+        return speedMultiplier;
+    }
+
+    /**
+     * Sets how much faster than recorded the track plays. The change takes effect at the next
+     * location.
+     *
+     * @param speedMultiplier the speed multiplier, such as 1 for real time or 10 for ten times
+     *                        as fast. It must be positive.
+     */
+    public void setSpeedMultiplier(double speedMultiplier) {
+        if (!(0 < speedMultiplier) || Double.isInfinite(speedMultiplier)) {
+            throw new IllegalArgumentException("Speed multiplier must be positive but was " + speedMultiplier);
+        }
+        this.speedMultiplier = speedMultiplier;
+    }
+
+    /**
+     * @return the output rate in locations per second, or 0 if locations are sent at the recorded
+     * cadence.
+     */
+    public double getOutputRate() {
+        return outputRate;
+    }
+
+    /**
+     * Sets a fixed rate at which to send locations. At a fixed rate, each location is interpolated
+     * linearly between the two track points around the current track time, so the rate can be
+     * faster or slower than the recorded cadence. The change takes effect at the next location.
+     *
+     * @param outputRate the output rate in locations per second, from MIN_OUTPUT_RATE to
+     *                   MAX_OUTPUT_RATE, or 0 to send the track points at the recorded cadence.
+     */
+    public void setOutputRate(double outputRate) {
+        if (0 != outputRate && !(MIN_OUTPUT_RATE <= outputRate && outputRate <= MAX_OUTPUT_RATE)) {
+            throw new IllegalArgumentException("Output rate must be 0 or from " + MIN_OUTPUT_RATE
+                    + " to " + MAX_OUTPUT_RATE + " but was " + outputRate);
+        }
+        this.outputRate = outputRate;
+    }
+
+    @Override
+    public void start() {
+        synchronized (lock) {
+            if (LocationProviderState.PAUSED == state) {
+                state = LocationProviderState.STARTED;
+                lock.notifyAll();
+            } else if (LocationProviderState.STOPPED == state) {
+                state = LocationProviderState.STARTED;
+                playbackThread = new Thread() {
+                    @Override
+                    public void run() {
+                        play();
+                    }
+                };
+                playbackThread.setName(TAG);
+                playbackThread.setDaemon(true);
+                playbackThread.start();
+            }
+        }
+    }
+
+    @Override
+    public void pause() {
+        synchronized (lock) {
+            if (LocationProviderState.STARTED == state) {
+                state = LocationProviderState.PAUSED;
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        Thread thread;
+        synchronized (lock) {
+            state = LocationProviderState.STOPPED;
+            thread = playbackThread;
+            playbackThread = null;
+            lock.notifyAll();
+        }
+        if (null != thread) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public LocationProviderState getState() {
+        synchronized (lock) {
+            return state;
+        }
+    }
+
+    private void play() {
+        try {
+            while (true) {
+                StreamingGpxReader reader = new StreamingGpxReader(gpxSource.open(), lookAhead);
+                try {
+                    if (!playTrack(reader)) {
+                        Log.w(TAG, "GPX track has no points");
+                        return;
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't read GPX track", e);
+        }
+    }
+
+    /**
+     * Plays a track once.
+     *
+     * @return false if the track has no points.
+     */
+    private boolean playTrack(StreamingGpxReader reader) throws IOException, InterruptedException {
+        Location previous = reader.next();
+        if (null == previous) {
+            return false;
+        }
+        send(previous.getLongitude(), previous.getLatitude(), previous.getHeading());
+        long previousTime = previous.getTimestamp().getTimeInMillis();
+        double trackTime = previousTime;
+        long deadline = System.currentTimeMillis();
+        Location next = reader.next();
+        while (null != next) {
+            // A point earlier than the one before it is played as if it had the same time
+            long nextTime = Math.max(previousTime, next.getTimestamp().getTimeInMillis());
+            double rate = outputRate;
+            if (0 < rate) {
+                double stepMillis = 1000.0 / rate;
+                deadline += Math.round(stepMillis);
+                deadline += awaitPlayback(deadline);
+                trackTime += stepMillis * speedMultiplier;
+                while (null != next && nextTime <= trackTime) {
+                    previous = next;
+                    previousTime = nextTime;
+                    next = reader.next();
+                    if (null != next) {
+                        nextTime = Math.max(previousTime, next.getTimestamp().getTimeInMillis());
+                    }
+                }
+                if (null == next) {
+                    send(previous.getLongitude(), previous.getLatitude(), previous.getHeading());
+                } else {
+                    double t = (trackTime - previousTime) / (nextTime - previousTime);
+                    send(previous.getLongitude() + t * (next.getLongitude() - previous.getLongitude()),
+                            previous.getLatitude() + t * (next.getLatitude() - previous.getLatitude()),
+                            next.getHeading());
+                }
+            } else {
+                deadline += Math.round((nextTime - trackTime) / speedMultiplier);
+                deadline += awaitPlayback(deadline);
+                trackTime = nextTime;
+                send(next.getLongitude(), next.getLatitude(), next.getHeading());
+                previous = next;
+                previousTime = nextTime;
+                next = reader.next();
+            }
+        }
+        return true;
+    }
+
+    private void send(double longitude, double latitude, double heading) {
+        sendLocation(new Location(longitude, latitude, Calendar.getInstance(), 0, heading));
+    }
+
+    /**
+     * Waits until a time, and for as long as the simulator is paused.
+     *
+     * @param time the time to wait for, in milliseconds since the epoch.
+     * @return how long the simulator was paused while waiting, in milliseconds.
+     * @throws InterruptedException if the simulator is stopped.
+     */
+    private long awaitPlayback(long time) throws InterruptedException {
+        long pausedMillis = 0;
+        synchronized (lock) {
+            while (true) {
+                if (LocationProviderState.STOPPED == state) {
+                    throw new InterruptedException();
+                } else if (LocationProviderState.PAUSED == state) {
+                    long pauseStart = System.currentTimeMillis();
+                    lock.wait();
+                    pausedMillis += System.currentTimeMillis() - pauseStart;
+                } else {
+                    long delay = time + pausedMillis - System.currentTimeMillis();
+                    if (0 >= delay) {
+                        return pausedMillis;
+                    }
+                    lock.wait(delay);
+                }
+            }
+        }
+    }
+
+}
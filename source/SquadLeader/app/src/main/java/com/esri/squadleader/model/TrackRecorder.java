@@ -0,0 +1,476 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Records a track of location fixes to a compact binary log that can be exported as GPX. The log
+ * is a memory-mapped file with a small header followed by fixed-size records. Each record holds
+ * the change in longitude and latitude, in units of 10<sup>-7</sup> degrees, and the change in
+ * time, in milliseconds, since the previous fix, so appending a fix is a few writes to mapped
+ * memory and a day of fixes once a second takes about a megabyte of disk and no heap.
+ * <p/>
+ * The log survives restarts: opening an existing log continues appending to it. The header holds
+ * the number of records and is updated after each record is written, so a log cut short by a
+ * crash is still readable up to its last complete record. The log keeps a maximum number of
+ * fixes; when it is full, the older half is dropped.
+ * <p/>
+ * TrackRecorder is thread-safe. The GPX streams it opens read a snapshot of the log as it was
+ * when they were opened and are not affected by later appends. Dropping fixes and clearing the
+ * log write a new file in place of the old one rather than changing it, so they do not affect
+ * open GPX streams either.
+ */
+public class TrackRecorder implements Closeable {
+
+    /**
+     * The size of each record in bytes.
+     */
+    public static final int RECORD_SIZE = 12;
+
+    /**
+     * The default maximum number of fixes in a log: a week of fixes once a second, or about seven
+     * megabytes.
+     */
+    public static final int DEFAULT_MAX_COUNT = 7 * 24 * 60 * 60;
+
+    private static final int MAGIC = 0x534c5452; // "SLTR"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int COUNT_OFFSET = 8;
+    private static final int BASE_TIME_OFFSET = 16;
+    private static final int GROWTH_RECORDS = 1 << 16;
+    private static final double UNITS_PER_DEGREE = 1e7;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final int maxCount;
+    private final boolean readOnly;
+    private RandomAccessFile randomAccessFile = null;
+    private FileChannel channel = null;
+    private MappedByteBuffer buffer;
+    private int count = 0;
+    private long baseTime = 0;
+    private int lastLongitude = 0;
+    private int lastLatitude = 0;
+    private long lastTime = 0;
+
+    /**
+     * Opens a track log for recording, creating it if it does not exist, and keeps at most
+     * DEFAULT_MAX_COUNT fixes in it.
+     *
+     * @param file the log file.
+     * @throws IOException if the file cannot be opened or is not a track log.
+     */
+    public TrackRecorder(File file) throws IOException {
+        this(file, DEFAULT_MAX_COUNT);
+    }
+
+    /**
+     * Opens a track log for recording, creating it if it does not exist.
+     *
+     * @param file     the log file.
+     * @param maxCount the most fixes to keep. When the log is full, the older half of its fixes
+     *                 is dropped. It must be at least 2.
+     * @throws IOException if the file cannot be opened or is not a track log.
+     */
+    public TrackRecorder(File file, int maxCount) throws IOException {
+        this(file, maxCount, false);
+    }
+
+    private TrackRecorder(File file, int maxCount, boolean readOnly) throws IOException {
+        if (2 > maxCount) {
+            throw new IllegalArgumentException("Maximum count must be at least 2 but was " + maxCount);
+        }
+        this.file = file;
+        this.maxCount = maxCount;
+        this.readOnly = readOnly;
+        if (readOnly) {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                if (HEADER_SIZE > in.length()) {
+                    throw new IOException(file + " is not a track log");
+                }
+                // The mapping stays valid after the file is closed
+                buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+                readHeader();
+            } finally {
+                in.close();
+            }
+        } else {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
+            try {
+                if (HEADER_SIZE <= channel.size()) {
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                    readHeader();
+                } else {
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) GROWTH_RECORDS * RECORD_SIZE);
+                    buffer.putInt(0, MAGIC);
+                    buffer.putInt(4, VERSION);
+                    buffer.putInt(COUNT_OFFSET, 0);
+                    buffer.putLong(BASE_TIME_OFFSET, 0);
+                }
+            } catch (IOException e) {
+                randomAccessFile.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Opens an existing track log for reading only, for example to export or play a track that is
+     * no longer being recorded. The recorder reads the log as it was when it was opened and holds
+     * no open file, so closing it is optional.
+     *
+     * @param file the log file.
+     * @return the read-only recorder.
+     * @throws FileNotFoundException if the log does not exist.
+     * @throws IOException           if the file cannot be read or is not a track log.
+     */
+    public static TrackRecorder openReadOnly(File file) throws IOException {
+        return new TrackRecorder(file, Integer.MAX_VALUE, true);
+    }
+
+    private void readHeader() throws IOException {
+        if (MAGIC != buffer.getInt(0) || VERSION != buffer.getInt(4)) {
+            throw new IOException(file + " is not a track log");
+        }
+        count = buffer.getInt(COUNT_OFFSET);
+        if (0 > count || HEADER_SIZE + (long) count * RECORD_SIZE > buffer.capacity()) {
+            throw new IOException(file + " is a damaged track log");
+        }
+        baseTime = buffer.getLong(BASE_TIME_OFFSET);
+        lastTime = baseTime;
+        for (int i = 0; i < count; i++) {
+            int position = HEADER_SIZE + i * RECORD_SIZE;
+            lastLongitude += buffer.getInt(position);
+            lastLatitude += buffer.getInt(position + 4);
+            lastTime += buffer.getInt(position + 8);
+        }
+    }
+
+    /**
+     * @return the log file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return true if this recorder was opened with openReadOnly.
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return the number of fixes in the log.
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Appends a fix to the log. A fix that is older than the last fix, or more than about 24 days
+     * newer, is not appended. If the log is full, the older half of its fixes is dropped first.
+     *
+     * @param longitude  the longitude in degrees.
+     * @param latitude   the latitude in degrees.
+     * @param timeMillis the time of the fix in milliseconds.
+     * @return true if the fix was appended.
+     * @throws IOException           if the log could not be grown.
+     * @throws IllegalStateException if the recorder is read-only.
+     */
+    public synchronized boolean append(double longitude, double latitude, long timeMillis) throws IOException {
+        checkWritable();
+        if (0 < count && (timeMillis < lastTime || Integer.MAX_VALUE < timeMillis - lastTime)) {
+            return false;
+        }
+        if (maxCount <= count) {
+            replaceFile(count / 2);
+        }
+        if (0 == count) {
+            baseTime = timeMillis;
+            lastTime = timeMillis;
+            lastLongitude = 0;
+            lastLatitude = 0;
+            buffer.putLong(BASE_TIME_OFFSET, baseTime);
+        }
+        long timeDelta = timeMillis - lastTime;
+        int position = HEADER_SIZE + count * RECORD_SIZE;
+        if (position + RECORD_SIZE > buffer.capacity()) {
+            buffer.force();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, buffer.capacity() + (long) GROWTH_RECORDS * RECORD_SIZE);
+        }
+        int longitudeUnits = (int) Math.round(longitude * UNITS_PER_DEGREE);
+        int latitudeUnits = (int) Math.round(latitude * UNITS_PER_DEGREE);
+        // A difference can overflow an int, for example across the 180th meridian, but it wraps
+        // back to the right value when it is added to the previous value while reading
+        buffer.putInt(position, longitudeUnits - lastLongitude);
+        buffer.putInt(position + 4, latitudeUnits - lastLatitude);
+        buffer.putInt(position + 8, (int) timeDelta);
+        count++;
+        buffer.putInt(COUNT_OFFSET, count);
+        lastLongitude = longitudeUnits;
+        lastLatitude = latitudeUnits;
+        lastTime = timeMillis;
+        return true;
+    }
+
+    /**
+     * Empties the log. The log file is replaced rather than rewritten, so GPX streams that are
+     * already open keep reading the fixes they started with.
+     *
+     * @throws IOException           if the log file could not be replaced.
+     * @throws IllegalStateException if the recorder is read-only.
+     */
+    public synchronized void clear() throws IOException {
+        checkWritable();
+        replaceFile(count);
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new IllegalStateException(file + " is open read-only");
+        }
+    }
+
+    /**
+     * Replaces the log file with a new one that holds the records from keepFrom on. The old file
+     * is never written again, so GPX streams that read its mapping are not affected.
+     */
+    private void replaceFile(int keepFrom) throws IOException {
+        int keepCount = count - keepFrom;
+        File newFile = new File(file.getPath() + ".new");
+        RandomAccessFile newRandomAccessFile = new RandomAccessFile(newFile, "rw");
+        MappedByteBuffer newBuffer;
+        long newBaseTime = 0;
+        try {
+            newRandomAccessFile.setLength(0);
+            newBuffer = newRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) (keepCount + GROWTH_RECORDS) * RECORD_SIZE);
+            newBuffer.putInt(0, MAGIC);
+            newBuffer.putInt(4, VERSION);
+            if (0 < keepCount) {
+                // The first kept record becomes relative to zero and the new base time
+                int longitude = 0;
+                int latitude = 0;
+                long time = baseTime;
+                for (int i = 0; i <= keepFrom; i++) {
+                    int position = HEADER_SIZE + i * RECORD_SIZE;
+                    longitude += buffer.getInt(position);
+                    latitude += buffer.getInt(position + 4);
+                    time += buffer.getInt(position + 8);
+                }
+                newBaseTime = time;
+                newBuffer.putInt(HEADER_SIZE, longitude);
+                newBuffer.putInt(HEADER_SIZE + 4, latitude);
+                newBuffer.putInt(HEADER_SIZE + 8, 0);
+                ByteBuffer rest = buffer.duplicate();
+                rest.limit(HEADER_SIZE + count * RECORD_SIZE);
+                rest.position(HEADER_SIZE + (keepFrom + 1) * RECORD_SIZE);
+                ByteBuffer target = newBuffer.duplicate();
+                target.position(HEADER_SIZE + RECORD_SIZE);
+                target.put(rest);
+            }
+            newBuffer.putLong(BASE_TIME_OFFSET, newBaseTime);
+            newBuffer.putInt(COUNT_OFFSET, keepCount);
+            newBuffer.force();
+            if (!newFile.renameTo(file)) {
+                throw new IOException("Couldn't replace " + file);
+            }
+        } catch (IOException e) {
+            newRandomAccessFile.close();
+            newFile.delete();
+            throw e;
+        }
+        randomAccessFile.close();
+        randomAccessFile = newRandomAccessFile;
+        channel = newRandomAccessFile.getChannel();
+        buffer = newBuffer;
+        count = keepCount;
+        baseTime = newBaseTime;
+    }
+
+    /**
+     * Opens a stream that reads the log as a GPX document with one track. The GPX is generated as
+     * the stream is read, so the stream uses little memory no matter how long the track is.
+     *
+     * @return the GPX stream.
+     */
+    public synchronized InputStream openGpx() {
+        return new GpxInputStream(buffer.duplicate(), count, baseTime);
+    }
+
+    /**
+     * Writes the log to a GPX file.
+     *
+     * @param gpxFile the GPX file to write.
+     * @throws IOException if the file cannot be written.
+     */
+    public void exportGpx(File gpxFile) throws IOException {
+        InputStream in = openGpx();
+        OutputStream out = new FileOutputStream(gpxFile);
+        try {
+            byte[] bytes = new byte[8192];
+            int length;
+            while (-1 != (length = in.read(bytes))) {
+                out.write(bytes, 0, length);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the log to disk and closes it. GPX streams that are already open can still be read.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!readOnly) {
+            buffer.force();
+            randomAccessFile.close();
+        }
+    }
+
+    private static class GpxInputStream extends InputStream {
+
+        private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<gpx version=\"1.1\" creator=\"Squad Leader\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n"
+                + "<trk><trkseg>\n";
+        private static final String FOOTER = "</trkseg></trk>\n</gpx>\n";
+
+        private final ByteBuffer records;
+        private final int count;
+        private final Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("GMT"));
+        private final StringBuilder text = new StringBuilder();
+        private byte[] chunk;
+        private int chunkPosition = 0;
+        private int index = -1;
+        private int longitude = 0;
+        private int latitude = 0;
+        private long time;
+
+        GpxInputStream(ByteBuffer records, int count, long baseTime) {
+            this.records = records;
+            this.count = count;
+            time = baseTime;
+            chunk = HEADER.getBytes(UTF_8);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fillChunk()) {
+                return -1;
+            }
+            return chunk[chunkPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (0 == length) {
+                return 0;
+            }
+            int total = 0;
+            while (total < length && fillChunk()) {
+                int n = Math.min(length - total, chunk.length - chunkPosition);
+                System.arraycopy(chunk, chunkPosition, bytes, offset + total, n);
+                chunkPosition += n;
+                total += n;
+            }
+            return 0 == total ? -1 : total;
+        }
+
+        /**
+         * Makes sure the current chunk has unread bytes, generating the next one if needed.
+         *
+         * @return false at the end of the GPX.
+         */
+        private boolean fillChunk() {
+            while (chunkPosition == chunk.length) {
+                if (index == count) {
+                    return false;
+                }
+                index++;
+                chunkPosition = 0;
+                if (index == count) {
+                    chunk = FOOTER.getBytes(UTF_8);
+                } else {
+                    chunk = nextPoint().getBytes(UTF_8);
+                }
+            }
+            return true;
+        }
+
+        private String nextPoint() {
+            int position = HEADER_SIZE + index * RECORD_SIZE;
+            longitude += records.getInt(position);
+            latitude += records.getInt(position + 4);
+            time += records.getInt(position + 8);
+            calendar.setTimeInMillis(time);
+            text.setLength(0);
+            text.append("<trkpt lat=\"");
+            appendDegrees(latitude).append("\" lon=\"");
+            appendDegrees(longitude).append("\"><time>").append(calendar.get(Calendar.YEAR)).append('-');
+            appendPadded(calendar.get(Calendar.MONTH) + 1, 2).append('-');
+            appendPadded(calendar.get(Calendar.DAY_OF_MONTH), 2).append('T');
+            appendPadded(calendar.get(Calendar.HOUR_OF_DAY), 2).append(':');
+            appendPadded(calendar.get(Calendar.MINUTE), 2).append(':');
+            appendPadded(calendar.get(Calendar.SECOND), 2).append('.');
+            appendPadded(calendar.get(Calendar.MILLISECOND), 3).append("Z</time></trkpt>\n");
+            return text.toString();
+        }
+
+        /**
+         * Appends an angle in fixed-point notation, since Double.toString switches to scientific
+         * notation near 0, which GPX does not allow.
+         */
+        private StringBuilder appendDegrees(int units) {
+            if (0 > units) {
+                text.append('-');
+            }
+            long magnitude = Math.abs((long) units);
+            text.append(magnitude / (long) UNITS_PER_DEGREE).append('.');
+            return appendPadded((int) (magnitude % (long) UNITS_PER_DEGREE), 7);
+        }
+
+        private StringBuilder appendPadded(int value, int digits) {
+            for (int limit = 10; 1 < digits; digits--, limit *= 10) {
+                if (value < limit) {
+                    text.append('0');
+                }
+            }
+            return text.append(value);
+        }
+
+    }
+
+}
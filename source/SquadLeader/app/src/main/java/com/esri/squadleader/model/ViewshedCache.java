@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A cache of viewshed results. Results are kept in memory in least-recently-used order up to a
+ * byte limit. When a result is evicted from memory, it is written to a cache directory, which is
+ * itself trimmed to a byte limit by deleting the least recently used files. A result read back from
+ * disk moves into memory again.
+ * <p/>
+ * Keys come from createKey, which quantizes the observer location to the elevation raster's cells,
+ * so that taps anywhere in the same cell share a result. Because the key includes the elevation
+ * dataset's path and modification time, results for a replaced dataset are never reused, and the
+ * disk cache can safely persist between runs.
+ * <p/>
+ * ViewshedCache is thread-safe.
+ */
+public class ViewshedCache {
+
+    private static final String TAG = ViewshedCache.class.getSimpleName();
+    private static final int FILE_FORMAT_VERSION = 1;
+    private static final String FILE_EXTENSION = ".vsg";
+
+    private final LinkedHashMap<String, ViewshedGrid> memoryCache = new LinkedHashMap<String, ViewshedGrid>(16, 0.75f, true);
+    private final File directory;
+    private final long maxMemoryBytes;
+    private final long maxDiskBytes;
+    private long memoryBytes = 0;
+
+    /**
+     * Creates a cache.
+     *
+     * @param directory      the directory for results evicted from memory. It is created if it
+     *                       does not exist. If null, evicted results are discarded.
+     * @param maxMemoryBytes the approximate maximum number of bytes of results to keep in memory.
+     * @param maxDiskBytes   the approximate maximum number of bytes of results to keep on disk.
+     */
+    public ViewshedCache(File directory, long maxMemoryBytes, long maxDiskBytes) {
+        this.directory = directory;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        if (null != directory && !directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Couldn't create viewshed cache directory " + directory);
+        }
+    }
+
+    /**
+     * Creates a cache key.
+     *
+     * @param raster         the elevation raster.
+     * @param elevationFile  the elevation raster's file.
+     * @param observerX      the observer's X coordinate in the raster's spatial reference.
+     * @param observerY      the observer's Y coordinate in the raster's spatial reference.
+     * @param observerHeight the observer's height above the ground.
+     * @param maxRadius      the analysis radius, or 0 or less for the whole raster.
+     * @return the key.
+     */
+    public static String createKey(ElevationRaster raster, File elevationFile, double observerX, double observerY,
+                                   double observerHeight, double maxRadius) {
+        long column = (long) Math.floor((observerX - raster.getMinX()) / raster.getCellWidth());
+        long row = (long) Math.floor((raster.getMaxY() - observerY) / raster.getCellHeight());
+        return String.format(Locale.US, "%s|%d|%d|%d|%.3f|%.3f",
+                elevationFile.getAbsolutePath(), elevationFile.lastModified(), column, row,
+                observerHeight, Math.max(0, maxRadius));
+    }
+
+    /**
+     * Returns a cached result.
+     *
+     * @param key the key from createKey.
+     * @return the result, or null if it is not cached.
+     */
+    public synchronized ViewshedGrid get(String key) {
+        ViewshedGrid grid = memoryCache.get(key);
+        if (null == grid && null != directory) {
+            File file = getFile(key);
+            if (file.isFile()) {
+                try {
+                    grid = readGrid(file, key);
+                } catch (IOException e) {
+                    Log.w(TAG, "Couldn't read cached viewshed " + file, e);
+                }
+                if (null == grid) {
+                    file.delete();
+                } else {
+                    file.setLastModified(System.currentTimeMillis());
+                    putInMemory(key, grid);
+                }
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Adds a result to the cache.
+     *
+     * @param key  the key from createKey.
+     * @param grid the result. The cache keeps a reference to the grid, so do not modify it.
+     */
+    public synchronized void put(String key, ViewshedGrid grid) {
+        ViewshedGrid previous = memoryCache.remove(key);
+        if (null != previous) {
+            memoryBytes -= previous.getValues().length;
+        }
+        putInMemory(key, grid);
+    }
+
+    /**
+     * Removes all results from memory and disk.
+     */
+    public synchronized void clear() {
+        memoryCache.clear();
+        memoryBytes = 0;
+        if (null != directory) {
+            File[] files = directory.listFiles();
+            if (null != files) {
+                for (File file : files) {
+                    if (file.getName().endsWith(FILE_EXTENSION)) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    private void putInMemory(String key, ViewshedGrid grid) {
+        memoryCache.put(key, grid);
+        memoryBytes += grid.getValues().length;
+        boolean spilled = false;
+        Iterator<Map.Entry<String, ViewshedGrid>> iterator = memoryCache.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && 1 < memoryCache.size() && iterator.hasNext()) {
+            Map.Entry<String, ViewshedGrid> eldest = iterator.next();
+            iterator.remove();
+            memoryBytes -= eldest.getValue().getValues().length;
+            if (null != directory) {
+                try {
+                    writeGrid(getFile(eldest.getKey()), eldest.getKey(), eldest.getValue());
+                    spilled = true;
+                } catch (IOException e) {
+                    Log.w(TAG, "Couldn't write viewshed to cache", e);
+                }
+            }
+        }
+        if (spilled) {
+            trimDisk();
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(directory, Integer.toHexString(key.hashCode()) + FILE_EXTENSION);
+    }
+
+    private void trimDisk() {
+        File[] files = directory.listFiles();
+        if (null == files) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= maxDiskBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && total > maxDiskBytes; i++) {
+            long length = files[i].length();
+            if (files[i].getName().endsWith(FILE_EXTENSION) && files[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private static void writeGrid(File file, String key, ViewshedGrid grid) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(FILE_FORMAT_VERSION);
+            out.writeUTF(key);
+            out.writeInt(grid.getColumnCount());
+            out.writeInt(grid.getRowCount());
+            out.writeDouble(grid.getMinX());
+            out.writeDouble(grid.getMaxY());
+            out.writeDouble(grid.getCellWidth());
+            out.writeDouble(grid.getCellHeight());
+            out.writeInt(grid.getWkid());
+            out.write(grid.getValues());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a grid from a cache file.
+     *
+     * @return the grid, or null if the file is for a different key, such as a key whose hash
+     * collides with this one.
+     */
+    private static ViewshedGrid readGrid(File file, String key) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (FILE_FORMAT_VERSION != in.readInt() || !key.equals(in.readUTF())) {
+                return null;
+            }
+            int columnCount = in.readInt();
+            int rowCount = in.readInt();
+            double minX = in.readDouble();
+            double maxY = in.readDouble();
+            double cellWidth = in.readDouble();
+            double cellHeight = in.readDouble();
+            int wkid = in.readInt();
+            byte[] values = new byte[columnCount * rowCount];
+            in.readFully(values);
+            return new ViewshedGrid(columnCount, rowCount, minX, maxY, cellWidth, cellHeight, wkid, values);
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+import com.esri.squadleader.util.ProgressListener;
+
+/**
+ * Calculates viewsheds on an ElevationRaster in pure Java, so that the calculation can run on a
+ * background thread and be cancelled. The algorithm casts a ray from the observer to every cell on
+ * the perimeter of the analysis area and walks each ray outward, marking a cell visible if the
+ * slope from the observer to the cell is at least the steepest slope seen so far along the ray
+ * (the "R2" approximation). This visits each cell a small, constant number of times instead of
+ * casting a separate ray to every cell.
+ * <p/>
+ * Earth curvature and atmospheric refraction are ignored, which is appropriate at the distances
+ * over which a squad-level viewshed is useful.
+ */
+public class ViewshedCalculator {
+
+    /**
+     * The output value of a cell that the observer cannot see.
+     */
+    public static final byte NOT_VISIBLE = 0;
+
+    /**
+     * The output value of a cell that the observer can see.
+     */
+    public static final byte VISIBLE = 1;
+
+    /**
+     * The output value of a cell that has no elevation or lies outside the analysis radius.
+     */
+    public static final byte NO_DATA = (byte) 255;
+
+    private static final int RAYS_PER_PROGRESS_UPDATE = 256;
+
+    private final ElevationRaster raster;
+
+    /**
+     * Creates a calculator for an elevation raster.
+     *
+     * @param raster the elevation raster.
+     */
+    public ViewshedCalculator(ElevationRaster raster) {
+        this.raster = raster;
+    }
+
+    /**
+     * @return the elevation raster that this calculator uses.
+     */
+    public ElevationRaster getRaster() {
+        return raster;
+    }
+
+    /**
+     * Calculates a viewshed. This method can take a long time on a large raster, so call it on a
+     * background thread. It checks for interruption regularly and throws InterruptedException if
+     * its thread is interrupted.
+     *
+     * @param observerX      the observer's X coordinate in the raster's spatial reference.
+     * @param observerY      the observer's Y coordinate in the raster's spatial reference.
+     * @param observerHeight the observer's height above the ground, in the raster's elevation
+     *                       units.
+     * @param maxRadius      the analysis radius in the raster's spatial reference, or 0 or less to
+     *                       analyze the whole raster.
+     * @param listener       a listener for progress updates, or null.
+     * @return a grid covering the analysis area, in which each cell is VISIBLE, NOT_VISIBLE, or
+     * NO_DATA.
+     * @throws IllegalArgumentException if the observer is outside the raster or on a cell that has
+     *                                  no elevation.
+     * @throws InterruptedException     if the calling thread is interrupted.
+     */
+    public ViewshedGrid calculate(double observerX, double observerY, double observerHeight,
+                                  double maxRadius, ProgressListener listener) throws IllegalArgumentException, InterruptedException {
+        final double cellWidth = raster.getCellWidth();
+        final double cellHeight = raster.getCellHeight();
+        final int observerColumn = (int) Math.floor((observerX - raster.getMinX()) / cellWidth);
+        final int observerRow = (int) Math.floor((raster.getMaxY() - observerY) / cellHeight);
+        final double groundElevation = raster.getValue(observerColumn, observerRow);
+        if (Double.isNaN(groundElevation)) {
+            throw new IllegalArgumentException("The observer is outside the elevation raster or on a cell with no elevation");
+        }
+        final double observerElevation = groundElevation + observerHeight;
+
+        int columnMin = 0;
+        int columnMax = raster.getColumnCount() - 1;
+        int rowMin = 0;
+        int rowMax = raster.getRowCount() - 1;
+        if (0 < maxRadius) {
+            columnMin = Math.max(columnMin, observerColumn - (int) Math.ceil(maxRadius / cellWidth));
+            columnMax = Math.min(columnMax, observerColumn + (int) Math.ceil(maxRadius / cellWidth));
+            rowMin = Math.max(rowMin, observerRow - (int) Math.ceil(maxRadius / cellHeight));
+            rowMax = Math.min(rowMax, observerRow + (int) Math.ceil(maxRadius / cellHeight));
+        } else {
+            maxRadius = Double.POSITIVE_INFINITY;
+        }
+        final int width = columnMax - columnMin + 1;
+        final int height = rowMax - rowMin + 1;
+        final byte[] values = new byte[width * height];
+        values[(observerRow - rowMin) * width + observerColumn - columnMin] = VISIBLE;
+
+        final int perimeterCount;
+        if (1 == height) {
+            perimeterCount = width;
+        } else if (1 == width) {
+            perimeterCount = 2;
+        } else {
+            perimeterCount = 2 * (width + height) - 4;
+        }
+        int raysCast = 0;
+        for (int i = 0; i < perimeterCount; i++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException("Viewshed calculation cancelled");
+            }
+            int targetColumn;
+            int targetRow;
+            if (i < width) {
+                targetColumn = columnMin + i;
+                targetRow = rowMin;
+            } else if (i < 2 * width) {
+                targetColumn = columnMin + i - width;
+                targetRow = rowMax;
+            } else {
+                int j = i - 2 * width;
+                targetColumn = 0 == j % 2 ? columnMin : columnMax;
+                targetRow = rowMin + 1 + j / 2;
+            }
+            castRay(observerColumn, observerRow, targetColumn, targetRow, observerElevation, maxRadius,
+                    columnMin, rowMin, width, values);
+            raysCast++;
+            if (null != listener && 0 == raysCast % RAYS_PER_PROGRESS_UPDATE) {
+                listener.onProgress(raysCast, perimeterCount);
+            }
+        }
+
+        // Mark cells with no elevation or beyond the analysis radius
+        for (int row = rowMin; row <= rowMax; row++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException("Viewshed calculation cancelled");
+            }
+            double dy = (row - observerRow) * cellHeight;
+            for (int column = columnMin; column <= columnMax; column++) {
+                double dx = (column - observerColumn) * cellWidth;
+                if (dx * dx + dy * dy > maxRadius * maxRadius || Double.isNaN(raster.getValue(column, row))) {
+                    values[(row - rowMin) * width + column - columnMin] = NO_DATA;
+                }
+            }
+        }
+        if (null != listener) {
+            listener.onProgress(perimeterCount, perimeterCount);
+        }
+
+        return new ViewshedGrid(width, height,
+                raster.getMinX() + columnMin * cellWidth, raster.getMaxY() - rowMin * cellHeight,
+                cellWidth, cellHeight, raster.getWkid(), values);
+    }
+
+    private void castRay(int observerColumn, int observerRow, int targetColumn, int targetRow,
+                         double observerElevation, double maxRadius,
+                         int columnMin, int rowMin, int width, byte[] values) {
+        final int dColumn = targetColumn - observerColumn;
+        final int dRow = targetRow - observerRow;
+        final int steps = Math.max(Math.abs(dColumn), Math.abs(dRow));
+        final double cellWidth = raster.getCellWidth();
+        final double cellHeight = raster.getCellHeight();
+        double maxSlope = Double.NEGATIVE_INFINITY;
+        for (int step = 1; step <= steps; step++) {
+            int column = observerColumn + (int) Math.round((double) dColumn * step / steps);
+            int row = observerRow + (int) Math.round((double) dRow * step / steps);
+            double dx = (column - observerColumn) * cellWidth;
+            double dy = (row - observerRow) * cellHeight;
+            double distance = Math.sqrt(dx * dx + dy * dy);
+            if (distance > maxRadius) {
+                break;
+            }
+            double elevation = raster.getValue(column, row);
+            if (Double.isNaN(elevation)) {
+                continue;
+            }
+            double slope = (elevation - observerElevation) / distance;
+            if (slope >= maxSlope) {
+                values[(row - rowMin) * width + column - columnMin] = VISIBLE;
+                maxSlope = slope;
+            }
+        }
+    }
+
+}
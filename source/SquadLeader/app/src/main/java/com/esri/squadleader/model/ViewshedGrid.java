@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model;
+
+/**
+ * A georeferenced grid of byte values, such as the output of a viewshed calculation. Rows run from
+ * north to south and columns from west to east. Values are unsigned, from 0 to 255.
+ */
+public class ViewshedGrid {
+
+    private final int columnCount;
+    private final int rowCount;
+    private final double minX;
+    private final double maxY;
+    private final double cellWidth;
+    private final double cellHeight;
+    private final int wkid;
+    private final byte[] values;
+
+    /**
+     * Creates a grid.
+     *
+     * @param columnCount the number of columns.
+     * @param rowCount    the number of rows.
+     * @param minX        the X coordinate of the western edge.
+     * @param maxY        the Y coordinate of the northern edge.
+     * @param cellWidth   the width of a cell.
+     * @param cellHeight  the height of a cell.
+     * @param wkid        the WKID of the grid's spatial reference, or 0 if not known.
+     * @param values      the values in row-major order. The array is used, not copied.
+     */
+    public ViewshedGrid(int columnCount, int rowCount, double minX, double maxY,
+                        double cellWidth, double cellHeight, int wkid, byte[] values) {
+        if (values.length != columnCount * rowCount) {
+            throw new IllegalArgumentException("Expected " + (columnCount * rowCount) + " values but got " + values.length);
+        }
+        this.columnCount = columnCount;
+        this.rowCount = rowCount;
+        this.minX = minX;
+        this.maxY = maxY;
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        this.wkid = wkid;
+        this.values = values;
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public double getMinX() {
+        return minX;
+    }
+
+    public double getMaxY() {
+        return maxY;
+    }
+
+    public double getCellWidth() {
+        return cellWidth;
+    }
+
+    public double getCellHeight() {
+        return cellHeight;
+    }
+
+    public int getWkid() {
+        return wkid;
+    }
+
+    /**
+     * @return the values in row-major order. This is the grid's own array, not a copy.
+     */
+    public byte[] getValues() {
+        return values;
+    }
+
+    /**
+     * Returns the value of a cell.
+     *
+     * @param column the column index.
+     * @param row    the row index.
+     * @return the cell's value, from 0 to 255.
+     */
+    public int getValue(int column, int row) {
+        return values[row * columnCount + column] & 0xff;
+    }
+
+}
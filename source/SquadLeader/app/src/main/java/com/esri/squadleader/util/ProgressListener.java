@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.util;
+
+/**
+ * A listener that receives progress updates from a long-running operation. Implementations are
+ * typically called on a background thread, so do not touch views directly from onProgress.
+ */
+public interface ProgressListener {
+
+    /**
+     * Called as a long-running operation makes progress.
+     *
+     * @param completed the number of units of work completed so far.
+     * @param total     the total number of units of work, or -1 if the total is not known.
+     */
+    void onProgress(long completed, long total);
+
+}
@@ -39,6 +39,7 @@ import com.esri.militaryapps.model.Location;
 import com.esri.militaryapps.model.MapConfig;
 import com.esri.militaryapps.model.MapConfigReader;
 import com.esri.squadleader.R;
+import com.esri.squadleader.model.LayerScaleRanges;
 
 /**
  * A class for useful static methods that don't really belong anywhere else.
@@ -155,6 +156,38 @@ public class Utilities extends com.esri.militaryapps.util.Utilities {
      * @throws IOException 
      */
     public static MapConfig readMapConfig(Context context, AssetManager assetManager) throws IOException, ParserConfigurationException, SAXException {
+        InputStream mapConfigInputStream = openMapConfig(context, assetManager);
+        try {
+            return MapConfigReader.readMapConfig(mapConfigInputStream);
+        } finally {
+            if (null != mapConfigInputStream) {
+                mapConfigInputStream.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the layer scale ranges from the same mapconfig.xml that readMapConfig reads.
+     * @param context the Context from which to get the app home directory and map config filename.
+     * @param assetManager the app's assets.
+     * @return the layer scale ranges.
+     * @throws SAXException
+     * @throws ParserConfigurationException
+     * @throws IOException
+     */
+    public static LayerScaleRanges readLayerScaleRanges(Context context, AssetManager assetManager) throws IOException, ParserConfigurationException, SAXException {
+        InputStream mapConfigInputStream = openMapConfig(context, assetManager);
+        if (null == mapConfigInputStream) {
+            return new LayerScaleRanges();
+        }
+        try {
+            return LayerScaleRanges.read(mapConfigInputStream);
+        } finally {
+            mapConfigInputStream.close();
+        }
+    }
+
+    private static InputStream openMapConfig(Context context, AssetManager assetManager) {
         //Read mapconfig from the SD card
         InputStream mapConfigInputStream = null;
         File mapConfigFile = new File(
@@ -176,13 +209,7 @@ public class Utilities extends com.esri.militaryapps.util.Utilities {
                 Log.e(TAG, "Couldn't load any " + context.getString(R.string.map_config_filename) + ", including the one built into the app", e);
             }
         }
-        try {
-            return MapConfigReader.readMapConfig(mapConfigInputStream);
-        } finally {
-            if (null != mapConfigInputStream) {
-                mapConfigInputStream.close();
-            }
-        }
+        return mapConfigInputStream;
     }
 
     /**
@@ -24,6 +24,7 @@ import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.view.ActionMode;
+import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -31,6 +32,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.FrameLayout;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -58,8 +60,12 @@ import com.esri.core.table.TableException;
 import com.esri.core.tasks.query.QueryParameters;
 import com.esri.squadleader.R;
 import com.esri.squadleader.controller.MapController;
+import com.esri.squadleader.controller.TerrainController;
+import com.esri.squadleader.model.ElevationProfile;
+import com.esri.squadleader.model.GeoPackageReader;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
@@ -100,6 +106,12 @@ public class AddFeatureDialogFragment extends DialogFragment {
          */
         OnSingleTapListener getDefaultOnSingleTapListener();
 
+        /**
+         * @return the TerrainController for drawing elevation profiles of polylines, or null if
+         * there is no elevation dataset.
+         */
+        TerrainController getTerrainController();
+
     }
 
     private class EditingStates {
@@ -126,6 +138,7 @@ public class AddFeatureDialogFragment extends DialogFragment {
     private static final SimpleMarkerSymbol blackMarkerSymbol = new SimpleMarkerSymbol(Color.BLACK, 20, SimpleMarkerSymbol.STYLE.CIRCLE);
     private static final SimpleMarkerSymbol greenMarkerSymbol = new SimpleMarkerSymbol(Color.GREEN, 15, SimpleMarkerSymbol.STYLE.CIRCLE);
     private static final String TAG_DIALOG_FRAGMENTS = "dialog";
+    private static final int PROFILE_HEIGHT_DP = 150;
 
     private final ArrayList<Point> points = new ArrayList<Point>();
     private final ArrayList<EditingStates> editingStates = new ArrayList<EditingStates>();
@@ -171,6 +184,8 @@ public class AddFeatureDialogFragment extends DialogFragment {
     private boolean vertexSelected = false;
     private int insertingIndex;
     private GraphicsLayer graphicsLayerEditing = null;
+    private ElevationProfile elevationProfile = null;
+    private ElevationProfileView elevationProfileView = null;
 
     @Override
     public Dialog onCreateDialog(Bundle savedInstanceState) {
@@ -284,6 +299,11 @@ public class AddFeatureDialogFragment extends DialogFragment {
                                 actionUndo();
                                 returnValue = true;
                                 break;
+
+                            case R.id.profile:
+                                actionToggleProfile();
+                                returnValue = true;
+                                break;
                         }
                         updateActionBar();
                         return returnValue;
@@ -306,6 +326,7 @@ public class AddFeatureDialogFragment extends DialogFragment {
         editingStates.clear();
         editMode = EditMode.NONE;
         midPointSelected = false;
+        hideProfile();
         mapController.removeLayer(graphicsLayerEditing);
         graphicsLayerEditing = null;
         mapController.setOnSingleTapListener(addFeatureListener == null ? null : addFeatureListener.getDefaultOnSingleTapListener());
@@ -320,6 +341,8 @@ public class AddFeatureDialogFragment extends DialogFragment {
             showAction(R.id.save, isSaveValid());
             showAction(R.id.delete_point, editMode != EditMode.POINT && points.size() > 0 && !midPointSelected);
             showAction(R.id.undo, editingStates.size() > 0);
+            showAction(R.id.profile, editMode == EditMode.POLYLINE && null != addFeatureListener
+                    && null != addFeatureListener.getTerrainController());
             mapController.setOnSingleTapListener(editingListener);
         }
     }
@@ -331,10 +354,54 @@ public class AddFeatureDialogFragment extends DialogFragment {
         drawPolylineOrPolygon();
         drawMidPoints();
         drawVertices();
+        updateProfile();
 
         updateActionBar();
     }
 
+    private void actionToggleProfile() {
+        if (null != elevationProfileView) {
+            hideProfile();
+            return;
+        }
+        TerrainController terrainController = null == addFeatureListener ? null : addFeatureListener.getTerrainController();
+        if (null != terrainController) {
+            elevationProfile = new ElevationProfile(terrainController.getElevationSampler(), 0);
+            elevationProfileView = new ElevationProfileView(activity);
+            int height = Math.round(PROFILE_HEIGHT_DP * activity.getResources().getDisplayMetrics().density);
+            activity.addContentView(elevationProfileView,
+                    new FrameLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, height, Gravity.BOTTOM));
+            updateProfile();
+        }
+    }
+
+    private void hideProfile() {
+        if (null != elevationProfileView) {
+            ViewGroup parent = (ViewGroup) elevationProfileView.getParent();
+            if (null != parent) {
+                parent.removeView(elevationProfileView);
+            }
+            elevationProfileView = null;
+        }
+        elevationProfile = null;
+    }
+
+    /**
+     * Resamples the segments of the elevation profile that changed since the last update, if the
+     * profile is showing.
+     */
+    private void updateProfile() {
+        if (null == elevationProfileView) {
+            return;
+        }
+        ArrayList<double[]> vertices = new ArrayList<double[]>(points.size());
+        for (Point point : points) {
+            vertices.add(new double[]{point.getX(), point.getY()});
+        }
+        elevationProfile.setPath(vertices);
+        elevationProfileView.setProfile(elevationProfile.getDistances(), elevationProfile.getElevations());
+    }
+
     private boolean isSaveValid() {
         int minPoints;
         switch (editMode) {
@@ -574,6 +641,10 @@ public class AddFeatureDialogFragment extends DialogFragment {
             if (null != newFeature) {
                 try {
                     featureId = featureTable.addFeature(newFeature);
+                    if (featureTable instanceof GeopackageFeatureTable) {
+                        GeoPackageReader.getInstance().updateSpatialIndex(
+                                (GeopackageFeatureTable) featureTable, new long[]{featureId}, Collections.singletonList(newFeature));
+                    }
                 } catch (Throwable t) {
                     Log.e(TAG, "Could not add feature", t);
                     Toast.makeText(activity, "Could not add feature: " + t.getMessage(), Toast.LENGTH_SHORT).show();
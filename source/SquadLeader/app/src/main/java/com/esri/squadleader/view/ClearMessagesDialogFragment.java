@@ -32,6 +32,8 @@ import android.widget.TextView;
 import com.esri.squadleader.R;
 import com.esri.squadleader.controller.AdvancedSymbolController;
 
+import java.util.HashMap;
+
 /**
  * A dialog for clearing messages from the display.
  */
@@ -71,11 +73,10 @@ public class ClearMessagesDialogFragment extends DialogFragment {
             builder.setTitle(getString(R.string.clear_messages));
             builder.setNegativeButton(R.string.cancel, null);
             ListView listView = (ListView) inflatedView.findViewById(R.id.listView_layerToClear);
-            String[] layerNames = listener.getAdvancedSymbolController().getMessageLayerNames();
-            String[] layerNamesPlusAll = new String[layerNames.length + 1];
-            layerNamesPlusAll[0] = getString(R.string.all_layers);
-            System.arraycopy(layerNames, 0, layerNamesPlusAll, 1, layerNames.length);
-            ArrayAdapter<String> adapter = new ArrayAdapter<String>(getActivity(), android.R.layout.simple_list_item_1, layerNamesPlusAll);
+            AdvancedSymbolController controller = listener.getAdvancedSymbolController();
+            final String[] layerNames = controller.getMessageLayerNames();
+            String[] labels = getLabels(controller, layerNames);
+            ArrayAdapter<String> adapter = new ArrayAdapter<String>(getActivity(), android.R.layout.simple_list_item_1, labels);
             listView.setAdapter(adapter);
             final Dialog dialog = builder.create();
             listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
@@ -90,11 +91,11 @@ public class ClearMessagesDialogFragment extends DialogFragment {
                         } catch (Throwable t) {
                             Log.e(TAG, null, t);
                         }
-                        final String text = ((TextView) view).getText().toString();
-                        if (getString(R.string.all_layers).equals(text)) {
+                        // The labels include message counts, so go by position instead of text
+                        if (0 == position) {
                             listener.getAdvancedSymbolController().clearAllMessages(sendRemoveMessage);
                         } else {
-                            listener.getAdvancedSymbolController().clearLayer(text, sendRemoveMessage);
+                            listener.getAdvancedSymbolController().clearLayer(layerNames[position - 1], sendRemoveMessage);
                         }
                     }
                     
@@ -107,4 +108,29 @@ public class ClearMessagesDialogFragment extends DialogFragment {
         }
     }
 
+    /**
+     * Returns "All layers" followed by the layer names, each with the number of messages it has
+     * on the map and, for all layers, the message budget if there is one.
+     */
+    private String[] getLabels(AdvancedSymbolController controller, String[] layerNames) {
+        String[] labels = new String[layerNames.length + 1];
+        int budget = controller.getMessageBudget();
+        if (0 < budget) {
+            labels[0] = getString(R.string.layer_message_count_budget, getString(R.string.all_layers), controller.getMessageCount(), budget);
+        } else {
+            labels[0] = getString(R.string.layer_message_count, getString(R.string.all_layers), controller.getMessageCount());
+        }
+        HashMap<String, Integer> counts = controller.getMessageCountsByLayer();
+        for (int i = 0; i < layerNames.length; i++) {
+            if (AdvancedSymbolController.SPOT_REPORT_LAYER_NAME.equals(layerNames[i])) {
+                // Spot reports are not part of the message budget
+                labels[i + 1] = layerNames[i];
+            } else {
+                Integer count = counts.get(layerNames[i]);
+                labels[i + 1] = getString(R.string.layer_message_count, layerNames[i], null == count ? 0 : count);
+            }
+        }
+        return labels;
+    }
+
 }
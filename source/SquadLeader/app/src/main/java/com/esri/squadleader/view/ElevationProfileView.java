@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.view;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+import java.util.Locale;
+
+/**
+ * A View that plots a terrain profile as elevation against distance along a path. Call setProfile
+ * whenever the profile changes. Samples with no elevation leave gaps in the plot.
+ */
+public class ElevationProfileView extends View {
+
+    private final Paint linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint fillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Path linePath = new Path();
+    private final Path fillPath = new Path();
+    private double[] distances = new double[0];
+    private double[] elevations = new double[0];
+
+    public ElevationProfileView(Context context) {
+        super(context);
+        init();
+    }
+
+    public ElevationProfileView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    public ElevationProfileView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        init();
+    }
+
+    private void init() {
+        setBackgroundColor(Color.argb(200, 255, 255, 255));
+        linePaint.setColor(Color.rgb(139, 69, 19));
+        linePaint.setStyle(Paint.Style.STROKE);
+        linePaint.setStrokeWidth(3 * getResources().getDisplayMetrics().density);
+        fillPaint.setColor(Color.argb(100, 139, 69, 19));
+        fillPaint.setStyle(Paint.Style.FILL);
+        textPaint.setColor(Color.BLACK);
+        textPaint.setTextSize(12 * getResources().getDisplayMetrics().scaledDensity);
+    }
+
+    /**
+     * Sets the profile to plot.
+     *
+     * @param distances  the distance of each sample along the path, in ascending order.
+     * @param elevations the elevation of each sample, or NaN for a sample with no elevation.
+     */
+    public void setProfile(double[] distances, double[] elevations) {
+        this.distances = distances;
+        this.elevations = elevations;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (2 > distances.length) {
+            return;
+        }
+        double minElevation = Double.POSITIVE_INFINITY;
+        double maxElevation = Double.NEGATIVE_INFINITY;
+        for (double elevation : elevations) {
+            if (!Double.isNaN(elevation)) {
+                minElevation = Math.min(minElevation, elevation);
+                maxElevation = Math.max(maxElevation, elevation);
+            }
+        }
+        if (Double.isInfinite(minElevation)) {
+            return;
+        }
+        if (maxElevation - minElevation < 1) {
+            maxElevation = minElevation + 1;
+        }
+
+        float textHeight = textPaint.getTextSize();
+        float left = getPaddingLeft();
+        float top = getPaddingTop() + textHeight * 1.5f;
+        float right = getWidth() - getPaddingRight();
+        float bottom = getHeight() - getPaddingBottom() - textHeight * 1.5f;
+        double totalDistance = distances[distances.length - 1];
+        if (0 >= totalDistance || bottom <= top) {
+            return;
+        }
+
+        linePath.reset();
+        fillPath.reset();
+        float runStartX = 0;
+        float lastX = 0;
+        boolean inRun = false;
+        for (int i = 0; i < distances.length; i++) {
+            if (Double.isNaN(elevations[i])) {
+                if (inRun) {
+                    closeFill(lastX, runStartX, bottom);
+                    inRun = false;
+                }
+                continue;
+            }
+            float x = (float) (left + (right - left) * distances[i] / totalDistance);
+            float y = (float) (bottom - (bottom - top) * (elevations[i] - minElevation) / (maxElevation - minElevation));
+            if (inRun) {
+                linePath.lineTo(x, y);
+                fillPath.lineTo(x, y);
+            } else {
+                linePath.moveTo(x, y);
+                fillPath.moveTo(x, bottom);
+                fillPath.lineTo(x, y);
+                runStartX = x;
+                inRun = true;
+            }
+            lastX = x;
+        }
+        if (inRun) {
+            closeFill(lastX, runStartX, bottom);
+        }
+        canvas.drawPath(fillPath, fillPaint);
+        canvas.drawPath(linePath, linePaint);
+
+        canvas.drawText(String.format(Locale.getDefault(), "%.0f", maxElevation), left, top - textHeight * 0.5f, textPaint);
+        canvas.drawText(String.format(Locale.getDefault(), "%.0f", minElevation), left, bottom + textHeight * 1.25f, textPaint);
+        String distanceText = String.format(Locale.getDefault(), "%.0f", totalDistance);
+        canvas.drawText(distanceText, right - textPaint.measureText(distanceText), bottom + textHeight * 1.25f, textPaint);
+    }
+
+    private void closeFill(float lastX, float runStartX, float bottom) {
+        fillPath.lineTo(lastX, bottom);
+        fillPath.lineTo(runStartX, bottom);
+        fillPath.close();
+    }
+
+}
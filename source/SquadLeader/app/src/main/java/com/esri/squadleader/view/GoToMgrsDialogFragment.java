@@ -26,6 +26,7 @@ import android.view.View;
 import android.widget.EditText;
 import android.widget.Toast;
 
+import com.esri.core.geometry.Point;
 import com.esri.squadleader.R;
 import com.esri.squadleader.controller.MapController;
 
@@ -52,6 +53,13 @@ public class GoToMgrsDialogFragment extends DialogFragment {
          */
         void beforePanToMgrs(String mgrs);
         
+        /**
+         * Called after GoToMgrsDialog successfully pans to the MGRS location.
+         * @param mgrs the MGRS string.
+         * @param point the MGRS location in the map's spatial reference.
+         */
+        void afterPanToMgrs(String mgrs, Point point);
+        
         /**
          * Called if the attempt to pan to MGRS is unsuccessful. Most often, this happens
          * when the provided MGRS string is invalid.
@@ -87,9 +95,12 @@ public class GoToMgrsDialogFragment extends DialogFragment {
                         String mgrs = ((EditText) view).getText().toString();
                         if (null != mgrs) {
                             listener.beforePanToMgrs(mgrs);
-                            if (null == listener.getMapController().panTo(mgrs)) {
+                            Point point = listener.getMapController().panTo(mgrs);
+                            if (null == point) {
                                 Toast.makeText(getActivity(), "Invalid MGRS string: " + mgrs, Toast.LENGTH_LONG).show();
                                 listener.onPanToMgrsError(mgrs);
+                            } else {
+                                listener.afterPanToMgrs(mgrs, point);
                             }
                         }
                     }
@@ -83,6 +83,18 @@ public class SettingsActivity extends AppCompatActivity implements OnSharedPrefe
             } else if (key.equals(getString(R.string.pref_viewshedObserverHeight))) {
                 EditTextPreference editTextPref = (EditTextPreference) pref;
                 pref.setSummary(editTextPref.getText() + getString(R.string.pref_viewshedObserverHeight_summary));
+            } else if (key.equals(getString(R.string.pref_viewshedMaxRadius))) {
+                EditTextPreference editTextPref = (EditTextPreference) pref;
+                pref.setSummary(editTextPref.getText() + getString(R.string.pref_viewshedMaxRadius_summary));
+            } else if (key.equals(getString(R.string.pref_simulatorSpeedMultiplier))) {
+                EditTextPreference editTextPref = (EditTextPreference) pref;
+                pref.setSummary(editTextPref.getText() + getString(R.string.pref_simulatorSpeedMultiplier_summary));
+            } else if (key.equals(getString(R.string.pref_simulatorOutputRate))) {
+                EditTextPreference editTextPref = (EditTextPreference) pref;
+                pref.setSummary(editTextPref.getText() + getString(R.string.pref_simulatorOutputRate_summary));
+            } else if (key.equals(getString(R.string.pref_messageBudget))) {
+                EditTextPreference editTextPref = (EditTextPreference) pref;
+                pref.setSummary(editTextPref.getText() + getString(R.string.pref_messageBudget_summary));
             }
         }
 
@@ -28,6 +28,7 @@ import android.databinding.DataBindingUtil;
 import android.graphics.Color;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
 import android.preference.PreferenceManager;
@@ -52,6 +53,7 @@ import android.widget.ToggleButton;
 
 import com.esri.android.map.Callout;
 import com.esri.android.map.MapView;
+import com.esri.android.map.RasterLayer;
 import com.esri.android.map.event.OnPanListener;
 import com.esri.android.map.event.OnSingleTapListener;
 import com.esri.android.map.popup.FeatureTablePopupInfo;
@@ -59,8 +61,10 @@ import com.esri.android.map.popup.Popup;
 import com.esri.android.map.popup.PopupContainer;
 import com.esri.android.map.popup.PopupContainerView;
 import com.esri.android.runtime.ArcGISRuntime;
+import com.esri.core.geodatabase.GeopackageFeatureTable;
 import com.esri.core.geometry.AngularUnit;
 import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.GeometryEngine;
 import com.esri.core.geometry.Point;
 import com.esri.core.geometry.SpatialReference;
 import com.esri.core.map.Feature;
@@ -73,7 +77,6 @@ import com.esri.militaryapps.controller.LocationController.LocationMode;
 import com.esri.militaryapps.controller.LocationListener;
 import com.esri.militaryapps.controller.MapConfigListener;
 import com.esri.militaryapps.controller.MessageController;
-import com.esri.militaryapps.controller.PositionReportController;
 import com.esri.militaryapps.controller.SpotReportController;
 import com.esri.militaryapps.model.Geomessage;
 import com.esri.militaryapps.model.LayerInfo;
@@ -83,12 +86,18 @@ import com.esri.militaryapps.model.MapConfig;
 import com.esri.militaryapps.model.SpotReport;
 import com.esri.squadleader.R;
 import com.esri.squadleader.controller.AdvancedSymbolController;
+import com.esri.squadleader.controller.LocationController;
 import com.esri.squadleader.controller.MapController;
 import com.esri.squadleader.controller.MessageListener;
+import com.esri.squadleader.controller.PositionReportController;
+import com.esri.squadleader.controller.TerrainController;
 import com.esri.squadleader.controller.ViewshedController;
 import com.esri.squadleader.databinding.ActivitySquadLeaderBinding;
 import com.esri.squadleader.databinding.MainBinding;
 import com.esri.squadleader.model.BasemapLayer;
+import com.esri.squadleader.model.GeoPackageReader;
+import com.esri.squadleader.model.MovementThreshold;
+import com.esri.squadleader.model.TrackRecorder;
 import com.esri.squadleader.util.Utilities;
 import com.esri.squadleader.view.AddLayerDialogFragment.AddLayerListener;
 import com.esri.squadleader.view.ClearMessagesDialogFragment.ClearMessagesHelper;
@@ -98,10 +107,13 @@ import com.ipaulpro.afilechooser.utils.FileUtils;
 import java.io.File;
 import java.io.IOException;
 import java.net.SocketException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -118,7 +130,6 @@ public class SquadLeaderActivity extends AppCompatActivity
         implements AddLayerListener, ClearMessagesHelper, GoToMgrsHelper, AddFeatureDialogFragment.AddFeatureListener {
 
     private static final String TAG = SquadLeaderActivity.class.getSimpleName();
-    private static final double MILLISECONDS_PER_HOUR = 1000 * 60 * 60;
 
     /**
      * These request codes need to be bitwise (1, 2, 4, 8, 16, etc.).
@@ -148,12 +159,20 @@ public class SquadLeaderActivity extends AppCompatActivity
 
     private static final String LAST_WKID_KEY = "lastWkid";
 
+    /**
+     * How far, in map units, the user must move before the follow-me viewshed is recalculated.
+     */
+    private static final double FOLLOW_ME_VIEWSHED_DISTANCE = 25;
+
+    /**
+     * How far, in degrees, the user must turn before the follow-me viewshed is recalculated.
+     */
+    private static final double FOLLOW_ME_VIEWSHED_HEADING = 45;
+
     private final Handler locationChangeHandler = new Handler() {
 
         private final SpatialReference SR = SpatialReference.create(4326);
 
-        private Location previousLocation = null;
-
         @Override
         public void handleMessage(Message msg) {
             if (null != msg) {
@@ -165,17 +184,8 @@ public class SquadLeaderActivity extends AppCompatActivity
                     Log.i(TAG, "Couldn't set location text", t);
                 }
                 try {
-                    double speedMph = location.getSpeedMph();
-                    if (0 == Double.compare(speedMph, 0.0)
-                            && null != previousLocation
-                            && !mapController.getLocationController().getMode().equals(LocationMode.LOCATION_SERVICE)) {
-                        //Calculate speed
-                        double distanceInMiles = Utilities.calculateDistanceInMeters(previousLocation, location) / Utilities.METERS_PER_MILE;
-                        double timeInHours = (location.getTimestamp().getTimeInMillis() - previousLocation.getTimestamp().getTimeInMillis()) / MILLISECONDS_PER_HOUR;
-                        speedMph = distanceInMiles / timeInHours;
-                    }
                     mainBinding.setDisplaySpeed(
-                            String.format(getString(R.string.display_speed), speedMph));
+                            String.format(getString(R.string.display_speed), location.getSpeedMph()));
                 } catch (Throwable t) {
                     Log.i(TAG, "Couldn't set speed text", t);
                 }
@@ -187,7 +197,7 @@ public class SquadLeaderActivity extends AppCompatActivity
                 } catch (Throwable t) {
                     Log.i(TAG, "Couldn't set heading text", t);
                 }
-                previousLocation = location;
+                updateFollowMeViewshed(location);
             }
         }
 
@@ -235,6 +245,24 @@ public class SquadLeaderActivity extends AppCompatActivity
                 } catch (Throwable t) {
                     Log.i(TAG, "Couldn't get " + key + " value", t);
                 }
+            } else if (key.equals(getString(R.string.pref_deadReckoning))) {
+                if (null != mil2525cController) {
+                    mil2525cController.setDeadReckoningEnabled(sharedPreferences.getBoolean(key, false));
+                }
+            } else if (key.equals(getString(R.string.pref_staleTrackAging))) {
+                if (null != mil2525cController) {
+                    mil2525cController.setStaleTrackAgingEnabled(sharedPreferences.getBoolean(key, false));
+                }
+            } else if (key.equals(getString(R.string.pref_deferOffscreenMessages))) {
+                if (null != mil2525cController) {
+                    mil2525cController.setOffscreenDeferralEnabled(sharedPreferences.getBoolean(key, false));
+                }
+            } else if (key.equals(getString(R.string.pref_messageBudget))) {
+                if (null != mil2525cController) {
+                    mil2525cController.setMessageBudget(readMessageBudget(sharedPreferences));
+                }
+            } else if (key.equals(getString(R.string.pref_adaptivePositionReports))) {
+                positionReportController.setAdaptive(sharedPreferences.getBoolean(key, false));
             } else if (key.equals(getString(R.string.pref_positionReports))) {
                 try {
                     positionReportsPreference = sharedPreferences.getBoolean(key, false);
@@ -262,6 +290,21 @@ public class SquadLeaderActivity extends AppCompatActivity
                 if (observerHeight >= 0f && null != viewshedController) {
                     viewshedController.setObserverHeight(observerHeight);
                 }
+            } else if (key.equals(getString(R.string.pref_viewshedMaxRadius))) {
+                if (null != viewshedController) {
+                    viewshedController.setMaxRadius(readViewshedMaxRadius(sharedPreferences));
+                }
+            } else if (key.equals(getString(R.string.pref_adaptiveSampling))) {
+                ((LocationController) mapController.getLocationController()).setAdaptiveSamplingEnabled(sharedPreferences.getBoolean(key, false));
+            } else if (key.equals(getString(R.string.pref_filterLocation))) {
+                ((LocationController) mapController.getLocationController()).setLocationFilterEnabled(sharedPreferences.getBoolean(key, false));
+            } else if (key.equals(getString(R.string.pref_simulatorSpeedMultiplier))
+                    || key.equals(getString(R.string.pref_simulatorOutputRate))
+                    || key.equals(getString(R.string.pref_recordTrack))) {
+                applyLocationPreferences(sharedPreferences);
+            } else if (key.equals(getString(R.string.pref_followMeViewshed))) {
+                followMeViewshedThreshold.clear();
+                pendingFollowMeObserver = null;
             }
         }
     };
@@ -277,6 +320,14 @@ public class SquadLeaderActivity extends AppCompatActivity
     private AdvancedSymbolController mil2525cController = null;
     private PositionReportController positionReportController;
     private ViewshedController viewshedController = null;
+    private RasterLayer viewshedLayer = null;
+    private TerrainController terrainController = null;
+    private boolean teamViewshedOn = false;
+    private boolean teamViewshedPending = false;
+    private final MovementThreshold followMeViewshedThreshold = new MovementThreshold(FOLLOW_ME_VIEWSHED_DISTANCE, FOLLOW_ME_VIEWSHED_HEADING);
+    private Point pendingFollowMeObserver = null;
+    private double pendingFollowMeHeading = Double.NaN;
+    private boolean backgroundViewshedFailed = false;
     private AddLayerDialogFragment addLayerDialogFragment = null;
     private AddFeatureDialogFragment addFeatureDialogFragment = null;
     private ClearMessagesDialogFragment clearMessagesDialogFragment = null;
@@ -434,7 +485,9 @@ public class SquadLeaderActivity extends AppCompatActivity
 
         final MapView mapView = (MapView) findViewById(R.id.map);
 
-        mapView.setOnPanListener(new OnPanListener() {
+        mapController = new MapController(mapView, getAssets(), new LayerErrorListener(this), this);
+        applyLocationPreferences(PreferenceManager.getDefaultSharedPreferences(this));
+        mapController.setOnPanListener(new OnPanListener() {
 
             private static final long serialVersionUID = 0x58d30af8d168f63aL;
 
@@ -456,8 +509,6 @@ public class SquadLeaderActivity extends AppCompatActivity
             }
 
         });
-
-        mapController = new MapController(mapView, getAssets(), new LayerErrorListener(this), this);
         mapController.setOnSingleTapListener(defaultOnSingleTapListener);
         northArrowView = (NorthArrowView) findViewById(R.id.northArrowView);
         northArrowView.setMapController(mapController);
@@ -482,21 +533,16 @@ public class SquadLeaderActivity extends AppCompatActivity
                 uniqueIdPreference,
                 sicPreference);
         positionReportController.setPeriod(positionReportsPeriodPreference);
+        positionReportController.setAdaptive(PreferenceManager.getDefaultSharedPreferences(this)
+                .getBoolean(getString(R.string.pref_adaptivePositionReports), false));
         positionReportController.setEnabled(positionReportsPreference);
 
         mapController.getLocationController().addListener(new LocationListener() {
 
             @Override
-            public void onLocationChanged(final Location location) {
+            public void onLocationChanged(Location location) {
                 if (null != location) {
-                    //Do this in a thread in case we need to calculate the speed
-                    new Thread() {
-                        public void run() {
-                            Message msg = new Message();
-                            msg.obj = location;
-                            locationChangeHandler.sendMessage(msg);
-                        }
-                    }.start();
+                    locationChangeHandler.obtainMessage(0, location).sendToTarget();
                 }
             }
 
@@ -516,6 +562,7 @@ public class SquadLeaderActivity extends AppCompatActivity
                 }
             }
             createViewshedController(viewshedElevationPath);
+            createTerrainController(viewshedElevationPath);
         }
         mapController.addMapConfigListener(new MapConfigListener() {
 
@@ -530,6 +577,7 @@ public class SquadLeaderActivity extends AppCompatActivity
                     }
                 }
                 createViewshedController(viewshedElevationPath);
+                createTerrainController(viewshedElevationPath);
             }
         });
 
@@ -614,6 +662,12 @@ public class SquadLeaderActivity extends AppCompatActivity
                 getString(R.string.sym_dict_dirname),
                 ContextCompat.getDrawable(getApplicationContext(), R.drawable.ic_spot_report),
                 messageController);
+        mil2525cController.setTerrainController(terrainController);
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        mil2525cController.setDeadReckoningEnabled(prefs.getBoolean(getString(R.string.pref_deadReckoning), false));
+        mil2525cController.setStaleTrackAgingEnabled(prefs.getBoolean(getString(R.string.pref_staleTrackAging), false));
+        mil2525cController.setMessageBudget(readMessageBudget(prefs));
+        mil2525cController.setOffscreenDeferralEnabled(prefs.getBoolean(getString(R.string.pref_deferOffscreenMessages), false));
         messageController.addListener(new MessageListener(mil2525cController));
     }
 
@@ -644,13 +698,144 @@ public class SquadLeaderActivity extends AppCompatActivity
         }
     }
 
+    private double readViewshedMaxRadius(SharedPreferences sharedPreferences) {
+        try {
+            return Double.parseDouble(sharedPreferences.getString(getString(R.string.pref_viewshedMaxRadius),
+                    getString(R.string.pref_viewshedMaxRadius_default)));
+        } catch (NumberFormatException e) {
+            Log.i(TAG, "Couldn't parse " + getString(R.string.pref_viewshedMaxRadius) + " value", e);
+            return 0;
+        }
+    }
+
+    private int readMessageBudget(SharedPreferences sharedPreferences) {
+        try {
+            return Math.max(0, Integer.parseInt(sharedPreferences.getString(getString(R.string.pref_messageBudget), "0")));
+        } catch (NumberFormatException e) {
+            Log.i(TAG, "Couldn't parse " + getString(R.string.pref_messageBudget) + " value", e);
+            return 0;
+        }
+    }
+
+    private void applyLocationPreferences(SharedPreferences sharedPreferences) {
+        LocationController locationController = (LocationController) mapController.getLocationController();
+        locationController.setLocationFilterEnabled(sharedPreferences.getBoolean(getString(R.string.pref_filterLocation), false));
+        locationController.setAdaptiveSamplingEnabled(sharedPreferences.getBoolean(getString(R.string.pref_adaptiveSampling), false));
+        try {
+            locationController.setSimulatorSpeedMultiplier(Double.parseDouble(sharedPreferences.getString(
+                    getString(R.string.pref_simulatorSpeedMultiplier), "1")));
+        } catch (IllegalArgumentException e) {
+            Log.i(TAG, "Couldn't use " + getString(R.string.pref_simulatorSpeedMultiplier) + " value", e);
+        }
+        try {
+            locationController.setSimulatorOutputRate(Double.parseDouble(sharedPreferences.getString(
+                    getString(R.string.pref_simulatorOutputRate), "0")));
+        } catch (IllegalArgumentException e) {
+            Log.i(TAG, "Couldn't use " + getString(R.string.pref_simulatorOutputRate) + " value", e);
+        }
+        File trackLogFile = new File(getFilesDir(), getString(R.string.recorded_track_filename));
+        locationController.setTrackLogFile(trackLogFile);
+        if (sharedPreferences.getBoolean(getString(R.string.pref_recordTrack), false)) {
+            try {
+                locationController.startTrackRecording(trackLogFile);
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't start recording track", e);
+            }
+        } else {
+            locationController.stopTrackRecording();
+        }
+    }
+
+    /**
+     * Exports the recorded track to a GPX file in a background thread and tells the user where it
+     * went. This works whether or not the track is still being recorded.
+     */
+    private void exportRecordedTrack() {
+        final TrackRecorder trackRecorder;
+        try {
+            trackRecorder = ((LocationController) mapController.getLocationController()).getTrackLog();
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't read track log", e);
+            Snackbar.make(findViewById(R.id.map), getString(R.string.track_export_failed, e.getLocalizedMessage()), Snackbar.LENGTH_LONG).show();
+            return;
+        }
+        if (null == trackRecorder || 0 == trackRecorder.getCount()) {
+            Snackbar.make(findViewById(R.id.map), R.string.no_recorded_track, Snackbar.LENGTH_LONG).show();
+            return;
+        }
+        final File gpxFile = new File(Environment.getExternalStorageDirectory(), getString(R.string.track_export_path,
+                new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date())));
+        new Thread() {
+            @Override
+            public void run() {
+                String message;
+                try {
+                    gpxFile.getParentFile().mkdirs();
+                    trackRecorder.exportGpx(gpxFile);
+                    message = getString(R.string.track_exported, gpxFile.getAbsolutePath());
+                } catch (IOException e) {
+                    Log.e(TAG, "Couldn't export track", e);
+                    message = getString(R.string.track_export_failed, e.getLocalizedMessage());
+                }
+                final String finalMessage = message;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Snackbar.make(findViewById(R.id.map), finalMessage, Snackbar.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }.start();
+    }
+
+    private void createTerrainController(String elevationPath) {
+        if (null != mil2525cController) {
+            mil2525cController.setTerrainController(null);
+        }
+        if (null != terrainController) {
+            terrainController.dispose();
+            terrainController = null;
+        }
+        if (null != elevationPath) {
+            try {
+                terrainController = new TerrainController(elevationPath);
+            } catch (Throwable t) {
+                Log.d(TAG, "Couldn't set up TerrainController", t);
+            }
+        }
+        if (null != mil2525cController) {
+            mil2525cController.setTerrainController(terrainController);
+        }
+    }
+
+    /**
+     * @return the TerrainController for the viewshed elevation dataset, or null if there is no
+     * usable elevation dataset.
+     */
+    @Override
+    public TerrainController getTerrainController() {
+        return terrainController;
+    }
+
     private void createViewshedController(String elevationPath) {
-        if (null != viewshedController && null != viewshedController.getLayer()) {
-            mapController.removeLayer(viewshedController.getLayer());
+        if (teamViewshedOn) {
+            setTeamViewshed(false);
+        }
+        // Take the layer off the map before dispose deletes its file
+        if (null != viewshedLayer) {
+            mapController.removeLayer(viewshedLayer);
+            viewshedLayer = null;
+        }
+        if (null != viewshedController) {
+            viewshedController.dispose();
         }
         try {
-            viewshedController = new ViewshedController(elevationPath);
-            mapController.addLayer(viewshedController.getLayer());
+            viewshedController = new ViewshedController(elevationPath, getCacheDir());
+            viewshedController.setMaxRadius(readViewshedMaxRadius(PreferenceManager.getDefaultSharedPreferences(this)));
+            if (null != viewshedController.getLayer()) {
+                viewshedLayer = viewshedController.getLayer();
+                mapController.addLayer(viewshedLayer);
+            }
             findViewById(R.id.toggleButton_viewshed).setVisibility(View.VISIBLE);
         } catch (Throwable t) {
             Log.d(TAG, "Couldn't set up ViewshedController", t);
@@ -717,6 +902,16 @@ public class SquadLeaderActivity extends AppCompatActivity
         setFollowMe(false);
     }
 
+    @Override
+    public void afterPanToMgrs(String mgrs, Point point) {
+        if (null != terrainController) {
+            double elevation = terrainController.getElevation(point);
+            if (!Double.isNaN(elevation)) {
+                Snackbar.make(findViewById(R.id.map), getString(R.string.elevation_at_mgrs, mgrs, elevation), Snackbar.LENGTH_LONG).show();
+            }
+        }
+    }
+
     @Override
     public void onPanToMgrsError(String mgrs) {
         if (wasFollowMeBeforeMgrs) {
@@ -732,7 +927,14 @@ public class SquadLeaderActivity extends AppCompatActivity
         if (null != viewshedController) {
             viewshedController.dispose();
         }
+        if (null != terrainController) {
+            terrainController.dispose();
+        }
+        if (null != mil2525cController) {
+            mil2525cController.dispose();
+        }
         if (null != mapController) {
+            ((LocationController) mapController.getLocationController()).stopTrackRecording();
             mapController.dispose();
         }
     }
@@ -791,6 +993,7 @@ public class SquadLeaderActivity extends AppCompatActivity
         MenuItem menuItem_toggleLabels = menu.findItem(R.id.toggle_labels);
         menuItem_toggleLabels.setIcon(labelsOn ? R.drawable.ic_action_labels : R.drawable.ic_action_labels_off);
         menuItem_toggleLabels.setChecked(labelsOn);
+        menu.findItem(R.id.team_viewshed).setChecked(teamViewshedOn);
         return super.onPrepareOptionsMenu(menu);
     }
 
@@ -825,6 +1028,9 @@ public class SquadLeaderActivity extends AppCompatActivity
                 }
                 clearMessagesDialogFragment.show(getFragmentManager(), getString(R.string.clear_messages_fragment_tag));
                 return true;
+            case R.id.team_viewshed:
+                setTeamViewshed(!teamViewshedOn);
+                return true;
             case R.id.go_to_mgrs:
                 //Present Go to MGRS dialog
                 if (null == goToMgrsDialogFragment) {
@@ -841,9 +1047,11 @@ public class SquadLeaderActivity extends AppCompatActivity
                                 new String[]{
                                         getString(R.string.option_location_service),
                                         getString(R.string.option_simulation_builtin),
-                                        getString(R.string.option_simulation_file)},
+                                        getString(R.string.option_simulation_file),
+                                        getString(R.string.option_simulation_recorded)},
                                 mapController.getLocationController().getMode() == LocationMode.LOCATION_SERVICE ? 0 :
-                                        null == mapController.getLocationController().getGpxFile() ? 1 : 2,
+                                        ((LocationController) mapController.getLocationController()).isPlayingRecordedTrack() ? 3 :
+                                                null == mapController.getLocationController().getGpxFile() ? 1 : 2,
                                 new DialogInterface.OnClickListener() {
 
                                     @Override
@@ -855,6 +1063,12 @@ public class SquadLeaderActivity extends AppCompatActivity
                                                 Intent getContentIntent = FileUtils.createGetContentIntent();
                                                 Intent intent = Intent.createChooser(getContentIntent, "Select a file");
                                                 startActivityForResult(intent, REQUEST_CHOOSER);
+                                            } else if (3 == which) {
+                                                if (((LocationController) mapController.getLocationController()).playRecordedTrack()) {
+                                                    mapController.getLocationController().start();
+                                                } else {
+                                                    Snackbar.make(findViewById(R.id.map), R.string.no_recorded_track, Snackbar.LENGTH_LONG).show();
+                                                }
                                             } else {
                                                 mapController.getLocationController().setGpxFile(null, true);
                                                 mapController.getLocationController().setMode(
@@ -873,6 +1087,18 @@ public class SquadLeaderActivity extends AppCompatActivity
                 AlertDialog dialog = builder.create();
                 dialog.show();
                 return true;
+            case R.id.export_track:
+                exportRecordedTrack();
+                return true;
+            case R.id.clear_track:
+                try {
+                    ((LocationController) mapController.getLocationController()).clearTrackLog();
+                    Snackbar.make(findViewById(R.id.map), R.string.track_cleared, Snackbar.LENGTH_LONG).show();
+                } catch (IOException e) {
+                    Log.e(TAG, "Couldn't clear track log", e);
+                    Snackbar.make(findViewById(R.id.map), getString(R.string.track_clear_failed, e.getLocalizedMessage()), Snackbar.LENGTH_LONG).show();
+                }
+                return true;
             case R.id.settings:
                 Intent intent = new Intent(this, SettingsActivity.class);
                 startActivityForResult(intent, SETTINGS_ACTIVITY);
@@ -1026,6 +1252,8 @@ public class SquadLeaderActivity extends AppCompatActivity
 
     public void toggleButton_followMe_clicked(final View view) {
         mapController.setAutoPan(((ToggleButton) view).isChecked());
+        followMeViewshedThreshold.clear();
+        pendingFollowMeObserver = null;
     }
 
     public void toggleButton_chemLightRed_clicked(final View view) {
@@ -1110,9 +1338,16 @@ public class SquadLeaderActivity extends AppCompatActivity
                 @Override
                 public void onSingleTap(final float x, final float y) {
                     if (null != viewshedController) {
-                        Point pt = mapController.toMapPointObject((int) x, (int) y);
-                        viewshedController.calculateViewshed(pt);
-                        findViewById(R.id.imageButton_clearViewshed).setVisibility(View.VISIBLE);
+                        if (teamViewshedOn) {
+                            setTeamViewshed(false);
+                        }
+                        // Don't let a held follow-me location replace the user's viewshed
+                        pendingFollowMeObserver = null;
+                        if (viewshedController.isCalculating()) {
+                            viewshedController.cancelViewshed();
+                        } else {
+                            calculateViewshed(mapController.toMapPointObject((int) x, (int) y));
+                        }
                     }
                 }
             });
@@ -1121,9 +1356,240 @@ public class SquadLeaderActivity extends AppCompatActivity
         }
     }
 
+    private void calculateViewshed(Point observer) {
+        viewshedController.calculateViewshedAsync(observer, createViewshedListener(showViewshedProgress()));
+    }
+
+    private Snackbar showViewshedProgress() {
+        final Snackbar snackbar = Snackbar.make(findViewById(R.id.map), R.string.calculating_viewshed, Snackbar.LENGTH_INDEFINITE);
+        snackbar.setAction(R.string.cancel, new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (null != viewshedController) {
+                    viewshedController.cancelViewshed();
+                }
+            }
+        });
+        snackbar.show();
+        return snackbar;
+    }
+
+    /**
+     * Creates a listener that shows a viewshed result on the map when it is ready.
+     *
+     * @param snackbar a Snackbar that shows progress and is dismissed when the calculation ends, or
+     *                 null to calculate without showing progress.
+     */
+    private ViewshedController.ViewshedListener createViewshedListener(final Snackbar snackbar) {
+        return new ViewshedController.ViewshedListener() {
+            @Override
+            public void viewshedProgress(final int percent) {
+                if (null != snackbar) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            snackbar.setText(getString(R.string.calculating_viewshed_percent, percent));
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void viewshedPreview(final RasterLayer layer) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        showViewshedLayer(layer);
+                    }
+                });
+            }
+
+            @Override
+            public void viewshedCompleted(final RasterLayer layer) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (null != snackbar) {
+                            snackbar.dismiss();
+                            // A follow-me location that arrived meanwhile would replace this result
+                            pendingFollowMeObserver = null;
+                        } else {
+                            backgroundViewshedFailed = false;
+                        }
+                        showViewshedLayer(layer);
+                        runPendingViewshed();
+                    }
+                });
+            }
+
+            @Override
+            public void viewshedFailed(final Throwable t) {
+                Log.e(TAG, null == snackbar ? "Couldn't update team or follow-me viewshed" : "Couldn't calculate viewshed", t);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (null != snackbar) {
+                            snackbar.dismiss();
+                            Snackbar.make(findViewById(R.id.map), getString(R.string.viewshed_failed, t.getLocalizedMessage()), Snackbar.LENGTH_LONG).show();
+                        } else if (!backgroundViewshedFailed) {
+                            // Tell the user once, not on every follow-me or team update that fails
+                            backgroundViewshedFailed = true;
+                            Snackbar.make(findViewById(R.id.map), getString(R.string.viewshed_update_failed, t.getLocalizedMessage()), Snackbar.LENGTH_LONG).show();
+                        }
+                        runPendingViewshed();
+                    }
+                });
+            }
+
+            @Override
+            public void viewshedCancelled() {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (null != snackbar) {
+                            snackbar.dismiss();
+                        }
+                        runPendingViewshed();
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Starts the team or follow-me viewshed update that arrived while another calculation was
+     * running, if any.
+     */
+    private void runPendingViewshed() {
+        if (null == viewshedController || viewshedController.isCalculating()) {
+            return;
+        }
+        if (teamViewshedPending) {
+            updateTeamViewshed(false);
+        } else if (null != pendingFollowMeObserver) {
+            Point observer = pendingFollowMeObserver;
+            pendingFollowMeObserver = null;
+            startFollowMeViewshed(observer, pendingFollowMeHeading);
+        }
+    }
+
+    private boolean isFollowMeViewshedOn() {
+        return null != viewshedController && !teamViewshedOn && isFollowMe()
+                && PreferenceManager.getDefaultSharedPreferences(this).getBoolean(getString(R.string.pref_followMeViewshed), false);
+    }
+
+    /**
+     * Recalculates the viewshed from the user's location if follow-me viewshed is on and the user
+     * has moved or turned far enough. If a calculation is running, the location is held until it
+     * finishes, replacing any location already held, so that at most one calculation is pending.
+     */
+    private void updateFollowMeViewshed(Location location) {
+        if (!isFollowMeViewshedOn() || null == mapController.getSpatialReference()) {
+            return;
+        }
+        Point observer = (Point) GeometryEngine.project(
+                new Point(location.getLongitude(), location.getLatitude()),
+                SpatialReference.create(SpatialReference.WKID_WGS84),
+                mapController.getSpatialReference());
+        double heading = location.getHeading();
+        if (!followMeViewshedThreshold.isExceeded(observer.getX(), observer.getY(), heading)) {
+            return;
+        }
+        if (viewshedController.isCalculating()) {
+            pendingFollowMeObserver = observer;
+            pendingFollowMeHeading = heading;
+        } else {
+            startFollowMeViewshed(observer, heading);
+        }
+    }
+
+    private void startFollowMeViewshed(Point observer, double heading) {
+        if (!isFollowMeViewshedOn()) {
+            return;
+        }
+        followMeViewshedThreshold.accept(observer.getX(), observer.getY(), heading);
+        viewshedController.calculateViewshedAsync(observer, createViewshedListener(null));
+    }
+
+    private void showViewshedLayer(RasterLayer layer) {
+        if (layer != viewshedLayer) {
+            if (null != viewshedLayer) {
+                mapController.removeLayer(viewshedLayer);
+            }
+            viewshedLayer = layer;
+            mapController.addLayer(viewshedLayer);
+        }
+        viewshedLayer.setVisible(true);
+        findViewById(R.id.imageButton_clearViewshed).setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Turns the team viewshed on or off. While it is on, the viewshed layer shows the cumulative
+     * viewshed of the friendly position reports and is updated as they move.
+     */
+    private void setTeamViewshed(boolean on) {
+        if (on && (null == viewshedController || null == mil2525cController)) {
+            on = false;
+        }
+        teamViewshedOn = on;
+        teamViewshedPending = false;
+        if (null != mil2525cController) {
+            mil2525cController.setFriendlyPositionListener(on ? new AdvancedSymbolController.FriendlyPositionListener() {
+                @Override
+                public void friendlyPositionChanged(String geomessageId, Point location) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            updateTeamViewshed(false);
+                        }
+                    });
+                }
+            } : null);
+        }
+        if (on) {
+            updateTeamViewshed(true);
+        } else if (null != viewshedController) {
+            viewshedController.cancelViewshed();
+            viewshedController.resetCumulativeViewshed();
+            if (null != viewshedLayer) {
+                viewshedLayer.setVisible(false);
+            }
+            findViewById(R.id.imageButton_clearViewshed).setVisibility(View.INVISIBLE);
+        }
+        invalidateOptionsMenu();
+    }
+
+    /**
+     * Recalculates the team viewshed. If a calculation is running, the update waits for it to
+     * finish, so that position reports arriving in quick succession cause at most one more
+     * calculation.
+     */
+    private void updateTeamViewshed(boolean showProgress) {
+        if (!teamViewshedOn || null == viewshedController) {
+            return;
+        }
+        if (viewshedController.isCalculating()) {
+            teamViewshedPending = true;
+            return;
+        }
+        teamViewshedPending = false;
+        HashMap<String, Point> positions = mil2525cController.getFriendlyPositions();
+        if (positions.isEmpty()) {
+            if (showProgress) {
+                Snackbar.make(findViewById(R.id.map), R.string.team_viewshed_no_observers, Snackbar.LENGTH_LONG).show();
+            }
+            return;
+        }
+        viewshedController.calculateCumulativeViewshedAsync(positions,
+                createViewshedListener(showProgress ? showViewshedProgress() : null));
+    }
+
     public void imageButton_clearViewshed_clicked(final View button) {
         if (null != viewshedController) {
-            viewshedController.getLayer().setVisible(false);
+            viewshedController.cancelViewshed();
+        }
+        if (null != viewshedLayer) {
+            viewshedLayer.setVisible(false);
         }
         button.setVisibility(View.INVISIBLE);
     }
@@ -1311,6 +1777,10 @@ public class SquadLeaderActivity extends AppCompatActivity
                                 int currentIndex = popupContainer.getCurrentPopupIndex();
                                 try {
                                     table.deleteFeature(popup.getFeature().getId());
+                                    if (table instanceof GeopackageFeatureTable) {
+                                        GeoPackageReader.getInstance().removeFromSpatialIndex(
+                                                (GeopackageFeatureTable) table, popup.getFeature().getId());
+                                    }
                                 } catch (Throwable t) {
                                     popupContainer.setCurrentPopup(currentIndex, false);
                                     throw t;
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model.test;
+
+import com.esri.militaryapps.model.Location;
+import com.esri.squadleader.model.AdaptiveSamplingPolicy;
+import com.esri.squadleader.model.AdaptiveSamplingPolicy.SamplingMode;
+import com.esri.squadleader.model.StreamingGpxReader;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives AdaptiveSamplingPolicy with GPX tracks read by StreamingGpxReader, the same reader that
+ * feeds the location simulator.
+ */
+public class AdaptiveSamplingPolicyTest {
+
+    private static final double METERS_PER_DEGREE_LATITUDE = 111195;
+    private static final double START_LATITUDE = 36.6;
+    private static final double START_LONGITUDE = -121.9;
+
+    private final ArrayList<SamplingMode> transitions = new ArrayList<SamplingMode>();
+    private final ArrayList<Long> transitionTimes = new ArrayList<Long>();
+    private AdaptiveSamplingPolicy policy;
+    private StringBuilder gpx;
+    private Calendar time;
+    private double north;
+    private double east;
+
+    @Before
+    public void setUp() {
+        policy = new AdaptiveSamplingPolicy(1000, 30000, 10, 30000, 0.5, 45);
+        gpx = new StringBuilder("<?xml version=\"1.0\"?><gpx version=\"1.1\" xmlns=\"http://www.topografix.com/GPX/1/1\"><trk><trkseg>");
+        time = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+        time.clear();
+        time.set(2017, Calendar.MAY, 12, 18, 0, 0);
+        north = 0;
+        east = 0;
+    }
+
+    /**
+     * Adds one fix per second for a number of seconds.
+     */
+    private void addTrack(int seconds, double northSpeed, double eastSpeed, double jitterMeters, Random random) {
+        for (int i = 0; i < seconds; i++) {
+            double jitterNorth = null == random ? 0 : (random.nextDouble() * 2 - 1) * jitterMeters;
+            double jitterEast = null == random ? 0 : (random.nextDouble() * 2 - 1) * jitterMeters;
+            addFix(1, northSpeed, eastSpeed, jitterNorth, jitterEast);
+        }
+    }
+
+    /**
+     * Adds a fix some seconds and meters from the previous one, plus jitter that does not carry
+     * over to the next fix.
+     */
+    private void addFix(int seconds, double northMeters, double eastMeters, double jitterNorth, double jitterEast) {
+        north += northMeters;
+        east += eastMeters;
+        double latitude = START_LATITUDE + (north + jitterNorth) / METERS_PER_DEGREE_LATITUDE;
+        double longitude = START_LONGITUDE + (east + jitterEast) / (METERS_PER_DEGREE_LATITUDE * Math.cos(Math.toRadians(START_LATITUDE)));
+        time.add(Calendar.SECOND, seconds);
+        gpx.append(String.format(Locale.US, "<trkpt lat=\"%.8f\" lon=\"%.8f\"><time>%04d-%02d-%02dT%02d:%02d:%02dZ</time></trkpt>",
+                latitude, longitude, time.get(Calendar.YEAR), time.get(Calendar.MONTH) + 1, time.get(Calendar.DAY_OF_MONTH),
+                time.get(Calendar.HOUR_OF_DAY), time.get(Calendar.MINUTE), time.get(Calendar.SECOND)));
+    }
+
+    private void play() throws Exception {
+        gpx.append("</trkseg></trk></gpx>");
+        policy.addListener(new AdaptiveSamplingPolicy.SamplingModeListener() {
+            @Override
+            public void samplingModeChanged(SamplingMode mode, long intervalMillis) {
+                transitions.add(mode);
+            }
+        });
+        StreamingGpxReader reader = new StreamingGpxReader(new ByteArrayInputStream(gpx.toString().getBytes("UTF-8")), 16);
+        try {
+            Location location;
+            Calendar trackStart = null;
+            while (null != (location = reader.next())) {
+                if (null == trackStart) {
+                    trackStart = location.getTimestamp();
+                }
+                int count = transitions.size();
+                policy.update(location);
+                if (transitions.size() > count) {
+                    transitionTimes.add((location.getTimestamp().getTimeInMillis() - trackStart.getTimeInMillis()) / 1000);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void test001StationaryAfterDelay() throws Exception {
+        addTrack(60, 1.5, 0, 0, null);
+        addTrack(120, 0, 0, 0, null);
+        play();
+        assertEquals(1, transitions.size());
+        assertEquals(SamplingMode.STATIONARY, transitions.get(0));
+        assertEquals(SamplingMode.STATIONARY, policy.getMode());
+        assertEquals(30000, policy.getIntervalMillis());
+        // The unit last left the 10 m radius up to 10 / 1.5 s before stopping
+        long secondsAfterStopping = transitionTimes.get(0) - 59;
+        assertTrue("Went stationary " + secondsAfterStopping + " s after stopping", 23 <= secondsAfterStopping && secondsAfterStopping <= 31);
+    }
+
+    @Test
+    public void test002MovingAgainWhenUnitMoves() throws Exception {
+        addTrack(60, 1.5, 0, 0, null);
+        addTrack(120, 0, 0, 0, null);
+        addTrack(60, 0, 1.5, 0, null);
+        play();
+        assertEquals(2, transitions.size());
+        assertEquals(SamplingMode.STATIONARY, transitions.get(0));
+        assertEquals(SamplingMode.MOVING, transitions.get(1));
+        // The unit leaves the 10 m radius within 10 / 1.5 s of starting to move
+        assertTrue("Woke up at " + transitionTimes.get(1) + " s", transitionTimes.get(1) <= 187);
+        assertEquals(1000, policy.getIntervalMillis());
+    }
+
+    @Test
+    public void test003JitterDoesNotWakeStationaryUnit() throws Exception {
+        addTrack(300, 0, 0, 3, new Random(42));
+        play();
+        assertEquals(1, transitions.size());
+        assertEquals(SamplingMode.STATIONARY, transitions.get(0));
+    }
+
+    @Test
+    public void test004LongMoveWakesStationaryUnit() throws Exception {
+        addTrack(60, 0, 0, 0, null);
+        // One fix at the stationary interval, 15 m away from the last one
+        addFix(30, 15, 0, 0, 0);
+        play();
+        assertEquals(2, transitions.size());
+        assertEquals(SamplingMode.MOVING, transitions.get(1));
+    }
+
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model.test;
+
+import com.esri.squadleader.model.DeadReckoningTracker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeadReckoningTrackerTest {
+
+    private final HashMap<String, double[]> visited = new HashMap<String, double[]>();
+    private final DeadReckoningTracker.PositionVisitor<String> visitor = new DeadReckoningTracker.PositionVisitor<String>() {
+        @Override
+        public void visit(String id, double x, double y) {
+            visited.put(id, new double[]{x, y});
+        }
+    };
+    private DeadReckoningTracker<String> tracker;
+
+    @Before
+    public void setUp() {
+        tracker = new DeadReckoningTracker<String>(250, 30000, 3, 1);
+    }
+
+    private int extrapolate(long timeMillis) {
+        visited.clear();
+        return tracker.extrapolate(timeMillis, visitor);
+    }
+
+    @Test
+    public void test001OneReportGivesNoVelocity() {
+        tracker.update("a", 0, 0, 0);
+        assertEquals(0, extrapolate(1000));
+    }
+
+    @Test
+    public void test002ExtrapolatesAlongVelocity() {
+        tracker.update("a", 0, 0, 0);
+        tracker.update("a", 10, -20, 1000);
+        assertEquals(1, extrapolate(1500));
+        assertEquals(15, visited.get("a")[0], 1e-9);
+        assertEquals(-30, visited.get("a")[1], 1e-9);
+    }
+
+    @Test
+    public void test003StopsAfterMaxIntervals() {
+        tracker.update("a", 0, 0, 0);
+        tracker.update("a", 10, 0, 1000);
+        // Three report intervals past the last report
+        assertEquals(1, extrapolate(10000));
+        assertEquals(40, visited.get("a")[0], 1e-9);
+        // Held where the extrapolation stopped, so there is nothing new to visit
+        assertEquals(0, extrapolate(20000));
+    }
+
+    @Test
+    public void test004StopsAfterMaxExtrapolation() {
+        tracker = new DeadReckoningTracker<String>(250, 2000, 3, 1);
+        tracker.update("a", 0, 0, 0);
+        tracker.update("a", 10, 0, 1000);
+        assertEquals(1, extrapolate(10000));
+        assertEquals(30, visited.get("a")[0], 1e-9);
+    }
+
+    @Test
+    public void test005CloseReportsKeepVelocity() {
+        tracker.update("a", 0, 0, 0);
+        tracker.update("a", 10, 0, 1000);
+        tracker.update("a", 12, 0, 1100);
+        assertEquals(1, extrapolate(1600));
+        assertEquals(17, visited.get("a")[0], 1e-9);
+    }
+
+    @Test
+    public void test006VelocityIsSmoothed() {
+        tracker.update("a", 0, 0, 0);
+        tracker.update("a", 10, 0, 1000);
+        tracker.update("a", 30, 0, 2000);
+        assertEquals(1, extrapolate(3000));
+        assertEquals(45, visited.get("a")[0], 1e-9);
+    }
+
+    @Test
+    public void test007SmallMovesAreNotVisited() {
+        tracker.update("a", 0, 0, 0);
+        tracker.update("a", 10, 0, 1000);
+        assertEquals(0, extrapolate(1050));
+        assertEquals(1, extrapolate(1100));
+        // Measured from where it was last visited, not from the report
+        assertEquals(0, extrapolate(1150));
+    }
+
+    @Test
+    public void test008Remove() {
+        tracker.update("a", 0, 0, 0);
+        tracker.update("a", 10, 0, 1000);
+        assertTrue(tracker.remove("a"));
+        assertFalse(tracker.remove("a"));
+        assertEquals(0, tracker.size());
+        assertEquals(0, extrapolate(2000));
+    }
+
+}
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model.test;
+
+import com.esri.squadleader.model.HashedTimerWheel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HashedTimerWheelTest {
+
+    private static final long TICK = 1000;
+
+    private final ArrayList<String> expired = new ArrayList<String>();
+    private HashedTimerWheel<String> wheel;
+
+    /**
+     * Builds a wheel of eight one-second slots, so that deadlines more than eight seconds away
+     * share slots with nearer ones.
+     */
+    @Before
+    public void setUp() {
+        wheel = new HashedTimerWheel<String>(TICK, 6, 0);
+    }
+
+    private int advance(long nowMillis) {
+        expired.clear();
+        return wheel.advance(nowMillis, expired);
+    }
+
+    @Test
+    public void test001ExpiresAtRoundedUpTick() {
+        wheel.schedule("a", 2500);
+        assertEquals(0, advance(2999));
+        assertEquals(1, advance(3000));
+        assertEquals("a", expired.get(0));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void test002WrapsAroundWithoutExpiringEarly() {
+        // Slot 4, which the wheel passes at ticks 4 and 12 before the deadline
+        wheel.schedule("a", 20 * TICK);
+        for (long time = TICK; time < 20 * TICK; time += TICK) {
+            assertEquals("Expired at " + time, 0, advance(time));
+        }
+        assertEquals(1, advance(20 * TICK));
+        assertEquals("a", expired.get(0));
+    }
+
+    @Test
+    public void test003LongJumpChecksEverySlotOnce() {
+        wheel.schedule("a", 5 * TICK);
+        wheel.schedule("b", 100 * TICK);
+        assertEquals(1, advance(50 * TICK));
+        assertEquals("a", expired.get(0));
+        assertEquals(1, advance(100 * TICK));
+        assertEquals("b", expired.get(0));
+    }
+
+    @Test
+    public void test004RescheduleReplacesDeadline() {
+        wheel.schedule("a", 3 * TICK);
+        wheel.schedule("a", 14 * TICK);
+        assertEquals(1, wheel.size());
+        assertEquals(0, advance(13 * TICK));
+        assertEquals(1, advance(14 * TICK));
+        assertEquals("a", expired.get(0));
+    }
+
+    @Test
+    public void test005RescheduleEarlier() {
+        wheel.schedule("a", 14 * TICK);
+        wheel.schedule("a", 2 * TICK);
+        assertEquals(1, advance(2 * TICK));
+        assertEquals(0, advance(20 * TICK));
+    }
+
+    @Test
+    public void test006CancelInSharedSlot() {
+        // Both keys share slot 3
+        wheel.schedule("a", 3 * TICK);
+        wheel.schedule("b", 11 * TICK);
+        wheel.schedule("c", 3 * TICK);
+        assertTrue(wheel.cancel("c"));
+        assertFalse(wheel.cancel("c"));
+        assertEquals(1, advance(3 * TICK));
+        assertEquals("a", expired.get(0));
+        assertEquals(1, advance(11 * TICK));
+        assertEquals("b", expired.get(0));
+    }
+
+    @Test
+    public void test007PastDeadlineExpiresAtNextTick() {
+        advance(5 * TICK);
+        wheel.schedule("a", TICK);
+        assertEquals(0, advance(5 * TICK + TICK - 1));
+        assertEquals(1, advance(6 * TICK));
+    }
+
+}
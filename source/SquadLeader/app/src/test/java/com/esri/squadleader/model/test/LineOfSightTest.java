@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model.test;
+
+import com.esri.squadleader.model.ArrayElevationRaster;
+import com.esri.squadleader.model.LineOfSight;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LineOfSightTest {
+
+    private static final int SIZE = 100;
+    private static final double CELL_SIZE = 10;
+    private static final double MIN_X = 500000;
+    private static final double MAX_Y = 4000000;
+
+    private LineOfSight lineOfSight;
+
+    /**
+     * Builds a flat plain at elevation 100 with a north-south ridge 50 units high along column 50
+     * and a hole of no data in the southeast corner.
+     */
+    @Before
+    public void setUp() {
+        float[] values = new float[SIZE * SIZE];
+        for (int row = 0; row < SIZE; row++) {
+            for (int column = 0; column < SIZE; column++) {
+                if (90 <= row && 90 <= column) {
+                    values[row * SIZE + column] = Float.NaN;
+                } else {
+                    values[row * SIZE + column] = 50 == column ? 150 : 100;
+                }
+            }
+        }
+        lineOfSight = new LineOfSight(new ArrayElevationRaster(SIZE, SIZE, MIN_X, MAX_Y, CELL_SIZE, CELL_SIZE, 32618, values));
+    }
+
+    private static double x(int column) {
+        return MIN_X + (column + 0.5) * CELL_SIZE;
+    }
+
+    private static double y(int row) {
+        return MAX_Y - (row + 0.5) * CELL_SIZE;
+    }
+
+    @Test
+    public void test001SameSideOfRidgeIsVisible() {
+        LineOfSight.Result result = lineOfSight.check(x(10), y(50), 2, x(40), y(20), 2);
+        assertTrue(result.isVisible());
+        assertTrue(Double.isNaN(result.getObstructionX()));
+    }
+
+    @Test
+    public void test002RidgeBlocksSightLine() {
+        LineOfSight.Result result = lineOfSight.check(x(10), y(50), 2, x(90), y(50), 2);
+        assertFalse(result.isVisible());
+        assertEquals(x(50), result.getObstructionX(), CELL_SIZE);
+        assertEquals(y(50), result.getObstructionY(), CELL_SIZE);
+        assertEquals(150, result.getObstructionZ(), 0);
+    }
+
+    @Test
+    public void test003TallObserverSeesOverRidge() {
+        assertTrue(lineOfSight.check(x(10), y(50), 200, x(90), y(50), 2).isVisible());
+    }
+
+    @Test
+    public void test004TargetOnRidgeIsVisible() {
+        assertTrue(lineOfSight.check(x(10), y(50), 2, x(50), y(50), 0).isVisible());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test005TargetWithoutElevationThrows() {
+        lineOfSight.check(x(10), y(50), 2, x(95), y(95), 2);
+    }
+
+    @Test
+    public void test006Batch() {
+        LineOfSight.Result[] results = lineOfSight.check(new double[]{
+                x(10), y(50), x(40), y(20),
+                x(10), y(50), x(90), y(50),
+                x(10), y(50), x(95), y(95),
+        }, 2, 2);
+        assertEquals(3, results.length);
+        assertTrue(results[0].isVisible());
+        assertFalse(results[1].isVisible());
+        assertNull(results[2]);
+    }
+
+}
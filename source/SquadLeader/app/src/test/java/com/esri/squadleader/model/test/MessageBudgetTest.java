@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model.test;
+
+import com.esri.squadleader.model.MessageBudget;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageBudgetTest {
+
+    private final ArrayList<String> evicted = new ArrayList<String>();
+    private final MessageBudget.EvictionListener listener = new MessageBudget.EvictionListener() {
+        @Override
+        public void evicted(String id, String messageType) {
+            evicted.add(id);
+        }
+    };
+    private MessageBudget budget;
+
+    @Before
+    public void setUp() {
+        budget = new MessageBudget(0);
+    }
+
+    private void update(String... ids) {
+        for (String id : ids) {
+            // The type is the ID's first letter
+            budget.update(id, id.substring(0, 1), listener);
+        }
+    }
+
+    @Test
+    public void test001NoLimitEvictsNothing() {
+        update("x1", "x2", "y1");
+        assertTrue(evicted.isEmpty());
+        assertEquals(3, budget.getCount());
+        assertEquals(2, budget.getCount("x"));
+    }
+
+    @Test
+    public void test002TotalBudgetEvictsLeastRecentlyUpdated() {
+        budget.setTotalBudget(3);
+        update("x1", "x2", "x3", "x1", "x4");
+        assertEquals(Arrays.asList("x2"), evicted);
+        update("x5");
+        assertEquals(Arrays.asList("x2", "x3"), evicted);
+        assertEquals(3, budget.getCount());
+    }
+
+    @Test
+    public void test003TypeBudgetEvictsOnlyThatType() {
+        budget.setTypeBudget("x", 2);
+        update("x1", "y1", "x2", "y2", "x3");
+        assertEquals(Arrays.asList("x1"), evicted);
+        assertEquals(2, budget.getCount("x"));
+        assertEquals(2, budget.getCount("y"));
+    }
+
+    @Test
+    public void test004TypeBudgetThenTotalBudget() {
+        budget.setTotalBudget(3);
+        budget.setTypeBudget("x", 2);
+        update("y1", "x1", "y2", "x2");
+        // Within the type budget, but over the total, so the oldest message of any type goes
+        assertEquals(Arrays.asList("y1"), evicted);
+        update("x3");
+        // Over the type budget, which leaves the total within budget
+        assertEquals(Arrays.asList("y1", "x1"), evicted);
+        assertEquals(3, budget.getCount());
+    }
+
+    @Test
+    public void test005UpdatedMessageIsNeverEvicted() {
+        budget.setTotalBudget(1);
+        update("x1", "y1");
+        assertEquals(Arrays.asList("x1"), evicted);
+        assertEquals(1, budget.getCount("y"));
+    }
+
+    @Test
+    public void test006RemoveFreesRoom() {
+        budget.setTotalBudget(2);
+        update("x1", "x2");
+        assertTrue(budget.remove("x1"));
+        update("x3");
+        assertTrue(evicted.isEmpty());
+        assertEquals(Arrays.asList("x2", "x3"), budget.getIds("x"));
+    }
+
+    @Test
+    public void test007TrimAfterLoweringBudgets() {
+        update("x1", "y1", "x2", "y2", "x3", "y3");
+        budget.setTypeBudget("x", 2);
+        budget.setTotalBudget(3);
+        assertTrue(evicted.isEmpty());
+        assertEquals(3, budget.trim(listener));
+        // Type budgets first, then the oldest messages of any type
+        assertEquals(Arrays.asList("x1", "y1", "x2"), evicted);
+        assertEquals(0, budget.trim(listener));
+    }
+
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model.test;
+
+import com.esri.squadleader.model.OffscreenUpdates;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OffscreenUpdatesTest {
+
+    private final ArrayList<String> taken = new ArrayList<String>();
+    private OffscreenUpdates<String, String> updates;
+
+    @Before
+    public void setUp() {
+        updates = new OffscreenUpdates<String, String>();
+        updates.setExtent(0, 0, 100, 100);
+    }
+
+    @Test
+    public void test001ShouldDefer() {
+        assertTrue(updates.shouldDefer("a", 200, 200));
+        assertFalse(updates.shouldDefer("a", 50, 50));
+        // A symbol drawn on screen gets its update even if it moves off screen
+        updates.drawn("a", 50, 50);
+        assertFalse(updates.shouldDefer("a", 200, 200));
+        updates.clearExtent();
+        assertFalse(updates.shouldDefer("b", 200, 200));
+    }
+
+    @Test
+    public void test002TakeVisibleInArrivalOrder() {
+        updates.defer("a", "a1", 200, 200);
+        updates.defer("b", "b1", 300, 300);
+        updates.defer("c", "c1", 400, 400);
+        // The latest update replaces the earlier one and moves to the back
+        updates.defer("a", "a2", 250, 250);
+        assertEquals(3, updates.getPendingCount());
+        updates.setExtent(0, 0, 1000, 1000);
+        assertEquals(3, updates.takeVisible(taken));
+        assertEquals(Arrays.asList("b1", "c1", "a2"), taken);
+        assertEquals(0, updates.getPendingCount());
+    }
+
+    @Test
+    public void test003TakeVisibleLeavesOffscreenUpdates() {
+        updates.defer("a", "a1", 200, 200);
+        updates.defer("b", "b1", 500, 500);
+        updates.defer("c", "c1", 220, 220);
+        updates.setExtent(150, 150, 250, 250);
+        assertEquals(2, updates.takeVisible(taken));
+        assertEquals(Arrays.asList("a1", "c1"), taken);
+        assertEquals(1, updates.getPendingCount());
+    }
+
+    @Test
+    public void test004DrawnPositionInExtentMakesUpdateVisible() {
+        updates.drawn("a", 200, 200);
+        assertTrue(updates.shouldDefer("a", 300, 300));
+        updates.defer("a", "a1", 300, 300);
+        updates.setExtent(150, 150, 250, 250);
+        assertEquals(1, updates.takeVisible(taken));
+        assertEquals("a1", taken.get(0));
+    }
+
+    @Test
+    public void test005DrawnAndForgetDropPendingUpdates() {
+        updates.defer("a", "a1", 200, 200);
+        updates.defer("b", "b1", 200, 200);
+        assertTrue(updates.hasPending("a"));
+        updates.drawn("a", 50, 50);
+        assertFalse(updates.hasPending("a"));
+        updates.forget("b");
+        assertEquals(0, updates.getPendingCount());
+        assertTrue(updates.isDrawn("a"));
+        assertFalse(updates.isDrawn("b"));
+    }
+
+    @Test
+    public void test006NoExtentTakesAll() {
+        updates.defer("a", "a1", 200, 200);
+        updates.defer("b", "b1", 500, 500);
+        updates.clearExtent();
+        assertEquals(2, updates.takeVisible(taken));
+        assertEquals(Arrays.asList("a1", "b1"), taken);
+    }
+
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model.test;
+
+import com.esri.squadleader.model.PointClusterIndex;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PointClusterIndexTest {
+
+    private PointClusterIndex<String> index;
+
+    @Before
+    public void setUp() {
+        index = new PointClusterIndex<String>(10);
+        index.update("a", 1, 1);
+        index.update("b", 3, 5);
+        index.update("c", 15, 1);
+    }
+
+    private PointClusterIndex.Cluster<String> getClusterAt(double x, double y) {
+        List<PointClusterIndex.Cluster<String>> clusters = index.getClusters(x, y, x, y);
+        return clusters.isEmpty() ? null : clusters.get(0);
+    }
+
+    @Test
+    public void test001PointsInOneCellShareCluster() {
+        assertEquals(2, index.getClusters().size());
+        PointClusterIndex.Cluster<String> cluster = getClusterAt(1, 1);
+        assertEquals(2, cluster.getCount());
+        assertEquals(2, cluster.getX(), 1e-9);
+        assertEquals(3, cluster.getY(), 1e-9);
+    }
+
+    @Test
+    public void test002MoveDirtiesOnlyCellsInvolved() {
+        index.takeDirtyCells();
+        index.update("c", 25, 1);
+        assertEquals(2, index.takeDirtyCells().size());
+        index.update("c", 5, 5);
+        assertEquals(2, index.takeDirtyCells().size());
+        assertEquals(1, index.getClusters().size());
+        assertEquals(3, getClusterAt(1, 1).getCount());
+        // Moving to the same position changes nothing
+        index.update("c", 5, 5);
+        assertTrue(index.takeDirtyCells().isEmpty());
+    }
+
+    @Test
+    public void test003RemoveEmptiesCell() {
+        long cellKey = getClusterAt(15, 1).getCellKey();
+        index.takeDirtyCells();
+        assertTrue(index.remove("c"));
+        assertTrue(index.takeDirtyCells().contains(cellKey));
+        assertNull(index.getCluster(cellKey));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void test004LargerCellsMergeClusters() {
+        assertTrue(index.setCellSize(100));
+        assertEquals(1, index.getClusters().size());
+        assertEquals(3, getClusterAt(50, 50).getCount());
+        assertTrue(index.setCellSize(1));
+        assertEquals(3, index.getClusters().size());
+    }
+
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright 2017 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.squadleader.model.test;
+
+import com.esri.militaryapps.model.Location;
+import com.esri.squadleader.model.StreamingGpxReader;
+import com.esri.squadleader.model.TrackRecorder;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads the GPX that TrackRecorder writes with StreamingGpxReader, the same reader that plays
+ * recorded tracks.
+ */
+public class TrackRecorderTest {
+
+    private static final long START_TIME = 1494612000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "track.bin");
+    }
+
+    private static ArrayList<Location> read(InputStream gpx) throws Exception {
+        ArrayList<Location> locations = new ArrayList<Location>();
+        StreamingGpxReader reader = new StreamingGpxReader(gpx, 16);
+        try {
+            Location location;
+            while (null != (location = reader.next())) {
+                locations.add(location);
+            }
+        } finally {
+            reader.close();
+        }
+        return locations;
+    }
+
+    private static void assertFix(Location location, double longitude, double latitude, long timeMillis) {
+        assertEquals(longitude, location.getLongitude(), 1e-7);
+        assertEquals(latitude, location.getLatitude(), 1e-7);
+        assertEquals(timeMillis, location.getTimestamp().getTimeInMillis());
+    }
+
+    @Test
+    public void test001RoundTrip() throws Exception {
+        TrackRecorder recorder = new TrackRecorder(file);
+        try {
+            assertTrue(recorder.append(-121.9, 36.6, START_TIME));
+            assertTrue(recorder.append(-121.8999999, 36.6000001, START_TIME + 1234));
+            // Across the 180th meridian, where the change in longitude overflows
+            assertTrue(recorder.append(179.9999999, -0.5, START_TIME + 5000));
+            assertTrue(recorder.append(-179.9999999, 0.5, START_TIME + 6000));
+            ArrayList<Location> locations = read(recorder.openGpx());
+            assertEquals(4, locations.size());
+            assertFix(locations.get(0), -121.9, 36.6, START_TIME);
+            assertFix(locations.get(1), -121.8999999, 36.6000001, START_TIME + 1234);
+            assertFix(locations.get(2), 179.9999999, -0.5, START_TIME + 5000);
+            assertFix(locations.get(3), -179.9999999, 0.5, START_TIME + 6000);
+        } finally {
+            recorder.close();
+        }
+    }
+
+    @Test
+    public void test002ReopenContinuesLog() throws Exception {
+        TrackRecorder recorder = new TrackRecorder(file);
+        recorder.append(-121.9, 36.6, START_TIME);
+        recorder.append(-121.8, 36.7, START_TIME + 1000);
+        recorder.close();
+        recorder = new TrackRecorder(file);
+        try {
+            assertEquals(2, recorder.getCount());
+            assertTrue(recorder.append(-121.7, 36.8, START_TIME + 2000));
+            ArrayList<Location> locations = read(recorder.openGpx());
+            assertEquals(3, locations.size());
+            assertFix(locations.get(2), -121.7, 36.8, START_TIME + 2000);
+        } finally {
+            recorder.close();
+        }
+    }
+
+    @Test
+    public void test003OlderFixIsNotAppended() throws Exception {
+        TrackRecorder recorder = new TrackRecorder(file);
+        try {
+            recorder.append(-121.9, 36.6, START_TIME);
+            assertFalse(recorder.append(-121.8, 36.7, START_TIME - 1));
+            assertEquals(1, recorder.getCount());
+        } finally {
+            recorder.close();
+        }
+    }
+
+    @Test
+    public void test004FullLogDropsOlderHalf() throws Exception {
+        TrackRecorder recorder = new TrackRecorder(file, 4);
+        try {
+            for (int i = 0; i < 5; i++) {
+                recorder.append(i, i, START_TIME + i * 1000);
+            }
+            assertEquals(3, recorder.getCount());
+            ArrayList<Location> locations = read(recorder.openGpx());
+            assertEquals(3, locations.size());
+            for (int i = 0; i < 3; i++) {
+                assertFix(locations.get(i), i + 2, i + 2, START_TIME + (i + 2) * 1000);
+            }
+        } finally {
+            recorder.close();
+        }
+    }
+
+    @Test
+    public void test005OpenGpxIsSnapshot() throws Exception {
+        TrackRecorder recorder = new TrackRecorder(file);
+        try {
+            recorder.append(-121.9, 36.6, START_TIME);
+            recorder.append(-121.8, 36.7, START_TIME + 1000);
+            InputStream gpx = recorder.openGpx();
+            recorder.append(-121.7, 36.8, START_TIME + 2000);
+            recorder.clear();
+            assertEquals(0, recorder.getCount());
+            assertEquals(2, read(gpx).size());
+            assertEquals(0, read(recorder.openGpx()).size());
+        } finally {
+            recorder.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test006ReadOnlyCannotAppend() throws Exception {
+        TrackRecorder recorder = new TrackRecorder(file);
+        recorder.append(-121.9, 36.6, START_TIME);
+        recorder.close();
+        TrackRecorder readOnly = TrackRecorder.openReadOnly(file);
+        assertTrue(readOnly.isReadOnly());
+        assertEquals(1, read(readOnly.openGpx()).size());
+        readOnly.append(-121.8, 36.7, START_TIME + 1000);
+    }
+
+}